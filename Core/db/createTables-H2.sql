@@ -185,6 +185,31 @@ CREATE TABLE pointValueAnnotations (
   PRIMARY KEY (pointValueId)
 );
 
+CREATE TABLE pointValueRollups (
+  dataPointId int NOT NULL,
+  periodType int NOT NULL,
+  ts bigint NOT NULL,
+  valueCount int NOT NULL,
+  minimumValue double,
+  minimumTs bigint,
+  maximumValue double,
+  maximumTs bigint,
+  average double,
+  integral double,
+  sumValue double,
+  firstValue double,
+  firstTs bigint,
+  lastValue double,
+  lastTs bigint,
+  delta double,
+  PRIMARY KEY (dataPointId, periodType, ts)
+);
+CREATE TABLE pointValueRollupsDirty (
+  dataPointId int NOT NULL,
+  fromTs bigint NOT NULL,
+  toTs bigint NOT NULL
+);
+
 --
 --
 -- Event detectors
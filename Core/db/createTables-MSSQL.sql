@@ -184,6 +184,31 @@ create table pointValueAnnotations (
   sourceMessage ntext,
   primary key (pointValueId)
 );
+
+create table pointValueRollups (
+  dataPointId int not null,
+  periodType int not null,
+  ts bigint not null,
+  valueCount int not null,
+  minimumValue float,
+  minimumTs bigint,
+  maximumValue float,
+  maximumTs bigint,
+  average float,
+  integral float,
+  sumValue float,
+  firstValue float,
+  firstTs bigint,
+  lastValue float,
+  lastTs bigint,
+  delta float,
+  primary key (dataPointId, periodType, ts)
+);
+create table pointValueRollupsDirty (
+  dataPointId int not null,
+  fromTs bigint not null,
+  toTs bigint not null
+);
   
 --
 --
@@ -193,6 +193,31 @@ create table pointValueAnnotations (
   primary key (pointValueId)
 ) engine=InnoDB;
 
+create table pointValueRollups (
+  dataPointId int not null,
+  periodType int not null,
+  ts bigint not null,
+  valueCount int not null,
+  minimumValue double,
+  minimumTs bigint,
+  maximumValue double,
+  maximumTs bigint,
+  average double,
+  integral double,
+  sumValue double,
+  firstValue double,
+  firstTs bigint,
+  lastValue double,
+  lastTs bigint,
+  delta double,
+  primary key (dataPointId, periodType, ts)
+) engine=InnoDB;
+create table pointValueRollupsDirty (
+  dataPointId int not null,
+  fromTs bigint not null,
+  toTs bigint not null
+) engine=InnoDB;
+
 --
 --
 -- Event detectors
@@ -189,6 +189,31 @@ CREATE TABLE pointValueAnnotations (
   PRIMARY KEY (pointValueId)
 );
 
+CREATE TABLE pointValueRollups (
+  dataPointId integer NOT NULL,
+  periodType integer NOT NULL,
+  ts bigint NOT NULL,
+  valueCount integer NOT NULL,
+  minimumValue double precision,
+  minimumTs bigint,
+  maximumValue double precision,
+  maximumTs bigint,
+  average double precision,
+  integral double precision,
+  sumValue double precision,
+  firstValue double precision,
+  firstTs bigint,
+  lastValue double precision,
+  lastTs bigint,
+  delta double precision,
+  PRIMARY KEY (dataPointId, periodType, ts)
+);
+CREATE TABLE pointValueRollupsDirty (
+  dataPointId integer NOT NULL,
+  fromTs bigint NOT NULL,
+  toTs bigint NOT NULL
+);
+
 --
 --
 -- Event detectors
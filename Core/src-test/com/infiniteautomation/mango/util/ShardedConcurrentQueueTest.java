@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.infiniteautomation.mango.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Validate the sharded queue behind the point value write behind.
+ *
+ * @author Terry Packer
+ */
+public class ShardedConcurrentQueueTest {
+
+    static final int SHARDS = 8;
+
+    @Test(timeout = 30000)
+    public void testConcurrentAddAndDrain() throws InterruptedException {
+        final ShardedConcurrentQueue<long[]> queue = new ShardedConcurrentQueue<long[]>(SHARDS);
+        final int producers = 4;
+        final int perProducer = 50000;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    //Key is unique to this producer so we can check ordering
+                    for (int i = 0; i < perProducer; i++)
+                        queue.add(producer, new long[] { producer, i });
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        long[] lastSeen = new long[producers];
+        for (int p = 0; p < producers; p++)
+            lastSeen[p] = -1;
+        int total = 0;
+        List<long[]> batch = new ArrayList<long[]>();
+        while (done.getCount() > 0 || !queue.isEmpty()) {
+            batch.clear();
+            total += queue.drainTo(batch, 1000);
+            for (long[] entry : batch) {
+                int producer = (int) entry[0];
+                assertTrue("Entries for one key must be drained in order", entry[1] > lastSeen[producer]);
+                lastSeen[producer] = entry[1];
+            }
+        }
+        assertEquals(producers * perProducer, total);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDrainLimit() {
+        ShardedConcurrentQueue<Integer> queue = new ShardedConcurrentQueue<Integer>(SHARDS);
+        for (int i = 0; i < 100; i++)
+            queue.add(i, i);
+        List<Integer> batch = new ArrayList<Integer>();
+        assertEquals(30, queue.drainTo(batch, 30));
+        assertEquals(70, queue.size());
+        assertEquals(70, queue.drainTo(batch, 1000));
+        assertEquals(100, batch.size());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -12,6 +12,7 @@ import com.serotonin.m2m2.module.EventManagerListenerDefinition;
 import com.serotonin.m2m2.rt.EventManager;
 import com.serotonin.m2m2.rt.event.EventInstance;
 import com.serotonin.m2m2.rt.event.UserEventListener;
+import com.serotonin.m2m2.rt.event.UserEventSummary;
 import com.serotonin.m2m2.rt.event.type.EventType;
 import com.serotonin.m2m2.vo.User;
 
@@ -221,6 +222,15 @@ public class MockEventManager implements EventManager{
         return null;
     }
 
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.rt.EventManager#getUserEventSummary(int)
+     */
+    @Override
+    public UserEventSummary getUserEventSummary(int userId) {
+
+        return null;
+    }
+
     /* (non-Javadoc)
      * @see com.serotonin.m2m2.rt.EventManager#getAllActive()
      */
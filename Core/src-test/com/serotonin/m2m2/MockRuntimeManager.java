@@ -5,6 +5,7 @@
 package com.serotonin.m2m2;
 
 import java.util.List;
+import java.util.Map;
 
 import com.serotonin.m2m2.db.dao.DataPointDao;
 import com.serotonin.m2m2.db.dao.DataSourceDao;
@@ -142,6 +143,16 @@ public class MockRuntimeManager implements RuntimeManager {
         return false;
     }
 
+    /* (non-Javadoc)
+     * @see com.serotonin.m2m2.rt.RuntimeManager#initializeDataSourceStartup(com.serotonin.m2m2.vo.dataSource.DataSourceVO, java.util.List, java.util.Map)
+     */
+    @Override
+    public boolean initializeDataSourceStartup(DataSourceVO<?> vo, List<DataPointVO> dataSourcePoints,
+            Map<Integer, List<PointValueTime>> latestValues) {
+
+        return false;
+    }
+
     /* (non-Javadoc)
      * @see com.serotonin.m2m2.rt.RuntimeManager#stopDataSourceShutdown(int)
      */
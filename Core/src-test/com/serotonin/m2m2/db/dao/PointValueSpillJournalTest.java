@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ * @author Terry Packer
+ */
+package com.serotonin.m2m2.db.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.m2m2.db.dao.PointValueDaoSQL.BatchWriteBehindEntry;
+
+/**
+ * Check that spilled values are on disk without a save and are replayed in order, with their annotations
+ *
+ * @author Terry Packer
+ */
+public class PointValueSpillJournalTest {
+
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        dir = Files.createTempDirectory("spill").toFile();
+    }
+
+    @After
+    public void after() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testFullFilesDurableWithoutSave() {
+        PointValueSpillJournal<BatchWriteBehindEntry> journal = open();
+        for (int i = 0; i < 25; i++)
+            journal.offer(new BatchWriteBehindEntry(1, 3, i, i));
+        assertEquals(25, journal.size());
+
+        // Opened again as after a crash, nothing was saved. The full files were forced,
+        // the last values are still buffered until the force period has passed
+        journal = open();
+        assertEquals(20, journal.size());
+        for (int i = 0; i < 20; i++)
+            assertEquals(i, journal.poll().getTime());
+        assertNull(journal.poll());
+        assertEquals(0, journal.size());
+    }
+
+    @Test
+    public void testRequeueKeepsOrder() {
+        PointValueSpillJournal<BatchWriteBehindEntry> journal = open();
+        List<BatchWriteBehindEntry> entries = new ArrayList<BatchWriteBehindEntry>();
+        for (int i = 0; i < 15; i++)
+            entries.add(new BatchWriteBehindEntry(1, 3, i, i));
+        journal.offer(entries);
+
+        List<BatchWriteBehindEntry> failed = new ArrayList<BatchWriteBehindEntry>();
+        for (int i = 0; i < 4; i++)
+            failed.add(journal.poll());
+        // Newer values spilled while the batch was being written
+        journal.offer(new BatchWriteBehindEntry(1, 3, 15, 15));
+        journal.requeue(failed);
+        assertEquals(16, journal.size());
+        journal.save();
+
+        // The requeued values are on disk ahead of the rest
+        journal = open();
+        for (int i = 0; i < 16; i++)
+            assertEquals(i, journal.poll().getTime());
+        assertNull(journal.poll());
+    }
+
+    @Test
+    public void testSaveKeepsUntakenHead() {
+        PointValueSpillJournal<BatchWriteBehindEntry> journal = open();
+        for (int i = 0; i < 10; i++)
+            journal.offer(new BatchWriteBehindEntry(1, 3, i, i));
+        for (int i = 0; i < 3; i++)
+            journal.poll();
+        journal.save();
+
+        journal = open();
+        assertEquals(7, journal.size());
+        assertEquals(3, journal.poll().getTime());
+    }
+
+    @Test
+    public void testAnnotatedValues() {
+        PointValueSpillJournal<BatchAnnotatedWriteBehind.Entry> journal = new PointValueSpillJournal<BatchAnnotatedWriteBehind.Entry>(
+                10, dir, PointValueSpillJournal.ANNOTATED_POINT_VALUES);
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            longString.append('\u00e9');
+        journal.offer(new BatchAnnotatedWriteBehind.Entry(1, 3, 0, 1, "short", null, "{\"key\":\"set\"}"));
+        journal.offer(new BatchAnnotatedWriteBehind.Entry(2, 3, 0, 2, null, longString.toString(), null));
+        journal.save();
+
+        journal = new PointValueSpillJournal<BatchAnnotatedWriteBehind.Entry>(10, dir,
+                PointValueSpillJournal.ANNOTATED_POINT_VALUES);
+        BatchAnnotatedWriteBehind.Entry e = journal.poll();
+        assertEquals(1, e.getPointId());
+        assertEquals(1, e.getTime());
+        assertEquals("short", e.getShortString());
+        assertNull(e.getLongString());
+        assertEquals("{\"key\":\"set\"}", e.getSourceMessage());
+
+        e = journal.poll();
+        assertEquals(2, e.getPointId());
+        assertNull(e.getShortString());
+        assertEquals(longString.toString(), e.getLongString());
+        assertNull(e.getSourceMessage());
+        assertNull(journal.poll());
+    }
+
+    private PointValueSpillJournal<BatchWriteBehindEntry> open() {
+        return new PointValueSpillJournal<BatchWriteBehindEntry>(10, dir, PointValueSpillJournal.POINT_VALUES);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.MangoTestBase;
+import com.serotonin.m2m2.db.dao.EventDao;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.event.AlarmLevels;
+import com.serotonin.m2m2.rt.event.EventInstance;
+import com.serotonin.m2m2.rt.event.type.EventType;
+import com.serotonin.m2m2.rt.event.type.SystemEventType;
+
+/**
+ * Raise and return events through the EventManagerImpl and its event write behind.
+ *
+ * @author Terry Packer
+ */
+public class EventManagerImplTest extends MangoTestBase {
+
+    EventManagerImpl manager;
+
+    @Before
+    @Override
+    public void before() {
+        super.before();
+        manager = new EventManagerImpl();
+        manager.initialize(false);
+    }
+
+    @After
+    @Override
+    public void after() {
+        manager.terminate();
+        manager.joinTermination();
+        super.after();
+    }
+
+    @Test
+    public void testRaiseAndReturnToNormal() {
+        EventType type = new SystemEventType(SystemEventType.TYPE_SYSTEM_STARTUP, 1, EventType.DuplicateHandling.ALLOW);
+        manager.raiseEvent(type, 1000, true, AlarmLevels.INFORMATION, new TranslatableMessage("common.default", "storm"), null);
+        assertEquals(1, manager.getAllActive().size());
+        EventInstance evt = manager.getAllActive().get(0);
+        assertTrue(evt.getId() != Common.NEW_ID);
+
+        manager.returnToNormal(type, 2000, AlarmLevels.INFORMATION);
+        assertEquals(0, manager.getAllActive().size());
+
+        EventDao.flushWriteBehind();
+        EventInstance saved = EventDao.instance.get(evt.getId());
+        assertNotNull(saved);
+        assertEquals(2000, saved.getRtnTimestamp());
+    }
+}
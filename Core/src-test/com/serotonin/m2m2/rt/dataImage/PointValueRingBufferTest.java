@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.dataImage.types.AlphanumericValue;
+
+/**
+ * Validate the ring buffer behind the PointValueCache.
+ *
+ * @author Terry Packer
+ */
+public class PointValueRingBufferTest {
+
+    @Test
+    public void testAddInOrderDropsOldest() {
+        PointValueRingBuffer buffer = new PointValueRingBuffer(3);
+        for (int i = 1; i <= 5; i++)
+            buffer.add(new PointValueTime((double) i, i * 1000));
+
+        List<PointValueTime> values = buffer.getLatestPointValues(10);
+        assertEquals(3, values.size());
+        assertEquals(5000, values.get(0).getTime());
+        assertEquals(5d, values.get(0).getDoubleValue(), 0);
+        assertEquals(3000, values.get(2).getTime());
+    }
+
+    @Test
+    public void testAddOutOfOrder() {
+        PointValueRingBuffer buffer = new PointValueRingBuffer(4);
+        buffer.add(new PointValueTime(1d, 1000));
+        buffer.add(new PointValueTime(3d, 3000));
+        buffer.add(new PointValueTime(2d, 2000));
+        buffer.add(new PointValueTime(4d, 4000));
+        //Older than everything in a full buffer
+        buffer.add(new PointValueTime(0d, 0));
+        //Fills the middle of a full buffer
+        buffer.add(new PointValueTime(3.5d, 3500));
+
+        List<PointValueTime> values = buffer.getLatestPointValues(10);
+        assertEquals(4, values.size());
+        long[] expected = new long[] { 4000, 3500, 3000, 2000 };
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], values.get(i).getTime());
+    }
+
+    @Test
+    public void testObjectValues() {
+        PointValueRingBuffer buffer = new PointValueRingBuffer(3);
+        PointValueTime annotated = new AnnotatedPointValueTime(new AlphanumericValue("set"), 2000,
+                new TranslatableMessage("common.default", "test"));
+        buffer.add(new PointValueTime(true, 1000));
+        buffer.add(annotated);
+        buffer.add(new PointValueTime(7, 3000));
+
+        assertSame(annotated, buffer.getLatestPointValue(1));
+        assertTrue(buffer.getLatestPointValue(2).getBooleanValue());
+        assertEquals(7, buffer.getLatestPointValue(0).getIntegerValue());
+        assertNull(buffer.getLatestPointValue(3));
+    }
+
+    @Test
+    public void testRangeQueries() {
+        PointValueRingBuffer buffer = new PointValueRingBuffer(10);
+        for (int i = 1; i <= 10; i++)
+            buffer.add(new PointValueTime((double) i, i * 1000));
+
+        assertEquals(4000, buffer.getPointValueBefore(5000).getTime());
+        assertNull(buffer.getPointValueBefore(1000));
+        assertEquals(5000, buffer.getPointValueAt(5000).getTime());
+        assertNull(buffer.getPointValueAt(5001));
+        assertEquals(3000, buffer.getOldestPointValueBetween(2500, 6000).getTime());
+        assertNull(buffer.getOldestPointValueBetween(11000, Long.MAX_VALUE));
+
+        List<PointValueTime> between = buffer.getPointValuesBetween(3000, 6000);
+        assertEquals(3, between.size());
+        assertEquals(5000, between.get(0).getTime());
+        assertEquals(3000, between.get(2).getTime());
+    }
+
+    @Test
+    public void testReplaceAndResize() {
+        PointValueRingBuffer buffer = new PointValueRingBuffer(5);
+        for (int i = 1; i <= 5; i++)
+            buffer.add(new PointValueTime((double) i, i * 1000));
+        assertTrue(buffer.replace(new PointValueTime(30d, 3000)));
+        assertEquals(30d, buffer.getPointValueAt(3000).getDoubleValue(), 0);
+
+        buffer.resize(2);
+        assertEquals(2, buffer.size());
+        assertEquals(5000, buffer.getLatestPointValue(0).getTime());
+        buffer.add(new PointValueTime(6d, 6000));
+        assertEquals(2, buffer.size());
+        assertEquals(5000, buffer.getLatestPointValue(1).getTime());
+
+        buffer.resize(0);
+        buffer.add(new PointValueTime(7d, 7000));
+        assertEquals(0, buffer.size());
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentReads() throws InterruptedException {
+        final PointValueRingBuffer buffer = new PointValueRingBuffer(100);
+        final int writes = 200000;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < writes; i++)
+                    buffer.add(new PointValueTime((double) i, i));
+            }
+        };
+        writer.start();
+
+        final PointValueRingBuffer.Reader<Boolean> ordered = new PointValueRingBuffer.Reader<Boolean>() {
+            @Override
+            public Boolean read(PointValueRingBuffer.View view) {
+                for (int i = 1; i < view.size(); i++)
+                    if (view.getTime(i) >= view.getTime(i - 1) || view.getDoubleValue(i) != view.getTime(i))
+                        return false;
+                return true;
+            }
+        };
+        while (writer.isAlive())
+            assertTrue("Reads must see a consistent buffer", buffer.read(ordered));
+        writer.join();
+        assertEquals(writes - 1, buffer.getLatestPointValue(0).getTime());
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.MangoTestBase;
+import com.serotonin.m2m2.rt.script.AbstractPointWrapper;
+import com.serotonin.m2m2.rt.script.DataPointWrapper;
+import com.serotonin.m2m2.view.stats.AnalogStatistics;
+
+/**
+ * Compare the statistics served from the window to those of the values read from the point.
+ *
+ * @author Terry Packer
+ */
+public class PointValueWindowTest extends MangoTestBase {
+
+    private static final PointValueWindow.StatisticsFactory<AnalogStatistics> STATISTICS = new PointValueWindow.StatisticsFactory<AnalogStatistics>() {
+        @Override
+        public AnalogStatistics create(long from, long to, PointValueTime start, List<PointValueTime> values) {
+            return new AnalogStatistics(from, to, start, values);
+        }
+    };
+
+    @Test
+    public void testSlidingPeriod() {
+        ListPoint point = new ListPoint();
+        PointValueWindow window = new PointValueWindow(point);
+        for (int i = 0; i < 100; i++)
+            point.add(new PointValueTime((double) (i % 7), i * 1000), window);
+
+        for (int run = 100; run < 200; run++) {
+            long to = run * 1000;
+            long from = to - 30000;
+            AnalogStatistics stats = window.getStatistics(from, to, STATISTICS);
+            assertEquals(point.statistics(from, to).toString(), stats.toString());
+            point.add(new PointValueTime((double) (run % 7), to), window);
+        }
+        // Only the first request read the values
+        assertEquals(1, point.reads);
+    }
+
+    @Test
+    public void testInvalidated() {
+        ListPoint point = new ListPoint();
+        PointValueWindow window = new PointValueWindow(point);
+        for (int i = 0; i < 100; i++)
+            point.add(new PointValueTime((double) i, i * 1000), window);
+
+        window.getStatistics(50000, 100000, STATISTICS);
+        // Backdated
+        point.add(new PointValueTime(-1d, 75500), window);
+        AnalogStatistics stats = window.getStatistics(51000, 101000, STATISTICS);
+        assertEquals(point.statistics(51000, 101000).toString(), stats.toString());
+        assertEquals(2, point.reads);
+
+        // Not logged
+        window.added(new PointValueTime(5d, 101000), false);
+        window.getStatistics(52000, 102000, STATISTICS);
+        assertEquals(3, point.reads);
+    }
+
+    @Test
+    public void testPeriodsInThePast() {
+        ListPoint point = new ListPoint();
+        PointValueWindow window = new PointValueWindow(point);
+        for (int i = 0; i < 100; i++)
+            point.add(new PointValueTime((double) i, i * 1000), window);
+
+        assertNull(window.getStatistics(0, 10000, STATISTICS));
+        assertEquals(0, point.reads);
+    }
+
+    /**
+     * A point with its values in a list
+     */
+    private static class ListPoint implements IDataPointValueSource {
+        final List<PointValueTime> values = new ArrayList<PointValueTime>();
+        int reads;
+
+        void add(PointValueTime pvt, PointValueWindow window) {
+            int i = values.size();
+            while (i > 0 && values.get(i - 1).getTime() > pvt.getTime())
+                i--;
+            values.add(i, pvt);
+            window.added(pvt, true);
+        }
+
+        AnalogStatistics statistics(long from, long to) {
+            List<PointValueTime> between = new ArrayList<PointValueTime>();
+            for (PointValueTime pvt : values) {
+                if (pvt.getTime() >= from && pvt.getTime() < to)
+                    between.add(pvt);
+            }
+            return new AnalogStatistics(from, to, before(from), between);
+        }
+
+        private PointValueTime before(long time) {
+            PointValueTime before = null;
+            for (PointValueTime pvt : values) {
+                if (pvt.getTime() >= time)
+                    break;
+                before = pvt;
+            }
+            return before;
+        }
+
+        @Override
+        public List<PointValueTime> getPointValuesBetween(long from, long to) {
+            reads++;
+            List<PointValueTime> between = new ArrayList<PointValueTime>();
+            for (PointValueTime pvt : values) {
+                if (pvt.getTime() >= from && pvt.getTime() < to)
+                    between.add(pvt);
+            }
+            return between;
+        }
+
+        @Override
+        public PointValueTime getPointValueBefore(long time) {
+            return before(time);
+        }
+
+        @Override
+        public PointValueTime getPointValue() {
+            return values.isEmpty() ? null : values.get(values.size() - 1);
+        }
+
+        @Override
+        public int getDataTypeId() {
+            return DataTypes.NUMERIC;
+        }
+
+        @Override
+        public List<PointValueTime> getLatestPointValues(int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void updatePointValue(PointValueTime newValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void updatePointValue(PointValueTime newValue, boolean async) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setPointValue(PointValueTime newValue, SetPointSource source) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PointValueTime getPointValueAfter(long time) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<PointValueTime> getPointValues(long since) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PointValueTime getPointValueAt(long time) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DataPointWrapper getDataPointWrapper(AbstractPointWrapper wrapper) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
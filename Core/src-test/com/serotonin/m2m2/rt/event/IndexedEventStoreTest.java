@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.event.type.AuditEventType;
+import com.serotonin.m2m2.rt.event.type.DataPointEventType;
+import com.serotonin.m2m2.rt.event.type.DataSourceEventType;
+import com.serotonin.m2m2.rt.event.type.EventType;
+import com.serotonin.m2m2.rt.event.type.PublisherEventType;
+
+/**
+ * Check the lookups of the active and recent event stores used by the EventManager
+ *
+ * @author Terry Packer
+ */
+public class IndexedEventStoreTest {
+
+    static final TranslatableMessage MESSAGE = new TranslatableMessage("common.default", "not a real alarm");
+
+    @Test
+    public void testGetAndRemoveByType() {
+        IndexedEventStore store = new IndexedEventStore();
+        EventInstance first = event(new DataPointEventType(1, 10, 100, EventType.DuplicateHandling.ALLOW), 1, 1000, AlarmLevels.URGENT);
+        EventInstance second = event(new DataPointEventType(1, 10, 100, EventType.DuplicateHandling.ALLOW), 2, 2000, AlarmLevels.CRITICAL);
+        EventInstance other = event(new DataPointEventType(1, 10, 101, EventType.DuplicateHandling.ALLOW), 3, 3000, AlarmLevels.INFORMATION);
+        store.add(first);
+        store.add(second);
+        store.add(other);
+
+        EventType type = new DataPointEventType(1, 10, 100, EventType.DuplicateHandling.ALLOW);
+        assertSame(first, store.get(type));
+        assertEquals(2, store.getAll(type).size());
+        assertSame(second, store.getById(2));
+        assertEquals(AlarmLevels.CRITICAL, store.getHighestAlarmLevel());
+
+        assertSame(first, store.remove(type));
+        assertSame(second, store.remove(type));
+        assertNull(store.remove(type));
+        assertNull(store.getById(2));
+        assertEquals(AlarmLevels.INFORMATION, store.getHighestAlarmLevel());
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testTypesEqualByTheirOwnEquals() {
+        IndexedEventStore store = new IndexedEventStore();
+        EventInstance point = event(new DataPointEventType(1, 10, 100, EventType.DuplicateHandling.IGNORE), 1, 1000, AlarmLevels.URGENT);
+        EventInstance audit = event(new AuditEventType("DATA_POINT", 1, 10, null, 5), 2, 1000, AlarmLevels.NONE);
+        store.add(point);
+        store.add(audit);
+
+        // Data point events only compare the detector
+        assertSame(point, store.get(new DataPointEventType(2, 20, 100, EventType.DuplicateHandling.IGNORE)));
+        // Audit events ignore the change type and audit event id
+        assertSame(audit, store.get(new AuditEventType("DATA_POINT", 2, 10, null, 6)));
+        assertNull(store.get(new AuditEventType("DATA_POINT", 1, 11, null, 5)));
+
+        assertSame(audit, store.remove(new AuditEventType("DATA_POINT", 3, 10)));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testRemoveBySource() {
+        IndexedEventStore store = new IndexedEventStore();
+        EventInstance point = event(new DataPointEventType(1, 10, 100, EventType.DuplicateHandling.IGNORE), 1, 1000, AlarmLevels.URGENT);
+        EventInstance dataSource = event(new DataSourceEventType(1, 5), 2, 1000, AlarmLevels.URGENT);
+        EventInstance otherDataSource = event(new DataSourceEventType(2, 5), 3, 1000, AlarmLevels.URGENT);
+        EventInstance publisher = event(new PublisherEventType(1, 5), 4, 1000, AlarmLevels.URGENT);
+        store.add(point);
+        store.add(dataSource);
+        store.add(otherDataSource);
+        store.add(publisher);
+
+        assertTrue(store.removeForDataPoint(2).isEmpty());
+        List<EventInstance> removed = store.removeForDataSource(1);
+        assertEquals(2, removed.size());
+        assertSame(point, removed.get(0));
+        assertSame(dataSource, removed.get(1));
+        assertNull(store.get(point.getEventType()));
+
+        assertSame(publisher, store.removeForPublisher(1).get(0));
+        assertEquals(1, store.size());
+        assertSame(otherDataSource, store.getAll().get(0));
+
+        store.removeIf(e -> e.getActiveTimestamp() < 2000);
+        assertEquals(0, store.size());
+        assertEquals(AlarmLevels.NONE, store.getHighestAlarmLevel());
+    }
+
+    @Test
+    public void testRecentExpires() {
+        RecentEventStore store = new RecentEventStore(10000, 10);
+        EventType type = new DataSourceEventType(1, 5);
+        store.add(event(type, 1, 1000, AlarmLevels.URGENT));
+
+        assertTrue(store.isRecent(new DataSourceEventType(1, 5), MESSAGE, 5000));
+        assertFalse(store.isRecent(new DataSourceEventType(1, 5), new TranslatableMessage("common.default", "other"), 5000));
+        assertFalse(store.isRecent(new DataSourceEventType(2, 5), MESSAGE, 5000));
+        //Recent up to and including period ms after it was raised
+        assertTrue(store.isRecent(type, MESSAGE, 11000));
+        assertFalse(store.isRecent(type, MESSAGE, 11001));
+        //Evicted once its whole bucket has expired
+        assertFalse(store.isRecent(type, MESSAGE, 12000));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testRecentRemoveBySource() {
+        RecentEventStore store = new RecentEventStore(10000, 10);
+        store.add(event(new DataSourceEventType(1, 5), 1, 1000, AlarmLevels.URGENT));
+        store.add(event(new PublisherEventType(1, 5), 2, 1500, AlarmLevels.URGENT));
+
+        assertEquals(1, store.removeForDataSource(1).size());
+        assertFalse(store.isRecent(new DataSourceEventType(1, 5), MESSAGE, 2000));
+        assertTrue(store.isRecent(new PublisherEventType(1, 5), MESSAGE, 2000));
+        assertEquals(1, store.size());
+    }
+
+    private EventInstance event(EventType type, int id, long time, int alarmLevel) {
+        EventInstance e = new EventInstance(type, time, true, alarmLevel, MESSAGE, null);
+        e.setId(id);
+        return e;
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.rt.event.type.DataPointEventType;
+import com.serotonin.m2m2.rt.event.type.EventType;
+
+/**
+ * Check the counts kept as events are added and removed against counting the events
+ *
+ * @author Terry Packer
+ */
+public class UserEventSummaryTest {
+
+    @Test
+    public void testAddAndRemove() {
+        List<EventInstance> events = new ArrayList<EventInstance>();
+        events.add(event(1, 1000, AlarmLevels.URGENT));
+        events.add(event(2, 2000, AlarmLevels.URGENT));
+        UserEventSummary summary = new UserEventSummary(events);
+        assertEquals(2, summary.getCount(AlarmLevels.URGENT));
+        assertEquals(2, summary.getLatest(AlarmLevels.URGENT).getId());
+        assertEquals(AlarmLevels.URGENT, summary.getHighestAlarmLevel());
+
+        EventInstance critical = event(3, 3000, AlarmLevels.CRITICAL);
+        events.add(critical);
+        summary.added(critical);
+        EventInstance doNotLog = event(4, 4000, AlarmLevels.DO_NOT_LOG);
+        events.add(doNotLog);
+        summary.added(doNotLog);
+        assertEquals(4, summary.getTotal());
+        assertSame(critical, summary.getLatest(AlarmLevels.CRITICAL));
+        assertSame(doNotLog, summary.getLatest(AlarmLevels.DO_NOT_LOG));
+        assertEquals(AlarmLevels.CRITICAL, summary.getHighestAlarmLevel());
+
+        // The latest urgent is removed, the one left becomes the latest
+        EventInstance removed = events.remove(1);
+        summary.removed(removed, events);
+        assertEquals(1, summary.getCount(AlarmLevels.URGENT));
+        assertEquals(1, summary.getLatest(AlarmLevels.URGENT).getId());
+
+        events.remove(critical);
+        summary.removed(critical, events);
+        assertEquals(0, summary.getCount(AlarmLevels.CRITICAL));
+        assertNull(summary.getLatest(AlarmLevels.CRITICAL));
+        assertEquals(AlarmLevels.URGENT, summary.getHighestAlarmLevel());
+
+        events.clear();
+        summary.reset(events);
+        assertEquals(0, summary.getTotal());
+        assertEquals(AlarmLevels.DO_NOT_LOG, summary.getHighestAlarmLevel());
+    }
+
+    private EventInstance event(int id, long time, int alarmLevel) {
+        EventInstance e = new EventInstance(new DataPointEventType(1, 10, 100 + id, EventType.DuplicateHandling.ALLOW),
+                time, true, alarmLevel, IndexedEventStoreTest.MESSAGE, null);
+        e.setId(id);
+        return e;
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.MangoTestBase;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.dataImage.AnnotatedPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.AlphanumericValue;
+import com.serotonin.m2m2.util.ExportCodes;
+import com.serotonin.m2m2.vo.event.EventTypeVO;
+import com.serotonin.m2m2.vo.publish.PublishedPointVO;
+import com.serotonin.m2m2.vo.publish.PublisherVO;
+import com.serotonin.m2m2.web.mvc.rest.v1.model.publisher.AbstractPublishedPointModel;
+import com.serotonin.m2m2.web.mvc.rest.v1.model.publisher.AbstractPublisherModel;
+
+/**
+ * Check the batches taken from the queue, removing sent batches and discarding
+ *
+ * @author Terry Packer
+ */
+public class PublishQueueTest extends MangoTestBase {
+
+    @Test
+    public void testBatches() {
+        PublishQueue<TestPublishedPointVO> queue = new PublishQueue<>(new TestPublisherRT(), 1000, 1000);
+        TestPublishedPointVO point = new TestPublishedPointVO();
+        for (int i = 0; i < 10; i++)
+            queue.add(point, new PointValueTime(i, i));
+        assertEquals(10, queue.getSize());
+
+        List<PublishQueueEntry<TestPublishedPointVO>> batch = queue.get(4);
+        assertEquals(4, batch.size());
+        assertEquals(0, batch.get(0).getPvt().getTime());
+        assertSame(batch.get(0), queue.next());
+
+        queue.removeAll(batch);
+        assertEquals(6, queue.getSize());
+        assertEquals(4, queue.next().getPvt().getTime());
+
+        // A later entry is removed without the ones before it
+        queue.remove(queue.get(2).get(1));
+        assertEquals(5, queue.getSize());
+        assertEquals(6, queue.get(2).get(1).getPvt().getTime());
+
+        // Later entries of a batch are removed without the ones before them
+        batch = queue.get(4);
+        queue.removeAll(batch.subList(2, 4));
+        assertEquals(3, queue.getSize());
+        assertEquals(4, queue.next().getPvt().getTime());
+        assertEquals(9, queue.get(3).get(2).getPvt().getTime());
+
+        queue.removeAll();
+        assertEquals(0, queue.getSize());
+        assertNull(queue.get(4));
+    }
+
+    @Test
+    public void testDiscard() {
+        PublishQueue<TestPublishedPointVO> queue = new PublishQueue<>(new TestPublisherRT(), 1000, 100);
+        TestPublishedPointVO point = new TestPublishedPointVO();
+        for (int i = 0; i < 100; i++)
+            queue.add(point, new PointValueTime(i, i));
+        List<PublishQueueEntry<TestPublishedPointVO>> batch = queue.get(20);
+
+        // The oldest tenth goes at once
+        queue.add(point, new PointValueTime(100, 100));
+        assertEquals(90, queue.getSize());
+        assertEquals(11, queue.next().getPvt().getTime());
+
+        // Entries of the batch that were discarded are skipped
+        queue.removeAll(batch);
+        assertEquals(81, queue.getSize());
+        assertEquals(20, queue.next().getPvt().getTime());
+    }
+
+    @Test
+    public void testOverflow() throws IOException {
+        File dir = Files.createTempDirectory("publishQueue").toFile();
+        try {
+            TestPublisherRT publisher = new TestPublisherRT();
+            TestPublishedPointVO numeric = publisher.getVo().getPoints().get(0);
+            TestPublishedPointVO alphanumeric = publisher.getVo().getPoints().get(1);
+            // Past the threshold and three blocks so full blocks are written and read back
+            int count = 10 + 3 * 5 + 7;
+            PublishQueue<TestPublishedPointVO> queue = new PublishQueue<>(publisher, 1000, 1000, dir, 10, 5);
+            for (int i = 0; i < count; i++) {
+                if (i % 2 == 0)
+                    queue.add(numeric, new PointValueTime(i, i));
+                else
+                    queue.add(alphanumeric, new AnnotatedPointValueTime(new AlphanumericValue("v" + i), i,
+                            new TranslatableMessage("common.default", "s" + i)));
+            }
+            assertEquals(count, queue.getSize());
+
+            // Saved over a restart and counted exactly
+            queue.terminate();
+            queue = new PublishQueue<>(publisher, 1000, 1000, dir, 10, 5);
+            assertEquals(count - 10, queue.getSize());
+
+            List<PublishQueueEntry<TestPublishedPointVO>> read = new ArrayList<>();
+            List<PublishQueueEntry<TestPublishedPointVO>> batch;
+            while ((batch = queue.get(4)) != null) {
+                read.addAll(batch);
+                queue.removeAll(batch);
+            }
+            assertEquals(count - 10, read.size());
+            for (int i = 0; i < read.size(); i++) {
+                PublishQueueEntry<TestPublishedPointVO> e = read.get(i);
+                long time = i + 10;
+                assertEquals(time, e.getPvt().getTime());
+                if (time % 2 == 0) {
+                    assertSame(numeric, e.getVo());
+                    assertEquals(time, e.getPvt().getDoubleValue(), 0);
+                }
+                else {
+                    assertSame(alphanumeric, e.getVo());
+                    assertEquals("v" + time, e.getPvt().getStringValue());
+                    assertEquals("s" + time, ((AnnotatedPointValueTime) e.getPvt()).getSourceMessage().getArgs()[0]);
+                }
+            }
+        }
+        finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testLatest() {
+        PublishQueue<TestPublishedPointVO> queue = new PublishQueue<>(new TestPublisherRT(), 1000, 1000);
+        TestPublishedPointVO first = new TestPublishedPointVO();
+        TestPublishedPointVO second = new TestPublishedPointVO();
+        queue.addLatest(first, new PointValueTime(1, 1));
+        queue.addLatest(second, new PointValueTime(2, 2));
+        queue.addLatest(first, new PointValueTime(3, 3));
+        assertEquals(2, queue.getSize());
+
+        // The first point keeps its place with its latest value
+        List<PublishQueueEntry<TestPublishedPointVO>> batch = queue.get(10);
+        assertEquals(2, batch.size());
+        assertSame(first, batch.get(0).getVo());
+        assertEquals(3, batch.get(0).getPvt().getTime());
+        assertSame(second, batch.get(1).getVo());
+
+        // Values after the move into the queue are kept apart from those being sent
+        queue.addLatest(first, new PointValueTime(4, 4));
+        queue.removeAll(batch);
+        assertEquals(1, queue.getSize());
+        assertEquals(4, queue.next().getPvt().getTime());
+    }
+
+    static class TestPublishedPointVO extends PublishedPointVO {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public AbstractPublishedPointModel<?> asModel() {
+            return null;
+        }
+    }
+
+    static class TestPublisherVO extends PublisherVO<TestPublishedPointVO> {
+        private static final long serialVersionUID = 1L;
+
+        TestPublisherVO() {
+            setId(1);
+            setXid("PUB_TEST");
+            setName("Test");
+            List<TestPublishedPointVO> points = new ArrayList<>();
+            for (int i = 1; i <= 2; i++) {
+                TestPublishedPointVO point = new TestPublishedPointVO();
+                point.setDataPointId(i);
+                points.add(point);
+            }
+            setPoints(points);
+        }
+
+        @Override
+        public AbstractPublisherModel<?, ?> asModel() {
+            return null;
+        }
+
+        @Override
+        public TranslatableMessage getConfigDescription() {
+            return null;
+        }
+
+        @Override
+        protected TestPublishedPointVO createPublishedPointInstance() {
+            return new TestPublishedPointVO();
+        }
+
+        @Override
+        public PublisherRT<TestPublishedPointVO> createPublisherRT() {
+            return new TestPublisherRT();
+        }
+
+        @Override
+        protected void getEventTypesImpl(List<EventTypeVO> eventTypes) {
+        }
+
+        @Override
+        public ExportCodes getEventCodes() {
+            return null;
+        }
+    }
+
+    static class TestPublisherRT extends PublisherRT<TestPublishedPointVO> {
+        TestPublisherRT() {
+            super(new TestPublisherVO());
+        }
+
+        @Override
+        public void initialize() {
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ * @author Terry Packer
+ */
+package com.serotonin.m2m2.rt.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.script.CompiledScript;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.MangoTestBase;
+import com.serotonin.m2m2.rt.dataImage.IDataPointValueSource;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+
+/**
+ * @author Terry Packer
+ */
+public class ScriptEnginePoolTest extends MangoTestBase {
+
+    private static final String SCRIPT = "return x * 2;";
+
+    @Test
+    public void testSameSourceNotShared() throws Exception {
+        CompiledScript first = CompiledScriptExecutor.compile(SCRIPT);
+        CompiledScript second = CompiledScriptExecutor.compile(SCRIPT);
+        assertNotSame(first, second);
+
+        for (int i = 0; i < 10; i++)
+            assertEquals(2D * i, run(first, i), 0D);
+    }
+
+    @Test
+    public void testOwnersNotShared() throws Exception {
+        String source = "return typeof z === 'undefined' ? x : x * z;";
+        CompiledScript first = CompiledScriptExecutor.compile(source);
+        CompiledScript second = CompiledScriptExecutor.compile(source);
+        first.getEngine().put("z", 3);
+
+        // The second owner runs on the same engines but does not see what the first put in its engine
+        for (int i = 0; i < 10; i++) {
+            assertEquals(3D * i, run(first, i), 0D);
+            assertEquals(i, run(second, i), 0D);
+        }
+    }
+
+    @Test
+    public void testScriptGlobalsNotKept() throws Exception {
+        CompiledScript script = CompiledScriptExecutor.compile("if (typeof g === 'undefined') g = x; return g;");
+        assertEquals(1D, run(script, 1), 0D);
+        assertEquals(2D, run(script, 2), 0D);
+    }
+
+    @Test
+    public void testContextNotKept() throws Exception {
+        CompiledScript script = CompiledScriptExecutor.compile("return typeof y === 'undefined' ? x : x + y;");
+        Map<String, Object> additionalContext = new HashMap<String, Object>();
+        additionalContext.put("x", 1);
+        additionalContext.put("y", 2);
+        assertEquals(3D, run(script, additionalContext), 0D);
+
+        // The next run does not see what the last one was given
+        additionalContext.remove("y");
+        assertEquals(1D, run(script, additionalContext), 0D);
+    }
+
+    @Test
+    public void testOwnerEngine() throws Exception {
+        final CompiledScript script = CompiledScriptExecutor.compile("return x * z;");
+        script.getEngine().put("z", 3);
+
+        // Every engine of the pool sees what the owner put in its engine
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int i = 0; i < 50; i++) {
+                            if (run(script, i) != 3D * i)
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures)
+                assertEquals(true, future.get());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentRuns() throws Exception {
+        final CompiledScript script = CompiledScriptExecutor.compile(SCRIPT);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 4; t++) {
+                final int offset = t * 1000;
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int i = offset; i < offset + 100; i++) {
+                            if (run(script, i) != 2D * i)
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures)
+                assertEquals(true, future.get());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private static double run(CompiledScript script, int x) throws Exception {
+        Map<String, Object> additionalContext = new HashMap<String, Object>();
+        additionalContext.put("x", x);
+        return run(script, additionalContext);
+    }
+
+    private static double run(CompiledScript script, Map<String, Object> additionalContext) throws Exception {
+        PointValueTime pvt = CompiledScriptExecutor.execute(script, new HashMap<String, IDataPointValueSource>(),
+                additionalContext, 0, DataTypes.NUMERIC, -1, null, null, null, null, null, true);
+        return pvt.getDoubleValue();
+    }
+}
@@ -0,0 +1,60 @@
+package com.serotonin.m2m2.view.quantize2;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.view.stats.AnalogStatistics;
+
+public class AnalogStatisticsQuantizerTest {
+
+    /**
+     * Values every 250ms, some of them at the start of a 1s bucket, with a gap over the third bucket
+     */
+    protected double[][] getData() {
+        return new double[][] { { 10, 250 }, { 20, 500 }, { 5, 1000 }, { 15, 1750 }, { 30, 3000 }, { 25, 3250 },
+                { 40, 4999 } };
+    }
+
+    @Test
+    public void testPrimitiveData() {
+        for (Double startValue : new Double[] { null, 1D }) {
+            final List<AnalogStatistics> boxed = new ArrayList<AnalogStatistics>();
+            final List<AnalogStatistics> primitive = new ArrayList<AnalogStatistics>();
+
+            AnalogStatisticsQuantizer boxedQuantizer = new AnalogStatisticsQuantizer(getBuckets(),
+                    startValue == null ? null : new NumericValue(startValue), getCallback(boxed));
+            AnalogStatisticsQuantizer primitiveQuantizer = new AnalogStatisticsQuantizer(getBuckets(),
+                    startValue == null ? null : new NumericValue(startValue), getCallback(primitive));
+            for (double[] vt : getData()) {
+                boxedQuantizer.data(new NumericValue(vt[0]), (long) vt[1]);
+                primitiveQuantizer.data(vt[0], (long) vt[1]);
+            }
+            boxedQuantizer.done();
+            primitiveQuantizer.done();
+
+            assertEquals(5, boxed.size());
+            assertEquals(boxed.size(), primitive.size());
+            for (int i = 0; i < boxed.size(); i++)
+                assertEquals(boxed.get(i).toString(), primitive.get(i).toString());
+        }
+    }
+
+    private BucketCalculator getBuckets() {
+        return new BucketsBucketCalculator(new DateTime(0), new DateTime(5000), 5);
+    }
+
+    private StatisticsGeneratorQuantizerCallback<AnalogStatistics> getCallback(final List<AnalogStatistics> result) {
+        return new StatisticsGeneratorQuantizerCallback<AnalogStatistics>() {
+            @Override
+            public void quantizedStatistics(AnalogStatistics statisticsGenerator) {
+                result.add(statisticsGenerator);
+            }
+        };
+    }
+}
@@ -457,4 +457,47 @@ public class AnalogStatisticsTest {
 
     }
 
+    @Test
+    public void testAddStatistics() {
+        long periodStart = 0;
+        long periodEnd = 3000;
+        Double startValue = 5D;
+
+        List<PointValueTime> values = new ArrayList<PointValueTime>();
+        values.add(new PointValueTime(10.0, 500));
+        values.add(new PointValueTime(40.0, 700));
+        values.add(new PointValueTime(20.0, 1500));
+        values.add(new PointValueTime(30.0, 2500));
+
+        for (Double start : new Double[] {null, startValue}) {
+            AnalogStatistics raw = new AnalogStatistics(periodStart, periodEnd, start, values);
+
+            // Merge the restored statistics of three 1s buckets without start values
+            AnalogStatistics merged = new AnalogStatistics(periodStart, periodEnd, start);
+            for (long bucket = periodStart; bucket < periodEnd; bucket += 1000) {
+                List<PointValueTime> bucketValues = new ArrayList<PointValueTime>();
+                for (PointValueTime pvt : values)
+                    if (pvt.getTime() >= bucket && pvt.getTime() < bucket + 1000)
+                        bucketValues.add(pvt);
+                AnalogStatistics b = new AnalogStatistics(bucket, bucket + 1000, (Double) null, bucketValues);
+                merged.addStatistics(new AnalogStatistics(bucket, bucket + 1000, b.getCount(), b.getSum(),
+                        b.getMinimumValue(), b.getMinimumTime(), b.getMaximumValue(), b.getMaximumTime(),
+                        b.getIntegral(), b.getFirstValue(), b.getFirstTime(), b.getLastValue(), b.getLastTime()));
+            }
+            merged.done();
+
+            assertEquals(raw.getCount(), merged.getCount());
+            assertEquals(raw.getSum(), merged.getSum(), 0.001D);
+            assertEquals(raw.getMinimumValue(), merged.getMinimumValue(), 0.001D);
+            assertEquals(raw.getMinimumTime(), merged.getMinimumTime());
+            assertEquals(raw.getMaximumValue(), merged.getMaximumValue(), 0.001D);
+            assertEquals(raw.getMaximumTime(), merged.getMaximumTime());
+            assertEquals(raw.getAverage(), merged.getAverage(), 0.001D);
+            assertEquals(raw.getIntegral(), merged.getIntegral(), 0.001D);
+            assertEquals(raw.getDelta(), merged.getDelta(), 0.001D);
+            assertEquals(raw.getFirstValue(), merged.getFirstValue(), 0.001D);
+            assertEquals(raw.getLastValue(), merged.getLastValue(), 0.001D);
+        }
+    }
+
 }
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.vo.permission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Check the compiled sets against splitting the permission strings
+ *
+ * @author Terry Packer
+ */
+public class PermissionSetTest {
+
+    @Test
+    public void testIntersects() {
+        assertTrue(PermissionSet.compile("user, admin").intersects(PermissionSet.compile("operator,admin ")));
+        assertFalse(PermissionSet.compile("user,admin").intersects(PermissionSet.compile("operator")));
+        assertFalse(PermissionSet.compile(null).intersects(PermissionSet.compile("user")));
+        assertFalse(PermissionSet.compile(",,").intersects(PermissionSet.compile(",")));
+        assertSame(PermissionSet.EMPTY, PermissionSet.compile(" , "));
+
+        // Groups with ids in other words
+        StringBuilder many = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            many.append("group").append(i).append(',');
+        PermissionSet manySet = PermissionSet.compile(many.toString());
+        assertTrue(manySet.intersects(PermissionSet.compile("group150")));
+        assertTrue(PermissionSet.compile("group150,other").intersects(manySet));
+        assertFalse(manySet.intersects(PermissionSet.compile("group200")));
+        assertTrue(manySet.contains("group199"));
+        assertFalse(manySet.contains("group200"));
+        assertEquals(PermissionSet.compile("group1,group0"), PermissionSet.compile("group0, group1"));
+
+        // The ids of a set are those of its groups
+        assertEquals(200, manySet.getGroupIds().length);
+        for (int id : PermissionSet.compile("group3,group190").getGroupIds()) {
+            boolean found = false;
+            for (int manyId : manySet.getGroupIds())
+                found |= manyId == id;
+            assertTrue(found);
+        }
+    }
+
+    @Test
+    public void testPermissionContains() {
+        String[] permissions = { null, "", "user", "user,admin", " admin ", "a,b,c", "c", "superadmin", "b, d" };
+        for (String query : permissions) {
+            for (String groups : permissions)
+                assertEquals(query + " in " + groups, split(query, groups), Permissions.permissionContains(query, groups));
+        }
+    }
+
+    private static boolean split(String query, String groups) {
+        if (query == null || query.isEmpty() || groups == null || groups.isEmpty())
+            return false;
+        for (String queryPart : query.split(",")) {
+            for (String groupPart : groups.split(",")) {
+                if (!queryPart.trim().isEmpty() && queryPart.trim().equals(groupPart.trim()))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.web.dwr.longPoll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.MangoTestBase;
+import com.serotonin.m2m2.MockRuntimeManager;
+import com.serotonin.m2m2.rt.dataImage.DataPointListener;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+
+/**
+ * Check that the LongPollNotifier wakes the requests registered for a change and removes
+ * the listeners of points no request has shown for the idle timeout.
+ *
+ * @author Terry Packer
+ */
+public class LongPollNotifierTest extends MangoTestBase {
+
+    static final long IDLE_POINT_TIMEOUT = 60000;
+
+    final LongPollNotifier notifier = LongPollNotifier.instance;
+    ListenerRuntimeManager runtimeManager;
+
+    @Before
+    public void setupRuntimeManager() {
+        runtimeManager = new ListenerRuntimeManager();
+        Common.runtimeManager = runtimeManager;
+    }
+
+    @Test
+    public void testUserEvents() {
+        LongPollRequest request = new LongPollRequest();
+        long version = notifier.getUserEventsVersion(1);
+
+        notifier.register(request, 1, -1);
+        notifier.userEventsChanged(2);
+        assertFalse(request.isChanged());
+        notifier.userEventsChanged(1);
+        assertTrue(request.isChanged());
+        assertTrue(notifier.getUserEventsVersion(1) > version);
+
+        request.clearChanged();
+        version = notifier.getUserEventsVersion(1);
+        notifier.allUserEventsChanged();
+        assertTrue(request.isChanged());
+        assertTrue(notifier.getUserEventsVersion(1) > version);
+
+        request.clearChanged();
+        notifier.unregister(request, 1, -1);
+        notifier.userEventsChanged(1);
+        assertFalse(request.isChanged());
+    }
+
+    @Test(timeout = 10000)
+    public void testAwaitWakes() throws InterruptedException {
+        final LongPollRequest request = new LongPollRequest();
+        notifier.register(request, 3, -1);
+
+        final long[] waited = new long[1];
+        Thread poll = new Thread() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                notifier.await(request, 60000);
+                waited[0] = System.currentTimeMillis() - start;
+            }
+        };
+        poll.start();
+        while (poll.getState() != Thread.State.TIMED_WAITING)
+            Thread.sleep(1);
+
+        notifier.userEventsChanged(3);
+        poll.join();
+        assertTrue(request.isChanged());
+        assertTrue("Await must return when told of a change", waited[0] < 60000);
+
+        //A change before the wait is not missed
+        long start = System.currentTimeMillis();
+        notifier.await(request, 60000);
+        assertTrue(System.currentTimeMillis() - start < 60000);
+        notifier.unregister(request, 3, -1);
+    }
+
+    @Test
+    public void testPointListener() {
+        LongPollRequest first = new LongPollRequest();
+        LongPollRequest second = new LongPollRequest();
+
+        notifier.register(first, -1, 10);
+        notifier.register(second, -1, 10);
+        DataPointListener listener = runtimeManager.listeners.get(10);
+        assertNotNull(listener);
+        assertEquals(1, runtimeManager.added);
+
+        listener.pointUpdated(new PointValueTime(1d, timer.currentTimeMillis()));
+        assertTrue(first.isChanged());
+        assertTrue(second.isChanged());
+
+        //Kept while a request still shows the point
+        notifier.unregister(first, -1, 10);
+        timer.fastForwardTo(timer.currentTimeMillis() + IDLE_POINT_TIMEOUT * 2);
+        assertNotNull(runtimeManager.listeners.get(10));
+
+        second.clearChanged();
+        listener.pointBackdated(new PointValueTime(2d, timer.currentTimeMillis()));
+        assertTrue(second.isChanged());
+        notifier.unregister(second, -1, 10);
+        assertNotNull(runtimeManager.listeners.get(10));
+        timer.fastForwardTo(timer.currentTimeMillis() + IDLE_POINT_TIMEOUT + 1);
+        assertNull(runtimeManager.listeners.get(10));
+    }
+
+    @Test
+    public void testIdlePointReused() {
+        LongPollRequest request = new LongPollRequest();
+        long start = timer.currentTimeMillis();
+
+        notifier.register(request, -1, 20);
+        notifier.unregister(request, -1, 20);
+
+        //The next poll registers again before the timeout, keeping the listener
+        timer.fastForwardTo(start + IDLE_POINT_TIMEOUT / 2);
+        notifier.register(request, -1, 20);
+        assertEquals(1, runtimeManager.added);
+        notifier.unregister(request, -1, 20);
+
+        //Idle since the second unregister, so the first timeout checks again later
+        timer.fastForwardTo(start + IDLE_POINT_TIMEOUT + 1);
+        assertNotNull(runtimeManager.listeners.get(20));
+
+        timer.fastForwardTo(start + IDLE_POINT_TIMEOUT / 2 + IDLE_POINT_TIMEOUT + 1);
+        assertNull(runtimeManager.listeners.get(20));
+        assertEquals(1, runtimeManager.removed);
+    }
+
+    /**
+     * Keeps the listeners added to the points
+     */
+    static class ListenerRuntimeManager extends MockRuntimeManager {
+        final Map<Integer, DataPointListener> listeners = new ConcurrentHashMap<>();
+        int added;
+        int removed;
+
+        @Override
+        public void addDataPointListener(int dataPointId, DataPointListener l) {
+            listeners.put(dataPointId, l);
+            added++;
+        }
+
+        @Override
+        public void removeDataPointListener(int dataPointId, DataPointListener l) {
+            if (listeners.remove(dataPointId, l))
+                removed++;
+        }
+    }
+}
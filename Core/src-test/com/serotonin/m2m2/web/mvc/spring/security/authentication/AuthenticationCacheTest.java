@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.web.mvc.spring.security.authentication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.MangoTestBase;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.impl.DefaultClaims;
+import io.jsonwebtoken.impl.DefaultJws;
+import io.jsonwebtoken.impl.DefaultJwsHeader;
+
+/**
+ * Check that verified tokens are only reused for the exact token they were verified for
+ *
+ * @author Terry Packer
+ */
+public class AuthenticationCacheTest extends MangoTestBase {
+
+    @Test
+    public void testTokens() {
+        AtomicInteger parses = new AtomicInteger();
+        Function<String, Jws<Claims>> parser = token -> {
+            parses.incrementAndGet();
+            DefaultClaims body = new DefaultClaims();
+            body.setSubject(token.substring(0, token.indexOf('.')));
+            body.setExpiration(new Date(Common.timer.currentTimeMillis() + 600000));
+            return new DefaultJws<Claims>(new DefaultJwsHeader(), body, token.substring(token.lastIndexOf('.') + 1));
+        };
+
+        Jws<Claims> claims = AuthenticationCache.instance.getClaims("admin.body.signature", parser);
+        assertSame(claims, AuthenticationCache.instance.getClaims("admin.body.signature", parser));
+        assertEquals(1, parses.get());
+
+        // Another body with the same signature is verified again
+        assertEquals("other", AuthenticationCache.instance.getClaims("other.body.signature", parser).getBody()
+                .getSubject());
+        assertEquals(2, parses.get());
+
+        // Logging out drops the tokens of the user
+        AuthenticationCache.instance.loggedOut("OTHER");
+        AuthenticationCache.instance.getClaims("other.body.signature", parser);
+        assertEquals(3, parses.get());
+    }
+}
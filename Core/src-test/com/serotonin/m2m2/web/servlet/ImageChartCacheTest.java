@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.web.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.serotonin.m2m2.MangoTestBase;
+
+/**
+ * Check the keys charts are cached by and that the cache renders a chart once
+ *
+ * @author Terry Packer
+ */
+public class ImageChartCacheTest extends MangoTestBase {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    @Test
+    public void testKeys() throws IOException {
+        ImageChartCache.ChartKey key = ImageChartCache.ChartKey.parse("/ft_1_1000_2000_3|0xFF0000_1_w300.png", 200,
+                100, UTC, 5000);
+        assertArrayEquals(new int[] { 1, 3 }, key.series.pointIds);
+        assertNull(key.colours[0]);
+        assertEquals(300, key.width);
+        assertEquals(100, key.height);
+        assertEquals(0, key.series.bucket);
+
+        // Same points in another order, other size, same values
+        ImageChartCache.ChartKey other = ImageChartCache.ChartKey.parse("/ft_1_1000_2000_1_3|0xFF0000_w400.png", 200,
+                100, UTC, 6000);
+        assertNotEquals(key, other);
+        assertEquals(key.series, other.series);
+
+        // Values changed since, the last timestamp differs
+        assertNotEquals(key.series, ImageChartCache.ChartKey.parse("/ft_2_1000_2000_1_3.png", 200, 100, UTC, 6000)
+                .series);
+
+        // A range reaching now moves with the range bucket
+        ImageChartCache.ChartKey current = ImageChartCache.ChartKey.parse("/ft_1_1000_200000_1.png", 200, 100, UTC,
+                100001);
+        assertNotEquals(0, current.series.bucket);
+        assertNotEquals(current.series, ImageChartCache.ChartKey.parse("/ft_1_1000_200000_1.png", 200, 100, UTC,
+                110000).series);
+
+        // Charts of the last period share the range bucket
+        ImageChartCache.ChartKey last = ImageChartCache.ChartKey.parse("/1_60000_1.png", 200, 100, UTC, 100001);
+        assertEquals(last, ImageChartCache.ChartKey.parse("/2_60000_1.png", 200, 100, UTC, 109999));
+        assertNotEquals(last, ImageChartCache.ChartKey.parse("/2_60000_1.png", 200, 100, UTC, 110000));
+
+        assertNull(ImageChartCache.ChartKey.parse("/ft_1_1000.png", 200, 100, UTC, 5000));
+        assertNull(ImageChartCache.ChartKey.parse("/1_60000_w10.png", 200, 100, UTC, 5000));
+    }
+
+    @Test
+    public void testConcurrentRequestsRenderOnce() throws Exception {
+        ImageChartCache.BoundedCache<String, String> cache = new ImageChartCache.BoundedCache<String, String>(10,
+                60000);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Thread first = new Thread(() -> cache.get("a", () -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            release.await();
+            return "image";
+        }));
+        first.start();
+        loading.await(10, TimeUnit.SECONDS);
+
+        String[] waited = new String[1];
+        Thread second = new Thread(() -> waited[0] = cache.get("a", () -> {
+            loads.incrementAndGet();
+            return "other";
+        }));
+        second.start();
+        release.countDown();
+        first.join(10000);
+        second.join(10000);
+
+        assertEquals("image", waited[0]);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAndFailures() {
+        ImageChartCache.BoundedCache<Integer, Integer> cache = new ImageChartCache.BoundedCache<Integer, Integer>(2,
+                60000);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get(1, () -> loads.incrementAndGet());
+        cache.get(2, () -> loads.incrementAndGet());
+        cache.get(1, () -> loads.incrementAndGet());
+        cache.get(3, () -> loads.incrementAndGet());
+        assertEquals(2, cache.size());
+        // 2 was dropped, 1 was used since
+        assertEquals(Integer.valueOf(1), cache.get(1, () -> loads.incrementAndGet()));
+        assertEquals(Integer.valueOf(4), cache.get(2, () -> loads.incrementAndGet()));
+
+        try {
+            cache.get(5, () -> {
+                throw new IllegalStateException();
+            });
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Integer.valueOf(5), cache.get(5, () -> loads.incrementAndGet()));
+    }
+
+    @Test
+    public void testBoundedByWeight() {
+        ImageChartCache.BoundedCache<String, String> cache = new ImageChartCache.BoundedCache<String, String>(10,
+                60000, String::length);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("a", () -> "aaaaaa");
+        cache.get("b", () -> "bbbb");
+        assertEquals(2, cache.size());
+
+        // Over the weight, the least recently used is dropped
+        cache.get("c", () -> "cc");
+        assertEquals(2, cache.size());
+        assertEquals("bbbb", cache.get("b", () -> "other"));
+        assertEquals("new", cache.get("a", () -> "new"));
+
+        // Heavier than the cache, returned but not kept
+        assertEquals("heavier than all", cache.get("d", () -> {
+            loads.incrementAndGet();
+            return "heavier than all";
+        }));
+        cache.get("d", () -> {
+            loads.incrementAndGet();
+            return "heavier than all";
+        });
+        assertEquals(2, loads.get());
+        assertEquals("bbbb", cache.get("b", () -> "other"));
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.timer.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.serotonin.timer.OrderedThreadPoolExecutor;
+import com.serotonin.timer.RejectedTaskReason;
+import com.serotonin.timer.SystemTimeSource;
+import com.serotonin.timer.Task;
+import com.serotonin.timer.TaskWrapper;
+
+/**
+ * Check ordering and rejection of keyed tasks.
+ *
+ * @author Terry Packer
+ */
+public class OrderedThreadPoolExecutorTest {
+
+    @Test(timeout = 30000)
+    public void testOrderPerKey() throws InterruptedException {
+        final OrderedThreadPoolExecutor executor = newExecutor(8);
+        final int keys = 16;
+        final int perKey = 2000;
+        final int[] lastRun = new int[keys];
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(keys * perKey);
+
+        Thread[] submitters = new Thread[4];
+        for (int s = 0; s < submitters.length; s++) {
+            final int submitter = s;
+            submitters[s] = new Thread() {
+                @Override
+                public void run() {
+                    //Each submitter owns a set of keys so it can number their tasks
+                    for (int i = 1; i <= perKey; i++) {
+                        for (int key = submitter; key < keys; key += submitters.length) {
+                            final int k = key;
+                            final int sequence = i;
+                            executor.execute(new TaskWrapper(new CountingTask("k" + key, Task.UNLIMITED_QUEUE_SIZE) {
+                                @Override
+                                public void run(long runtime) {
+                                    if (lastRun[k] != sequence - 1)
+                                        outOfOrder.incrementAndGet();
+                                    lastRun[k] = sequence;
+                                    done.countDown();
+                                }
+                            }, 0));
+                        }
+                    }
+                }
+            };
+            submitters[s].start();
+        }
+
+        done.await();
+        assertEquals(0, outOfOrder.get());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        for (int key = 0; key < keys; key++)
+            assertTrue(!executor.queueExists("k" + key));
+    }
+
+    @Test(timeout = 30000)
+    public void testRejectWhileRunning() throws InterruptedException {
+        OrderedThreadPoolExecutor executor = newExecutor(2);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new TaskWrapper(new CountingTask("blocker", 0) {
+            @Override
+            public void run(long runtime) {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    //Done
+                }
+            }
+        }, 0));
+        running.await();
+
+        CountingTask second = new CountingTask("blocker", 0);
+        executor.execute(new TaskWrapper(second, 0));
+        assertEquals(1, second.rejected.get());
+        //A queue size of 0 is full as soon as one is running
+        assertEquals(RejectedTaskReason.TASK_QUEUE_FULL, second.reason);
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+    private OrderedThreadPoolExecutor newExecutor(int threads) {
+        return new OrderedThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), false, new SystemTimeSource());
+    }
+
+    static class CountingTask extends Task {
+        final AtomicInteger rejected = new AtomicInteger();
+        volatile int reason;
+
+        CountingTask(String id, int queueSize) {
+            super("test", id, queueSize);
+        }
+
+        @Override
+        public void run(long runtime) {
+        }
+
+        @Override
+        public void rejected(RejectedTaskReason reason) {
+            this.reason = reason.getCode();
+            rejected.incrementAndGet();
+        }
+    }
+}
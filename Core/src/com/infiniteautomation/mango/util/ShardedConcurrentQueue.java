@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.infiniteautomation.mango.util;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-producer, multi-consumer queue split into a fixed number of lock free shards.
+ *
+ * Entries are placed into a shard by key (i.e. a data point id) so that entries for the
+ * same key remain in FIFO order while producers working on different keys rarely touch the
+ * same memory.  Consumers drain in batches, visiting the shards in round robin order so
+ * that no shard is starved.
+ *
+ * The size is tracked per shard and is exact once all producers and consumers are quiet,
+ * while they are active it is only an estimate.
+ *
+ * @author Terry Packer
+ */
+public class ShardedConcurrentQueue<E> {
+
+    private final Shard<E>[] shards;
+    //Shard to start the next drain at
+    private final AtomicInteger nextDrainShard = new AtomicInteger();
+
+    @SuppressWarnings("unchecked")
+    public ShardedConcurrentQueue(int shardCount) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("Shard count must be greater than 0");
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++)
+            this.shards[i] = new Shard<E>();
+    }
+
+    /**
+     * Add an entry to the shard for this key
+     * @param key
+     * @param e
+     */
+    public void add(int key, E e) {
+        Shard<E> shard = shards[shardFor(key)];
+        shard.queue.add(e);
+        shard.size.incrementAndGet();
+    }
+
+    /**
+     * Remove up to max entries, placing them into the list
+     *
+     * @param into
+     * @param max
+     * @return number of entries drained
+     */
+    public int drainTo(List<E> into, int max) {
+        int drained = 0;
+        int start = Math.floorMod(nextDrainShard.getAndIncrement(), shards.length);
+        for (int i = 0; i < shards.length && drained < max; i++) {
+            Shard<E> shard = shards[(start + i) % shards.length];
+            int fromShard = 0;
+            E e;
+            while (drained < max && (e = shard.queue.poll()) != null) {
+                into.add(e);
+                drained++;
+                fromShard++;
+            }
+            if (fromShard > 0) {
+                shard.size.addAndGet(-fromShard);
+                shard.drained.addAndGet(fromShard);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Estimated number of entries in all shards
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (Shard<E> shard : shards)
+            size += shard.size.get();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (Shard<E> shard : shards)
+            if (shard.size.get() > 0)
+                return false;
+        return true;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Estimated number of entries in one shard
+     * @param shard
+     * @return
+     */
+    public int getShardSize(int shard) {
+        return shards[shard].size.get();
+    }
+
+    /**
+     * Total number of entries ever drained from one shard
+     * @param shard
+     * @return
+     */
+    public long getShardDrained(int shard) {
+        return shards[shard].drained.get();
+    }
+
+    public int shardFor(int key) {
+        return Math.floorMod(key, shards.length);
+    }
+
+    private static class Shard<E> {
+        final ConcurrentLinkedQueue<E> queue = new ConcurrentLinkedQueue<E>();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicLong drained = new AtomicLong();
+    }
+}
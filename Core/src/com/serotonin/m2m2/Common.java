@@ -209,7 +209,7 @@ public class Common {
     }
 
     public static final int getDatabaseSchemaVersion() {
-        return 20;
+        return 21;
     }
 
     /**
@@ -30,9 +30,12 @@ import com.serotonin.db.spring.ConnectionCallbackVoid;
 import com.serotonin.db.spring.ExtendedJdbcTemplate;
 import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.IMangoLifecycle;
+import com.serotonin.m2m2.db.dao.EventDao;
 import com.serotonin.m2m2.db.dao.PointValueDao;
 import com.serotonin.m2m2.db.dao.PointValueDaoMetrics;
 import com.serotonin.m2m2.db.dao.PointValueDaoSQL;
+import com.serotonin.m2m2.db.dao.PointValuePartitions;
+import com.serotonin.m2m2.db.dao.PointValueRollupDao;
 import com.serotonin.m2m2.db.dao.SchemaDefinition;
 import com.serotonin.m2m2.db.dao.SystemSettingsDao;
 import com.serotonin.m2m2.db.dao.UserDao;
@@ -149,6 +152,10 @@ abstract public class AbstractDatabaseProxy implements DatabaseProxy {
                 noSQLProxy = NoSQLProxyFactory.instance.getProxy();
                 noSQLProxy.initialize();
             }
+            else {
+                PointValuePartitions.initialize(getType());
+                PointValueRollupDao.initialize();
+            }
 
         }
         catch (CannotGetJdbcConnectionException e) {
@@ -200,6 +207,12 @@ abstract public class AbstractDatabaseProxy implements DatabaseProxy {
      */
     @Override
     public void terminate(boolean terminateNoSql) {
+        // Write any queued events
+        EventDao.flushWriteBehind();
+        // Keep any point values the write behind could not get into the database
+        PointValueDaoSQL.saveWriteBehind();
+        // Keep the point value ranges still to be rolled up
+        PointValueRollupDao.terminate();
         terminateImpl();
         // Check if we are using NoSQL
         if ((terminateNoSql)&&(NoSQLProxyFactory.instance.getProxy() != null)) {
@@ -26,6 +26,9 @@ public class MySQLProxy extends BasePooledProxy {
         else
             url += "?";
         url += "useUnicode=yes&characterEncoding=" + Common.UTF8;
+        //Let the driver collapse JDBC batches (i.e. point value inserts) into multi row inserts
+        if (!url.contains("rewriteBatchedStatements"))
+            url += "&rewriteBatchedStatements=true";
         return url;
     }
 
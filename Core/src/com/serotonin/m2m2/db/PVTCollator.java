@@ -1,6 +1,8 @@
 package com.serotonin.m2m2.db;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.serotonin.db.MappedRowCallback;
 import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
@@ -8,12 +10,15 @@ import com.serotonin.m2m2.rt.dataImage.MultiValueTime;
 
 public class PVTCollator implements MappedRowCallback<IdPointValueTime> {
     private final List<Integer> pointIds;
+    private final Map<Integer, Integer> indexes = new HashMap<Integer, Integer>();
     private final MappedRowCallback<MultiValueTime> callback;
     private MultiValueTime mvt = null;
     private int nextIndex = 0;
 
     public PVTCollator(List<Integer> pointIds, MappedRowCallback<MultiValueTime> callback) {
         this.pointIds = pointIds;
+        for (int i = pointIds.size() - 1; i >= 0; i--)
+            indexes.put(pointIds.get(i), i);
         this.callback = callback;
     }
 
@@ -23,7 +28,7 @@ public class PVTCollator implements MappedRowCallback<IdPointValueTime> {
             done();
             mvt = new MultiValueTime(new Object[pointIds.size()], pvt.getTime());
         }
-        mvt.getValues()[pointIds.indexOf(pvt.getId())] = pvt.getValue();
+        mvt.getValues()[indexes.get(pvt.getId())] = pvt.getValue();
     }
 
     public void done() {
@@ -0,0 +1,522 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+
+import com.infiniteautomation.mango.monitor.IntegerMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitorOwner;
+import com.infiniteautomation.mango.util.ShardedConcurrentQueue;
+import com.serotonin.ShouldNeverHappenException;
+import com.serotonin.db.spring.ExtendedJdbcTemplate;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.DatabaseProxy.DatabaseType;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.maint.work.WorkItem;
+import com.serotonin.timer.RejectedTaskReason;
+
+/**
+ * Write behind for point values that need a row in pointValueAnnotations, i.e. alphanumeric
+ * values and values set with a SetPointSource.
+ *
+ * Each batch is written on one connection in one transaction. The pointValues rows are
+ * inserted first to get their generated ids, using a single multi row insert with RETURNING on
+ * Postgres, a JDBC batch followed by a select of the ids by point and time on MySQL and one
+ * reused prepared statement elsewhere. The annotation rows then go in as one JDBC batch.
+ *
+ * Batches that can not be written go to their own spill journal, see WriteBehindSpill, as the
+ * plain values of the BatchWriteBehind do. The replay starts with the next value added once the
+ * database is tried again.
+ *
+ * @author Terry Packer
+ */
+class BatchAnnotatedWriteBehind implements WorkItem {
+
+    public static final String ENTRIES_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueDao$BatchAnnotatedWriteBehind.ENTRIES_MONITOR";
+    public static final String INSTANCES_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueDao$BatchAnnotatedWriteBehind.INSTANCES_MONITOR";
+
+    private static final Log LOG = LogFactory.getLog(BatchAnnotatedWriteBehind.class);
+    private static final ShardedConcurrentQueue<Entry> ENTRIES = new ShardedConcurrentQueue<Entry>(
+            Common.envProps.getInt("db.writeBehind.shards", Runtime.getRuntime().availableProcessors()));
+    private static final int SPAWN_THRESHOLD = 5000;
+    private static final int MAX_INSTANCES = 3;
+    private static final int MAX_ROWS = 500;
+
+    private static final ValueMonitorOwner valueOwner = new ValueMonitorOwner() {
+        @Override
+        public void reset(String id) {
+            switch (id) {
+                case ENTRIES_MONITOR_ID:
+                    ENTRIES_MONITOR.setValue(ENTRIES.size());
+                    break;
+                case INSTANCES_MONITOR_ID:
+                    INSTANCES_MONITOR.setValue(INSTANCES.size());
+                    break;
+            }
+        }
+    };
+    private static final IntegerMonitor ENTRIES_MONITOR = new IntegerMonitor(ENTRIES_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.BATCH_ANNOTATED_ENTRIES"), valueOwner);
+    private static final IntegerMonitor INSTANCES_MONITOR = new IntegerMonitor(INSTANCES_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.BATCH_ANNOTATED_INSTANCES"), valueOwner);
+
+    private static final WriteBehindInstances<BatchAnnotatedWriteBehind> INSTANCES = new WriteBehindInstances<BatchAnnotatedWriteBehind>(
+            SPAWN_THRESHOLD, MAX_INSTANCES, INSTANCES_MONITOR);
+    private static final WriteBehindSpill<Entry> SPILL = new WriteBehindSpill<Entry>(new PointValueSpillJournal<Entry>(
+            Common.envProps.getInt("db.writeBehind.spillBlockSize", 10000),
+            new File(Common.envProps.getString("db.writeBehind.spillDirectory", Common.MA_HOME + "/databases/pointValueSpill"),
+                    "annotated"), PointValueSpillJournal.ANNOTATED_POINT_VALUES), null);
+
+    private static final List<Class<? extends RuntimeException>> retriedExceptions = new ArrayList<Class<? extends RuntimeException>>();
+
+    static {
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(ENTRIES_MONITOR);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(INSTANCES_MONITOR);
+        if (SPILL.isSpilling())
+            LOG.info(SPILL.size() + " annotated point values saved to disk will be written to the database");
+
+        retriedExceptions.add(RecoverableDataAccessException.class);
+        retriedExceptions.add(TransientDataAccessException.class);
+        retriedExceptions.add(TransientDataAccessResourceException.class);
+        retriedExceptions.add(CannotGetJdbcConnectionException.class);
+    }
+
+    //Template of the last add, used to write out what is left at shutdown
+    private static volatile ExtendedJdbcTemplate lastEjt;
+
+    static void add(Entry e, ExtendedJdbcTemplate ejt) {
+        lastEjt = ejt;
+        //Once spilling keep going to disk until the journal has been replayed
+        if (SPILL.isSpilling()) {
+            SPILL.spill(e);
+            if (INSTANCES.isEmpty())
+                spawn(ejt);
+            return;
+        }
+
+        ENTRIES.add(e.pointId, e);
+        ENTRIES_MONITOR.setValue(ENTRIES.size());
+        spawn(ejt);
+    }
+
+    private static void spawn(final ExtendedJdbcTemplate ejt) {
+        INSTANCES.spawn(ENTRIES.size(), SPILL.isReplayDue(), () -> new BatchAnnotatedWriteBehind(ejt));
+    }
+
+    /**
+     * Write everything still queued on the calling thread, used when the database is
+     * shutting down and background processing may no longer run our work items. What
+     * could not be written is saved to disk.
+     */
+    static void flush() {
+        ExtendedJdbcTemplate ejt = lastEjt;
+        if (ejt != null && !ENTRIES.isEmpty()) {
+            BatchAnnotatedWriteBehind bawb = new BatchAnnotatedWriteBehind(ejt);
+            INSTANCES.add(bawb);
+            bawb.execute();
+        }
+        spillEntries();
+        SPILL.save();
+        if (SPILL.isSpilling())
+            LOG.info(SPILL.size() + " annotated point values that could not be written to the database have been saved to disk");
+    }
+
+    /**
+     * Move everything waiting in memory to the journal
+     */
+    private static void spillEntries() {
+        SPILL.spillAll(ENTRIES, MAX_ROWS);
+        ENTRIES_MONITOR.setValue(ENTRIES.size());
+    }
+
+    private final ExtendedJdbcTemplate ejt;
+
+    public BatchAnnotatedWriteBehind(ExtendedJdbcTemplate ejt) {
+        this.ejt = ejt;
+    }
+
+    @Override
+    public void execute() {
+        try {
+            List<Entry> inserts = new ArrayList<Entry>(MAX_ROWS);
+            while (true) {
+                inserts.clear();
+                boolean replay = false;
+                if (ENTRIES.drainTo(inserts, MAX_ROWS) == 0) {
+                    //Nothing new, so catch up on anything that went to disk
+                    if (!SPILL.isReplayDue() || SPILL.drain(inserts, MAX_ROWS) == 0)
+                        break;
+                    replay = true;
+                }
+                ENTRIES_MONITOR.setValue(ENTRIES.size());
+
+                int retries = 10;
+                while (true) {
+                    try {
+                        write(inserts);
+                        break;
+                    }
+                    catch (RuntimeException e) {
+                        if (retriedExceptions.contains(e.getClass())) {
+                            if (retries <= 0) {
+                                LOG.error("Concurrency failure saving " + inserts.size()
+                                        + " annotated batch inserts after 10 tries. Saving them to disk until the database is available.");
+                                SPILL.keep(inserts, replay);
+                                break;
+                            }
+
+                            int wait = (10 - retries) * 100;
+                            try {
+                                if (wait > 0) {
+                                    synchronized (this) {
+                                        wait(wait);
+                                    }
+                                }
+                            }
+                            catch (InterruptedException ie) {
+                                // no op
+                            }
+
+                            retries--;
+                        }
+                        else {
+                            LOG.error("Error saving " + inserts.size()
+                                    + " annotated batch inserts. Saving them to disk to try again later.", e);
+                            SPILL.keep(inserts, replay);
+                            break;
+                        }
+                    }
+                }
+
+                if (!SPILL.isDatabaseAvailable()) {
+                    //Don't hold the backlog in memory while the database is down
+                    spillEntries();
+                    break;
+                }
+            }
+        }
+        finally {
+            INSTANCES.remove(this);
+            //A producer may have added after our last drain but before we were removed
+            if (INSTANCES.isEmpty() && (!ENTRIES.isEmpty() || SPILL.isReplayDue())) {
+                try {
+                    spawn(ejt);
+                }
+                catch (RejectedExecutionException ree) {
+                    LOG.error("Unable to restart annotated batch writer with " + ENTRIES.size() + " entries waiting", ree);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the values and their annotations in one transaction
+     * @param entries
+     */
+    private void write(final List<Entry> entries) {
+        ejt.execute(new ConnectionCallback<Void>() {
+            @Override
+            public Void doInConnection(Connection con) throws SQLException, DataAccessException {
+                boolean autoCommit = con.getAutoCommit();
+                con.setAutoCommit(false);
+                try {
+                    long[] ids;
+                    if (Common.databaseProxy.getType() == DatabaseType.POSTGRES)
+                        ids = insertReturning(con, entries);
+                    else if (Common.databaseProxy.getType() == DatabaseType.MYSQL)
+                        ids = insertBatch(con, entries);
+                    else
+                        ids = insertEach(con, entries);
+                    insertAnnotations(con, entries, ids);
+                    con.commit();
+                }
+                catch (SQLException | RuntimeException e) {
+                    con.rollback();
+                    throw e;
+                }
+                finally {
+                    con.setAutoCommit(autoCommit);
+                }
+                return null;
+            }
+        });
+        for (Entry e : entries)
+            PointValueRollupDao.valueChanged(e.pointId, e.dataType, e.time);
+    }
+
+    /**
+     * One multi row insert that returns the generated ids in row order
+     */
+    private long[] insertReturning(Connection con, List<Entry> entries) throws SQLException {
+        StringBuilder sb = new StringBuilder(PointValueDaoSQL.POINT_VALUE_INSERT_START);
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(PointValueDaoSQL.POINT_VALUE_INSERT_VALUES);
+        }
+        sb.append(" RETURNING id, dataPointId, ts");
+
+        long[] ids = new long[entries.size()];
+        try (PreparedStatement ps = con.prepareStatement(sb.toString())) {
+            int index = 1;
+            for (Entry e : entries) {
+                ps.setInt(index++, e.pointId);
+                ps.setInt(index++, e.dataType);
+                ps.setDouble(index++, e.dvalue);
+                ps.setLong(index++, e.time);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                int i = 0;
+                while (rs.next()) {
+                    Entry e = entries.get(i);
+                    if (rs.getInt(2) != e.pointId || rs.getLong(3) != e.time)
+                        throw new ShouldNeverHappenException("Inserted point values were returned out of order");
+                    ids[i++] = rs.getLong(1);
+                }
+                if (i != ids.length)
+                    throw new ShouldNeverHappenException("Expected " + ids.length + " generated ids but got " + i);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * One JDBC batch, then the ids are read back by data point and time. The generated keys MySQL returns for a
+     * batch are computed from the first id and the auto increment step, they are wrong when other inserts
+     * interleave.
+     */
+    private long[] insertBatch(Connection con, List<Entry> entries) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(PointValueDaoSQL.POINT_VALUE_INSERT)) {
+            for (Entry e : entries) {
+                setPointValue(ps, e);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        return selectIds(con, entries);
+    }
+
+    /**
+     * Read the ids of the rows just inserted by their data point and time. Rows that were already there with
+     * the same point and time have lower ids, so the highest ids of each point and time are ours and are given
+     * out in insert order.
+     */
+    private long[] selectIds(Connection con, List<Entry> entries) throws SQLException {
+        //Positions in entries by point and time
+        Map<String, List<Integer>> positions = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            String key = e.pointId + ":" + e.time;
+            List<Integer> list = positions.get(key);
+            if (list == null) {
+                list = new ArrayList<Integer>(1);
+                positions.put(key, list);
+            }
+            list.add(i);
+        }
+
+        StringBuilder sb = new StringBuilder("select id, dataPointId, ts from pointValues where ");
+        for (int i = 0; i < positions.size(); i++) {
+            if (i > 0)
+                sb.append(" or ");
+            sb.append("(dataPointId=? and ts=?)");
+        }
+
+        Map<String, List<Long>> found = new HashMap<String, List<Long>>();
+        try (PreparedStatement ps = con.prepareStatement(sb.toString())) {
+            int index = 1;
+            for (List<Integer> list : positions.values()) {
+                Entry e = entries.get(list.get(0));
+                ps.setInt(index++, e.pointId);
+                ps.setLong(index++, e.time);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String key = rs.getInt(2) + ":" + rs.getLong(3);
+                    List<Long> ids = found.get(key);
+                    if (ids == null) {
+                        ids = new ArrayList<Long>(1);
+                        found.put(key, ids);
+                    }
+                    ids.add(rs.getLong(1));
+                }
+            }
+        }
+
+        long[] ids = new long[entries.size()];
+        for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+            List<Integer> list = entry.getValue();
+            List<Long> rowIds = found.get(entry.getKey());
+            if (rowIds == null || rowIds.size() < list.size())
+                throw new ShouldNeverHappenException("Inserted point values for " + entry.getKey() + " not found");
+            Collections.sort(rowIds);
+            int first = rowIds.size() - list.size();
+            for (int i = 0; i < list.size(); i++)
+                ids[list.get(i)] = rowIds.get(first + i);
+        }
+        return ids;
+    }
+
+    /**
+     * One reused prepared statement executed per row
+     */
+    private long[] insertEach(Connection con, List<Entry> entries) throws SQLException {
+        long[] ids = new long[entries.size()];
+        try (PreparedStatement ps = con.prepareStatement(PointValueDaoSQL.POINT_VALUE_INSERT, Statement.RETURN_GENERATED_KEYS)) {
+            for (int i = 0; i < ids.length; i++) {
+                setPointValue(ps, entries.get(i));
+                ps.executeUpdate();
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    if (!keys.next())
+                        throw new ShouldNeverHappenException("No generated id for inserted point value");
+                    ids[i] = keys.getLong(1);
+                }
+            }
+        }
+        return ids;
+    }
+
+    private void setPointValue(PreparedStatement ps, Entry e) throws SQLException {
+        ps.setInt(1, e.pointId);
+        ps.setInt(2, e.dataType);
+        ps.setDouble(3, e.dvalue);
+        ps.setLong(4, e.time);
+    }
+
+    private void insertAnnotations(Connection con, List<Entry> entries, long[] ids) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(PointValueDaoSQL.POINT_VALUE_ANNOTATION_INSERT)) {
+            int count = 0;
+            for (int i = 0; i < ids.length; i++) {
+                Entry e = entries.get(i);
+                if (e.shortString == null && e.longString == null && e.sourceMessage == null)
+                    continue;
+                StatementCreatorUtils.setParameterValue(ps, 1, Types.INTEGER, ids[i]);
+                StatementCreatorUtils.setParameterValue(ps, 2, Types.VARCHAR, e.shortString);
+                StatementCreatorUtils.setParameterValue(ps, 3, Types.CLOB, e.longString);
+                StatementCreatorUtils.setParameterValue(ps, 4, Types.CLOB, e.sourceMessage);
+                ps.addBatch();
+                count++;
+            }
+            if (count > 0)
+                ps.executeBatch();
+        }
+    }
+
+    @Override
+    public int getPriority() {
+        return WorkItem.PRIORITY_HIGH;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Batch Writing annotated values from batch of size: " + ENTRIES.size();
+    }
+
+    @Override
+    public String getTaskId() {
+        return "BAWB";
+    }
+
+    @Override
+    public int getQueueSize() {
+        return 0;
+    }
+
+    @Override
+    public void rejected(RejectedTaskReason reason) {
+        INSTANCES.remove(this);
+    }
+
+    /**
+     * A point value with its annotation already split into the columns it is stored in
+     */
+    static class Entry {
+        private final int pointId;
+        private final int dataType;
+        private final double dvalue;
+        private final long time;
+        private final String shortString;
+        private final String longString;
+        private final String sourceMessage;
+
+        Entry(int pointId, int dataType, double dvalue, long time, String shortString, String longString,
+                String sourceMessage) {
+            this.pointId = pointId;
+            this.dataType = dataType;
+            this.dvalue = dvalue;
+            this.time = time;
+            this.shortString = shortString;
+            this.longString = longString;
+            this.sourceMessage = sourceMessage;
+        }
+
+        public Entry(int pointId, int dataType, double dvalue, long time, String svalue, TranslatableMessage sourceMessage) {
+            this.pointId = pointId;
+            this.dataType = dataType;
+            this.dvalue = dvalue;
+            this.time = time;
+            if (svalue != null && svalue.length() > 128) {
+                this.shortString = null;
+                this.longString = svalue;
+            }
+            else {
+                this.shortString = svalue;
+                this.longString = null;
+            }
+            this.sourceMessage = BaseDao.writeTranslatableMessage(sourceMessage);
+        }
+
+        int getPointId() {
+            return pointId;
+        }
+
+        int getDataType() {
+            return dataType;
+        }
+
+        double getDvalue() {
+            return dvalue;
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        String getShortString() {
+            return shortString;
+        }
+
+        String getLongString() {
+            return longString;
+        }
+
+        String getSourceMessage() {
+            return sourceMessage;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.postgresql.PGConnection;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
+
+import com.serotonin.ShouldNeverHappenException;
+import com.serotonin.db.spring.ExtendedJdbcTemplate;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.DatabaseProxy.DatabaseType;
+import com.serotonin.m2m2.db.dao.PointValueDaoSQL.BatchWriteBehindEntry;
+
+/**
+ * How the point value write behind gets a batch of rows into the pointValues table.
+ *
+ * The strategy is chosen from the database type unless overridden with the
+ * db.writeBehind.insertStrategy env property.
+ *
+ * @author Terry Packer
+ */
+abstract class BatchInsertStrategy {
+
+    public enum Type {
+        /**
+         * One insert statement with a row of parameters per value, new SQL for every batch size
+         */
+        MULTI_ROW,
+        /**
+         * The same single row insert added to a JDBC batch, on MySQL the driver rewrites
+         * the batch to a multi row insert when rewriteBatchedStatements is set on the url
+         */
+        JDBC_BATCH,
+        /**
+         * Postgres COPY FROM STDIN, falls back to JDBC_BATCH if the copy API is not available
+         */
+        COPY
+    }
+
+    /**
+     * Create the strategy for a database
+     * @param databaseType
+     * @return
+     */
+    static BatchInsertStrategy create(DatabaseType databaseType) {
+        String configured = Common.envProps.getString("db.writeBehind.insertStrategy", null);
+        Type type;
+        if (configured != null && !configured.trim().isEmpty())
+            type = Type.valueOf(configured.trim());
+        else if (databaseType == DatabaseType.POSTGRES)
+            type = Type.COPY;
+        else if (databaseType == DatabaseType.MYSQL)
+            type = Type.JDBC_BATCH;
+        else
+            type = Type.MULTI_ROW;
+
+        switch (type) {
+            case MULTI_ROW:
+                return new MultiRowInsert(multiRowMaxRows(databaseType));
+            case JDBC_BATCH:
+                return new JdbcBatchInsert();
+            case COPY:
+                if (databaseType != DatabaseType.POSTGRES)
+                    throw new ShouldNeverHappenException("COPY insert strategy is only supported on Postgres");
+                return new PostgresCopyInsert();
+            default:
+                throw new ShouldNeverHappenException("Unknown insert strategy: " + type);
+        }
+    }
+
+    private static int multiRowMaxRows(DatabaseType databaseType) {
+        switch (databaseType) {
+            case DERBY:
+            case H2:
+                // This has not been tested to be optimal
+                return 1000;
+            case MSSQL:
+                // MSSQL has max rows of 1000, and max parameters of 2100. In this case that works out to...
+                return 524;
+            case MYSQL:
+            case POSTGRES:
+                // This appears to be an optimal value
+                return 2000;
+            default:
+                throw new ShouldNeverHappenException("Unknown database type: " + databaseType);
+        }
+    }
+
+    /**
+     * Insert all of the entries
+     * @param ejt
+     * @param entries
+     */
+    abstract void insert(ExtendedJdbcTemplate ejt, List<BatchWriteBehindEntry> entries);
+
+    /**
+     * The most rows that should be sent in one insert
+     * @return
+     */
+    abstract int getMaxRows();
+
+    abstract Type getType();
+
+    /**
+     * The original multi row insert, the only option on databases without efficient batching
+     */
+    static class MultiRowInsert extends BatchInsertStrategy {
+        private final int maxRows;
+
+        MultiRowInsert(int maxRows) {
+            this.maxRows = maxRows;
+        }
+
+        @Override
+        void insert(ExtendedJdbcTemplate ejt, List<BatchWriteBehindEntry> entries) {
+            Object[] params = new Object[entries.size() * PointValueDaoSQL.POINT_VALUE_INSERT_VALUES_COUNT];
+            StringBuilder sb = new StringBuilder();
+            sb.append(PointValueDaoSQL.POINT_VALUE_INSERT_START);
+            int index = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                if (i > 0)
+                    sb.append(',');
+                sb.append(PointValueDaoSQL.POINT_VALUE_INSERT_VALUES);
+                BatchWriteBehindEntry entry = entries.get(i);
+                params[index++] = entry.getPointId();
+                params[index++] = entry.getDataType();
+                params[index++] = entry.getDvalue();
+                params[index++] = entry.getTime();
+            }
+            ejt.update(sb.toString(), params);
+        }
+
+        @Override
+        int getMaxRows() {
+            return maxRows;
+        }
+
+        @Override
+        Type getType() {
+            return Type.MULTI_ROW;
+        }
+    }
+
+    /**
+     * A single prepared insert executed as a JDBC batch so the statement text, and therefore
+     * the server side plan, is the same for every flush. Values are set as primitives.
+     */
+    static class JdbcBatchInsert extends BatchInsertStrategy {
+
+        @Override
+        void insert(ExtendedJdbcTemplate ejt, final List<BatchWriteBehindEntry> entries) {
+            ejt.batchUpdate(PointValueDaoSQL.POINT_VALUE_INSERT, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    BatchWriteBehindEntry entry = entries.get(i);
+                    ps.setInt(1, entry.getPointId());
+                    ps.setInt(2, entry.getDataType());
+                    ps.setDouble(3, entry.getDvalue());
+                    ps.setLong(4, entry.getTime());
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return entries.size();
+                }
+            });
+        }
+
+        @Override
+        int getMaxRows() {
+            return 5000;
+        }
+
+        @Override
+        Type getType() {
+            return Type.JDBC_BATCH;
+        }
+    }
+
+    /**
+     * Stream the batch to Postgres using COPY, which skips statement parsing and
+     * per row parameter binding entirely.
+     */
+    static class PostgresCopyInsert extends BatchInsertStrategy {
+        private static final Log LOG = LogFactory.getLog(PostgresCopyInsert.class);
+        private static final String COPY_SQL = "COPY pointValues (dataPointId, dataType, pointValue, ts) FROM STDIN";
+
+        private final JdbcBatchInsert fallback = new JdbcBatchInsert();
+        private volatile boolean copyUnavailable;
+
+        @Override
+        void insert(ExtendedJdbcTemplate ejt, final List<BatchWriteBehindEntry> entries) {
+            if (copyUnavailable) {
+                fallback.insert(ejt, entries);
+                return;
+            }
+
+            final StringBuilder sb = new StringBuilder(entries.size() * 32);
+            for (BatchWriteBehindEntry entry : entries) {
+                sb.append(entry.getPointId()).append('\t');
+                sb.append(entry.getDataType()).append('\t');
+                //Double.toString renders NaN and +/-Infinity the same way Postgres reads them
+                sb.append(entry.getDvalue()).append('\t');
+                sb.append(entry.getTime()).append('\n');
+            }
+
+            Boolean copied = ejt.execute(new ConnectionCallback<Boolean>() {
+                @Override
+                public Boolean doInConnection(Connection con) throws SQLException, DataAccessException {
+                    PGConnection pgConnection;
+                    try {
+                        pgConnection = con.unwrap(PGConnection.class);
+                    }
+                    catch (SQLException | AbstractMethodError e) {
+                        return false;
+                    }
+                    try {
+                        pgConnection.getCopyAPI().copyIn(COPY_SQL, new StringReader(sb.toString()));
+                    }
+                    catch (IOException e) {
+                        throw new SQLException("Failed to stream point values to COPY", e);
+                    }
+                    return true;
+                }
+            });
+
+            if (!Boolean.TRUE.equals(copied)) {
+                LOG.warn("Postgres COPY API is not available from the connection pool, using JDBC batch inserts instead");
+                copyUnavailable = true;
+                fallback.insert(ejt, entries);
+            }
+        }
+
+        @Override
+        int getMaxRows() {
+            return 10000;
+        }
+
+        @Override
+        Type getType() {
+            return Type.COPY;
+        }
+    }
+}
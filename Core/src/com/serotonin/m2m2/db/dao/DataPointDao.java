@@ -6,6 +6,9 @@ package com.serotonin.m2m2.db.dao;
 
 import static com.serotonin.m2m2.db.dao.DataPointTagsDao.DATA_POINT_TAGS_PIVOT_ALIAS;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectStreamException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -23,9 +26,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -49,6 +55,8 @@ import org.springframework.jdbc.core.RowMapper;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import com.infiniteautomation.mango.db.query.ConditionSortLimit;
 import com.infiniteautomation.mango.db.query.ConditionSortLimitWithTagKeys;
@@ -178,6 +186,34 @@ public class DataPointDao extends AbstractDao<DataPointVO>{
     	return dps;
     }
 
+    /**
+     * Load the points of many data sources at startup with one query.  The serialized point data is
+     * deserialized on the pool while the rest of the result set is still being read.  Points that
+     * cannot be deserialized are logged and left out.
+     * 
+     * @param dataSourceIds
+     * @param pool - to deserialize the points on
+     * @return points keyed by data source id, every id given has an entry
+     */
+    public Map<Integer, List<DataPointVO>> getDataPointsForDataSourceStart(List<Integer> dataSourceIds, ForkJoinPool pool) {
+        Map<Integer, List<DataPointVO>> result = new HashMap<Integer, List<DataPointVO>>(dataSourceIds.size());
+        for (Integer id : dataSourceIds)
+            result.put(id, new ArrayList<DataPointVO>());
+        if (dataSourceIds.isEmpty())
+            return result;
+
+        List<DataPointStartupRow> rows = query(DataPointStartupResultSetExtractor.DATA_POINT_SELECT_STARTUP_BASE
+                + " where dp.dataSourceId in (" + createDelimitedList(dataSourceIds, ",", null) + ")",
+                new Object[0], new DataPointGroupStartupResultSetExtractor(pool));
+
+        for (DataPointStartupRow row : rows) {
+            DataPointVO dpvo = row.joinPoint();
+            if (dpvo != null)
+                result.get(dpvo.getDataSourceId()).add(dpvo);
+        }
+        return result;
+    }
+
     public DataPointVO getDataPoint(int id) {
         return getDataPoint(id, true);
     }
@@ -231,14 +267,15 @@ public class DataPointDao extends AbstractDao<DataPointVO>{
     class DataPointStartupResultSetExtractor implements ResultSetExtractor<List<DataPointVO>> {
     	private static final int EVENT_DETECTOR_FIRST_COLUMN = 27;
     	private final EventDetectorRowMapper eventRowMapper = new EventDetectorRowMapper(EVENT_DETECTOR_FIRST_COLUMN, 5);
-    	static final String DATA_POINT_SELECT_STARTUP = //
+    	static final String DATA_POINT_SELECT_STARTUP_BASE = //
         	    "select dp.data, dp.id, dp.xid, dp.dataSourceId, dp.name, dp.deviceName, dp.enabled, dp.pointFolderId, " //
         	            + "  dp.loggingType, dp.intervalLoggingPeriodType, dp.intervalLoggingPeriod, dp.intervalLoggingType, " //
         	            + "  dp.tolerance, dp.purgeOverride, dp.purgeType, dp.purgePeriod, dp.defaultCacheSize, " //
         	            + "  dp.discardExtremeValues, dp.engineeringUnits, dp.readPermission, dp.setPermission, dp.templateId, dp.rollup, ds.name, " //
         	            + "  ds.xid, ds.dataSourceType, ped.id, ped.xid, ped.sourceTypeName, ped.typeName, ped.data, ped.dataPointId " //
         	            + "  from dataPoints dp join dataSources ds on ds.id = dp.dataSourceId " //
-        	            + "  left outer join eventDetectors ped on dp.id = ped.dataPointId where dp.dataSourceId=?";
+        	            + "  left outer join eventDetectors ped on dp.id = ped.dataPointId";
+    	static final String DATA_POINT_SELECT_STARTUP = DATA_POINT_SELECT_STARTUP_BASE + " where dp.dataSourceId=?";
     	
 		@Override
 		public List<DataPointVO> extractData(ResultSet rs) throws SQLException, DataAccessException {
@@ -276,45 +313,201 @@ public class DataPointDao extends AbstractDao<DataPointVO>{
 		}
     }
 
-    class DataPointRowMapper implements RowMapper<DataPointVO> {
+    /**
+     * Streams the startup query for a group of data sources, each point is deserialized on the pool
+     * as soon as its first row is read and its event detectors are collected from the rows that follow.
+     */
+    class DataPointGroupStartupResultSetExtractor implements ResultSetExtractor<List<DataPointStartupRow>> {
+        private final EventDetectorRowMapper eventRowMapper = new EventDetectorRowMapper(DataPointStartupResultSetExtractor.EVENT_DETECTOR_FIRST_COLUMN, 5);
+        private final ForkJoinPool pool;
+
+        DataPointGroupStartupResultSetExtractor(ForkJoinPool pool) {
+            this.pool = pool;
+        }
+
         @Override
-        public DataPointVO mapRow(ResultSet rs, int rowNum) throws SQLException {
-            int i = 0;
+        public List<DataPointStartupRow> extractData(ResultSet rs) throws SQLException, DataAccessException {
+            Map<Integer, DataPointStartupRow> result = new LinkedHashMap<Integer, DataPointStartupRow>();
+            //Pool threads do not share our context class loader, so hand it to them
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            while(rs.next()) {
+                int id = rs.getInt(2); //dp.id column number
+                DataPointStartupRow row = result.get(id);
+                if(row == null) {
+                    row = new DataPointStartupRow(rs, classLoader);
+                    result.put(id, row);
+                    pool.execute(row);
+                }
+                if(rs.getObject(DataPointStartupResultSetExtractor.EVENT_DETECTOR_FIRST_COLUMN) != null) {
+                    try{
+                        row.detectors.add((AbstractPointEventDetectorVO<?>) eventRowMapper.mapRow(rs, rs.getRow()));
+                    }catch(Exception e){
+                        LOG.error("Point not fully initialized: " + e.getMessage(), e);
+                    }
+                }
+            }
+            return new ArrayList<DataPointStartupRow>(result.values());
+        }
+    }
 
-            DataPointVO dp = (DataPointVO) SerializationHelper.readObjectInContext(rs.getBinaryStream(++i));
-            dp.setId(rs.getInt(++i));
-            dp.setXid(rs.getString(++i));
-            dp.setDataSourceId(rs.getInt(++i));
-            dp.setName(rs.getString(++i));
-            dp.setDeviceName(rs.getString(++i));
-            dp.setEnabled(charToBool(rs.getString(++i)));
-            dp.setPointFolderId(rs.getInt(++i));
-            dp.setLoggingType(rs.getInt(++i));
-            dp.setIntervalLoggingPeriodType(rs.getInt(++i));
-            dp.setIntervalLoggingPeriod(rs.getInt(++i));
-            dp.setIntervalLoggingType(rs.getInt(++i));
-            dp.setTolerance(rs.getDouble(++i));
-            dp.setPurgeOverride(charToBool(rs.getString(++i)));
-            dp.setPurgeType(rs.getInt(++i));
-            dp.setPurgePeriod(rs.getInt(++i));
-            dp.setDefaultCacheSize(rs.getInt(++i));
-            dp.setDiscardExtremeValues(charToBool(rs.getString(++i)));
-            dp.setEngineeringUnits(rs.getInt(++i));
-            dp.setReadPermission(rs.getString(++i));
-            dp.setSetPermission(rs.getString(++i));
+    /**
+     * The columns of a point read from the startup query, deserialized into its VO on a pool thread
+     */
+    class DataPointStartupRow extends RecursiveTask<DataPointVO> {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] data;
+        private final ClassLoader classLoader;
+        private final DataPointColumns columns;
+        final List<AbstractPointEventDetectorVO<?>> detectors = new ArrayList<AbstractPointEventDetectorVO<?>>();
+
+        DataPointStartupRow(ResultSet rs, ClassLoader classLoader) throws SQLException {
+            //Read as a stream as not all drivers return blobs from getBytes
+            try (InputStream in = rs.getBinaryStream(1)) {
+                this.data = in == null ? null : IOUtils.toByteArray(in);
+            }
+            catch (IOException e) {
+                throw new SQLException(e);
+            }
+            this.classLoader = classLoader;
+            this.columns = new DataPointColumns(rs, 2);
+        }
+
+        @Override
+        protected DataPointVO compute() {
+            try {
+                DataPointVO dp = (DataPointVO) SerializationHelper.readObject(new ByteArrayInputStream(data), classLoader);
+                columns.apply(dp);
+                return dp;
+            }
+            catch (Exception e) {
+                LOG.error("Data point with id '" + columns.id + "' could not be loaded. Is its module missing?", e);
+                return null;
+            }
+        }
+
+        /**
+         * Wait for the point to be deserialized and attach its event detectors
+         * @return the point or null if it could not be loaded
+         */
+        DataPointVO joinPoint() {
+            DataPointVO dp = super.join();
+            if (dp != null) {
+                dp.setEventDetectors(new ArrayList<AbstractPointEventDetectorVO<?>>(detectors.size()));
+                for (AbstractPointEventDetectorVO<?> ped : detectors) {
+                    ped.njbSetDataPoint(dp);
+                    dp.getEventDetectors().add(ped);
+                }
+            }
+            return dp;
+        }
+    }
+
+    /**
+     * The columns of the point select that follow the serialized data, read so they can be
+     * applied to a point deserialized later on another thread
+     */
+    static class DataPointColumns {
+        final int id;
+        final String xid;
+        final int dataSourceId;
+        final String name;
+        final String deviceName;
+        final boolean enabled;
+        final int pointFolderId;
+        final int loggingType;
+        final int intervalLoggingPeriodType;
+        final int intervalLoggingPeriod;
+        final int intervalLoggingType;
+        final double tolerance;
+        final boolean purgeOverride;
+        final int purgeType;
+        final int purgePeriod;
+        final int defaultCacheSize;
+        final boolean discardExtremeValues;
+        final int engineeringUnits;
+        final String readPermission;
+        final String setPermission;
+        final Integer templateId;
+        final int rollup;
+        final String dataSourceName;
+        final String dataSourceXid;
+        final String dataSourceTypeName;
+
+        /**
+         * @param rs
+         * @param firstColumn - column of the point id
+         */
+        DataPointColumns(ResultSet rs, int firstColumn) throws SQLException {
+            int i = firstColumn - 1;
+            id = rs.getInt(++i);
+            xid = rs.getString(++i);
+            dataSourceId = rs.getInt(++i);
+            name = rs.getString(++i);
+            deviceName = rs.getString(++i);
+            enabled = charToBool(rs.getString(++i));
+            pointFolderId = rs.getInt(++i);
+            loggingType = rs.getInt(++i);
+            intervalLoggingPeriodType = rs.getInt(++i);
+            intervalLoggingPeriod = rs.getInt(++i);
+            intervalLoggingType = rs.getInt(++i);
+            tolerance = rs.getDouble(++i);
+            purgeOverride = charToBool(rs.getString(++i));
+            purgeType = rs.getInt(++i);
+            purgePeriod = rs.getInt(++i);
+            defaultCacheSize = rs.getInt(++i);
+            discardExtremeValues = charToBool(rs.getString(++i));
+            engineeringUnits = rs.getInt(++i);
+            readPermission = rs.getString(++i);
+            setPermission = rs.getString(++i);
             //Because we read 0 for null
-            dp.setTemplateId(rs.getInt(++i));
-            if(rs.wasNull())
-            	dp.setTemplateId(null);
-            dp.setRollup(rs.getInt(++i));
+            int template = rs.getInt(++i);
+            templateId = rs.wasNull() ? null : template;
+            rollup = rs.getInt(++i);
 
             // Data source information.
-            dp.setDataSourceName(rs.getString(++i));
-            dp.setDataSourceXid(rs.getString(++i));
-            dp.setDataSourceTypeName(rs.getString(++i));
+            dataSourceName = rs.getString(++i);
+            dataSourceXid = rs.getString(++i);
+            dataSourceTypeName = rs.getString(++i);
+        }
+
+        void apply(DataPointVO dp) {
+            dp.setId(id);
+            dp.setXid(xid);
+            dp.setDataSourceId(dataSourceId);
+            dp.setName(name);
+            dp.setDeviceName(deviceName);
+            dp.setEnabled(enabled);
+            dp.setPointFolderId(pointFolderId);
+            dp.setLoggingType(loggingType);
+            dp.setIntervalLoggingPeriodType(intervalLoggingPeriodType);
+            dp.setIntervalLoggingPeriod(intervalLoggingPeriod);
+            dp.setIntervalLoggingType(intervalLoggingType);
+            dp.setTolerance(tolerance);
+            dp.setPurgeOverride(purgeOverride);
+            dp.setPurgeType(purgeType);
+            dp.setPurgePeriod(purgePeriod);
+            dp.setDefaultCacheSize(defaultCacheSize);
+            dp.setDiscardExtremeValues(discardExtremeValues);
+            dp.setEngineeringUnits(engineeringUnits);
+            dp.setReadPermission(readPermission);
+            dp.setSetPermission(setPermission);
+            dp.setTemplateId(templateId);
+            dp.setRollup(rollup);
+
+            dp.setDataSourceName(dataSourceName);
+            dp.setDataSourceXid(dataSourceXid);
+            dp.setDataSourceTypeName(dataSourceTypeName);
 
             dp.ensureUnitsCorrect();
+        }
+    }
 
+    class DataPointRowMapper implements RowMapper<DataPointVO> {
+        @Override
+        public DataPointVO mapRow(ResultSet rs, int rowNum) throws SQLException {
+            DataPointVO dp = (DataPointVO) SerializationHelper.readObjectInContext(rs.getBinaryStream(1));
+            new DataPointColumns(rs, 2).apply(dp);
             return dp;
         }
     }
@@ -333,7 +526,8 @@ public class DataPointDao extends AbstractDao<DataPointVO>{
                 
                 // Reset the point hierarchy so that the new or changed point
                 // gets reflected.
-                clearPointHierarchyCache();
+                cachedPointHierarchy = null;
+                afterCommit(() -> PointHierarchyEventDispatcher.fireDataPointSaved(dp));
             }
         });
     }
@@ -447,8 +641,11 @@ public class DataPointDao extends AbstractDao<DataPointVO>{
             protected void doInTransactionWithoutResult(TransactionStatus status) {
                 List<Integer> pointIds = queryForList("select id from dataPoints where dataSourceId=?",
                         new Object[] { dataSourceId }, Integer.class);
-                if (pointIds.size() > 0)
+                if (pointIds.size() > 0) {
                     deleteDataPointImpl(createDelimitedList(new HashSet<>(pointIds), ",", null));
+                    cachedPointHierarchy = null;
+                    afterCommit(() -> PointHierarchyEventDispatcher.fireDataPointsDeleted(pointIds));
+                }
             }
         });
 
@@ -478,6 +675,9 @@ public class DataPointDao extends AbstractDao<DataPointVO>{
                 @Override
                 protected void doInTransactionWithoutResult(TransactionStatus status) {
                     deleteDataPointImpl(Integer.toString(dataPointId));
+                    cachedPointHierarchy = null;
+                    afterCommit(() -> PointHierarchyEventDispatcher
+                            .fireDataPointsDeleted(Collections.singletonList(dataPointId)));
                 }
             });
 
@@ -489,6 +689,24 @@ public class DataPointDao extends AbstractDao<DataPointVO>{
         }
     }
 
+    /**
+     * Run once the transaction commits so listeners that read the point again see the change, or now if there is
+     * no transaction
+     * @param action
+     */
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        }
+        else
+            action.run();
+    }
+
     void deleteDataPointImpl(String dataPointIdList) {
         dataPointIdList = "(" + dataPointIdList + ")";
         ejt.update("delete from eventHandlersMapping where eventTypeName=? and eventTypeRef1 in " + dataPointIdList,
@@ -496,8 +714,6 @@ public class DataPointDao extends AbstractDao<DataPointVO>{
         ejt.update("delete from userComments where commentType=2 and typeKey in " + dataPointIdList);
         ejt.update("delete from eventDetectors where dataPointId in " + dataPointIdList);
         ejt.update("delete from dataPoints where id in " + dataPointIdList);
-
-        clearPointHierarchyCache();
     }
 
     public int countPointsForDataSourceType(String dataSourceType) {
@@ -55,6 +55,31 @@ public class EventDao extends BaseDao {
 	}
 	
     private static final int MAX_PENDING_EVENTS = 100;
+    //Write events in the background, see EventWriteBehind
+    private static final boolean WRITE_BEHIND = Common.envProps.getBoolean("events.writeBehind.enabled", true);
+
+    /**
+     * Write any queued event changes, called on shutdown
+     */
+    public static void flushWriteBehind() {
+        EventWriteBehind.flush();
+    }
+
+    /**
+     * Write any queued event changes before working with rows that may still be queued
+     */
+    private void flush() {
+        if (WRITE_BEHIND && !EventWriteBehind.isEmpty())
+            EventWriteBehind.flush();
+    }
+
+    /**
+     * Write any queued event changes if the event has some, before reading or changing its rows
+     */
+    private void flush(int eventId) {
+        if (WRITE_BEHIND)
+            EventWriteBehind.flush(eventId);
+    }
 
     public void saveEvent(EventInstance event) {
     	if(event.getEventType().getEventType().equals(EventType.EventTypeNames.AUDIT)){
@@ -79,9 +104,13 @@ public class EventDao extends BaseDao {
     		//Save for use in the cache
     		type.setReferenceId2(vo.getId());
     	}else{
-	        if (event.getId() == Common.NEW_ID)
-	            insertEvent(event);
-	        else
+	        if (event.getId() == Common.NEW_ID) {
+	            if (WRITE_BEHIND && EventWriteBehind.isInsertQueued()) {
+	                EventWriteBehind.insertEvent(event, ejt);
+	                event.setEventComments(new LinkedList<UserCommentVO>());
+	            }else
+	                insertEvent(event);
+	        }else
 	            updateEvent(event);
     	}
     }
@@ -121,6 +150,10 @@ public class EventDao extends BaseDao {
     private static final String EVENT_UPDATE = "update events set rtnTs=?, rtnCause=? where id=?";
 
     private void updateEvent(EventInstance event) {
+        if (WRITE_BEHIND) {
+            EventWriteBehind.returnToNormal(event.getId(), event.getRtnTimestamp(), event.getRtnCause(), ejt);
+            return;
+        }
         ejt.update(EVENT_UPDATE, new Object[] { event.getRtnTimestamp(), event.getRtnCause(), event.getId() });
     }
 
@@ -128,6 +161,11 @@ public class EventDao extends BaseDao {
     public void returnEventsToNormal(List<Integer> eventIds, long timestamp, long cause){
     	if(eventIds.size() == 0)
     		throw new ShouldNeverHappenException("Not enough Ids!");
+    	if (WRITE_BEHIND) {
+    	    for (Integer id : eventIds)
+    	        EventWriteBehind.returnToNormal(id, timestamp, (int)cause, ejt);
+    	    return;
+    	}
     	StringBuilder inClause = new StringBuilder();
     	inClause.append("(");
     	final String comma = ",";
@@ -145,6 +183,7 @@ public class EventDao extends BaseDao {
     private static final String USER_EVENT_ACK = "update userEvents set silenced=? where eventId=?";
 
     public boolean ackEvent(int eventId, long time, int userId, TranslatableMessage alternateAckSource) {
+        flush(eventId);
         // Ack the event
         int count = ejt.update(EVENT_ACK,
                 new Object[] { time, userId == 0 ? null : userId, writeTranslatableMessage(alternateAckSource), eventId },
@@ -158,6 +197,10 @@ public class EventDao extends BaseDao {
     private static final String USER_EVENTS_INSERT = "insert into userEvents (eventId, userId, silenced) values (?,?,?)";
 
     public void insertUserEvents(final int eventId, final List<Integer> userIds, final boolean alarm) {
+        if (WRITE_BEHIND) {
+            EventWriteBehind.insertUserEvents(eventId, userIds, alarm, ejt);
+            return;
+        }
         ejt.batchUpdate(USER_EVENTS_INSERT, new BatchPreparedStatementSetter() {
             @Override
             public int getBatchSize() {
@@ -191,6 +234,7 @@ public class EventDao extends BaseDao {
     }
 
     public EventInstance get(int eventId){
+        flush(eventId);
     	return queryForObject(BASIC_EVENT_SELECT + " where e.id = ?", new Object[]{ eventId }, new EventInstanceRowMapper());
     }
     
@@ -271,6 +315,7 @@ public class EventDao extends BaseDao {
     }
 
     private EventInstance getEventInstance(int eventId) {
+        flush(eventId);
         return queryForObject(BASIC_EVENT_SELECT + "where e.id=?", new Object[] { eventId },
                 new EventInstanceRowMapper());
     }
@@ -370,6 +415,7 @@ public class EventDao extends BaseDao {
     }
 
     public EventInstance insertEventComment(UserCommentVO comment) {
+        flush(comment.getReferenceId());
         UserCommentDao.instance.save(comment);
         return getEventInstance(comment.getReferenceId());
     }
@@ -379,6 +425,7 @@ public class EventDao extends BaseDao {
      * @return
      */
     public int purgeAllEvents(){
+        flush();
     	final ExtendedJdbcTemplate ejt2 = ejt;
     	int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
             @Override
@@ -397,6 +444,7 @@ public class EventDao extends BaseDao {
      * @return
      */
     public int purgeEventsBefore(final long time, final int alarmLevel) {
+        flush();
         // Find a list of event ids with no remaining acknowledgments pending.
         final ExtendedJdbcTemplate ejt2 = ejt;
         int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
@@ -424,6 +472,7 @@ public class EventDao extends BaseDao {
      * @return
      */
     public int purgeEventsBefore(final long time, final String typeName) {
+        flush();
         // Find a list of event ids with no remaining acknowledgments pending.
         final ExtendedJdbcTemplate ejt2 = ejt;
         int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
@@ -446,6 +495,7 @@ public class EventDao extends BaseDao {
     
     
     public int purgeEventsBefore(final long time) {
+        flush();
         // Find a list of event ids with no remaining acknowledgments pending.
         final ExtendedJdbcTemplate ejt2 = ejt;
         int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
@@ -622,6 +672,7 @@ public class EventDao extends BaseDao {
             + "  and e.ackTs is null";
 
     public boolean toggleSilence(int eventId, int userId) {
+        flush(eventId);
         String result = ejt.queryForObject(SILENCED_SELECT, new Object[] { eventId, userId }, String.class, null);
         if (result == null)
             return true;
@@ -381,6 +381,13 @@ public class EventInstanceDao extends AbstractDao<EventInstanceVO> {
     
     
     
+	@Override
+	public EventInstanceVO get(int id) {
+		//Write the event first if it has changes queued, see EventWriteBehind
+		EventWriteBehind.flush(id);
+		return super.get(id);
+	}
+
 	/**
 	 * @param userId
 	 * @param level 
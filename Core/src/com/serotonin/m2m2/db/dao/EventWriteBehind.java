@@ -0,0 +1,537 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+
+import com.infiniteautomation.mango.monitor.IntegerMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitorOwner;
+import com.serotonin.db.spring.ExtendedJdbcTemplate;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.DatabaseProxy.DatabaseType;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.event.EventInstance;
+import com.serotonin.m2m2.rt.event.type.EventType;
+import com.serotonin.m2m2.rt.maint.work.WorkItem;
+import com.serotonin.m2m2.util.timeout.TimeoutClient;
+import com.serotonin.m2m2.util.timeout.TimeoutTask;
+import com.serotonin.timer.RejectedTaskReason;
+
+/**
+ * Write behind for the events table and userEvents rows, so threads raising and returning events
+ * to normal do not wait on the database.
+ *
+ * An event needs its id as soon as it is raised. On Postgres the ids are reserved from the id sequence
+ * of the events table in blocks, so event inserts are queued here too. The other databases only hand
+ * out ids as rows are inserted, there the event is inserted when it is raised and only its user events
+ * and return to normal are queued.  Entries are written in the order they were queued by one writer
+ * at a time, each batch on one connection in one transaction using JDBC batches.
+ *
+ * A batch that still fails after the retries of transient errors is kept and tried again after a
+ * while. A batch that fails otherwise is written entry by entry so only the entries that can not be
+ * written at all, e.g. user events of a user deleted meanwhile, are dropped.
+ *
+ * Anything that changes the rows (acknowledging, commenting, purging) calls flush first, reads of
+ * one event flush only if it has changes queued.
+ *
+ * @author Terry Packer
+ */
+class EventWriteBehind implements WorkItem {
+
+    public static final String ENTRIES_MONITOR_ID = "com.serotonin.m2m2.db.dao.EventDao$EventWriteBehind.ENTRIES_MONITOR";
+    public static final String WRITE_SPEED_MONITOR_ID = "com.serotonin.m2m2.db.dao.EventDao$EventWriteBehind.WRITE_SPEED_MONITOR";
+
+    private static final Log LOG = LogFactory.getLog(EventWriteBehind.class);
+    private static final int MAX_ROWS = Common.envProps.getInt("events.writeBehind.batchSize", 1000);
+    private static final int ID_BLOCK_SIZE = 100;
+    //Wait before trying a batch that could not be written again (ms)
+    private static final long RETRY_DELAY = 10000;
+
+    private static final String EVENT_INSERT = "insert into events (id, typeName, subtypeName, typeRef1, typeRef2, activeTs, "
+            + "rtnApplicable, rtnTs, rtnCause, alarmLevel, message, ackTs) values (?,?,?,?,?,?,?,?,?,?,?,?)";
+    private static final String USER_EVENT_INSERT = "insert into userEvents (eventId, userId, silenced) values (?,?,?)";
+    private static final String EVENT_RTN = "update events set rtnTs=?, rtnCause=? where id=?";
+
+    private static final ConcurrentLinkedQueue<Entry> ENTRIES = new ConcurrentLinkedQueue<Entry>();
+    private static final AtomicInteger size = new AtomicInteger();
+    //Event id to the number of its entries not yet written
+    private static final ConcurrentHashMap<Integer, Integer> queuedIds = new ConcurrentHashMap<Integer, Integer>();
+    //Only one writer at a time so rows are written in the order they were queued
+    private static final ReentrantLock writeLock = new ReentrantLock();
+    private static final AtomicBoolean scheduled = new AtomicBoolean();
+    //A batch that could not be written, written before anything else, guarded by writeLock
+    private static List<Entry> failed;
+    //Ids taken from the Postgres sequence and not yet given out, guarded by itself
+    private static final ArrayDeque<Integer> sequenceIds = new ArrayDeque<Integer>();
+
+    private static final ValueMonitorOwner valueOwner = new ValueMonitorOwner() {
+        @Override
+        public void reset(String id) {
+            switch (id) {
+                case ENTRIES_MONITOR_ID:
+                    ENTRIES_MONITOR.setValue(size.get());
+                    break;
+                case WRITE_SPEED_MONITOR_ID:
+                    WRITE_SPEED_MONITOR.setValue(0);
+                    break;
+            }
+        }
+    };
+    private static final IntegerMonitor ENTRIES_MONITOR = new IntegerMonitor(ENTRIES_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.EVENT_WRITE_ENTRIES"), valueOwner);
+    private static final IntegerMonitor WRITE_SPEED_MONITOR = new IntegerMonitor(WRITE_SPEED_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.EVENT_WRITE_SPEED"), valueOwner);
+
+    private static final List<Class<? extends RuntimeException>> retriedExceptions = new ArrayList<Class<? extends RuntimeException>>();
+
+    static {
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(ENTRIES_MONITOR);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(WRITE_SPEED_MONITOR);
+
+        retriedExceptions.add(RecoverableDataAccessException.class);
+        retriedExceptions.add(TransientDataAccessException.class);
+        retriedExceptions.add(TransientDataAccessResourceException.class);
+        retriedExceptions.add(CannotGetJdbcConnectionException.class);
+    }
+
+    //Template of the last add, used to write out what is left at shutdown
+    private static volatile ExtendedJdbcTemplate lastEjt;
+
+    /**
+     * @return true if event inserts can be queued, i.e. ids can be reserved before the row is inserted
+     */
+    static boolean isInsertQueued() {
+        return Common.databaseProxy.getType() == DatabaseType.POSTGRES;
+    }
+
+    /**
+     * Give a new event its id and queue it to be inserted, only if isInsertQueued
+     * @param event
+     * @param ejt
+     */
+    static void insertEvent(EventInstance event, ExtendedJdbcTemplate ejt) {
+        event.setId(reserveId(ejt));
+        add(new Entry(event), ejt);
+    }
+
+    static void insertUserEvents(int eventId, List<Integer> userIds, boolean alarm, ExtendedJdbcTemplate ejt) {
+        add(new Entry(eventId, userIds, alarm), ejt);
+    }
+
+    static void returnToNormal(int eventId, long rtnTs, int rtnCause, ExtendedJdbcTemplate ejt) {
+        add(new Entry(eventId, rtnTs, rtnCause), ejt);
+    }
+
+    /**
+     * @return true if nothing is waiting to be written
+     */
+    static boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * Write everything queued on the calling thread, waiting for a running writer to finish first
+     */
+    static void flush() {
+        ExtendedJdbcTemplate ejt = lastEjt;
+        if (ejt == null || isEmpty())
+            return;
+        new EventWriteBehind(ejt).drain();
+        //Make sure a batch that failed here is tried again
+        if (retryPending() && scheduled.compareAndSet(false, true))
+            retryLater(ejt);
+    }
+
+    /**
+     * Write everything queued if the event has changes that are not written yet
+     * @param eventId
+     */
+    static void flush(int eventId) {
+        if (queuedIds.containsKey(eventId))
+            flush();
+    }
+
+    private static int reserveId(ExtendedJdbcTemplate ejt) {
+        synchronized (sequenceIds) {
+            if (sequenceIds.isEmpty())
+                sequenceIds.addAll(ejt.queryForList(
+                        "select nextval(pg_get_serial_sequence('events', 'id')) from generate_series(1, ?)",
+                        new Object[] { ID_BLOCK_SIZE }, Integer.class));
+            return sequenceIds.poll();
+        }
+    }
+
+    private static void add(Entry e, ExtendedJdbcTemplate ejt) {
+        lastEjt = ejt;
+        queuedIds.merge(e.eventId, 1, Integer::sum);
+        ENTRIES.add(e);
+        ENTRIES_MONITOR.setValue(size.incrementAndGet());
+        schedule(ejt);
+    }
+
+    private static void written(List<Entry> batch) {
+        for (Entry e : batch)
+            queuedIds.computeIfPresent(e.eventId, (id, count) -> count == 1 ? null : count - 1);
+        ENTRIES_MONITOR.setValue(size.addAndGet(-batch.size()));
+    }
+
+    private static void schedule(ExtendedJdbcTemplate ejt) {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        try {
+            Common.backgroundProcessing.addWorkItem(new EventWriteBehind(ejt));
+        }
+        catch (RejectedExecutionException ree) {
+            scheduled.set(false);
+            throw ree;
+        }
+    }
+
+    private final ExtendedJdbcTemplate ejt;
+
+    public EventWriteBehind(ExtendedJdbcTemplate ejt) {
+        this.ejt = ejt;
+    }
+
+    @Override
+    public void execute() {
+        try {
+            drain();
+        }
+        finally {
+            if (retryPending()) {
+                //Stay scheduled and try the failed batch again later, entries added meanwhile wait behind it
+                retryLater(ejt);
+                return;
+            }
+            scheduled.set(false);
+            //An entry may have been added after our last poll but before we were unscheduled
+            if (!ENTRIES.isEmpty()) {
+                try {
+                    schedule(ejt);
+                }
+                catch (RejectedExecutionException ree) {
+                    LOG.error("Unable to restart event writer with " + size.get() + " entries waiting", ree);
+                }
+            }
+        }
+    }
+
+    private static boolean retryPending() {
+        writeLock.lock();
+        try {
+            return failed != null;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Run the writer again after a delay, called while scheduled
+     */
+    private static void retryLater(ExtendedJdbcTemplate ejt) {
+        try {
+            new TimeoutTask(RETRY_DELAY, retryClient(ejt));
+        }
+        catch (RuntimeException e) {
+            scheduled.set(false);
+            LOG.error("Unable to schedule event writer retry with " + size.get() + " entries waiting", e);
+        }
+    }
+
+    private static TimeoutClient retryClient(final ExtendedJdbcTemplate ejt) {
+        return new TimeoutClient() {
+            @Override
+            public void scheduleTimeout(long fireTime) {
+                scheduled.set(false);
+                try {
+                    schedule(ejt);
+                }
+                catch (RejectedExecutionException ree) {
+                    LOG.error("Unable to restart event writer with " + size.get() + " entries waiting", ree);
+                }
+            }
+
+            @Override
+            public String getThreadName() {
+                return "Event writer retry";
+            }
+        };
+    }
+
+    private void drain() {
+        writeLock.lock();
+        try {
+            List<Entry> batch = new ArrayList<Entry>(MAX_ROWS);
+            while (true) {
+                batch.clear();
+                if (failed != null) {
+                    batch.addAll(failed);
+                    failed = null;
+                }
+                Entry e;
+                while (batch.size() < MAX_ROWS && (e = ENTRIES.poll()) != null)
+                    batch.add(e);
+                if (batch.isEmpty())
+                    break;
+
+                long start = Common.timer.currentTimeMillis();
+                if (!writeWithRetries(batch)) {
+                    //Keep it ahead of everything queued after it
+                    failed = new ArrayList<Entry>(batch);
+                    break;
+                }
+                long elapsed = Common.timer.currentTimeMillis() - start;
+                if (elapsed > 0)
+                    WRITE_SPEED_MONITOR.setValue((int) (batch.size() * 1000L / elapsed));
+                written(batch);
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return false if the batch could not be written because of a transient error and should be tried again
+     */
+    private boolean writeWithRetries(List<Entry> batch) {
+        int retries = 10;
+        while (true) {
+            try {
+                write(batch);
+                return true;
+            }
+            catch (RuntimeException e) {
+                if (retriedExceptions.contains(e.getClass())) {
+                    if (retries <= 0) {
+                        LOG.error("Concurrency failure saving " + batch.size() + " event changes after 10 tries, trying again in "
+                                + RETRY_DELAY + "ms.");
+                        return false;
+                    }
+
+                    int wait = (10 - retries) * 100;
+                    try {
+                        if (wait > 0) {
+                            synchronized (this) {
+                                wait(wait);
+                            }
+                        }
+                    }
+                    catch (InterruptedException ie) {
+                        // no op
+                    }
+
+                    retries--;
+                }
+                else {
+                    LOG.error("Error saving " + batch.size() + " event changes, saving them one at a time.", e);
+                    writeEach(batch);
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write each entry on its own so one that can not be written does not take the others with it
+     */
+    private void writeEach(List<Entry> batch) {
+        for (Entry entry : batch) {
+            try {
+                write(Collections.singletonList(entry));
+            }
+            catch (RuntimeException e) {
+                LOG.error("Unable to save change to event " + entry.eventId + ", dropping it.", e);
+            }
+        }
+    }
+
+    /**
+     * Write the event inserts, then the user events, then the returns to normal in one transaction
+     * @param batch
+     */
+    private void write(final List<Entry> batch) {
+        ejt.execute(new ConnectionCallback<Void>() {
+            @Override
+            public Void doInConnection(Connection con) throws SQLException, DataAccessException {
+                boolean autoCommit = con.getAutoCommit();
+                con.setAutoCommit(false);
+                try {
+                    insertEvents(con, batch);
+                    insertUserEvents(con, batch);
+                    returnToNormal(con, batch);
+                    con.commit();
+                }
+                catch (SQLException | RuntimeException e) {
+                    con.rollback();
+                    throw e;
+                }
+                finally {
+                    con.setAutoCommit(autoCommit);
+                }
+                return null;
+            }
+        });
+    }
+
+    private void insertEvents(Connection con, List<Entry> batch) throws SQLException {
+        int count = 0;
+        try (PreparedStatement ps = con.prepareStatement(EVENT_INSERT)) {
+            for (Entry entry : batch) {
+                if (entry.event == null)
+                    continue;
+                EventInstance event = entry.event;
+                EventType eventType = event.getEventType();
+                StatementCreatorUtils.setParameterValue(ps, 1, Types.INTEGER, event.getId());
+                StatementCreatorUtils.setParameterValue(ps, 2, Types.VARCHAR, eventType.getEventType());
+                StatementCreatorUtils.setParameterValue(ps, 3, Types.VARCHAR, eventType.getEventSubtype());
+                StatementCreatorUtils.setParameterValue(ps, 4, Types.INTEGER, eventType.getReferenceId1());
+                StatementCreatorUtils.setParameterValue(ps, 5, Types.INTEGER, eventType.getReferenceId2());
+                StatementCreatorUtils.setParameterValue(ps, 6, Types.BIGINT, event.getActiveTimestamp());
+                StatementCreatorUtils.setParameterValue(ps, 7, Types.CHAR, BaseDao.boolToChar(event.isRtnApplicable()));
+                //Returns to normal are queued after the insert, the event was active when it was raised
+                StatementCreatorUtils.setParameterValue(ps, 8, Types.BIGINT, null);
+                StatementCreatorUtils.setParameterValue(ps, 9, Types.INTEGER, null);
+                StatementCreatorUtils.setParameterValue(ps, 10, Types.INTEGER, event.getAlarmLevel());
+                StatementCreatorUtils.setParameterValue(ps, 11, Types.VARCHAR, BaseDao.writeTranslatableMessage(event.getMessage()));
+                StatementCreatorUtils.setParameterValue(ps, 12, Types.BIGINT, null);
+                ps.addBatch();
+                count++;
+            }
+            if (count > 0)
+                ps.executeBatch();
+        }
+    }
+
+    private void insertUserEvents(Connection con, List<Entry> batch) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(USER_EVENT_INSERT)) {
+            int count = 0;
+            for (Entry entry : batch) {
+                if (entry.userIds == null)
+                    continue;
+                for (Integer userId : entry.userIds) {
+                    ps.setInt(1, entry.eventId);
+                    ps.setInt(2, userId);
+                    ps.setString(3, BaseDao.boolToChar(!entry.alarm));
+                    ps.addBatch();
+                    count++;
+                }
+            }
+            if (count > 0)
+                ps.executeBatch();
+        }
+    }
+
+    private void returnToNormal(Connection con, List<Entry> batch) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(EVENT_RTN)) {
+            int count = 0;
+            for (Entry entry : batch) {
+                if (!entry.rtn)
+                    continue;
+                ps.setLong(1, entry.rtnTs);
+                ps.setInt(2, entry.rtnCause);
+                ps.setInt(3, entry.eventId);
+                ps.addBatch();
+                count++;
+            }
+            if (count > 0)
+                ps.executeBatch();
+        }
+    }
+
+    @Override
+    public int getPriority() {
+        return WorkItem.PRIORITY_HIGH;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Batch writing events from queue of size: " + size.get();
+    }
+
+    @Override
+    public String getTaskId() {
+        return "EWB";
+    }
+
+    @Override
+    public int getQueueSize() {
+        return 0;
+    }
+
+    @Override
+    public void rejected(RejectedTaskReason reason) {
+        //Try again later rather than wait for the next change to be queued
+        retryLater(ejt);
+    }
+
+    /**
+     * One change to write, either an event insert, its user events or a return to normal
+     */
+    static class Entry {
+        private final int eventId;
+        private final EventInstance event;
+        private final List<Integer> userIds;
+        private final boolean alarm;
+        private final boolean rtn;
+        private final long rtnTs;
+        private final int rtnCause;
+
+        Entry(EventInstance event) {
+            this.eventId = event.getId();
+            this.event = event;
+            this.userIds = null;
+            this.alarm = false;
+            this.rtn = false;
+            this.rtnTs = 0;
+            this.rtnCause = 0;
+        }
+
+        Entry(int eventId, List<Integer> userIds, boolean alarm) {
+            this.eventId = eventId;
+            this.event = null;
+            this.userIds = userIds;
+            this.alarm = alarm;
+            this.rtn = false;
+            this.rtnTs = 0;
+            this.rtnCause = 0;
+        }
+
+        Entry(int eventId, long rtnTs, int rtnCause) {
+            this.eventId = eventId;
+            this.event = null;
+            this.userIds = null;
+            this.alarm = false;
+            this.rtn = true;
+            this.rtnTs = rtnTs;
+            this.rtnCause = rtnCause;
+        }
+    }
+}
@@ -25,6 +25,8 @@ import com.serotonin.db.WideQueryCallback;
 import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
 import com.serotonin.m2m2.rt.dataImage.SetPointSource;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.view.stats.AnalogStatistics;
 import com.serotonin.m2m2.vo.pair.LongPair;
 
 public interface PointValueDao {
@@ -132,6 +134,29 @@ public interface PointValueDao {
     public void getPointValuesBetween(List<Integer> pointIds, long from, long to,
             MappedRowCallback<IdPointValueTime> callback);
 
+    /**
+     * Statistics of the numeric values of a point >= from and < to, read as a stream so the values
+     * are never held in a list
+     * 
+     * @param pointId
+     * @param from
+     * @param to
+     * @param startValue value in force at from or null
+     * @return the done statistics
+     */
+    public default AnalogStatistics getAnalogStatistics(int pointId, long from, long to, Double startValue) {
+        final AnalogStatistics stats = new AnalogStatistics(from, to, startValue);
+        getPointValuesBetween(pointId, from, to, new MappedRowCallback<PointValueTime>() {
+            @Override
+            public void row(PointValueTime pvt, int index) {
+                if (pvt.getValue() instanceof NumericValue)
+                    stats.addValueTime(pvt.getDoubleValue(), pvt.getTime());
+            }
+        });
+        stats.done();
+        return stats;
+    }
+
     /**
      * Query the given time series, including the nearest sample both before the 'from' timestamp and after the 'to'
      * timestamp. This query facilitates charting of values, where for continuity in the chart the values immediately
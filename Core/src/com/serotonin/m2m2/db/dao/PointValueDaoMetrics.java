@@ -13,6 +13,7 @@ import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
 import com.serotonin.m2m2.rt.dataImage.SetPointSource;
+import com.serotonin.m2m2.view.stats.AnalogStatistics;
 import com.serotonin.m2m2.vo.pair.LongPair;
 
 /**
@@ -193,6 +194,17 @@ public class PointValueDaoMetrics implements PointValueDao{
 		
 	}
 
+	/* (non-Javadoc)
+	 * @see com.serotonin.m2m2.db.dao.PointValueDao#getAnalogStatistics(int, long, long, java.lang.Double)
+	 */
+	@Override
+	public AnalogStatistics getAnalogStatistics(int pointId, long from, long to, Double startValue) {
+		LogStopWatch LogStopWatch = new LogStopWatch();
+		AnalogStatistics stats = dao.getAnalogStatistics(pointId, from, to, startValue);
+		LogStopWatch.stop("getAnalogStatistics(pointId,from,to,startValue) (" + pointId + ", " + from + ", " + to + ", " + startValue + "){" + stats.getCount() + "}", this.metricsThreshold);
+		return stats;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.serotonin.m2m2.db.dao.PointValueDao#wideQuery(int, long, long, com.serotonin.db.WideQueryCallback)
 	 */
@@ -14,9 +14,18 @@ import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -26,10 +35,12 @@ import org.springframework.dao.TransientDataAccessException;
 import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.jdbc.CannotGetJdbcConnectionException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 
 import com.infiniteautomation.mango.monitor.IntegerMonitor;
 import com.infiniteautomation.mango.monitor.ValueMonitorOwner;
+import com.infiniteautomation.mango.util.ShardedConcurrentQueue;
 import com.serotonin.ShouldNeverHappenException;
 import com.serotonin.db.MappedRowCallback;
 import com.serotonin.db.WideQueryCallback;
@@ -51,20 +62,23 @@ import com.serotonin.m2m2.rt.dataImage.types.DataValue;
 import com.serotonin.m2m2.rt.dataImage.types.ImageValue;
 import com.serotonin.m2m2.rt.dataImage.types.MultistateValue;
 import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.rt.maint.MangoThreadFactory;
 import com.serotonin.m2m2.rt.maint.work.WorkItem;
+import com.serotonin.m2m2.view.stats.AnalogStatistics;
 import com.serotonin.m2m2.vo.pair.LongPair;
 import com.serotonin.timer.RejectedTaskReason;
 import com.serotonin.util.CollectionUtils;
 import com.serotonin.util.queue.ObjectQueue;
 
 public class PointValueDaoSQL extends BaseDao implements PointValueDao {
+    private static final Log LOG = LogFactory.getLog(PointValueDaoSQL.class);
     private static List<UnsavedPointValue> UNSAVED_POINT_VALUES = new ArrayList<UnsavedPointValue>();
 
-    private static final String POINT_VALUE_INSERT_START = "insert into pointValues (dataPointId, dataType, pointValue, ts) values ";
-    private static final String POINT_VALUE_INSERT_VALUES = "(?,?,?,?)";
-    private static final int POINT_VALUE_INSERT_VALUES_COUNT = 4;
-    private static final String POINT_VALUE_INSERT = POINT_VALUE_INSERT_START + POINT_VALUE_INSERT_VALUES;
-    private static final String POINT_VALUE_ANNOTATION_INSERT = "insert into pointValueAnnotations "
+    static final String POINT_VALUE_INSERT_START = "insert into pointValues (dataPointId, dataType, pointValue, ts) values ";
+    static final String POINT_VALUE_INSERT_VALUES = "(?,?,?,?)";
+    static final int POINT_VALUE_INSERT_VALUES_COUNT = 4;
+    static final String POINT_VALUE_INSERT = POINT_VALUE_INSERT_START + POINT_VALUE_INSERT_VALUES;
+    static final String POINT_VALUE_ANNOTATION_INSERT = "insert into pointValueAnnotations "
             + "(pointValueId, textPointValueShort, textPointValueLong, sourceMessage) values (?,?,?,?)";
 
     /**
@@ -120,15 +134,21 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
         // Check if we need to create an annotation.
         long id;
         try {
-            if (svalue != null || source != null || dataType == DataTypes.IMAGE)
+            // Images need their id right away to name the file
+            if (dataType == DataTypes.IMAGE)
                 async = false;
             id = savePointValue(pointId, dataType, dvalue, pointValue.getTime(), svalue, source, async);
         }
         catch (ConcurrencyFailureException e) {
             // Still failed to insert after all of the retries. Store the data
-            synchronized (UNSAVED_POINT_VALUES) {
-                UNSAVED_POINT_VALUES.add(new UnsavedPointValue(pointId, pointValue, source));
-            }
+            if (svalue == null && source == null && dataType != DataTypes.IMAGE)
+                // Plain values can wait in the write behind, which will spill them to disk if need be
+                BatchWriteBehind.add(new BatchWriteBehindEntry(pointId, dataType,
+                        Common.databaseProxy.applyBounds(dvalue), pointValue.getTime()), ejt);
+            else
+                synchronized (UNSAVED_POINT_VALUES) {
+                    UNSAVED_POINT_VALUES.add(new UnsavedPointValue(pointId, pointValue, source));
+                }
             return -1;
         }
 
@@ -188,7 +208,13 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
         dvalue = Common.databaseProxy.applyBounds(dvalue);
 
         if (async) {
-            BatchWriteBehind.add(new BatchWriteBehindEntry(pointId, dataType, dvalue, time), ejt);
+            if (svalue != null || source != null) {
+                annotatedWriteBehindStarted = true;
+                BatchAnnotatedWriteBehind.add(new BatchAnnotatedWriteBehind.Entry(pointId, dataType, dvalue, time,
+                        svalue, source == null ? null : source.getSetPointSourceMessage()), ejt);
+            }
+            else
+                BatchWriteBehind.add(new BatchWriteBehindEntry(pointId, dataType, dvalue, time), ejt);
             return -1;
         }
 
@@ -211,6 +237,7 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
     private long savePointValueImpl(int pointId, int dataType, double dvalue, long time, String svalue,
             SetPointSource source) {
         long id = doInsertLong(POINT_VALUE_INSERT, new Object[] { pointId, dataType, dvalue, time });
+        PointValueRollupDao.valueChanged(pointId, dataType, time);
 
         if (svalue == null && dataType == DataTypes.IMAGE)
             svalue = Long.toString(id);
@@ -388,6 +415,7 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
             SetPointSource source) {
         long id = doInsertLong(POINT_VALUE_UPDATE + " WHERE ts = ? AND dataPointId = ?", new Object[] { dataType,
                 dvalue, time, dataPointId });
+        PointValueRollupDao.valueChanged(dataPointId, dataType, time);
 
         this.updatePointValueAnnotation(id, dataType, svalue, source);
 
@@ -564,6 +592,95 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
         }
     }
 
+    //
+    //
+    // Streaming into statistics
+    //
+    private static final int STATISTICS_THREADS = Math.max(1, Common.envProps.getInt("db.statistics.threads", 1));
+    private static final long STATISTICS_MIN_RANGE = Math.max(1,
+            Common.envProps.getLong("db.statistics.parallelMinRange", 86400000L));
+
+    /**
+     * Statistics of the numeric values of a point >= from and < to streamed from the database. When
+     * db.statistics.threads is above 1 long ranges are split into sub-ranges that are read in parallel and
+     * merged in time order.
+     *
+     * @param dataPointId
+     * @param from
+     * @param to
+     * @param startValue value in force at from or null
+     * @return the done statistics
+     */
+    @Override
+    public AnalogStatistics getAnalogStatistics(final int dataPointId, long from, long to, Double startValue) {
+        AnalogStatistics stats = new AnalogStatistics(from, to, startValue);
+        int parts = (int) Math.min(STATISTICS_THREADS, (to - from) / STATISTICS_MIN_RANGE);
+        if (parts <= 1) {
+            addNumericValues(dataPointId, from, to, stats);
+            stats.done();
+            return stats;
+        }
+
+        // The first part is read on this thread into the statistics that have the start value
+        long step = (to - from) / parts;
+        List<Future<AnalogStatistics>> futures = new ArrayList<Future<AnalogStatistics>>(parts - 1);
+        try {
+            for (int i = 1; i < parts; i++) {
+                final long partFrom = from + step * i;
+                final long partTo = i == parts - 1 ? to : partFrom + step;
+                futures.add(StatisticsExecutor.EXECUTOR.submit(new Callable<AnalogStatistics>() {
+                    @Override
+                    public AnalogStatistics call() {
+                        AnalogStatistics part = new AnalogStatistics(partFrom, partTo, (Double) null);
+                        addNumericValues(dataPointId, partFrom, partTo, part);
+                        part.done();
+                        return part;
+                    }
+                }));
+            }
+            addNumericValues(dataPointId, from, from + step, stats);
+            for (Future<AnalogStatistics> future : futures)
+                stats.addStatistics(future.get());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ShouldNeverHappenException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new ShouldNeverHappenException(e.getCause());
+        }
+        finally {
+            for (Future<AnalogStatistics> future : futures)
+                future.cancel(true);
+        }
+        stats.done();
+        return stats;
+    }
+
+    private void addNumericValues(int dataPointId, long from, long to, final AnalogStatistics stats) {
+        ejt.query("select pointValue, ts from pointValues where dataPointId=? and dataType=? and ts>=? and ts<? order by ts",
+                new Object[] { dataPointId, DataTypes.NUMERIC, from, to }, new RowCallbackHandler() {
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        stats.addValueTime(rs.getDouble(1), rs.getLong(2));
+                    }
+                });
+    }
+
+    /**
+     * Lazily created pool for the parallel statistics, idle threads exit
+     */
+    private static class StatisticsExecutor {
+        static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(STATISTICS_THREADS, STATISTICS_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new MangoThreadFactory("statistics", Thread.NORM_PRIORITY));
+        static {
+            EXECUTOR.allowCoreThreadTimeOut(true);
+        }
+    }
+
     /*
      * Queries for Point Values with Ids
      */
@@ -659,14 +776,74 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
             + "from pointValues pv "
             + "  left join pointValueAnnotations pva on pv.id = pva.pointValueId";
 
+    private static final boolean MERGE_MULTI_POINT_QUERY = Common.envProps.getBoolean("db.multiPointQuery.merge", true);
+
+    /**
+     * Values are read per point and merged in time order in memory, see PointValueMergeQuery. Annotated
+     * values are given as AnnotatedIdPointValueTime.
+     */
     @Override
     public void getPointValuesBetween(List<Integer> dataPointIds, long from, long to,
             MappedRowCallback<IdPointValueTime> callback) {
+        if (MERGE_MULTI_POINT_QUERY) {
+            new PointValueMergeQuery(this, dataPointIds, from, to).execute(callback);
+            return;
+        }
         String ids = createDelimitedList(dataPointIds, ",", null);
         query(POINT_ID_VALUE_SELECT + " where pv.dataPointId in (" + ids + ") and pv.ts >= ? and pv.ts<? order by ts",
                 new Object[] { from, to }, new IdPointValueRowMapper(), callback);
     }
 
+    //The latest value of each point is found with its own index seek on pointValuesIdx1, a max(ts) grouped
+    // by point would read every value of the points as no database here skips through the index per group
+    private static final String LATEST_POINT_VALUES_SELECT = "select dp.id, pv.dataType, pv.pointValue, " //
+            + "pva.textPointValueShort, pva.textPointValueLong, pv.ts, pva.sourceMessage "
+            + "from dataPoints dp "
+            + "  join pointValues pv on pv.dataPointId = dp.id "
+            + "    and pv.ts = (select max(ts) from pointValues where dataPointId = dp.id) "
+            + "  left join pointValueAnnotations pva on pv.id = pva.pointValueId "
+            + "where dp.dataSourceId in (%s)";
+    private static final String LATEST_POINT_VALUES_SELECT_POSTGRES = "select dp.id, pv.dataType, pv.pointValue, " //
+            + "pva.textPointValueShort, pva.textPointValueLong, pv.ts, pva.sourceMessage "
+            + "from dataPoints dp "
+            + "  cross join lateral (select id, dataType, pointValue, ts from pointValues "
+            + "    where dataPointId = dp.id order by ts desc limit 1) pv "
+            + "  left join pointValueAnnotations pva on pv.id = pva.pointValueId "
+            + "where dp.dataSourceId in (%s)";
+
+    /**
+     * Get the latest value of every point of many data sources with one query, used to fill point
+     * caches at startup instead of a query per point.
+     * 
+     * @param dataSourceIds
+     * @return latest value keyed by point id, points without values have no entry
+     */
+    public Map<Integer, PointValueTime> getLatestPointValuesForDataSources(List<Integer> dataSourceIds) {
+        final Map<Integer, PointValueTime> result = new HashMap<>();
+        if (dataSourceIds.isEmpty())
+            return result;
+        String sql = Common.databaseProxy.getType() == DatabaseType.POSTGRES ? LATEST_POINT_VALUES_SELECT_POSTGRES
+                : LATEST_POINT_VALUES_SELECT;
+        ejt.query(String.format(sql, createDelimitedList(dataSourceIds, ",", null)),
+                new RowCallbackHandler() {
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        int dataPointId = rs.getInt(1);
+                        //Keep the first of values that share the latest time
+                        if (result.containsKey(dataPointId))
+                            return;
+                        DataValue value = createDataValue(rs, 2);
+                        long time = rs.getLong(6);
+                        TranslatableMessage sourceMessage = BaseDao.readTranslatableMessage(rs, 7);
+                        if (sourceMessage == null)
+                            result.put(dataPointId, new PointValueTime(value, time));
+                        else
+                            result.put(dataPointId, new AnnotatedPointValueTime(value, time, sourceMessage));
+                    }
+                });
+        return result;
+    }
+
     /**
      * Note: this does not extract source information from the annotation.
      */
@@ -686,23 +863,68 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
     //
 
     public long deletePointValue(int pointValueId) {
+        if (PointValueRollupDao.get() != null) {
+            ejt.query("select dataPointId, ts from pointValues where id=?", new Object[] { pointValueId },
+                    new RowCallbackHandler() {
+                        @Override
+                        public void processRow(ResultSet rs) throws SQLException {
+                            long ts = rs.getLong(2);
+                            PointValueRollupDao.valuesChanged(rs.getInt(1), ts, ts + 1);
+                        }
+                    });
+        }
         return deletePointValues("delete from pointValues where id = ?", new Object[] { pointValueId }, 0, 0);
     }
 
     @Override
     public long deletePointValue(int dataPointId, long ts) {
+        PointValueRollupDao.valuesChanged(dataPointId, ts, ts + 1);
         return deletePointValues("delete from pointValues where dataPointId = ? AND ts = ?", new Object[] {
                 dataPointId, ts }, 0, 0);
     }
 
     @Override
     public long deletePointValuesBefore(int dataPointId, long time) {
+        PointValueRollupDao.valuesChanged(dataPointId, 0, time);
         return deletePointValues("delete from pointValues where dataPointId=? and ts<?", new Object[] { dataPointId,
                 time }, 0, 0);
     }
     
+    /**
+     * Delete up to chunkSize values from before the time of any of the points, used by the data purge
+     * to purge the points that share a cutoff with one statement.  Databases without a delete limit
+     * delete all of the values at once.  Once the last chunk has been deleted the caller reports the
+     * deletes with pointValuesDeletedBefore.
+     *
+     * @param dataPointIds
+     * @param time
+     * @param chunkSize
+     * @return number of values deleted
+     */
+    public long deletePointValuesBefore(List<Integer> dataPointIds, long time, int chunkSize) {
+        if (dataPointIds.isEmpty())
+            return 0;
+        long cnt = Common.databaseProxy.doLimitDelete(ejt, "delete from pointValues where dataPointId in ("
+                + createDelimitedList(dataPointIds, ",", null) + ") and ts<?", new Object[] { time }, chunkSize, 0,
+                chunkSize);
+        clearUnsavedPointValues();
+        return cnt;
+    }
+
+    /**
+     * The chunked deletes of the values of the points before the time have finished
+     *
+     * @param dataPointIds
+     * @param time
+     */
+    public void pointValuesDeletedBefore(List<Integer> dataPointIds, long time) {
+        for (Integer dataPointId : dataPointIds)
+            PointValueRollupDao.valuesChanged(dataPointId, 0, time);
+    }
+
     @Override
     public long deletePointValuesBetween(int dataPointId, long startTime, long endTime) {
+        PointValueRollupDao.valuesChanged(dataPointId, startTime, endTime);
         return deletePointValues("delete from pointValues where dataPointId=? and ts>=? and ts<?", new Object[] { dataPointId,
                 startTime, endTime }, 0, 0);
     }
@@ -718,16 +940,20 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
     
     @Override
     public long deletePointValues(int dataPointId) {
+        PointValueRollupDao.valuesChanged(dataPointId, 0, Long.MAX_VALUE);
         return deletePointValues("delete from pointValues where dataPointId=?", new Object[] { dataPointId }, 0, 0);
     }
 
     public boolean deletePointValuesWithoutCount(int dataPointId) {
+        PointValueRollupDao.valuesChanged(dataPointId, 0, Long.MAX_VALUE);
         return deletePointValues("delete from pointValues where dataPointId=?", new Object[] { dataPointId }, 0, 0) > 0;
     }
     
     @Override
     public long deleteAllPointData() {
-        return deletePointValues("delete from pointValues", null, 0, 0);
+        long cnt = deletePointValues("delete from pointValues", null, 0, 0);
+        PointValueRollupDao.valuesDeleted(true);
+        return cnt;
     }
     
     /*
@@ -737,22 +963,33 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
     @Override
     public void deleteAllPointDataWithoutCount() {
         deletePointValues("delete from pointValues", null, 0, 0);
+        PointValueRollupDao.valuesDeleted(true);
     }
 
     @Override
     public long deleteOrphanedPointValues() {
-        return deletePointValues("DELETE FROM pointValues WHERE dataPointId NOT IN (SELECT ID FROM dataPoints)", null,
+        long cnt = deletePointValues("DELETE FROM pointValues WHERE dataPointId NOT IN (SELECT ID FROM dataPoints)", null,
                 5000, 100000);
+        PointValueRollupDao.valuesDeleted(false);
+        return cnt;
     }
 
     @Override
     public void deleteOrphanedPointValuesWithoutCount() {
         deletePointValues("DELETE FROM pointValues WHERE dataPointId NOT IN (SELECT ID FROM dataPoints)", null,
                 5000, 100000);
+        PointValueRollupDao.valuesDeleted(false);
     }
     
     @Override
     public void deleteOrphanedPointValueAnnotations() {
+        //The annotations of the values still in the legacy table would be deleted
+        PointValuePartitions partitions = PointValuePartitions.get();
+        if (partitions != null && partitions.isLegacyCopyPending()) {
+            LOG.info("Not purging orphaned point value annotations until point values are copied into the partitioned table");
+            return;
+        }
+
         RowMapper<Long> rm = new RowMapper<Long>() {
             @Override
             public Long mapRow(ResultSet rs, int row) throws SQLException {
@@ -902,7 +1139,7 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
         }
     }
 
-    class BatchWriteBehindEntry {
+    static class BatchWriteBehindEntry {
         private final int pointId;
         private final int dataType;
         private final double dvalue;
@@ -915,18 +1152,30 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
             this.time = time;
         }
 
-        public void writeInto(Object[] params, int index) {
-            index *= POINT_VALUE_INSERT_VALUES_COUNT;
-            params[index++] = pointId;
-            params[index++] = dataType;
-            params[index++] = dvalue;
-            params[index++] = time;
+        public int getPointId() {
+            return pointId;
+        }
+
+        public int getDataType() {
+            return dataType;
+        }
+
+        public double getDvalue() {
+            return dvalue;
+        }
+
+        public long getTime() {
+            return time;
         }
     }
 
     public static final String ENTRIES_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueDao$BatchWriteBehind.ENTRIES_MONITOR";
     public static final String INSTANCES_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueDao$BatchWriteBehind.INSTANCES_MONITOR";
     public static final String BATCH_WRITE_SPEED_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueDao$BatchWriteBehind.BATCH_WRITE_SPEED_MONITOR";
+    public static final String SHARD_ENTRIES_MONITOR_ID_PREFIX = "com.serotonin.m2m2.db.dao.PointValueDao$BatchWriteBehind.SHARD_ENTRIES_MONITOR_";
+    public static final String SPILL_ENTRIES_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueDao$BatchWriteBehind.SPILL_ENTRIES_MONITOR";
+    public static final String SPILL_REPLAY_RATE_MONITOR_ID = "com.serotonin.m2m2.db.dao.PointValueDao$BatchWriteBehind.SPILL_REPLAY_RATE_MONITOR";
+    public static final String SHARD_DRAIN_RATE_MONITOR_ID_PREFIX = "com.serotonin.m2m2.db.dao.PointValueDao$BatchWriteBehind.SHARD_DRAIN_RATE_MONITOR_";
 
     private static final ValueMonitorOwner valueOwner = new ValueMonitorOwner(){
 
@@ -934,16 +1183,20 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
 		public void reset(String id) {
 			switch(id){
 				case ENTRIES_MONITOR_ID:
-					synchronized (BatchWriteBehind.ENTRIES) {
-						BatchWriteBehind.ENTRIES_MONITOR.setValue(BatchWriteBehind.ENTRIES.size());
-					}
+					BatchWriteBehind.ENTRIES_MONITOR.setValue(BatchWriteBehind.ENTRIES.size());
 				break;
 				case INSTANCES_MONITOR_ID:
-					BatchWriteBehind.INSTANCES_MONITOR.setValue(BatchWriteBehind.instances.size());
+					BatchWriteBehind.INSTANCES_MONITOR.setValue(BatchWriteBehind.INSTANCES.size());
 				break;
 				case BATCH_WRITE_SPEED_MONITOR_ID:
 					//No-Op since we can't see the speed, perhaps set to 0?
 				break;
+				case SPILL_ENTRIES_MONITOR_ID:
+					BatchWriteBehind.SPILL_ENTRIES_MONITOR.setValue(BatchWriteBehind.SPILL.size());
+				break;
+				case SPILL_REPLAY_RATE_MONITOR_ID:
+					BatchWriteBehind.updateMonitors(true);
+				break;
 				case ENTRIES_UPDATE_MONITOR_ID:
 					synchronized(BatchUpdateBehind.ENTRIES){
 						BatchUpdateBehind.ENTRIES_MONITOR.setValue(BatchUpdateBehind.ENTRIES.size());
@@ -952,18 +1205,51 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
 				case INSTANCES_UPDATE_MONITOR_ID:
 					BatchUpdateBehind.INSTANCES_MONITOR.setValue(BatchUpdateBehind.instances.size());
 				break;
+				default:
+					if(id.startsWith(SHARD_ENTRIES_MONITOR_ID_PREFIX) || id.startsWith(SHARD_DRAIN_RATE_MONITOR_ID_PREFIX))
+						BatchWriteBehind.updateMonitors(true);
+				break;
 			}
 		}
     	
     };
     
+    /**
+     * @return true while point values are being saved to disk until the database catches up
+     */
+    static boolean isWriteBehindSpilling() {
+        return BatchWriteBehind.SPILL.isSpilling();
+    }
+
+    //Set once the write behind has been used, so shutdown knows whether there is anything to save
+    private static volatile boolean writeBehindStarted;
+    private static volatile boolean annotatedWriteBehindStarted;
+
+    /**
+     * Write any queued annotated values, then move any point values that have not been written
+     * to the database into the spill journal and save it to disk, they will be written when
+     * Mango next starts. Called on shutdown.
+     */
+    public static void saveWriteBehind() {
+        if (annotatedWriteBehindStarted)
+            BatchAnnotatedWriteBehind.flush();
+        if (writeBehindStarted)
+            BatchWriteBehind.saveToDisk();
+    }
+
     static class BatchWriteBehind implements WorkItem {
-        private static final ObjectQueue<BatchWriteBehindEntry> ENTRIES = new ObjectQueue<PointValueDaoSQL.BatchWriteBehindEntry>();
-        private static final CopyOnWriteArrayList<BatchWriteBehind> instances = new CopyOnWriteArrayList<BatchWriteBehind>();
+        //Entries are sharded by data point id so polling threads for different points do not contend
+        private static final ShardedConcurrentQueue<BatchWriteBehindEntry> ENTRIES = new ShardedConcurrentQueue<PointValueDaoSQL.BatchWriteBehindEntry>(
+                Common.envProps.getInt("db.writeBehind.shards", Runtime.getRuntime().availableProcessors()));
         private static Log LOG = LogFactory.getLog(BatchWriteBehind.class);
         private static final int SPAWN_THRESHOLD = 10000;
         private static final int MAX_INSTANCES = 5;
-        private static int MAX_ROWS = 1000;
+        private static final BatchInsertStrategy INSERT_STRATEGY = BatchInsertStrategy.create(Common.databaseProxy.getType());
+        //Rows per flush is sized from the measured write speed so a flush takes about this long
+        private static final long TARGET_FLUSH_MS = Common.envProps.getLong("db.writeBehind.targetFlushMs", 1000);
+        private static final int MIN_ROWS = 100;
+        private static final int MAX_ROWS = INSERT_STRATEGY.getMaxRows();
+        private static volatile int rowsPerFlush = MAX_ROWS;
         private static final IntegerMonitor ENTRIES_MONITOR = new IntegerMonitor(ENTRIES_MONITOR_ID,
         		new TranslatableMessage("internal.monitor.BATCH_ENTRIES"), valueOwner);
         private static final IntegerMonitor INSTANCES_MONITOR = new IntegerMonitor(INSTANCES_MONITOR_ID,
@@ -971,31 +1257,48 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
         //TODO Create DoubleMonitor but will need to upgrade the Internal data source to do this
         private static final IntegerMonitor BATCH_WRITE_SPEED_MONITOR = new IntegerMonitor(
                 BATCH_WRITE_SPEED_MONITOR_ID, new TranslatableMessage("internal.monitor.BATCH_WRITE_SPEED_MONITOR"), valueOwner);
+        private static final IntegerMonitor[] SHARD_ENTRIES_MONITORS = new IntegerMonitor[ENTRIES.getShardCount()];
+        private static final IntegerMonitor[] SHARD_DRAIN_RATE_MONITORS = new IntegerMonitor[ENTRIES.getShardCount()];
+        //Drained counts and time at the last drain rate calculation, guarded by SHARD_DRAINED
+        private static final long[] SHARD_DRAINED = new long[ENTRIES.getShardCount()];
+        private static long lastShardMonitorUpdate;
+        private static final long SHARD_MONITOR_UPDATE_PERIOD = 1000;
+
+        //Values are written to disk instead of held in memory once the backlog reaches this size or the database is unavailable
+        private static final int SPILL_THRESHOLD = Common.envProps.getInt("db.writeBehind.spillThreshold", 500000);
+        private static final IntegerMonitor SPILL_ENTRIES_MONITOR = new IntegerMonitor(SPILL_ENTRIES_MONITOR_ID,
+                new TranslatableMessage("internal.monitor.BATCH_SPILL_ENTRIES"), valueOwner);
+        private static final WriteBehindSpill<BatchWriteBehindEntry> SPILL = new WriteBehindSpill<BatchWriteBehindEntry>(
+                new PointValueSpillJournal<BatchWriteBehindEntry>(Common.envProps.getInt("db.writeBehind.spillBlockSize", 10000),
+                        new File(Common.envProps.getString("db.writeBehind.spillDirectory", Common.MA_HOME + "/databases/pointValueSpill")),
+                        PointValueSpillJournal.POINT_VALUES), SPILL_ENTRIES_MONITOR);
+        private static final AtomicLong REPLAYED = new AtomicLong();
+        private static long lastReplayed;
+        private static final IntegerMonitor SPILL_REPLAY_RATE_MONITOR = new IntegerMonitor(SPILL_REPLAY_RATE_MONITOR_ID,
+                new TranslatableMessage("internal.monitor.BATCH_SPILL_REPLAY_RATE"), valueOwner);
+        private static final WriteBehindInstances<BatchWriteBehind> INSTANCES = new WriteBehindInstances<BatchWriteBehind>(
+                SPAWN_THRESHOLD, MAX_INSTANCES, INSTANCES_MONITOR);
 
         private static List<Class<? extends RuntimeException>> retriedExceptions = new ArrayList<Class<? extends RuntimeException>>();
 
         static {
-            if (Common.databaseProxy.getType() == DatabaseType.DERBY)
-                // This has not been tested to be optimal
-                MAX_ROWS = 1000;
-            else if (Common.databaseProxy.getType() == DatabaseType.H2)
-                // This has not been tested to be optimal
-                MAX_ROWS = 1000;
-            else if (Common.databaseProxy.getType() == DatabaseType.MSSQL)
-                // MSSQL has max rows of 1000, and max parameters of 2100. In this case that works out to...
-                MAX_ROWS = 524;
-            else if (Common.databaseProxy.getType() == DatabaseType.MYSQL)
-                // This appears to be an optimal value
-                MAX_ROWS = 2000;
-            else if (Common.databaseProxy.getType() == DatabaseType.POSTGRES)
-                // This appears to be an optimal value
-                MAX_ROWS = 2000;
-            else
-                throw new ShouldNeverHappenException("Unknown database type: " + Common.databaseProxy.getType());
-
+            LOG.info("Writing batches of point values using " + INSERT_STRATEGY.getType() + " inserts");
             Common.MONITORED_VALUES.addIfMissingStatMonitor(ENTRIES_MONITOR);
             Common.MONITORED_VALUES.addIfMissingStatMonitor(INSTANCES_MONITOR);
             Common.MONITORED_VALUES.addIfMissingStatMonitor(BATCH_WRITE_SPEED_MONITOR);
+            Common.MONITORED_VALUES.addIfMissingStatMonitor(SPILL_ENTRIES_MONITOR);
+            Common.MONITORED_VALUES.addIfMissingStatMonitor(SPILL_REPLAY_RATE_MONITOR);
+            if (SPILL.isSpilling())
+                LOG.info(SPILL.size() + " point values saved to disk will be written to the database");
+            writeBehindStarted = true;
+            for (int i = 0; i < ENTRIES.getShardCount(); i++) {
+                SHARD_ENTRIES_MONITORS[i] = new IntegerMonitor(SHARD_ENTRIES_MONITOR_ID_PREFIX + i,
+                        new TranslatableMessage("internal.monitor.BATCH_SHARD_ENTRIES", i), valueOwner);
+                SHARD_DRAIN_RATE_MONITORS[i] = new IntegerMonitor(SHARD_DRAIN_RATE_MONITOR_ID_PREFIX + i,
+                        new TranslatableMessage("internal.monitor.BATCH_SHARD_DRAIN_RATE", i), valueOwner);
+                Common.MONITORED_VALUES.addIfMissingStatMonitor(SHARD_ENTRIES_MONITORS[i]);
+                Common.MONITORED_VALUES.addIfMissingStatMonitor(SHARD_DRAIN_RATE_MONITORS[i]);
+            }
 
             retriedExceptions.add(RecoverableDataAccessException.class);
             retriedExceptions.add(TransientDataAccessException.class);
@@ -1004,24 +1307,75 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
         }
 
         static void add(BatchWriteBehindEntry e, ExtendedJdbcTemplate ejt) {
-            synchronized (ENTRIES) {
-                ENTRIES.push(e);
-                ENTRIES_MONITOR.setValue(ENTRIES.size());
-                if (ENTRIES.size() > instances.size() * SPAWN_THRESHOLD) {
-                    if (instances.size() < MAX_INSTANCES) {
-                        BatchWriteBehind bwb = new BatchWriteBehind(ejt);
-                        instances.add(bwb);
-                        INSTANCES_MONITOR.setValue(instances.size());
-                        try {
-                            Common.backgroundProcessing.addWorkItem(bwb);
-                        }
-                        catch (RejectedExecutionException ree) {
-                            instances.remove(bwb);
-                            INSTANCES_MONITOR.setValue(instances.size());
-                            throw ree;
-                        }
-                    }
+            //Once spilling keep going to disk until the journal has been replayed
+            if (SPILL.isSpilling() || ENTRIES.size() >= SPILL_THRESHOLD) {
+                SPILL.spill(e);
+                if (INSTANCES.isEmpty())
+                    spawn(ejt);
+                return;
+            }
+
+            ENTRIES.add(e.getPointId(), e);
+            ENTRIES_MONITOR.setValue(ENTRIES.size());
+            spawn(ejt);
+        }
+
+        /**
+         * Move everything waiting in memory to the journal
+         */
+        private static void spillEntries() {
+            SPILL.spillAll(ENTRIES, MAX_ROWS);
+            ENTRIES_MONITOR.setValue(ENTRIES.size());
+        }
+
+        static void saveToDisk() {
+            spillEntries();
+            SPILL.save();
+            if (SPILL.isSpilling())
+                LOG.info(SPILL.size() + " point values that could not be written to the database have been saved to disk");
+        }
+
+        /**
+         * Start another writer if the backlog has grown or there are values to replay
+         */
+        private static void spawn(final ExtendedJdbcTemplate ejt) {
+            INSTANCES.spawn(ENTRIES.size(), SPILL.isReplayDue(), () -> new BatchWriteBehind(ejt));
+        }
+
+        /**
+         * Size the next flushes so they take about TARGET_FLUSH_MS at the last measured write speed
+         */
+        private static void adaptRowsPerFlush() {
+            long rows = (long) BATCH_WRITE_SPEED_MONITOR.intValue() * TARGET_FLUSH_MS / 1000;
+            if (rows < MIN_ROWS)
+                rows = MIN_ROWS;
+            else if (rows > MAX_ROWS)
+                rows = MAX_ROWS;
+            rowsPerFlush = (int) rows;
+        }
+
+        /**
+         * Update the per shard depth and drain rate monitors and the spill replay rate, at most once per period unless forced
+         * @param force
+         */
+        static void updateMonitors(boolean force) {
+            synchronized (SHARD_DRAINED) {
+                long now = Common.timer.currentTimeMillis();
+                long elapsed = now - lastShardMonitorUpdate;
+                if (!force && elapsed < SHARD_MONITOR_UPDATE_PERIOD)
+                    return;
+                for (int i = 0; i < SHARD_ENTRIES_MONITORS.length; i++) {
+                    SHARD_ENTRIES_MONITORS[i].setValue(ENTRIES.getShardSize(i));
+                    long drained = ENTRIES.getShardDrained(i);
+                    if (elapsed > 0)
+                        SHARD_DRAIN_RATE_MONITORS[i].setValue((int) ((drained - SHARD_DRAINED[i]) * 1000d / elapsed));
+                    SHARD_DRAINED[i] = drained;
                 }
+                long replayed = REPLAYED.get();
+                if (elapsed > 0)
+                    SPILL_REPLAY_RATE_MONITOR.setValue((int) ((replayed - lastReplayed) * 1000d / elapsed));
+                lastReplayed = replayed;
+                lastShardMonitorUpdate = now;
             }
         }
 
@@ -1034,27 +1388,18 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
         @Override
         public void execute() {
             try {
-                BatchWriteBehindEntry[] inserts;
+                List<BatchWriteBehindEntry> inserts = new ArrayList<BatchWriteBehindEntry>(MAX_ROWS);
                 while (true) {
-                    synchronized (ENTRIES) {
-                        if (ENTRIES.size() == 0)
+                    inserts.clear();
+                    boolean replay = false;
+                    if (ENTRIES.drainTo(inserts, rowsPerFlush) == 0) {
+                        //Nothing new, so catch up on anything that went to disk
+                        if (!SPILL.isReplayDue() || SPILL.drain(inserts, rowsPerFlush) == 0)
                             break;
-
-                        inserts = new BatchWriteBehindEntry[ENTRIES.size() < MAX_ROWS ? ENTRIES.size() : MAX_ROWS];
-                        ENTRIES.pop(inserts);
-                        ENTRIES_MONITOR.setValue(ENTRIES.size());
-                    }
-
-                    // Create the sql and parameters
-                    Object[] params = new Object[inserts.length * POINT_VALUE_INSERT_VALUES_COUNT];
-                    StringBuilder sb = new StringBuilder();
-                    sb.append(POINT_VALUE_INSERT_START);
-                    for (int i = 0; i < inserts.length; i++) {
-                        if (i > 0)
-                            sb.append(',');
-                        sb.append(POINT_VALUE_INSERT_VALUES);
-                        inserts[i].writeInto(params, i);
+                        replay = true;
                     }
+                    ENTRIES_MONITOR.setValue(ENTRIES.size());
+                    updateMonitors(false);
 
                     // Insert the data
                     int retries = 10;
@@ -1062,17 +1407,22 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
                         try {
 
                             Long time = null;
-                            if (inserts.length > 10) {
+                            if (inserts.size() > 10) {
                             	time = Common.timer.currentTimeMillis();
                             }
 
-                            ejt.update(sb.toString(), params);
+                            INSERT_STRATEGY.insert(ejt, inserts);
+                            for (BatchWriteBehindEntry e : inserts)
+                                PointValueRollupDao.valueChanged(e.getPointId(), e.getDataType(), e.getTime());
+                            if (replay)
+                                REPLAYED.addAndGet(inserts.size());
 
                             if (time != null) {
                                 long elapsed = Common.timer.currentTimeMillis() - time;
                                 if (elapsed > 0) {
-                                    double writesPerSecond = ((double) inserts.length / (double) elapsed) * 1000d;
+                                    double writesPerSecond = ((double) inserts.size() / (double) elapsed) * 1000d;
                                     BATCH_WRITE_SPEED_MONITOR.setValue((int) writesPerSecond);
+                                    adaptRowsPerFlush();
                                 }
                             }
 
@@ -1081,8 +1431,9 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
                         catch (RuntimeException e) {
                             if (retriedExceptions.contains(e.getClass())) {
                                 if (retries <= 0) {
-                                    LOG.error("Concurrency failure saving " + inserts.length
-                                            + " batch inserts after 10 tries. Data lost.");
+                                    LOG.error("Concurrency failure saving " + inserts.size()
+                                            + " batch inserts after 10 tries. Saving point values to disk until the database is available.");
+                                    SPILL.keep(inserts, replay);
                                     break;
                                 }
 
@@ -1101,16 +1452,33 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
                                 retries--;
                             }
                             else {
-                                LOG.error("Error saving " + inserts.length + " batch inserts. Data lost.", e);
+                                LOG.error("Error saving " + inserts.size()
+                                        + " batch inserts. Saving point values to disk to try again later.", e);
+                                SPILL.keep(inserts, replay);
                                 break;
                             }
                         }
                     }
+
+                    if (!SPILL.isDatabaseAvailable()) {
+                        //Don't hold the backlog in memory while the database is down
+                        spillEntries();
+                        break;
+                    }
                 }
             }
             finally {
-                instances.remove(this);
-                INSTANCES_MONITOR.setValue(instances.size());
+                INSTANCES.remove(this);
+                //A producer may have added after our last drain but before we were removed
+                // and so seen this instance as still running.
+                if (INSTANCES.isEmpty() && (!ENTRIES.isEmpty() || SPILL.isReplayDue())) {
+                    try {
+                        spawn(ejt);
+                    }
+                    catch (RejectedExecutionException ree) {
+                        LOG.error("Unable to restart batch writer with " + ENTRIES.size() + " entries waiting", ree);
+                    }
+                }
             }
         }
 
@@ -1147,8 +1515,7 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
 		 */
 		@Override
 		public void rejected(RejectedTaskReason reason) { 
-			instances.remove(this);
-            INSTANCES_MONITOR.setValue(instances.size());
+			INSTANCES.remove(this);
 		}
     }
 
@@ -1299,6 +1666,8 @@ public class PointValueDaoSQL extends BaseDao implements PointValueDao {
                                             ps.setInt(4, (Integer) params[i][3]); //Update 
                                         }
                                     });
+                            for (Object[] update : params)
+                                PointValueRollupDao.valueChanged((Integer) update[3], (Integer) update[0], (Long) update[2]);
 
                             //Now if we have Annotation updates we need to apply those
                             if (updatedIds.length != params.length) {
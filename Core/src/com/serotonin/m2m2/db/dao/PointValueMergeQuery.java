@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.jdbc.core.RowMapper;
+
+import com.serotonin.ShouldNeverHappenException;
+import com.serotonin.db.MappedRowCallback;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.dataImage.AnnotatedIdPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.DataValue;
+import com.serotonin.m2m2.rt.maint.MangoThreadFactory;
+
+/**
+ * Reads the values of many points in time order for the multi point query of the PointValueDaoSQL.
+ *
+ * Rather than one query over every point ordered by time, which the database has to sort as a whole, each
+ * point is read in pages in the order of its (dataPointId, ts) index and the pages are merged with a heap.
+ * The next page of a point is read once its current page is taken, on a small pool so that several points
+ * are read over separate connections at once. Only two pages per point are ever held and no page is read
+ * before the callback has taken the one before it, so memory is bounded and a slow callback slows the reads.
+ *
+ * Values with the same time are given in the order the points are listed.
+ *
+ * @author Terry Packer
+ */
+class PointValueMergeQuery {
+
+    private static final int THREADS = Math.max(1, Common.envProps.getInt("db.multiPointQuery.threads", 4));
+    private static final int MAX_BUFFERED = Math.max(1,
+            Common.envProps.getInt("db.multiPointQuery.maxBufferedValues", 100000));
+    private static final int MIN_PAGE_SIZE = 100;
+
+    private static final String SELECT = "select pv.dataType, pv.pointValue, pva.textPointValueShort, " //
+            + "pva.textPointValueLong, pv.ts, pva.sourceMessage, pv.id " //
+            + "from pointValues pv " //
+            + "  left join pointValueAnnotations pva on pv.id = pva.pointValueId";
+    private static final String FIRST_PAGE = SELECT
+            + " where pv.dataPointId=? and pv.ts>=? and pv.ts<? order by pv.ts, pv.id";
+    // Values with the time of the last of the page that were not in it follow by id
+    private static final String NEXT_PAGE = SELECT
+            + " where pv.dataPointId=? and pv.ts<? and (pv.ts>? or (pv.ts=? and pv.id>?)) order by pv.ts, pv.id";
+
+    private final PointValueDaoSQL dao;
+    private final long from;
+    private final long to;
+    private final int pageSize;
+    private final List<Cursor> cursors;
+
+    PointValueMergeQuery(PointValueDaoSQL dao, List<Integer> ids, long from, long to) {
+        List<Integer> dataPointIds = new ArrayList<Integer>(new LinkedHashSet<Integer>(ids));
+        this.dao = dao;
+        this.from = from;
+        this.to = to;
+        // The page being merged and the one read ahead of each point
+        this.pageSize = Math.max(MIN_PAGE_SIZE, MAX_BUFFERED / Math.max(1, 2 * dataPointIds.size()));
+        this.cursors = new ArrayList<Cursor>(dataPointIds.size());
+        for (int i = 0; i < dataPointIds.size(); i++)
+            cursors.add(new Cursor(dataPointIds.get(i), i));
+    }
+
+    /**
+     * Give every value to the callback in time order
+     * @param callback
+     */
+    void execute(MappedRowCallback<IdPointValueTime> callback) {
+        PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(Math.max(1, cursors.size()));
+        try {
+            for (Cursor cursor : cursors)
+                cursor.readAhead(null);
+            for (Cursor cursor : cursors) {
+                if (cursor.next())
+                    heap.add(cursor);
+            }
+
+            int index = 0;
+            while (!heap.isEmpty()) {
+                Cursor cursor = heap.poll();
+                callback.row(cursor.current, index++);
+                if (cursor.next())
+                    heap.add(cursor);
+            }
+        }
+        finally {
+            for (Cursor cursor : cursors)
+                cursor.cancel();
+        }
+    }
+
+    /**
+     * The values of one point
+     */
+    private class Cursor implements Comparable<Cursor> {
+        final int dataPointId;
+        final int order;
+        Future<Page> ahead;
+        Page page;
+        int position;
+        IdPointValueTime current;
+
+        Cursor(int dataPointId, int order) {
+            this.dataPointId = dataPointId;
+            this.order = order;
+        }
+
+        /**
+         * Move to the next value
+         * @return false when there are no more
+         */
+        boolean next() {
+            if (page == null || position == page.values.size()) {
+                if (ahead == null)
+                    return false;
+                page = take(ahead);
+                ahead = null;
+                position = 0;
+                if (page.values.size() == pageSize)
+                    readAhead(page);
+                if (page.values.isEmpty())
+                    return false;
+            }
+            current = page.values.get(position++);
+            return true;
+        }
+
+        /**
+         * Start to read the page after the one given, or the first
+         */
+        void readAhead(final Page after) {
+            ahead = Reader.EXECUTOR.submit(new Callable<Page>() {
+                @Override
+                public Page call() {
+                    PageMapper mapper = new PageMapper(dataPointId);
+                    Object[] args;
+                    if (after == null)
+                        args = new Object[] { dataPointId, from, to };
+                    else {
+                        long ts = after.values.get(after.values.size() - 1).getTime();
+                        args = new Object[] { dataPointId, to, ts, ts, after.lastId };
+                    }
+                    List<IdPointValueTime> values = Common.databaseProxy.doLimitQuery(dao,
+                            after == null ? FIRST_PAGE : NEXT_PAGE, args, mapper, pageSize);
+                    return new Page(values, mapper.lastId);
+                }
+            });
+        }
+
+        void cancel() {
+            if (ahead != null)
+                ahead.cancel(true);
+        }
+
+        @Override
+        public int compareTo(Cursor that) {
+            long time = current.getTime();
+            long thatTime = that.current.getTime();
+            if (time != thatTime)
+                return time < thatTime ? -1 : 1;
+            return order - that.order;
+        }
+    }
+
+    private static Page take(Future<Page> future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ShouldNeverHappenException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new ShouldNeverHappenException(e.getCause());
+        }
+    }
+
+    private static class Page {
+        final List<IdPointValueTime> values;
+        final long lastId;
+
+        Page(List<IdPointValueTime> values, long lastId) {
+            this.values = values;
+            this.lastId = lastId;
+        }
+    }
+
+    /**
+     * Maps the rows of a page and keeps the id of the last
+     */
+    private class PageMapper implements RowMapper<IdPointValueTime> {
+        final int dataPointId;
+        long lastId;
+
+        PageMapper(int dataPointId) {
+            this.dataPointId = dataPointId;
+        }
+
+        @Override
+        public IdPointValueTime mapRow(ResultSet rs, int rowNum) throws SQLException {
+            DataValue value = dao.createDataValue(rs, 1);
+            long time = rs.getLong(5);
+            TranslatableMessage sourceMessage = BaseDao.readTranslatableMessage(rs, 6);
+            lastId = rs.getLong(7);
+            if (sourceMessage == null)
+                return new IdPointValueTime(dataPointId, value, time);
+            return new AnnotatedIdPointValueTime(dataPointId, value, time, sourceMessage);
+        }
+    }
+
+    /**
+     * Lazily created pool of the page reads, idle threads exit
+     */
+    private static class Reader {
+        static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new MangoThreadFactory("point-value-query", Thread.NORM_PRIORITY));
+        static {
+            EXECUTOR.allowCoreThreadTimeOut(true);
+        }
+    }
+}
@@ -0,0 +1,564 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.IMangoLifecycle;
+import com.serotonin.m2m2.db.DatabaseProxy.DatabaseType;
+import com.serotonin.m2m2.util.DateUtils;
+import com.serotonin.m2m2.util.timeout.ProgressiveTask;
+import com.serotonin.provider.Providers;
+
+/**
+ * Optional time partitioned layout of the pointValues table.  Each partition holds the values of one
+ * period, so purging the values older than the longest retention of any point drops whole partitions
+ * instead of deleting rows and the deletes for points that keep less history only touch the partitions
+ * overlapping their cutoff.
+ *
+ * Uses native range partitioning on MySQL and Postgres (11+).  There is always a catch all partition
+ * for values after the newest period so values with unexpected times are never rejected.
+ *
+ * An existing table is converted at startup by swapping an empty partitioned table in its place, so
+ * new values go to the partitioned table straight away, then the old values are copied across newest
+ * first in the background.  Until the copy finishes history queries do not return the values still
+ * waiting to be copied.
+ *
+ * The pointValueAnnotations table is not partitioned, the annotations of dropped values are removed
+ * by the orphaned annotation purge.  That purge is skipped until the copy has finished, as the values
+ * still waiting to be copied would look orphaned.  The rollups of dropped values are deleted with them.
+ *
+ * @author Terry Packer
+ */
+public abstract class PointValuePartitions extends BaseDao {
+
+    private static final Log LOG = LogFactory.getLog(PointValuePartitions.class);
+
+    public static final boolean ENABLED = Common.envProps.getBoolean("db.pointValues.partitioned", false);
+
+    //Holds the values of a converted table until they are copied into the partitioned table
+    static final String LEGACY_TABLE = "pointValuesLegacy";
+    //Partitioned table being built to replace pointValues
+    static final String NEW_TABLE = "pointValuesPartitioned";
+    //Older existing values share the first partition
+    private static final int MAX_HISTORY_PARTITIONS = 1000;
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormat.forPattern("yyyyMMdd").withZoneUTC();
+
+    private static volatile PointValuePartitions instance;
+
+    protected final int periodType;
+    private final int ahead;
+    private final int copyChunkSize;
+    //Values of a converted table are still waiting to be copied
+    private volatile boolean legacyCopyPending;
+
+    /**
+     * @return the partitions of the pointValues table or null if it is not partitioned
+     */
+    public static PointValuePartitions get() {
+        return instance;
+    }
+
+    /**
+     * Partition the pointValues table if enabled, to be called once the schema is up to date
+     * @param type
+     */
+    public static void initialize(DatabaseType type) {
+        if (!ENABLED)
+            return;
+
+        PointValuePartitions partitions;
+        switch (type) {
+            case MYSQL:
+                partitions = new MySQLPartitions();
+                break;
+            case POSTGRES:
+                partitions = new PostgresPartitions();
+                break;
+            default:
+                LOG.warn("Partitioned point values are not supported on " + type + ", purges will delete values row by row.");
+                return;
+        }
+        if (partitions.initializeImpl(System.currentTimeMillis()))
+            instance = partitions;
+    }
+
+    protected PointValuePartitions() {
+        int period = Common.TIME_PERIOD_CODES.getId(Common.envProps.getString("db.pointValues.partitionPeriod", "MONTHS"));
+        if (period != Common.TimePeriods.DAYS && period != Common.TimePeriods.WEEKS
+                && period != Common.TimePeriods.MONTHS && period != Common.TimePeriods.YEARS) {
+            LOG.warn("Invalid db.pointValues.partitionPeriod, using MONTHS");
+            period = Common.TimePeriods.MONTHS;
+        }
+        this.periodType = period;
+        this.ahead = Math.max(1, Common.envProps.getInt("db.pointValues.partitionsAhead", 2));
+        this.copyChunkSize = Math.max(1, Common.envProps.getInt("db.pointValues.partitionCopyChunk", 10000));
+    }
+
+    /**
+     * Convert the table if it is not partitioned yet, create partitions ahead of time and resume copying
+     * values from a converted table
+     * @param now
+     * @return true if the table is partitioned
+     */
+    boolean initializeImpl(long now) {
+        if (!isPartitioned()) {
+            if (tableExists(LEGACY_TABLE)) {
+                LOG.error("pointValues is not partitioned but " + LEGACY_TABLE + " exists, not partitioning point values. "
+                        + "Copy its values into pointValues and drop it to convert again.");
+                return false;
+            }
+            convert(now);
+        }
+        ensurePartitions(now);
+
+        if (tableExists(LEGACY_TABLE)) {
+            legacyCopyPending = true;
+            Providers.get(IMangoLifecycle.class).addStartupTask(new Runnable() {
+                @Override
+                public void run() {
+                    Common.backgroundProcessing.execute(new LegacyCopyTask());
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * @return true while the values of a converted table have not all been copied into pointValues
+     */
+    public boolean isLegacyCopyPending() {
+        return legacyCopyPending;
+    }
+
+    /**
+     * Create partitions up to the configured number of periods ahead of now
+     * @param now
+     */
+    public synchronized void ensurePartitions(long now) {
+        long last = Long.MIN_VALUE;
+        for (Partition p : getPartitions()) {
+            if (!p.catchAll && p.to > last)
+                last = p.to;
+        }
+        if (last == Long.MIN_VALUE)
+            last = periodStart(now);
+
+        long until = DateUtils.plus(new DateTime(periodStart(now), DateTimeZone.UTC), periodType, ahead + 1).getMillis();
+        List<Partition> created = new ArrayList<Partition>();
+        for (long from = last; from < until; from = nextPeriod(from))
+            created.add(new Partition(partitionName(from), from, nextPeriod(from), false));
+
+        if (!created.isEmpty()) {
+            addPartitions(created);
+            LOG.info("Created " + created.size() + " point value partitions up to " + new DateTime(until, DateTimeZone.UTC));
+        }
+    }
+
+    /**
+     * Drop every partition that only holds values before the cutoff
+     *
+     * @param cutoff
+     * @param countValues - count the values in each partition before dropping it
+     * @return the number of values dropped if countValues, otherwise the number of partitions dropped
+     */
+    public synchronized long dropPartitionsBefore(long cutoff, boolean countValues) {
+        long dropped = 0;
+        long droppedTo = Long.MIN_VALUE;
+        for (Partition p : getPartitions()) {
+            if (p.catchAll || p.to > cutoff)
+                continue;
+            if (countValues)
+                dropped += countValues(p);
+            else
+                dropped++;
+            dropPartition(p);
+            droppedTo = Math.max(droppedTo, p.to);
+            LOG.info("Dropped point value partition " + p.name + " ending " + new DateTime(p.to, DateTimeZone.UTC));
+        }
+        //Partitions start on UTC periods of at least a day so no rollup spans the end of the dropped values
+        if (droppedTo != Long.MIN_VALUE)
+            PointValueRollupDao.valuesDeletedBefore(droppedTo);
+        return dropped;
+    }
+
+    /**
+     * @return the partitions ordered by time, the catch all partition last
+     */
+    public List<Partition> getPartitions() {
+        List<Partition> partitions = queryPartitions();
+        Collections.sort(partitions, new Comparator<Partition>() {
+            @Override
+            public int compare(Partition p1, Partition p2) {
+                if (p1.catchAll != p2.catchAll)
+                    return p1.catchAll ? 1 : -1;
+                return Long.compare(p1.from, p2.from);
+            }
+        });
+        return partitions;
+    }
+
+    private void convert(long now) {
+        //Left over from an interrupted conversion
+        if (tableExists(NEW_TABLE))
+            ejt.execute("DROP TABLE " + NEW_TABLE);
+
+        Long minTs = queryForObject("SELECT MIN(ts) FROM pointValues", new Object[0], Long.class, null);
+        long current = periodStart(now);
+        long start = minTs == null ? current : periodStart(Math.min(minTs, now));
+        long earliest = DateUtils.minus(new DateTime(current, DateTimeZone.UTC), periodType, MAX_HISTORY_PARTITIONS).getMillis();
+        if (start < earliest)
+            start = earliest;
+
+        //The first partition also holds all values before it
+        List<Partition> partitions = new ArrayList<Partition>();
+        for (long from = start; from <= current; from = nextPeriod(from))
+            partitions.add(new Partition(partitionName(from), partitions.isEmpty() ? Long.MIN_VALUE : from, nextPeriod(from), false));
+
+        long nextId = ejt.queryForLong("SELECT MAX(id) FROM pointValues", new Object[0], 0L) + 1;
+        LOG.info("Converting pointValues into a table partitioned by " + Common.TIME_PERIOD_CODES.getCode(periodType)
+                + ", existing values will be copied into it in the background after startup.");
+        createPartitionedTable(partitions, nextId);
+        swapTables();
+    }
+
+    private long periodStart(long time) {
+        return DateUtils.truncateDateTime(new DateTime(time, DateTimeZone.UTC), periodType).getMillis();
+    }
+
+    private long nextPeriod(long time) {
+        return DateUtils.plus(new DateTime(periodStart(time), DateTimeZone.UTC), periodType, 1).getMillis();
+    }
+
+    protected String partitionName(long from) {
+        return "p" + NAME_FORMAT.print(from);
+    }
+
+    /**
+     * @return true if pointValues is partitioned
+     */
+    protected abstract boolean isPartitioned();
+
+    protected abstract boolean tableExists(String tableName);
+
+    protected abstract List<Partition> queryPartitions();
+
+    /**
+     * Create NEW_TABLE with the partitions and a catch all partition after them
+     */
+    protected abstract void createPartitionedTable(List<Partition> partitions, long nextId);
+
+    /**
+     * Rename pointValues to LEGACY_TABLE and NEW_TABLE to pointValues
+     */
+    protected abstract void swapTables();
+
+    /**
+     * Add partitions after the newest, before the catch all partition
+     */
+    protected abstract void addPartitions(List<Partition> partitions);
+
+    protected abstract void dropPartition(Partition partition);
+
+    protected abstract long countValues(Partition partition);
+
+    /**
+     * A partition of the pointValues table
+     */
+    public static class Partition {
+        final String name;
+        //Inclusive, Long.MIN_VALUE for the first partition
+        final long from;
+        //Exclusive
+        final long to;
+        //Holds all values after the newest period
+        final boolean catchAll;
+
+        Partition(String name, long from, long to, boolean catchAll) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+            this.catchAll = catchAll;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getFrom() {
+            return from;
+        }
+
+        public long getTo() {
+            return to;
+        }
+
+        public boolean isCatchAll() {
+            return catchAll;
+        }
+    }
+
+    /**
+     * Copies the values of a converted table into the partitioned table, newest first, moving each chunk
+     * in one transaction so the copy can stop at any time and resume at the next startup
+     */
+    class LegacyCopyTask extends ProgressiveTask {
+
+        private final long lowestId;
+        private final long highestId;
+        private long high;
+
+        LegacyCopyTask() {
+            super("Copy point values into partitioned table", null);
+            this.lowestId = ejt.queryForLong("SELECT MIN(id) FROM " + LEGACY_TABLE, new Object[0], 0L);
+            this.highestId = ejt.queryForLong("SELECT MAX(id) FROM " + LEGACY_TABLE, new Object[0], -1L);
+            this.high = highestId;
+        }
+
+        @Override
+        protected void runImpl() {
+            if (high < lowestId) {
+                ejt.execute("DROP TABLE " + LEGACY_TABLE);
+                legacyCopyPending = false;
+                LOG.info("Finished copying point values into the partitioned table");
+                completed = true;
+                return;
+            }
+
+            final long low = Math.max(lowestId, high - copyChunkSize + 1);
+            final long chunkHigh = high;
+            try {
+                getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        ejt.update("INSERT INTO pointValues (id, dataPointId, dataType, pointValue, ts) "
+                                + "SELECT id, dataPointId, dataType, pointValue, ts FROM " + LEGACY_TABLE
+                                + " WHERE id>=? AND id<=?", new Object[] { low, chunkHigh });
+                        ejt.update("DELETE FROM " + LEGACY_TABLE + " WHERE id>=? AND id<=?", new Object[] { low, chunkHigh });
+                    }
+                });
+            }
+            catch (Exception e) {
+                LOG.error("Failed to copy point values into the partitioned table, the copy will resume at the next startup", e);
+                completed = true;
+                return;
+            }
+            high = low - 1;
+            declareProgress(100f * (highestId - high) / (highestId - lowestId + 1));
+        }
+    }
+
+    /**
+     * Native RANGE partitions, the primary key must include ts so it is (id, ts)
+     */
+    static class MySQLPartitions extends PointValuePartitions {
+        private static final String CATCH_ALL = "pFuture";
+
+        @Override
+        protected boolean isPartitioned() {
+            return ejt.queryForInt("SELECT COUNT(*) FROM information_schema.partitions WHERE table_schema=DATABASE() "
+                    + "AND LOWER(table_name)='pointvalues' AND partition_name IS NOT NULL", new Object[0], 0) > 0;
+        }
+
+        @Override
+        protected boolean tableExists(String tableName) {
+            return ejt.queryForInt("SELECT COUNT(*) FROM information_schema.tables WHERE table_schema=DATABASE() "
+                    + "AND LOWER(table_name)=?", new Object[] { tableName.toLowerCase() }, 0) > 0;
+        }
+
+        @Override
+        protected List<Partition> queryPartitions() {
+            final List<Partition> partitions = new ArrayList<Partition>();
+            query("SELECT partition_name, partition_description FROM information_schema.partitions WHERE table_schema=DATABASE() "
+                    + "AND LOWER(table_name)='pointvalues' AND partition_name IS NOT NULL ORDER BY partition_ordinal_position",
+                    new RowMapper<Void>() {
+                        @Override
+                        public Void mapRow(ResultSet rs, int rowNum) throws SQLException {
+                            long from = partitions.isEmpty() ? Long.MIN_VALUE : partitions.get(partitions.size() - 1).to;
+                            String less = rs.getString(2);
+                            if ("MAXVALUE".equalsIgnoreCase(less))
+                                partitions.add(new Partition(rs.getString(1), from, Long.MAX_VALUE, true));
+                            else
+                                partitions.add(new Partition(rs.getString(1), from, Long.parseLong(less), false));
+                            return null;
+                        }
+                    });
+            return partitions;
+        }
+
+        @Override
+        protected void createPartitionedTable(List<Partition> partitions, long nextId) {
+            ejt.execute("CREATE TABLE " + NEW_TABLE + " (id bigint not null auto_increment, dataPointId int not null, "
+                    + "dataType int not null, pointValue double, ts bigint not null, primary key (id, ts), "
+                    + "key pointValuesIdx1 (dataPointId, ts)) engine=InnoDB AUTO_INCREMENT=" + nextId
+                    + " PARTITION BY RANGE (ts) (" + partitionDefinitions(partitions) + ")");
+        }
+
+        @Override
+        protected void swapTables() {
+            ejt.execute("RENAME TABLE pointValues TO " + LEGACY_TABLE + ", " + NEW_TABLE + " TO pointValues");
+        }
+
+        @Override
+        protected void addPartitions(List<Partition> partitions) {
+            ejt.execute("ALTER TABLE pointValues REORGANIZE PARTITION " + CATCH_ALL + " INTO ("
+                    + partitionDefinitions(partitions) + ")");
+        }
+
+        @Override
+        protected void dropPartition(Partition partition) {
+            ejt.execute("ALTER TABLE pointValues DROP PARTITION " + partition.name);
+        }
+
+        @Override
+        protected long countValues(Partition partition) {
+            return ejt.queryForLong("SELECT COUNT(*) FROM pointValues PARTITION (" + partition.name + ")",
+                    new Object[0], 0L);
+        }
+
+        private String partitionDefinitions(List<Partition> partitions) {
+            StringBuilder sql = new StringBuilder();
+            for (Partition p : partitions)
+                sql.append("PARTITION ").append(p.name).append(" VALUES LESS THAN (").append(p.to).append("), ");
+            sql.append("PARTITION ").append(CATCH_ALL).append(" VALUES LESS THAN MAXVALUE");
+            return sql.toString();
+        }
+    }
+
+    /**
+     * Declarative partitions, each a table named pointValues_[partition name], with a default partition
+     * as the catch all.  The id sequence is handed to the partitioned table when it is swapped in.
+     */
+    static class PostgresPartitions extends PointValuePartitions {
+        private static final String TABLE_PREFIX = "pointValues_";
+        private static final String CATCH_ALL = "pointValues_default";
+        private static final Pattern BOUNDS = Pattern.compile("FROM \\((.+?)\\) TO \\((.+?)\\)");
+
+        @Override
+        protected boolean isPartitioned() {
+            return ejt.queryForInt("SELECT COUNT(*) FROM pg_partitioned_table pt JOIN pg_class c ON c.oid = pt.partrelid "
+                    + "WHERE c.relname='pointvalues' AND c.relnamespace = current_schema()::regnamespace",
+                    new Object[0], 0) > 0;
+        }
+
+        @Override
+        protected boolean tableExists(String tableName) {
+            return ejt.queryForInt("SELECT COUNT(*) FROM information_schema.tables WHERE table_schema=current_schema() "
+                    + "AND table_name=?", new Object[] { tableName.toLowerCase() }, 0) > 0;
+        }
+
+        @Override
+        protected List<Partition> queryPartitions() {
+            return query("SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i "
+                    + "JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = 'pointvalues'::regclass",
+                    new RowMapper<Partition>() {
+                        @Override
+                        public Partition mapRow(ResultSet rs, int rowNum) throws SQLException {
+                            String name = rs.getString(1);
+                            Matcher m = BOUNDS.matcher(rs.getString(2));
+                            if (!m.find())
+                                return new Partition(name, Long.MIN_VALUE, Long.MAX_VALUE, true);
+                            return new Partition(name, bound(m.group(1)), bound(m.group(2)), false);
+                        }
+                    });
+        }
+
+        @Override
+        protected void createPartitionedTable(final List<Partition> partitions, long nextId) {
+            ejt.execute("CREATE TABLE " + NEW_TABLE + " (id bigint NOT NULL DEFAULT nextval('pointvalues_id_seq'), "
+                    + "dataPointId integer NOT NULL, dataType integer NOT NULL, pointValue double precision, "
+                    + "ts bigint NOT NULL, PRIMARY KEY (id, ts)) PARTITION BY RANGE (ts)");
+            ejt.execute("CREATE INDEX " + NEW_TABLE + "Idx1 ON " + NEW_TABLE + " (dataPointId, ts)");
+            createPartitions(NEW_TABLE, partitions);
+            ejt.execute("CREATE TABLE " + CATCH_ALL + " PARTITION OF " + NEW_TABLE + " DEFAULT");
+        }
+
+        @Override
+        protected void swapTables() {
+            getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    ejt.execute("ALTER TABLE pointValues RENAME TO " + LEGACY_TABLE);
+                    ejt.execute("ALTER TABLE " + NEW_TABLE + " RENAME TO pointValues");
+                    //So dropping the legacy table does not drop the sequence
+                    ejt.execute("ALTER SEQUENCE pointvalues_id_seq OWNED BY pointValues.id");
+                }
+            });
+        }
+
+        /**
+         * A partition can not be created while the default partition holds values in its range, so the default
+         * partition is detached while they are moved into the new partitions
+         */
+        @Override
+        protected void addPartitions(final List<Partition> partitions) {
+            final long from = partitions.get(0).from;
+            final long to = partitions.get(partitions.size() - 1).to;
+            getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    ejt.execute("ALTER TABLE pointValues DETACH PARTITION " + CATCH_ALL);
+                    createPartitions("pointValues", partitions);
+                    int moved = ejt.update("INSERT INTO pointValues (id, dataPointId, dataType, pointValue, ts) "
+                            + "SELECT id, dataPointId, dataType, pointValue, ts FROM " + CATCH_ALL + " WHERE ts>=? AND ts<?",
+                            new Object[] { from, to });
+                    if (moved > 0) {
+                        ejt.update("DELETE FROM " + CATCH_ALL + " WHERE ts>=? AND ts<?", new Object[] { from, to });
+                        LOG.info("Moved " + moved + " point values from " + CATCH_ALL + " into the new partitions");
+                    }
+                    ejt.execute("ALTER TABLE pointValues ATTACH PARTITION " + CATCH_ALL + " DEFAULT");
+                }
+            });
+        }
+
+        @Override
+        protected void dropPartition(Partition partition) {
+            ejt.execute("DROP TABLE " + partition.name);
+        }
+
+        @Override
+        protected long countValues(Partition partition) {
+            return ejt.queryForLong("SELECT COUNT(*) FROM " + partition.name, new Object[0], 0L);
+        }
+
+        @Override
+        protected String partitionName(long from) {
+            return TABLE_PREFIX + super.partitionName(from);
+        }
+
+        private void createPartitions(String table, List<Partition> partitions) {
+            for (Partition p : partitions)
+                ejt.execute("CREATE TABLE " + p.name + " PARTITION OF " + table + " FOR VALUES FROM ("
+                        + (p.from == Long.MIN_VALUE ? "MINVALUE" : Long.toString(p.from)) + ") TO (" + p.to + ")");
+        }
+
+        private long bound(String value) {
+            value = value.replace("'", "").trim();
+            if ("MINVALUE".equalsIgnoreCase(value))
+                return Long.MIN_VALUE;
+            if ("MAXVALUE".equalsIgnoreCase(value))
+                return Long.MAX_VALUE;
+            return Long.parseLong(value);
+        }
+    }
+}
@@ -0,0 +1,677 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.DateTime;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.Common.TimePeriods;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.IMangoLifecycle;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+import com.serotonin.m2m2.view.quantize2.AnalogStatisticsQuantizer;
+import com.serotonin.m2m2.view.quantize2.BucketCalculator;
+import com.serotonin.m2m2.view.quantize2.StatisticsGeneratorQuantizerCallback;
+import com.serotonin.m2m2.view.stats.AnalogStatistics;
+import com.serotonin.m2m2.view.stats.IValueTime;
+import com.serotonin.provider.Providers;
+import com.serotonin.timer.FixedDelayTrigger;
+import com.serotonin.timer.TimerTask;
+
+/**
+ * Minute, hour and day statistics of the values of numeric points, kept up to date as values are
+ * saved so statistics over long periods read a few rollups instead of every value.
+ *
+ * Saving, updating or deleting values marks the minutes they fall in as dirty.  A background task
+ * rebuilds the dirty minutes from the values, then their hours from the minutes and their days from
+ * the hours, so values saved late are rolled up the same as any other.  Until a range has been rebuilt,
+ * and for the most recent rollupLag ms, statistics are taken from the values instead.
+ *
+ * Periods are aligned to UTC.  The dirty ranges are saved at shutdown and the values saved since the
+ * latest rollup of every point are rolled up at startup, values saved before the latest rollup of a
+ * point while Mango was not shut down cleanly are only rolled up again if they change.
+ *
+ * @author Terry Packer
+ */
+public class PointValueRollupDao extends BaseDao {
+
+    private static final Log LOG = LogFactory.getLog(PointValueRollupDao.class);
+
+    public static final boolean ENABLED = Common.envProps.getBoolean("db.pointValues.rollups", false);
+    private static final long LAG = Common.envProps.getLong("db.pointValues.rollupLag", 300000);
+    private static final long TASK_PERIOD = Common.envProps.getLong("db.pointValues.rollupPeriod", 60000);
+    private static final int DAYS_PER_RUN = Math.max(1, Common.envProps.getInt("db.pointValues.rollupDaysPerRun", 100));
+
+    static final long MINUTE = 60000L;
+    static final long HOUR = 60 * MINUTE;
+    static final long DAY = 24 * HOUR;
+
+    //Rollup levels from the finest
+    private static final int[] PERIOD_TYPES = { TimePeriods.MINUTES, TimePeriods.HOURS, TimePeriods.DAYS };
+    private static final long[] PERIOD_MILLIS = { MINUTE, HOUR, DAY };
+
+    private static final String ROLLUP_SELECT = "select ts, valueCount, sumValue, minimumValue, minimumTs, maximumValue, "
+            + "maximumTs, integral, firstValue, firstTs, lastValue, lastTs from pointValueRollups "
+            + "where dataPointId=? and periodType=? and ts>=? and ts<? order by ts";
+    private static final String ROLLUP_INSERT = "insert into pointValueRollups (dataPointId, periodType, ts, valueCount, "
+            + "minimumValue, minimumTs, maximumValue, maximumTs, average, integral, sumValue, firstValue, firstTs, "
+            + "lastValue, lastTs, delta) values (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+    private static final String ROLLUP_DELETE = "delete from pointValueRollups where dataPointId=? and periodType=? and ts>=? and ts<?";
+
+    private static volatile PointValueRollupDao instance;
+
+    //Point id to the ranges of its values that changed since they were rolled up
+    private static final ConcurrentHashMap<Integer, DirtyRanges> DIRTY = new ConcurrentHashMap<Integer, DirtyRanges>();
+
+    //Days still to be rebuilt in the current run of the rollup task
+    private int daysLeft;
+
+    /**
+     * Values of a point between two times, used for the parts of a period without rollups
+     */
+    public interface ValueSource {
+        List<PointValueTime> getPointValuesBetween(long from, long to);
+    }
+
+    /**
+     * @return the rollups or null if they are not enabled
+     */
+    public static PointValueRollupDao get() {
+        return instance;
+    }
+
+    /**
+     * Load the ranges to roll up and start rolling up once Mango has started
+     */
+    public static void initialize() {
+        if (!ENABLED)
+            return;
+
+        PointValueRollupDao rollups = new PointValueRollupDao();
+        rollups.loadDirty(System.currentTimeMillis());
+        instance = rollups;
+
+        Providers.get(IMangoLifecycle.class).addStartupTask(new Runnable() {
+            @Override
+            public void run() {
+                Common.backgroundProcessing.schedule(new RollupTask());
+            }
+        });
+    }
+
+    /**
+     * Save the ranges still to be rolled up for the next start
+     */
+    public static void terminate() {
+        PointValueRollupDao rollups = instance;
+        if (rollups != null)
+            rollups.saveDirty();
+    }
+
+    /**
+     * A value of a point was saved, changed or deleted
+     */
+    static void valueChanged(int dataPointId, int dataType, long time) {
+        if (instance != null && dataType == DataTypes.NUMERIC)
+            markDirty(dataPointId, time, time + 1);
+    }
+
+    /**
+     * Values of a point >= from and < to were deleted
+     */
+    static void valuesChanged(int dataPointId, long from, long to) {
+        if (instance != null)
+            markDirty(dataPointId, from, to);
+    }
+
+    /**
+     * Values of many points were deleted, remove the rollups of the points that no longer exist
+     * or of every point when all values were deleted
+     */
+    static void valuesDeleted(boolean all) {
+        PointValueRollupDao rollups = instance;
+        if (rollups == null)
+            return;
+        if (all)
+            rollups.ejt.update("delete from pointValueRollups");
+        else
+            rollups.ejt.update("delete from pointValueRollups where dataPointId not in (select id from dataPoints)");
+    }
+
+    /**
+     * Values of every point before the time were deleted, remove their rollups
+     * @param time the start of a rollup day
+     */
+    static void valuesDeletedBefore(long time) {
+        PointValueRollupDao rollups = instance;
+        if (rollups != null)
+            rollups.ejt.update("delete from pointValueRollups where ts<?", new Object[] { time });
+    }
+
+    private static void markDirty(int dataPointId, long from, long to) {
+        DirtyRanges ranges = DIRTY.get(dataPointId);
+        if (ranges == null) {
+            ranges = new DirtyRanges();
+            DirtyRanges existing = DIRTY.putIfAbsent(dataPointId, ranges);
+            if (existing != null)
+                ranges = existing;
+        }
+        ranges.add(floor(Math.max(0, from), MINUTE), ceil(Math.min(to, Long.MAX_VALUE - MINUTE), MINUTE));
+    }
+
+    /**
+     * Statistics of the values of a numeric point >= from and < to.  The whole days, hours and minutes of
+     * the period that are rolled up are read from the rollups, the values of the rest from the source.
+     *
+     * @param dataPointId
+     * @param from
+     * @param to
+     * @param startValue value in force at from or null
+     * @param values source of the values that are not rolled up
+     * @return the done statistics
+     */
+    public AnalogStatistics getStatistics(int dataPointId, long from, long to, Double startValue, ValueSource values) {
+        AnalogStatistics stats = new AnalogStatistics(from, to, startValue);
+        long start = ceil(from, MINUTE);
+        long end = floor(getRolledUntil(dataPointId, from, to), MINUTE);
+        if (end <= start) {
+            addValues(stats, values.getPointValuesBetween(from, to));
+            stats.done();
+            return stats;
+        }
+
+        if (from < start)
+            addValues(stats, values.getPointValuesBetween(from, start));
+
+        // Cover the period with the coarsest rollups that fit, adding each run of one level with one query
+        int level = -1;
+        long runStart = start;
+        long time = start;
+        while (time < end) {
+            int fit = 0;
+            for (int l = PERIOD_MILLIS.length - 1; l > 0; l--) {
+                if (time % PERIOD_MILLIS[l] == 0 && time + PERIOD_MILLIS[l] <= end) {
+                    fit = l;
+                    break;
+                }
+            }
+            if (fit != level) {
+                if (level >= 0)
+                    for (AnalogStatistics rollup : getRollups(dataPointId, level, runStart, time))
+                        stats.addStatistics(rollup);
+                level = fit;
+                runStart = time;
+            }
+            time += PERIOD_MILLIS[fit];
+        }
+        for (AnalogStatistics rollup : getRollups(dataPointId, level, runStart, end))
+            stats.addStatistics(rollup);
+
+        if (end < to)
+            addValues(stats, values.getPointValuesBetween(end, to));
+        stats.done();
+        return stats;
+    }
+
+    /**
+     * Quantize the values of a numeric point into the buckets of the calculator.  When every bucket starts
+     * and ends on a whole minute, hour or day the buckets are built from the coarsest of those rollups,
+     * otherwise from the values like the AnalogStatisticsQuantizer.
+     *
+     * @param dataPointId
+     * @param bucketCalculator
+     * @param startValue value in force at the start or null
+     * @param values source of the values that are not rolled up
+     * @param callback
+     */
+    public void quantize(int dataPointId, BucketCalculator bucketCalculator, Double startValue, ValueSource values,
+            StatisticsGeneratorQuantizerCallback<AnalogStatistics> callback) {
+        long from = bucketCalculator.getStartTime().getMillis();
+        long to = bucketCalculator.getEndTime().getMillis();
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add(from);
+        DateTime periodTo;
+        do {
+            periodTo = bucketCalculator.getNextPeriodTo();
+            bounds.add(Math.min(periodTo.getMillis(), to));
+        } while (periodTo.getMillis() < to);
+
+        int level = -1;
+        for (int l = PERIOD_MILLIS.length - 1; l >= 0 && level < 0; l--) {
+            boolean aligned = true;
+            for (Long bound : bounds) {
+                if (bound % PERIOD_MILLIS[l] != 0) {
+                    aligned = false;
+                    break;
+                }
+            }
+            if (aligned)
+                level = l;
+        }
+
+        long end = level < 0 ? from : Math.max(from, floor(getRolledUntil(dataPointId, from, to), PERIOD_MILLIS[level]));
+        List<PointValueTime> pvts = values.getPointValuesBetween(end, to);
+        if (end == from) {
+            List<IValueTime> data = new ArrayList<IValueTime>(pvts);
+            AnalogStatisticsQuantizer.quantize(bucketCalculator, startValue == null ? null : new NumericValue(startValue),
+                    data, callback);
+            return;
+        }
+        List<AnalogStatistics> rollups = getRollups(dataPointId, level, from, end);
+
+        int r = 0;
+        int v = 0;
+        Double start = startValue;
+        for (int i = 1; i < bounds.size(); i++) {
+            long periodFrom = bounds.get(i - 1);
+            long periodEnd = bounds.get(i);
+
+            // A value at the start of a period is also its start value
+            if (r < rollups.size() && rollups.get(r).getFirstTime() == periodFrom)
+                start = rollups.get(r).getFirstValue();
+            else if (r == rollups.size() && v < pvts.size() && pvts.get(v).getTime() == periodFrom)
+                start = pvts.get(v).getDoubleValue();
+
+            AnalogStatistics stats = new AnalogStatistics(periodFrom, periodEnd, start);
+            while (r < rollups.size() && rollups.get(r).getPeriodStartTime() < periodEnd)
+                stats.addStatistics(rollups.get(r++));
+            while (v < pvts.size() && pvts.get(v).getTime() < periodEnd) {
+                PointValueTime pvt = pvts.get(v++);
+                stats.addValueTime(pvt.getValue(), pvt.getTime());
+            }
+            stats.done();
+            callback.quantizedStatistics(stats);
+            if (stats.getLastValue() != null)
+                start = stats.getLastValue();
+        }
+    }
+
+    /**
+     * The time up to which the rollups of the point can be used for a period
+     */
+    private long getRolledUntil(int dataPointId, long from, long to) {
+        // Values waiting on disk for the database were marked dirty when they were saved but may have been
+        // rolled up before they were written
+        if (PointValueDaoSQL.isWriteBehindSpilling())
+            return from;
+        long end = Math.min(to, Common.timer.currentTimeMillis() - LAG);
+        DirtyRanges ranges = DIRTY.get(dataPointId);
+        if (ranges != null)
+            end = Math.min(end, ranges.getFirstDirty(from));
+        return Math.max(from, end);
+    }
+
+    private void addValues(AnalogStatistics stats, List<PointValueTime> values) {
+        for (PointValueTime pvt : values)
+            stats.addValueTime(pvt.getValue(), pvt.getTime());
+    }
+
+    /**
+     * Read the rollups of a level >= from and < to in time order
+     */
+    List<AnalogStatistics> getRollups(int dataPointId, int level, long from, long to) {
+        final long period = PERIOD_MILLIS[level];
+        return ejt.query(ROLLUP_SELECT, new Object[] { dataPointId, PERIOD_TYPES[level], from, to },
+                new RowMapper<AnalogStatistics>() {
+                    @Override
+                    public AnalogStatistics mapRow(ResultSet rs, int rowNum) throws SQLException {
+                        long ts = rs.getLong(1);
+                        return new AnalogStatistics(ts, ts + period, rs.getInt(2), rs.getDouble(3), rs.getDouble(4),
+                                rs.getLong(5), rs.getDouble(6), rs.getLong(7), rs.getDouble(8), rs.getDouble(9),
+                                rs.getLong(10), rs.getDouble(11), rs.getLong(12));
+                    }
+                });
+    }
+
+    //
+    //
+    // Rolling up
+    //
+    /**
+     * Roll up the dirty ranges of every point, at most db.pointValues.rollupDaysPerRun days of values per
+     * run so that rolling up the existing values of every point is spread over many runs. What is left
+     * stays dirty for the next run.
+     */
+    void rollupDirty() {
+        daysLeft = DAYS_PER_RUN;
+        for (Map.Entry<Integer, DirtyRanges> entry : DIRTY.entrySet()) {
+            if (daysLeft <= 0)
+                break;
+            DirtyRanges ranges = entry.getValue();
+            TreeMap<Long, Long> taken = ranges.take();
+            if (taken.isEmpty())
+                continue;
+            try {
+                while (!taken.isEmpty() && daysLeft > 0) {
+                    Map.Entry<Long, Long> range = taken.pollFirstEntry();
+                    long until = rollup(entry.getKey(), range.getKey(), range.getValue());
+                    if (until < range.getValue())
+                        taken.put(until, range.getValue());
+                }
+                ranges.addAll(taken);
+            }
+            catch (RuntimeException e) {
+                LOG.error("Failed to roll up the values of data point " + entry.getKey(), e);
+                ranges.addAll(taken);
+            }
+            finally {
+                ranges.rolled();
+            }
+        }
+    }
+
+    /**
+     * Rebuild the rollups of a point over a range of whole minutes, a day at a time, until the days
+     * of this run are used up
+     * @return the time the range has been rolled up until
+     */
+    long rollup(int dataPointId, long from, long to) {
+        // Ranges can reach far beyond the values and rollups of the point
+        long[] values = getTimeRange("select min(ts), max(ts) from pointValues where dataPointId=? and ts>=? and ts<?",
+                dataPointId, from, to);
+        long[] rollups = getTimeRange("select min(ts), max(ts) from pointValueRollups where dataPointId=? and ts>=? and ts<?",
+                dataPointId, from, to);
+        if (values == null && rollups == null)
+            return to;
+        long start;
+        long end;
+        if (values == null) {
+            start = rollups[0];
+            end = rollups[1];
+        }
+        else if (rollups == null) {
+            start = values[0];
+            end = values[1];
+        }
+        else {
+            start = Math.min(values[0], rollups[0]);
+            end = Math.max(values[1], rollups[1]);
+        }
+        start = Math.max(from, floor(start, MINUTE));
+        end = Math.min(to, floor(end, MINUTE) + MINUTE);
+
+        while (start < end) {
+            if (daysLeft <= 0)
+                return start;
+            long dayEnd = Math.min(end, floor(start, DAY) + DAY);
+            rollupDay(dataPointId, start, dayEnd);
+            daysLeft--;
+            start = dayEnd;
+        }
+        return to;
+    }
+
+    /**
+     * @return the min and max times selected or null if there are none
+     */
+    private long[] getTimeRange(String sql, Object... args) {
+        return ejt.queryForObject(sql, args, new RowMapper<long[]>() {
+            @Override
+            public long[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+                long min = rs.getLong(1);
+                if (rs.wasNull())
+                    return null;
+                return new long[] { min, rs.getLong(2) };
+            }
+        });
+    }
+
+    /**
+     * Rebuild the minutes >= from and < to, which are in one day, then their hour and day rollups
+     */
+    private void rollupDay(final int dataPointId, final long from, final long to) {
+        final List<AnalogStatistics> minutes = new ArrayList<AnalogStatistics>();
+        ejt.query("select pointValue, ts from pointValues where dataPointId=? and dataType=? and ts>=? and ts<? order by ts",
+                new Object[] { dataPointId, DataTypes.NUMERIC, from, to }, new RowCallbackHandler() {
+                    private AnalogStatistics minute;
+
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        long ts = rs.getLong(2);
+                        long start = floor(ts, MINUTE);
+                        if (minute == null || minute.getPeriodStartTime() != start) {
+                            minute = new AnalogStatistics(start, start + MINUTE, (Double) null);
+                            minutes.add(minute);
+                        }
+                        minute.addValueTime(rs.getDouble(1), ts);
+                    }
+                });
+        for (AnalogStatistics minute : minutes)
+            minute.done();
+
+        getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                replace(dataPointId, 0, from, to, minutes);
+                for (int level = 1; level < PERIOD_MILLIS.length; level++) {
+                    long levelFrom = floor(from, PERIOD_MILLIS[level]);
+                    long levelTo = ceil(to, PERIOD_MILLIS[level]);
+                    replace(dataPointId, level, levelFrom, levelTo, combine(dataPointId, level, levelFrom, levelTo));
+                }
+            }
+        });
+    }
+
+    /**
+     * Build the rollups of a level >= from and < to from those of the level below
+     */
+    private List<AnalogStatistics> combine(int dataPointId, int level, long from, long to) {
+        List<AnalogStatistics> result = new ArrayList<AnalogStatistics>();
+        AnalogStatistics current = null;
+        for (AnalogStatistics finer : getRollups(dataPointId, level - 1, from, to)) {
+            long start = floor(finer.getPeriodStartTime(), PERIOD_MILLIS[level]);
+            if (current == null || current.getPeriodStartTime() != start) {
+                if (current != null)
+                    current.done();
+                current = new AnalogStatistics(start, start + PERIOD_MILLIS[level], (Double) null);
+                result.add(current);
+            }
+            current.addStatistics(finer);
+        }
+        if (current != null)
+            current.done();
+        return result;
+    }
+
+    private void replace(final int dataPointId, final int level, long from, long to, final List<AnalogStatistics> rollups) {
+        ejt.update(ROLLUP_DELETE, new Object[] { dataPointId, PERIOD_TYPES[level], from, to });
+        if (rollups.isEmpty())
+            return;
+        ejt.batchUpdate(ROLLUP_INSERT, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                AnalogStatistics stats = rollups.get(i);
+                ps.setInt(1, dataPointId);
+                ps.setInt(2, PERIOD_TYPES[level]);
+                ps.setLong(3, stats.getPeriodStartTime());
+                ps.setInt(4, stats.getCount());
+                ps.setDouble(5, stats.getMinimumValue());
+                ps.setLong(6, stats.getMinimumTime());
+                ps.setDouble(7, stats.getMaximumValue());
+                ps.setLong(8, stats.getMaximumTime());
+                ps.setDouble(9, stats.getAverage());
+                ps.setDouble(10, stats.getIntegral());
+                ps.setDouble(11, stats.getSum());
+                ps.setDouble(12, stats.getFirstValue());
+                ps.setLong(13, stats.getFirstTime());
+                ps.setDouble(14, stats.getLastValue());
+                ps.setLong(15, stats.getLastTime());
+                ps.setDouble(16, stats.getDelta());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return rollups.size();
+            }
+        });
+    }
+
+    /**
+     * Mark the ranges saved at the last shutdown and the values of every numeric point since its latest
+     * minute rollup as dirty
+     */
+    private void loadDirty(long now) {
+        ejt.query("select dataPointId, fromTs, toTs from pointValueRollupsDirty", new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                markDirty(rs.getInt(1), rs.getLong(2), rs.getLong(3));
+            }
+        });
+        ejt.update("delete from pointValueRollupsDirty");
+
+        final Map<Integer, Long> latest = new HashMap<Integer, Long>();
+        ejt.query("select dataPointId, max(ts) from pointValueRollups where periodType=? group by dataPointId",
+                new Object[] { TimePeriods.MINUTES }, new RowCallbackHandler() {
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        latest.put(rs.getInt(1), rs.getLong(2));
+                    }
+                });
+        for (Integer id : ejt.queryForList("select id from dataPoints where dataTypeId=?",
+                new Object[] { DataTypes.NUMERIC }, Integer.class)) {
+            Long ts = latest.get(id);
+            markDirty(id, ts == null ? 0 : ts, now + MINUTE);
+        }
+    }
+
+    private void saveDirty() {
+        final List<long[]> rows = new ArrayList<long[]>();
+        for (Map.Entry<Integer, DirtyRanges> entry : DIRTY.entrySet())
+            for (Map.Entry<Long, Long> range : entry.getValue().getAll().entrySet())
+                rows.add(new long[] { entry.getKey(), range.getKey(), range.getValue() });
+        if (rows.isEmpty())
+            return;
+        ejt.batchUpdate("insert into pointValueRollupsDirty (dataPointId, fromTs, toTs) values (?,?,?)",
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps, int i) throws SQLException {
+                        long[] row = rows.get(i);
+                        ps.setInt(1, (int) row[0]);
+                        ps.setLong(2, row[1]);
+                        ps.setLong(3, row[2]);
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return rows.size();
+                    }
+                });
+    }
+
+    static long floor(long time, long period) {
+        return Math.floorDiv(time, period) * period;
+    }
+
+    static long ceil(long time, long period) {
+        return -Math.floorDiv(-time, period) * period;
+    }
+
+    /**
+     * Ranges of the values of a point that changed since they were rolled up
+     */
+    static class DirtyRanges {
+        //Range start to end, the ranges do not touch
+        private final TreeMap<Long, Long> dirty = new TreeMap<Long, Long>();
+        //Ranges being rolled up, still dirty until that finishes
+        private final TreeMap<Long, Long> rolling = new TreeMap<Long, Long>();
+
+        synchronized void add(long from, long to) {
+            add(dirty, from, to);
+        }
+
+        synchronized void addAll(TreeMap<Long, Long> ranges) {
+            for (Map.Entry<Long, Long> range : ranges.entrySet())
+                add(dirty, range.getKey(), range.getValue());
+        }
+
+        /**
+         * Take the dirty ranges to roll up them up
+         */
+        synchronized TreeMap<Long, Long> take() {
+            TreeMap<Long, Long> taken = new TreeMap<Long, Long>(dirty);
+            for (Map.Entry<Long, Long> range : dirty.entrySet())
+                add(rolling, range.getKey(), range.getValue());
+            dirty.clear();
+            return taken;
+        }
+
+        /**
+         * The taken ranges have been rolled up
+         */
+        synchronized void rolled() {
+            rolling.clear();
+        }
+
+        /**
+         * @return the start of the first range that ends after the time, or the time if it is in a range
+         */
+        synchronized long getFirstDirty(long time) {
+            return Math.min(getFirst(dirty, time), getFirst(rolling, time));
+        }
+
+        synchronized TreeMap<Long, Long> getAll() {
+            TreeMap<Long, Long> all = new TreeMap<Long, Long>(rolling);
+            for (Map.Entry<Long, Long> range : dirty.entrySet())
+                add(all, range.getKey(), range.getValue());
+            return all;
+        }
+
+        private static long getFirst(TreeMap<Long, Long> ranges, long time) {
+            Map.Entry<Long, Long> range = ranges.floorEntry(time);
+            if (range != null && range.getValue() > time)
+                return time;
+            Long next = ranges.higherKey(time);
+            return next == null ? Long.MAX_VALUE : next;
+        }
+
+        private static void add(TreeMap<Long, Long> ranges, long from, long to) {
+            Map.Entry<Long, Long> range = ranges.floorEntry(from);
+            if (range != null && range.getValue() >= from) {
+                if (range.getValue() >= to)
+                    return;
+                from = range.getKey();
+            }
+            while ((range = ranges.ceilingEntry(from)) != null && range.getKey() <= to) {
+                to = Math.max(to, range.getValue());
+                ranges.remove(range.getKey());
+            }
+            ranges.put(from, to);
+        }
+    }
+
+    /**
+     * Rolls up the dirty ranges of every point
+     */
+    static class RollupTask extends TimerTask {
+        RollupTask() {
+            super(new FixedDelayTrigger(TASK_PERIOD, TASK_PERIOD), "Point value rollup task", "PointValueRollups", 0);
+        }
+
+        @Override
+        public void run(long runtime) {
+            PointValueRollupDao rollups = instance;
+            if (rollups != null)
+                rollups.rollupDirty();
+        }
+    }
+}
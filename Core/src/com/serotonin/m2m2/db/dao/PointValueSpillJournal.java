@@ -0,0 +1,407 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.serotonin.m2m2.db.dao.PointValueDaoSQL.BatchWriteBehindEntry;
+
+/**
+ * On disk overflow for point values that the SQL write behinds can not keep up with or
+ * could not write because the database is unavailable.
+ *
+ * Values are appended to a buffered tail file as they are spilled. The file is only flushed and
+ * forced to disk when it is full, when it is read or saved and otherwise when a value is spilled
+ * FORCE_PERIOD or more after the last force. A crash can lose the values spilled since the last
+ * force. Files are read back in the order they were written.
+ *
+ * The file being read is kept until the next one is loaded, so a crash while replaying loses none
+ * of its values. The price is that values of that file that were already inserted are inserted
+ * again when it is replayed after the restart, the point value tables have no key to reject them.
+ * Values that could not be replayed are put back at the head with requeue so they keep their place
+ * ahead of newer values.
+ *
+ * Each record is its length followed by the bytes of the format, a record cut short by a
+ * crash is dropped when the file is read.
+ *
+ * @author Terry Packer
+ */
+class PointValueSpillJournal<E> {
+    private static final Log LOG = LogFactory.getLog(PointValueSpillJournal.class);
+    private static final String FILE_PREFIX = "spill.";
+    private static final String FILE_SUFFIX = ".bin";
+    private static final long FORCE_PERIOD = 1000;
+
+    /**
+     * How entries are written to and read from a record
+     */
+    interface Format<E> {
+        void write(E e, DataOutputStream out) throws IOException;
+
+        E read(DataInputStream in) throws IOException;
+    }
+
+    static final Format<BatchWriteBehindEntry> POINT_VALUES = new Format<BatchWriteBehindEntry>() {
+        @Override
+        public void write(BatchWriteBehindEntry e, DataOutputStream out) throws IOException {
+            out.writeInt(e.getPointId());
+            out.writeInt(e.getDataType());
+            out.writeDouble(e.getDvalue());
+            out.writeLong(e.getTime());
+        }
+
+        @Override
+        public BatchWriteBehindEntry read(DataInputStream in) throws IOException {
+            return new BatchWriteBehindEntry(in.readInt(), in.readInt(), in.readDouble(), in.readLong());
+        }
+    };
+
+    /**
+     * The point value columns followed by the annotation columns, a null string is written as length -1
+     */
+    static final Format<BatchAnnotatedWriteBehind.Entry> ANNOTATED_POINT_VALUES = new Format<BatchAnnotatedWriteBehind.Entry>() {
+        @Override
+        public void write(BatchAnnotatedWriteBehind.Entry e, DataOutputStream out) throws IOException {
+            out.writeInt(e.getPointId());
+            out.writeInt(e.getDataType());
+            out.writeDouble(e.getDvalue());
+            out.writeLong(e.getTime());
+            writeString(e.getShortString(), out);
+            writeString(e.getLongString(), out);
+            writeString(e.getSourceMessage(), out);
+        }
+
+        @Override
+        public BatchAnnotatedWriteBehind.Entry read(DataInputStream in) throws IOException {
+            return new BatchAnnotatedWriteBehind.Entry(in.readInt(), in.readInt(), in.readDouble(), in.readLong(),
+                    readString(in), readString(in), readString(in));
+        }
+
+        private void writeString(String s, DataOutputStream out) throws IOException {
+            if (s == null)
+                out.writeInt(-1);
+            else {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        private String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0)
+                return null;
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    private final int blockSize;
+    private final File baseDir;
+    private final Format<E> format;
+
+    //Entries of the file being read
+    private final ArrayDeque<E> head = new ArrayDeque<E>();
+    //The file the head was loaded from, null once it has been replaced or deleted
+    private File loaded;
+    //Next file to read and the file being written, files between them are full
+    private int headId;
+    private int tailId;
+    private FileOutputStream tailFile;
+    private DataOutputStream tail;
+    private int tailCount;
+    private long lastForce;
+    //Entries in the files not yet read
+    private int diskCount;
+
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    PointValueSpillJournal(int blockSize, File baseDir, Format<E> format) {
+        this.blockSize = Math.max(1, blockSize);
+        this.baseDir = baseDir;
+        this.format = format;
+
+        baseDir.mkdirs();
+        boolean fileFound = false;
+        File[] list = baseDir.listFiles();
+        if (list != null) {
+            for (File file : list) {
+                String name = file.getName();
+                if (!name.startsWith(FILE_PREFIX))
+                    continue;
+                if (!name.endsWith(FILE_SUFFIX)) {
+                    // A head that was being rewritten, the file it was replacing is still there
+                    file.delete();
+                    continue;
+                }
+                int id = Integer.parseInt(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+                if (!fileFound) {
+                    headId = tailId = id;
+                    fileFound = true;
+                }
+                else {
+                    headId = Math.min(headId, id);
+                    tailId = Math.max(tailId, id);
+                }
+                diskCount += countRecords(file);
+            }
+        }
+        // Never append to a file of the last run, it may end with a partial record
+        if (fileFound)
+            tailId++;
+    }
+
+    synchronized int size() {
+        return head.size() + diskCount;
+    }
+
+    synchronized void offer(E e) {
+        try {
+            append(e);
+            if (tailCount >= blockSize)
+                closeTail();
+            else
+                forceIfDue();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException("While writing to " + createFile(tailId).getPath(), ex);
+        }
+    }
+
+    synchronized void offer(List<E> entries) {
+        try {
+            for (E e : entries) {
+                append(e);
+                if (tailCount >= blockSize)
+                    closeTail();
+            }
+            forceIfDue();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException("While writing to " + createFile(tailId).getPath(), ex);
+        }
+    }
+
+    synchronized E poll() {
+        while (head.isEmpty()) {
+            deleteLoaded();
+            if (headId == tailId) {
+                if (tailCount == 0)
+                    return null;
+                // Only the file being written is left, finish it and read it
+                try {
+                    closeTail();
+                }
+                catch (IOException ex) {
+                    throw new RuntimeException("While writing to " + createFile(tailId).getPath(), ex);
+                }
+            }
+            load(headId++);
+        }
+        return head.poll();
+    }
+
+    /**
+     * Put entries taken with poll back at the head, ahead of those not taken yet
+     * @param entries in the order they were taken
+     */
+    synchronized void requeue(List<E> entries) {
+        List<E> rewrite = new ArrayList<E>(entries.size() + head.size());
+        rewrite.addAll(entries);
+        rewrite.addAll(head);
+        try {
+            // Replaces the file the head was loaded from if it is still there
+            writeHead(rewrite, createFile(--headId));
+        }
+        catch (IOException ex) {
+            throw new RuntimeException("While writing to " + createFile(headId).getPath(), ex);
+        }
+        head.clear();
+        loaded = null;
+        diskCount += rewrite.size();
+    }
+
+    /**
+     * Force everything to disk, the entries of the head that were not taken replace the file they were
+     * loaded from so they are not written twice. Called on shutdown.
+     */
+    synchronized void save() {
+        try {
+            closeTail();
+            if (loaded != null) {
+                List<E> rest = new ArrayList<E>(head);
+                if (rest.isEmpty())
+                    deleteLoaded();
+                else {
+                    writeHead(rest, loaded);
+                    head.clear();
+                    loaded = null;
+                    headId--;
+                    diskCount += rest.size();
+                }
+            }
+        }
+        catch (IOException ex) {
+            throw new RuntimeException("While saving point value spill files in " + baseDir.getPath(), ex);
+        }
+    }
+
+    private void append(E e) throws IOException {
+        if (tail == null) {
+            tailFile = new FileOutputStream(createFile(tailId), true);
+            tail = new DataOutputStream(new BufferedOutputStream(tailFile));
+        }
+        writeRecord(e, tail);
+        tailCount++;
+        diskCount++;
+    }
+
+    private void writeRecord(E e, DataOutputStream out) throws IOException {
+        record.reset();
+        format.write(e, recordOut);
+        recordOut.flush();
+        out.writeInt(record.size());
+        record.writeTo(out);
+    }
+
+    private void forceIfDue() throws IOException {
+        if (tail == null)
+            return;
+        long now = System.currentTimeMillis();
+        if (now - lastForce >= FORCE_PERIOD) {
+            tail.flush();
+            force(now);
+        }
+    }
+
+    private void force(long now) throws IOException {
+        tailFile.getChannel().force(false);
+        lastForce = now;
+    }
+
+    private void closeTail() throws IOException {
+        if (tail == null)
+            return;
+        tail.flush();
+        force(System.currentTimeMillis());
+        tail.close();
+        tail = null;
+        tailFile = null;
+        tailCount = 0;
+        tailId++;
+    }
+
+    private void deleteLoaded() {
+        if (loaded != null) {
+            loaded.delete();
+            loaded = null;
+        }
+    }
+
+    private void load(int id) {
+        File file = createFile(id);
+        if (!file.exists())
+            return;
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] bytes;
+            while ((bytes = readRecord(in)) != null) {
+                head.add(format.read(new DataInputStream(new ByteArrayInputStream(bytes))));
+                count++;
+            }
+        }
+        catch (IOException ex) {
+            LOG.error("Point values after the first " + count + " in " + file.getPath() + " could not be read", ex);
+        }
+        diskCount = Math.max(0, diskCount - count);
+        loaded = file;
+    }
+
+    /**
+     * Write the entries to a new file and move it over the target so the target is never partly written
+     */
+    private void writeHead(List<E> entries, File target) throws IOException {
+        File temp = new File(baseDir, target.getName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            for (E e : entries)
+                writeRecord(e, out);
+            out.flush();
+            file.getChannel().force(false);
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the bytes of the next record or null at the end of the file or a partial record
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        }
+        catch (EOFException e) {
+            return null;
+        }
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        try {
+            in.readFully(bytes);
+        }
+        catch (EOFException e) {
+            return null;
+        }
+        return bytes;
+    }
+
+    private static int countRecords(File file) {
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || in.skipBytes(length) < length)
+                    break;
+                count++;
+            }
+        }
+        catch (IOException e) {
+            // Counted up to the error
+        }
+        return count;
+    }
+
+    private File createFile(int id) {
+        return new File(baseDir, FILE_PREFIX + id + FILE_SUFFIX);
+    }
+}
@@ -7,6 +7,7 @@ package com.serotonin.m2m2.db.dao;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -26,6 +27,7 @@ import com.serotonin.m2m2.module.ModuleRegistry;
 import com.serotonin.m2m2.rt.event.type.AuditEventType;
 import com.serotonin.m2m2.vo.User;
 import com.serotonin.m2m2.web.mvc.spring.security.MangoSecurityConfiguration;
+import com.serotonin.m2m2.web.mvc.spring.security.authentication.AuthenticationCache;
 import com.serotonin.m2m2.web.mvc.spring.security.authentication.MangoUserDetailsService;
 
 public class UserDao extends AbstractDao<User> {
@@ -135,6 +137,44 @@ public class UserDao extends AbstractDao<User> {
                 new UserRowMapper());
     }
 
+    //Active users shared by callers of getCachedActiveUsers, cleared whenever a user changes
+    private volatile List<User> cachedActiveUsers;
+    //Incremented on every change so a load that raced with a change is not cached
+    private int cacheVersion;
+
+    /**
+     * The active users, read once and kept until any user is saved or deleted. Used
+     * where every event needs the users, the list and users are shared so do not modify them.
+     * @return
+     */
+    public List<User> getCachedActiveUsers() {
+        List<User> users = cachedActiveUsers;
+        if (users != null)
+            return users;
+        int version;
+        synchronized (this) {
+            version = cacheVersion;
+        }
+        users = Collections.unmodifiableList(getActiveUsers());
+        synchronized (this) {
+            if (version == cacheVersion)
+                cachedActiveUsers = users;
+        }
+        return users;
+    }
+
+    /**
+     * Clear the cached active users and the user kept for authentication
+     * @param userId
+     */
+    private void userChanged(int userId) {
+        synchronized (this) {
+            cacheVersion++;
+            cachedActiveUsers = null;
+        }
+        AuthenticationCache.instance.userChanged(userId);
+    }
+
     public void saveUser(final User user) {
         getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
             @Override
@@ -145,6 +185,7 @@ public class UserDao extends AbstractDao<User> {
                     updateUser(user);
             }
         });
+        userChanged(user.getId());
     }
 
     private static final String USER_INSERT = "INSERT INTO users (username, password, email, phone, " //
@@ -231,16 +272,18 @@ public class UserDao extends AbstractDao<User> {
                 MangoSecurityConfiguration.replaceUserInSessions(user, null);
             }
         });
-        
+        userChanged(userId);
     }
 
     public void recordLogin(int userId) {
         ejt.update("UPDATE users SET lastLogin=? WHERE id=?", new Object[] { Common.timer.currentTimeMillis(), userId });
+        AuthenticationCache.instance.userChanged(userId);
     }
 
     public void saveHomeUrl(int userId, String homeUrl) {
     	User old = getUser(userId);
         ejt.update("UPDATE users SET homeUrl=? WHERE id=?", new Object[] { homeUrl, userId });
+        userChanged(userId);
         User user = getUser(userId);
         AuditEventType.raiseChangedEvent(AuditEventType.TYPE_USER, old, user);
         //Update User In Session
@@ -250,6 +293,7 @@ public class UserDao extends AbstractDao<User> {
     public void saveMuted(int userId, boolean muted) {
     	User old = getUser(userId);
         ejt.update("UPDATE users SET muted=? WHERE id=?", new Object[] { boolToChar(muted), userId });
+        userChanged(userId);
         User user = getUser(userId);
         AuditEventType.raiseChangedEvent(AuditEventType.TYPE_USER, old, user);
         //Update User In Session
@@ -257,6 +301,24 @@ public class UserDao extends AbstractDao<User> {
     }
     
     //Overrides for use in AbstractBasicDao
+    @Override
+    protected void insert(User vo, String initiatorId) {
+        super.insert(vo, initiatorId);
+        userChanged(vo.getId());
+    }
+
+    @Override
+    protected void update(User vo, String initiatorId, String originalXid) {
+        super.update(vo, initiatorId, originalXid);
+        userChanged(vo.getId());
+    }
+
+    @Override
+    public void delete(User vo, String initiatorId) {
+        super.delete(vo, initiatorId);
+        userChanged(vo.getId());
+    }
+
 	/* (non-Javadoc)
 	 * @see com.serotonin.m2m2.db.dao.AbstractDao#voToObjectArray(com.serotonin.m2m2.vo.AbstractVO)
 	 */
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import com.infiniteautomation.mango.monitor.IntegerMonitor;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.rt.maint.work.WorkItem;
+
+/**
+ * The running writers of a write behind. Another writer is started for every spawnThreshold
+ * values queued up to maxInstances, and one is always kept running while a spill journal has
+ * values to replay.
+ *
+ * @author Terry Packer
+ */
+class WriteBehindInstances<W extends WorkItem> {
+    private final CopyOnWriteArrayList<W> instances = new CopyOnWriteArrayList<W>();
+    private final int spawnThreshold;
+    private final int maxInstances;
+    private final IntegerMonitor monitor;
+
+    WriteBehindInstances(int spawnThreshold, int maxInstances, IntegerMonitor monitor) {
+        this.spawnThreshold = spawnThreshold;
+        this.maxInstances = maxInstances;
+        this.monitor = monitor;
+    }
+
+    int size() {
+        return instances.size();
+    }
+
+    boolean isEmpty() {
+        return instances.isEmpty();
+    }
+
+    /**
+     * Start a writer if one is needed. The lock is only taken once a writer looks to be needed,
+     * so it is not taken for normal adds.
+     * @param queued values waiting in memory
+     * @param replayDue true if a journal has values to replay
+     * @param factory creates the writer
+     */
+    void spawn(int queued, boolean replayDue, Supplier<W> factory) {
+        if (!isNeeded(queued, replayDue))
+            return;
+        synchronized (instances) {
+            if (!isNeeded(queued, replayDue))
+                return;
+            W writer = factory.get();
+            add(writer);
+            try {
+                Common.backgroundProcessing.addWorkItem(writer);
+            }
+            catch (RejectedExecutionException ree) {
+                remove(writer);
+                throw ree;
+            }
+        }
+    }
+
+    /**
+     * Track a writer run on the calling thread
+     */
+    void add(W writer) {
+        instances.add(writer);
+        monitor.setValue(instances.size());
+    }
+
+    void remove(W writer) {
+        instances.remove(writer);
+        monitor.setValue(instances.size());
+    }
+
+    private boolean isNeeded(int queued, boolean replayDue) {
+        int size = instances.size();
+        if (size >= maxInstances)
+            return false;
+        return queued > size * spawnThreshold || (size == 0 && replayDue);
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.db.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.infiniteautomation.mango.monitor.IntegerMonitor;
+import com.infiniteautomation.mango.util.ShardedConcurrentQueue;
+import com.serotonin.m2m2.Common;
+
+/**
+ * The spill state shared by the point value write behinds: their journal, whether values are
+ * going to it and when the database should be tried again after a batch could not be written.
+ *
+ * Once values have been spilled new values follow them to the journal until it has been
+ * replayed, so values of a point are always written in the order they were added.
+ *
+ * @author Terry Packer
+ */
+class WriteBehindSpill<E> {
+    //After a batch could not be written, wait this long before trying the database again
+    private static final long DATABASE_RETRY_PERIOD = 10000;
+
+    private final PointValueSpillJournal<E> journal;
+    private final IntegerMonitor entriesMonitor;
+    //True while there are values in the journal, guarded by journal
+    private volatile boolean spilling;
+    private volatile long retryDatabaseAt;
+
+    /**
+     * @param journal
+     * @param entriesMonitor kept at the number of values in the journal, can be null
+     */
+    WriteBehindSpill(PointValueSpillJournal<E> journal, IntegerMonitor entriesMonitor) {
+        this.journal = journal;
+        this.entriesMonitor = entriesMonitor;
+        this.spilling = journal.size() > 0;
+        updateMonitor();
+    }
+
+    boolean isSpilling() {
+        return spilling;
+    }
+
+    int size() {
+        return journal.size();
+    }
+
+    boolean isDatabaseAvailable() {
+        return Common.timer.currentTimeMillis() >= retryDatabaseAt;
+    }
+
+    /**
+     * @return true if there are values in the journal and the database can be tried
+     */
+    boolean isReplayDue() {
+        return spilling && isDatabaseAvailable();
+    }
+
+    void spill(E e) {
+        synchronized (journal) {
+            journal.offer(e);
+            spilling = true;
+        }
+        updateMonitor();
+    }
+
+    void spill(List<E> entries) {
+        synchronized (journal) {
+            journal.offer(entries);
+            spilling = true;
+        }
+        updateMonitor();
+    }
+
+    /**
+     * Keep values that could not be written on disk until the database is tried again, those taken from the
+     * journal go back ahead of the rest
+     */
+    void keep(List<E> entries, boolean replay) {
+        retryDatabaseAt = Common.timer.currentTimeMillis() + DATABASE_RETRY_PERIOD;
+        synchronized (journal) {
+            if (replay)
+                journal.requeue(entries);
+            else
+                journal.offer(entries);
+            spilling = true;
+        }
+        updateMonitor();
+    }
+
+    /**
+     * Move everything waiting in memory to the journal
+     */
+    void spillAll(ShardedConcurrentQueue<E> queue, int max) {
+        List<E> entries = new ArrayList<E>(max);
+        while (queue.drainTo(entries, max) > 0) {
+            spill(entries);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Take the oldest values from the journal for replay
+     * @return number of values taken
+     */
+    int drain(List<E> into, int max) {
+        int count = 0;
+        synchronized (journal) {
+            E e;
+            while (count < max && (e = journal.poll()) != null) {
+                into.add(e);
+                count++;
+            }
+            if (count == 0)
+                spilling = false;
+        }
+        updateMonitor();
+        return count;
+    }
+
+    /**
+     * Force the journal to disk, called on shutdown
+     */
+    void save() {
+        synchronized (journal) {
+            journal.save();
+        }
+    }
+
+    private void updateMonitor() {
+        if (entriesMonitor != null)
+            entriesMonitor.setValue(journal.size());
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.db.upgrade;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.serotonin.m2m2.db.DatabaseProxy;
+
+/**
+ * Add the tables of the minute, hour and day point value rollups
+ */
+public class Upgrade20 extends DBUpgrade {
+
+    @Override
+    protected void upgrade() throws Exception {
+        Map<String, String[]> scripts = new HashMap<>();
+        scripts.put(DatabaseProxy.DatabaseType.DERBY.name(), createTables);
+        scripts.put(DatabaseProxy.DatabaseType.MYSQL.name(), mysqlCreateTables);
+        scripts.put(DatabaseProxy.DatabaseType.MSSQL.name(), mssqlCreateTables);
+        scripts.put(DatabaseProxy.DatabaseType.H2.name(), createTables);
+        scripts.put(DatabaseProxy.DatabaseType.POSTGRES.name(), postgresCreateTables);
+        runScript(scripts);
+    }
+
+    @Override
+    protected String getNewSchemaVersion() {
+        return "21";
+    }
+
+    private static final String[] createTables = {
+            "CREATE TABLE pointValueRollups (dataPointId int NOT NULL, periodType int NOT NULL, ts bigint NOT NULL, valueCount int NOT NULL, "
+                    + "minimumValue double, minimumTs bigint, maximumValue double, maximumTs bigint, average double, integral double, "
+                    + "sumValue double, firstValue double, firstTs bigint, lastValue double, lastTs bigint, delta double, "
+                    + "PRIMARY KEY (dataPointId, periodType, ts));",
+            "CREATE TABLE pointValueRollupsDirty (dataPointId int NOT NULL, fromTs bigint NOT NULL, toTs bigint NOT NULL);"
+    };
+    private static final String[] mysqlCreateTables = {
+            "CREATE TABLE pointValueRollups (dataPointId int NOT NULL, periodType int NOT NULL, ts bigint NOT NULL, valueCount int NOT NULL, "
+                    + "minimumValue double, minimumTs bigint, maximumValue double, maximumTs bigint, average double, integral double, "
+                    + "sumValue double, firstValue double, firstTs bigint, lastValue double, lastTs bigint, delta double, "
+                    + "PRIMARY KEY (dataPointId, periodType, ts)) engine=InnoDB;",
+            "CREATE TABLE pointValueRollupsDirty (dataPointId int NOT NULL, fromTs bigint NOT NULL, toTs bigint NOT NULL) engine=InnoDB;"
+    };
+    private static final String[] mssqlCreateTables = {
+            "CREATE TABLE pointValueRollups (dataPointId int NOT NULL, periodType int NOT NULL, ts bigint NOT NULL, valueCount int NOT NULL, "
+                    + "minimumValue float, minimumTs bigint, maximumValue float, maximumTs bigint, average float, integral float, "
+                    + "sumValue float, firstValue float, firstTs bigint, lastValue float, lastTs bigint, delta float, "
+                    + "PRIMARY KEY (dataPointId, periodType, ts));",
+            "CREATE TABLE pointValueRollupsDirty (dataPointId int NOT NULL, fromTs bigint NOT NULL, toTs bigint NOT NULL);"
+    };
+    private static final String[] postgresCreateTables = {
+            "CREATE TABLE pointValueRollups (dataPointId integer NOT NULL, periodType integer NOT NULL, ts bigint NOT NULL, valueCount integer NOT NULL, "
+                    + "minimumValue double precision, minimumTs bigint, maximumValue double precision, maximumTs bigint, average double precision, "
+                    + "integral double precision, sumValue double precision, firstValue double precision, firstTs bigint, lastValue double precision, "
+                    + "lastTs bigint, delta double precision, PRIMARY KEY (dataPointId, periodType, ts));",
+            "CREATE TABLE pointValueRollupsDirty (dataPointId integer NOT NULL, fromTs bigint NOT NULL, toTs bigint NOT NULL);"
+    };
+}
@@ -5,14 +5,21 @@
 package com.serotonin.m2m2.rt;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.dao.DataPointDao;
+import com.serotonin.m2m2.db.dao.PointValueDaoSQL;
 import com.serotonin.m2m2.module.DataSourceDefinition.StartPriority;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
 import com.serotonin.m2m2.util.timeout.HighPriorityTask;
+import com.serotonin.m2m2.vo.DataPointVO;
 import com.serotonin.m2m2.vo.dataSource.DataSourceVO;
 import com.serotonin.timer.RejectedTaskReason;
 
@@ -34,6 +41,9 @@ public class DataSourceGroupInitializer {
 	private List<DataSourceVO<?>> polling;
 	private boolean useMetrics;
 	private StartPriority startPriority;
+	//Preloaded points by data source id and initial cache values by point id, null if not preloaded
+	private Map<Integer, List<DataPointVO>> points;
+	private Map<Integer, List<PointValueTime>> latestValues;
 
 	/**
 	 * 
@@ -76,6 +86,8 @@ public class DataSourceGroupInitializer {
 		if(useMetrics)
 			LOG.info("Initializing " + this.group.size() + " " + this.startPriority.name() + " priority data sources in " + this.threadPoolSize + " threads.");
 		
+		preload();
+		
 		this.runningTasks = new ArrayList<DataSourceSubGroupInitializer>(this.threadPoolSize);
 		//Add and Start the tasks 
 		int endPos;
@@ -108,9 +120,62 @@ public class DataSourceGroupInitializer {
 		if(this.useMetrics)
 			LOG.info("Initialization of " + this.group.size() + " " + this.startPriority.name() +  " priority data sources took " + (Common.timer.currentTimeMillis() - startTs) + "ms");
 
+		//Release the preloaded points
+		this.points = null;
+		this.latestValues = null;
 		return polling;
 	}
 
+	/**
+	 * Load the points of the whole group with one query, deserializing them in parallel, and on
+	 * SQL databases the latest value of every point with one more query.  If this fails each
+	 * data source loads its own points.
+	 */
+	private void preload() {
+		List<Integer> ids = new ArrayList<Integer>(this.group.size());
+		for(DataSourceVO<?> vo : this.group)
+			ids.add(vo.getId());
+		
+		ForkJoinPool pool = new ForkJoinPool(this.threadPoolSize);
+		try{
+			long phaseStart = System.nanoTime();
+			this.points = DataPointDao.instance.getDataPointsForDataSourceStart(ids, pool);
+			if(this.useMetrics){
+				int count = 0;
+				for(List<DataPointVO> dsPoints : this.points.values())
+					count += dsPoints.size();
+				LOG.info("Loading " + count + " data points for " + this.startPriority.name() + " priority data sources took " + (System.nanoTime() - phaseStart)/1000000 + "ms");
+			}
+			
+			//NoSQL databases load their latest values per data source
+			if(Common.databaseProxy.getNoSQLProxy() == null){
+				phaseStart = System.nanoTime();
+				Map<Integer, PointValueTime> latest = new PointValueDaoSQL().getLatestPointValuesForDataSources(ids);
+				this.latestValues = new HashMap<Integer, List<PointValueTime>>(latest.size());
+				for(List<DataPointVO> dsPoints : this.points.values()) {
+					for(DataPointVO dp : dsPoints) {
+						//Larger caches are loaded per point
+						if(dp.getDefaultCacheSize() > 1)
+							continue;
+						List<PointValueTime> values = new ArrayList<PointValueTime>(1);
+						PointValueTime pvt = latest.get(dp.getId());
+						if(pvt != null && dp.getDefaultCacheSize() == 1)
+							values.add(pvt);
+						this.latestValues.put(dp.getId(), values);
+					}
+				}
+				if(this.useMetrics)
+					LOG.info("Loading " + latest.size() + " latest values for " + this.startPriority.name() + " priority data sources took " + (System.nanoTime() - phaseStart)/1000000 + "ms");
+			}
+		}catch(Exception e){
+			LOG.error("Failed to preload data points for " + this.startPriority.name() + " priority data sources, they will be loaded per data source.", e);
+			this.points = null;
+			this.latestValues = null;
+		}finally{
+			pool.shutdown();
+		}
+	}
+	
 	public void addPollingDataSources(List<DataSourceVO<?>> vos){
 		synchronized(this.polling){
 			this.polling.addAll(vos);
@@ -149,7 +214,8 @@ public class DataSourceGroupInitializer {
 				List<DataSourceVO<?>> polling = new ArrayList<DataSourceVO<?>>();
 				for(DataSourceVO<?> config : subgroup){
 					try{
-						if(Common.runtimeManager.initializeDataSourceStartup(config))
+						List<DataPointVO> dsPoints = parent.points == null ? null : parent.points.get(config.getId());
+						if(Common.runtimeManager.initializeDataSourceStartup(config, dsPoints, parent.latestValues))
 							polling.add(config);
 					}catch(Exception e){
 						//Ensure only 1 can fail at a time
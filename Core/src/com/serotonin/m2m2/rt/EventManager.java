@@ -11,6 +11,7 @@ import com.serotonin.m2m2.i18n.TranslatableMessage;
 import com.serotonin.m2m2.module.EventManagerListenerDefinition;
 import com.serotonin.m2m2.rt.event.EventInstance;
 import com.serotonin.m2m2.rt.event.UserEventListener;
+import com.serotonin.m2m2.rt.event.UserEventSummary;
 import com.serotonin.m2m2.rt.event.type.EventType;
 import com.serotonin.m2m2.vo.User;
 import com.serotonin.util.ILifecycle;
@@ -141,6 +142,14 @@ public interface EventManager extends ILifecycle{
     //
     List<EventInstance> getAllActiveUserEvents(int userId);
 
+    /**
+     * The counts of the same events as getAllActiveUserEvents by alarm level, kept as the events change.
+     * Read it again for each use rather than keeping it.
+     * @param userId
+     * @return
+     */
+    UserEventSummary getUserEventSummary(int userId);
+
     /**
      * To access all active events quickly
      * @param type
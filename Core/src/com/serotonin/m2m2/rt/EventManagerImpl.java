@@ -7,7 +7,6 @@ package com.serotonin.m2m2.rt;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -28,8 +27,11 @@ import com.serotonin.m2m2.i18n.TranslatableMessage;
 import com.serotonin.m2m2.module.EventManagerListenerDefinition;
 import com.serotonin.m2m2.rt.event.AlarmLevels;
 import com.serotonin.m2m2.rt.event.EventInstance;
+import com.serotonin.m2m2.rt.event.IndexedEventStore;
+import com.serotonin.m2m2.rt.event.RecentEventStore;
 import com.serotonin.m2m2.rt.event.UserEventCache;
 import com.serotonin.m2m2.rt.event.UserEventListener;
+import com.serotonin.m2m2.rt.event.UserEventSummary;
 import com.serotonin.m2m2.rt.event.handlers.EmailHandlerRT;
 import com.serotonin.m2m2.rt.event.handlers.EventHandlerRT;
 import com.serotonin.m2m2.rt.event.type.EventType;
@@ -39,6 +41,7 @@ import com.serotonin.m2m2.vo.User;
 import com.serotonin.m2m2.vo.event.AbstractEventHandlerVO;
 import com.serotonin.m2m2.vo.mailingList.MailingList;
 import com.serotonin.m2m2.vo.permission.Permissions;
+import com.serotonin.m2m2.web.dwr.longPoll.LongPollNotifier;
 import com.serotonin.timer.RejectedTaskReason;
 
 /**
@@ -48,13 +51,15 @@ public class EventManagerImpl implements EventManager {
 	private final Log log = LogFactory.getLog(EventManager.class);
 	private static final int RECENT_EVENT_PERIOD = 1000 * 60 * 10; // 10
 																	// minutes.
+	//Recent events are evicted a minute at a time
+	private static final int RECENT_EVENT_BUCKETS = 10;
 
 	private final List<EventManagerListenerDefinition> listeners = new CopyOnWriteArrayList<EventManagerListenerDefinition>();
 	private final List<UserEventListener> userEventListeners = new CopyOnWriteArrayList<UserEventListener>();
 	private final ReadWriteLock activeEventsLock = new ReentrantReadWriteLock();
-	private final List<EventInstance> activeEvents = new ArrayList<EventInstance>();
+	private final IndexedEventStore activeEvents = new IndexedEventStore();
 	private final ReadWriteLock recentEventsLock = new ReentrantReadWriteLock();
-	private final List<EventInstance> recentEvents = new ArrayList<EventInstance>();
+	private final RecentEventStore recentEvents = new RecentEventStore(RECENT_EVENT_PERIOD, RECENT_EVENT_BUCKETS);
 	private EventDao eventDao;
 	private UserDao userDao;
 	private long lastAlarmTimestamp = 0;
@@ -135,7 +140,7 @@ public class EventManagerImpl implements EventManager {
 		if (autoAckMessage == null)
 			setHandlers(evt);
 
-		// Get id from database by inserting event immediately.
+		// Get an id for the event, it is written in the background unless the event write behind is disabled.
 		//Check to see if we are Not Logging these
 		if(alarmLevel != AlarmLevels.DO_NOT_LOG){
 			eventDao.saveEvent(evt);
@@ -145,28 +150,21 @@ public class EventManagerImpl implements EventManager {
 		List<Integer> eventUserIds = new ArrayList<Integer>();
 		Set<String> emailUsers = new HashSet<String>();
 
-		for (User user : userDao.getActiveUsers()) {
-			// Do not create an event for this user if the event type says the
-			// user should be skipped.
-			if (type.excludeUser(user))
-				continue;
-
-			if (Permissions.hasEventTypePermission(user, type)) {
-				eventUserIds.add(user.getId());
-				if (user.getReceiveAlarmEmails() > AlarmLevels.IGNORE && alarmLevel >= user.getReceiveAlarmEmails() && !StringUtils.isEmpty(user.getEmail()))
-					emailUsers.add(user.getEmail());
-			
-				//Notify All User Event Listeners of the new event
-				if((alarmLevel != AlarmLevels.DO_NOT_LOG)&&(!evt.getEventType().getEventType().equals(EventType.EventTypeNames.AUDIT))){
-					for(UserEventListener l : this.userEventListeners){
-						if(l.getUserId() == user.getId()){
-							Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, true, false, false, false));
-						}
+		for (User user : getEventUsers(type)) {
+			eventUserIds.add(user.getId());
+			if (user.getReceiveAlarmEmails() > AlarmLevels.IGNORE && alarmLevel >= user.getReceiveAlarmEmails() && !StringUtils.isEmpty(user.getEmail()))
+				emailUsers.add(user.getEmail());
+		
+			//Notify All User Event Listeners of the new event
+			if((alarmLevel != AlarmLevels.DO_NOT_LOG)&&(!evt.getEventType().getEventType().equals(EventType.EventTypeNames.AUDIT))){
+				for(UserEventListener l : this.userEventListeners){
+					if(l.getUserId() == user.getId()){
+						Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, true, false, false, false));
 					}
-					//Add to the UserEventCache if the user has recently accessed their events
-					this.userEventCache.addEvent(user.getId(), evt);
 				}
-
+				//Add to the UserEventCache if the user has recently accessed their events
+				this.userEventCache.addEvent(user.getId(), evt);
+				LongPollNotifier.instance.userEventsChanged(user.getId());
 			}
 		}
 		
@@ -251,25 +249,13 @@ public class EventManagerImpl implements EventManager {
 	}
 
 	private boolean isRecent(EventType type, TranslatableMessage message) {
-		long cutoff = Common.timer.currentTimeMillis() - RECENT_EVENT_PERIOD;
-		
 		recentEventsLock.writeLock().lock();
 		try{
-			for (int i = recentEvents.size() - 1; i >= 0; i--) {
-				EventInstance evt = recentEvents.get(i);
-				// This method also purges the list, so we need to check if the
-				// event instance has expired or not.
-				if (cutoff > evt.getActiveTimestamp())
-					recentEvents.remove(i);
-				else if (evt.getEventType().equals(type)
-						&& evt.getMessage().equals(message))
-					return true;
-			}
+			// This method also evicts expired events
+			return recentEvents.isRecent(type, message, Common.timer.currentTimeMillis());
 		}finally{
 			recentEventsLock.writeLock().unlock();
 		}
-
-		return false;
 	}
 
 	public void returnToNormal(EventType type, long time) {
@@ -286,29 +272,24 @@ public class EventManagerImpl implements EventManager {
 		EventInstance evt = remove(type);
 		if(evt == null)
 			return;
-		List<User> activeUsers = userDao.getActiveUsers();
+		List<User> eventUsers = null;
 		// Loop in case of multiples
 		while (evt != null) {
-			for (User user : activeUsers) {
-				// Do not create an event for this user if the event type says the
-				// user should be skipped.
-				if (type.excludeUser(user))
-					continue;
-				
-				if(evt.getAlarmLevel() != AlarmLevels.DO_NOT_LOG){
-					if (Permissions.hasEventTypePermission(user, type)) {
-						//Notify All User Event Listeners of the new event
-						for(UserEventListener l : this.userEventListeners){
-							if((l.getUserId() == user.getId())){
-								Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, false, true, false, false));
-		
-							}
+			if(evt.getAlarmLevel() != AlarmLevels.DO_NOT_LOG){
+				if(eventUsers == null)
+					eventUsers = getEventUsers(type);
+				for (User user : eventUsers) {
+					//Notify All User Event Listeners of the new event
+					for(UserEventListener l : this.userEventListeners){
+						if((l.getUserId() == user.getId())){
+							Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, false, true, false, false));
+	
 						}
-						//Only alarms make it into the cache
-						this.userEventCache.updateEvent(user.getId(), evt);
 					}
+					//Only alarms make it into the cache
+					this.userEventCache.updateEvent(user.getId(), evt);
+					LongPollNotifier.instance.userEventsChanged(user.getId());
 				}
-				
 			}
 			
 			resetHighestAlarmLevel(time);
@@ -336,28 +317,19 @@ public class EventManagerImpl implements EventManager {
 	 * @param inactiveCause
 	 */
 	private void deactivateEvents(List<EventInstance> evts, long time, int inactiveCause) {
-		List<User> activeUsers = userDao.getActiveUsers();
-
 		List<Integer> eventIds = new ArrayList<Integer>();
 		for(EventInstance evt : evts){
 			if(evt.isActive())
 				eventIds.add(evt.getId());
 			evt.returnToNormal(time, inactiveCause);	
-			for (User user : activeUsers) {
-				// Do not create an event for this user if the event type says the
-				// user should be skipped.
-				if (evt.getEventType().excludeUser(user))
-					continue;
-
-				if (Permissions.hasEventTypePermission(user, evt.getEventType())) {
-					//Notify All User Event Listeners of the new event
-					for(UserEventListener l : this.userEventListeners){
-						if(l.getUserId() == user.getId()){
-							Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, false, false, true, false));
-						}
+			for (User user : getEventUsers(evt.getEventType())) {
+				//Notify All User Event Listeners of the new event
+				for(UserEventListener l : this.userEventListeners){
+					if(l.getUserId() == user.getId()){
+						Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, false, false, true, false));
 					}
-				
 				}
+				LongPollNotifier.instance.userEventsChanged(user.getId());
 			}
 			
 			// Call inactiveEvent handlers.
@@ -396,22 +368,15 @@ public class EventManagerImpl implements EventManager {
 		evt.setAcknowledgedTimestamp(time);
 		evt.setAlternateAckSource(alternateAckSource);
 
-		for (User user : userDao.getActiveUsers()) {
-			// Do not create an event for this user if the event type says the
-			// user should be skipped.
-			if (evt.getEventType().excludeUser(user))
-				continue;
-
-
-			if (Permissions.hasEventTypePermission(user, evt.getEventType())) {
-				//Notify All User Event Listeners of the new event
-				for(UserEventListener l : this.userEventListeners){
-					if(l.getUserId() == user.getId()){
-						Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, false, false, false, true));
-					}
+		for (User user : getEventUsers(evt.getEventType())) {
+			//Notify All User Event Listeners of the new event
+			for(UserEventListener l : this.userEventListeners){
+				if(l.getUserId() == user.getId()){
+					Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(user, l, evt, false, false, false, true));
 				}
-				this.userEventCache.removeEvent(user.getId(), evt);
 			}
+			this.userEventCache.removeEvent(user.getId(), evt);
+			LongPollNotifier.instance.userEventsChanged(user.getId());
 		}
 		
 		return true;
@@ -483,7 +448,9 @@ public class EventManagerImpl implements EventManager {
 		
 		userEventCache.purgeAllEvents();
 		
-		return eventDao.purgeAllEvents();
+		int count = eventDao.purgeAllEvents();
+		LongPollNotifier.instance.allUserEventsChanged();
+		return count;
 	}
 	
 	/**
@@ -495,31 +462,23 @@ public class EventManagerImpl implements EventManager {
 
 		activeEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if(e.getActiveTimestamp() < time)
-					it.remove();
-			}
+			activeEvents.removeIf(e -> e.getActiveTimestamp() < time);
 		}finally{
 			activeEventsLock.writeLock().unlock();
 		}
 		
 		recentEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = recentEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if(e.getActiveTimestamp() < time)
-					it.remove();
-			}
+			recentEvents.removeIf(e -> e.getActiveTimestamp() < time);
 		}finally{
 			recentEventsLock.writeLock().unlock();
 		}
 		
 		userEventCache.purgeEventsBefore(time);
 		
-		return eventDao.purgeEventsBefore(time);
+		int count = eventDao.purgeEventsBefore(time);
+		LongPollNotifier.instance.allUserEventsChanged();
+		return count;
 	}
 	
 	/**
@@ -532,31 +491,23 @@ public class EventManagerImpl implements EventManager {
 
 		activeEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if((e.getActiveTimestamp() < time)&&(e.getEventType().getEventType().equals(typeName)))
-					it.remove();
-			}
+			activeEvents.removeIf(e -> (e.getActiveTimestamp() < time)&&(e.getEventType().getEventType().equals(typeName)));
 		}finally{
 			activeEventsLock.writeLock().unlock();
 		}
 		
 		recentEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = recentEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if((e.getActiveTimestamp() < time)&&(e.getEventType().getEventType().equals(typeName)))
-					it.remove();
-			}
+			recentEvents.removeIf(e -> (e.getActiveTimestamp() < time)&&(e.getEventType().getEventType().equals(typeName)));
 		}finally{
 			recentEventsLock.writeLock().unlock();
 		}
 		
 		userEventCache.purgeEventsBefore(time, typeName);
 		
-		return eventDao.purgeEventsBefore(time, typeName);
+		int count = eventDao.purgeEventsBefore(time, typeName);
+		LongPollNotifier.instance.allUserEventsChanged();
+		return count;
 	}
 	
 	/**
@@ -569,31 +520,23 @@ public class EventManagerImpl implements EventManager {
 
 		activeEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if((e.getActiveTimestamp() < time)&&(e.getAlarmLevel() == alarmLevel))
-					it.remove();
-			}
+			activeEvents.removeIf(e -> (e.getActiveTimestamp() < time)&&(e.getAlarmLevel() == alarmLevel));
 		}finally{
 			activeEventsLock.writeLock().unlock();
 		}
 		
 		recentEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = recentEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if((e.getActiveTimestamp() < time)&&(e.getAlarmLevel() == alarmLevel))
-					it.remove();
-			}
+			recentEvents.removeIf(e -> (e.getActiveTimestamp() < time)&&(e.getAlarmLevel() == alarmLevel));
 		}finally{
 			recentEventsLock.writeLock().unlock();
 		}
 
 		userEventCache.purgeEventsBefore(time, alarmLevel);
 		
-		return eventDao.purgeEventsBefore(time, alarmLevel);
+		int count = eventDao.purgeEventsBefore(time, alarmLevel);
+		LongPollNotifier.instance.allUserEventsChanged();
+		return count;
 	}
 	
 	//
@@ -602,17 +545,10 @@ public class EventManagerImpl implements EventManager {
 	//
 	public void cancelEventsForDataPoint(int dataPointId) {
 
-		List<EventInstance> dataPointEvents = new ArrayList<EventInstance>();
+		List<EventInstance> dataPointEvents;
 		activeEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if (e.getEventType().getDataPointId() == dataPointId){
-					it.remove();
-					dataPointEvents.add(e);
-				}
-			}
+			dataPointEvents = activeEvents.removeForDataPoint(dataPointId);
 		}finally{
 			activeEventsLock.writeLock().unlock();
 		}
@@ -621,12 +557,7 @@ public class EventManagerImpl implements EventManager {
 
 		recentEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = recentEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if (e.getEventType().getDataPointId() == dataPointId)
-					it.remove();
-			}
+			recentEvents.removeForDataPoint(dataPointId);
 		}finally{
 			recentEventsLock.writeLock().unlock();
 		}
@@ -638,17 +569,10 @@ public class EventManagerImpl implements EventManager {
 	 */
 	public void cancelEventsForDataSource(int dataSourceId) {
 
-		List<EventInstance> dataSourceEvents = new ArrayList<EventInstance>();
+		List<EventInstance> dataSourceEvents;
 		activeEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if(e.getEventType().getDataSourceId() == dataSourceId){
-					it.remove();
-					dataSourceEvents.add(e);
-				}
-			}
+			dataSourceEvents = activeEvents.removeForDataSource(dataSourceId);
 		}finally{
 			activeEventsLock.writeLock().unlock();
 		}
@@ -657,12 +581,7 @@ public class EventManagerImpl implements EventManager {
 
 		recentEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = recentEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if(e.getEventType().getDataSourceId() == dataSourceId)
-					it.remove();
-			}
+			recentEvents.removeForDataSource(dataSourceId);
 		}finally{
 			recentEventsLock.writeLock().unlock();
 		}
@@ -674,17 +593,10 @@ public class EventManagerImpl implements EventManager {
 	 */
 	public void cancelEventsForPublisher(int publisherId) {
 
-		List<EventInstance> publisherEvents = new ArrayList<EventInstance>();
+		List<EventInstance> publisherEvents;
 		activeEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if(e.getEventType().getPublisherId() == publisherId){
-					it.remove();
-					publisherEvents.add(e);
-				}
-			}
+			publisherEvents = activeEvents.removeForPublisher(publisherId);
 		}finally{
 			activeEventsLock.writeLock().unlock();
 		}
@@ -693,12 +605,7 @@ public class EventManagerImpl implements EventManager {
 
 		recentEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = recentEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if(e.getEventType().getPublisherId() == publisherId)
-					it.remove();
-			}
+			recentEvents.removeForPublisher(publisherId);
 		}finally{
 			recentEventsLock.writeLock().unlock();
 		}
@@ -706,20 +613,13 @@ public class EventManagerImpl implements EventManager {
 
 	private void resetHighestAlarmLevel(long time) {
 		
-		int max = 0;
+		int max;
 		activeEventsLock.readLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if (e.getAlarmLevel() > max)
-					max = e.getAlarmLevel();
-			}
+			max = activeEvents.getHighestAlarmLevel();
 		}finally{
 			activeEventsLock.readLock().unlock();
 		}
-		
-		
 
 		if (max > highestActiveAlarmLevel) {
 			int oldValue = highestActiveAlarmLevel;
@@ -819,6 +719,10 @@ public class EventManagerImpl implements EventManager {
 		return this.userEventCache.getAllEvents(userId);
 	}
 
+	public UserEventSummary getUserEventSummary(int userId){
+		return this.userEventCache.getSummary(userId);
+	}
+
 	
 	//
 	//
@@ -829,21 +733,12 @@ public class EventManagerImpl implements EventManager {
      * Gets an event from the activeEvents list/cache by its id
      */
     private EventInstance getById(int id) {
-        EventInstance e;
-        
         activeEventsLock.readLock().lock();
         try{
-            ListIterator<EventInstance> it = activeEvents.listIterator();
-            while(it.hasNext()){
-                e = it.next();
-                if (e.getId() == id)
-                    return e;
-            }
+            return activeEvents.getById(id);
         }finally{
             activeEventsLock.readLock().unlock();
         }
-        
-        return null;
     }
 	
 	/**
@@ -854,31 +749,19 @@ public class EventManagerImpl implements EventManager {
 		
 		activeEventsLock.readLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if (e.getEventType().equals(type))
-					return e;
-			}
+			return activeEvents.get(type);
 		}finally{
 			activeEventsLock.readLock().unlock();
 		}
-		
-		return null;
 	}
 
 	private List<EventInstance> getAll(EventType type) {
-		List<EventInstance> result = new ArrayList<EventInstance>();
 		activeEventsLock.readLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				result.add(it.next());
-			}
+			return activeEvents.getAll(type);
 		}finally{
 			activeEventsLock.readLock().unlock();
 		}
-		return result;
 	}
 
 	/**
@@ -887,17 +770,12 @@ public class EventManagerImpl implements EventManager {
 	 * @return
 	 */
 	public List<EventInstance> getAllActive() {
-		List<EventInstance> result = new ArrayList<EventInstance>();
 		activeEventsLock.readLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				result.add(it.next());
-			}
+			return activeEvents.getAll();
 		}finally{
 			activeEventsLock.readLock().unlock();
 		}
-		return result;
 	}
 	
 	/**
@@ -910,19 +788,26 @@ public class EventManagerImpl implements EventManager {
 	private EventInstance remove(EventType type) {
 		activeEventsLock.writeLock().lock();
 		try{
-			ListIterator<EventInstance> it = activeEvents.listIterator();
-			while(it.hasNext()){
-				EventInstance e = it.next();
-				if (e.getEventType().equals(type)) {
-					it.remove();
-					return e;
-				}
-			}
+			return activeEvents.remove(type);
 		}finally{
 			activeEventsLock.writeLock().unlock();
 		}
+	}
 
-		return null;
+	/**
+	 * The active users that the event type does not exclude and that have permission for it
+	 * @param type
+	 * @return
+	 */
+	private List<User> getEventUsers(EventType type) {
+		List<User> users = new ArrayList<User>();
+		for (User user : userDao.getCachedActiveUsers()) {
+			// Do not create an event for this user if the event type says the
+			// user should be skipped.
+			if (!type.excludeUser(user))
+				users.add(user);
+		}
+		return Permissions.getUsersWithEventTypePermission(users, type);
 	}
 
 	private void setHandlers(EventInstance evt) {
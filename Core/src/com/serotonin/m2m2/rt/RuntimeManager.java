@@ -5,6 +5,7 @@
 package com.serotonin.m2m2.rt;
 
 import java.util.List;
+import java.util.Map;
 
 import com.serotonin.m2m2.rt.dataImage.DataPointListener;
 import com.serotonin.m2m2.rt.dataImage.DataPointRT;
@@ -63,6 +64,16 @@ public interface RuntimeManager extends ILifecycle{
      * @return
      */
     boolean initializeDataSourceStartup(DataSourceVO<?> vo);
+
+    /**
+     * Initialize a data source with points already loaded (only to be used at system startup)
+     * @param vo
+     * @param dataSourcePoints - all points of the data source
+     * @param latestValues - initial cache values by point id, points without an entry load their own cache.
+     *  If null the latest values are loaded for the data source.
+     * @return
+     */
+    boolean initializeDataSourceStartup(DataSourceVO<?> vo, List<DataPointVO> dataSourcePoints, Map<Integer, List<PointValueTime>> latestValues);
     
     /**
      * Stop a data source (only to be used at system shutdown)
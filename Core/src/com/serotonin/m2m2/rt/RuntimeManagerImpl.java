@@ -345,7 +345,20 @@ public class RuntimeManagerImpl implements RuntimeManager{
      * @return
      */
     @Override
-    public boolean initializeDataSourceStartup(DataSourceVO<?> vo) {    	
+    public boolean initializeDataSourceStartup(DataSourceVO<?> vo) {
+        return initializeDataSourceStartup(vo, null, null);
+    }
+
+    /**
+     * Only to be used at startup as the synchronization has been reduced for performance
+     * @param vo
+     * @param dataSourcePoints - null to load them
+     * @param latestValues
+     * @return
+     */
+    @Override
+    public boolean initializeDataSourceStartup(DataSourceVO<?> vo, List<DataPointVO> dataSourcePoints,
+            Map<Integer, List<PointValueTime>> latestValues) {
     	long startTime = System.nanoTime();
 
         // If the data source is already running, just quit.
@@ -365,11 +378,14 @@ public class RuntimeManagerImpl implements RuntimeManager{
         }
 
         // Add the enabled points to the data source.
-        List<DataPointVO> dataSourcePoints = DataPointDao.instance.getDataPointsForDataSourceStart(vo.getId());
+        if (dataSourcePoints == null)
+            dataSourcePoints = DataPointDao.instance.getDataPointsForDataSourceStart(vo.getId());
         
         Map<Integer, List<PointValueTime>> latestValuesMap = null;
         PointValueDao pvDao = Common.databaseProxy.newPointValueDao();
-        if (pvDao instanceof EnhancedPointValueDao) {
+        if (latestValues != null) {
+            latestValuesMap = latestValues;
+        } else if (pvDao instanceof EnhancedPointValueDao) {
             
             // Find the maximum cache size for all point in the datasource
             // This number of values will be retrieved for all points in the datasource
@@ -392,7 +408,8 @@ public class RuntimeManagerImpl implements RuntimeManager{
                 List<PointValueTime> latestValuesForPoint = null;
                 if (latestValuesMap != null) {
                     latestValuesForPoint = latestValuesMap.get(dataPoint.getId());
-                    if (latestValuesForPoint == null) {
+                    //Points left out of preloaded values load their own cache
+                    if (latestValuesForPoint == null && latestValues == null) {
                         latestValuesForPoint = new ArrayList<>();
                     }
                 }
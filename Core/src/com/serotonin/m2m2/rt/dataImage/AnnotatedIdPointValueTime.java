@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.i18n.Translations;
+import com.serotonin.m2m2.rt.dataImage.types.DataValue;
+
+/**
+ * An annotated point value of a multi point query
+ *
+ * @see AnnotatedPointValueTime
+ * @author Terry Packer
+ */
+public class AnnotatedIdPointValueTime extends IdPointValueTime {
+    private static final long serialVersionUID = 1L;
+
+    private final TranslatableMessage sourceMessage;
+
+    public AnnotatedIdPointValueTime(int dataPointId, DataValue value, long time, TranslatableMessage sourceMessage) {
+        super(dataPointId, value, time);
+        this.sourceMessage = sourceMessage;
+    }
+
+    @Override
+    public boolean isAnnotated() {
+        return sourceMessage != null;
+    }
+
+    public TranslatableMessage getSourceMessage() {
+        return sourceMessage;
+    }
+
+    public String getAnnotation(Translations translations) {
+        return sourceMessage.translate(translations);
+    }
+}
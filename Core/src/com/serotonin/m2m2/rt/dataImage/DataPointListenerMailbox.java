@@ -0,0 +1,401 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.infiniteautomation.mango.monitor.AtomicIntegerMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitorOwner;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.maint.work.WorkItem;
+import com.serotonin.m2m2.util.timeout.TimeoutClient;
+import com.serotonin.m2m2.util.timeout.TimeoutTask;
+import com.serotonin.timer.RejectedTaskReason;
+import com.serotonin.timer.Task;
+
+/**
+ * Pending notifications from one data point to one of its listeners.
+ *
+ * At most one work item per mailbox is queued at a time, it delivers the pending notifications
+ * in order and in batches.  When the mailbox is full and another update arrives the oldest update
+ * is dropped and the next notification takes its old value, so the listener still sees one
+ * pointChanged across the values it missed.  If the dropped update was logged the next notification
+ * also takes its value to deliver to pointLogged first, so no logged value is missed.  Notifications
+ * for sets and backdates are never dropped.
+ *
+ * The queue depth of all mailboxes of listeners with the same name is kept in one monitor, it is
+ * removed once the last of those mailboxes is closed.
+ *
+ * @author Terry Packer
+ */
+class DataPointListenerMailbox implements WorkItem {
+
+    private static final Log LOG = LogFactory.getLog(DataPointListenerMailbox.class);
+
+    enum OverflowPolicy {
+        /**
+         * Drop the oldest plain update once the mailbox is full
+         */
+        DROP_OLDEST,
+        /**
+         * Never drop anything, the mailbox grows without bound
+         */
+        UNBOUNDED
+    }
+
+    public static final String PENDING_MONITOR_ID = "com.serotonin.m2m2.rt.dataImage.DataPointListenerMailbox.PENDING";
+    public static final String DROPPED_MONITOR_ID = "com.serotonin.m2m2.rt.dataImage.DataPointListenerMailbox.DROPPED";
+    public static final String LISTENER_MONITOR_ID_PREFIX = "com.serotonin.m2m2.rt.dataImage.DataPointListenerMailbox.LISTENER.";
+
+    private static final int MAILBOX_SIZE = Common.envProps.getInt("runtime.pointListener.mailboxSize", 10000);
+    private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.valueOf(
+            Common.envProps.getString("runtime.pointListener.overflowPolicy", OverflowPolicy.DROP_OLDEST.name()));
+    private static final int BATCH_SIZE = Common.envProps.getInt("runtime.pointListener.batchSize", 100);
+    //A listener's queue depth is only published as a monitor once it has been this deep
+    private static final int MONITOR_THRESHOLD = Common.envProps.getInt("runtime.pointListener.monitorThreshold", 100);
+    //Delay before delivery is tried again when the task was rejected (ms)
+    private static final long RETRY_DELAY = Common.envProps.getLong("runtime.pointListener.retryDelay", 1000);
+
+    private static final ValueMonitorOwner valueOwner = new ValueMonitorOwner() {
+        @Override
+        public void reset(String id) {
+            //Counts are kept exactly by the mailboxes
+        }
+    };
+    private static final AtomicIntegerMonitor PENDING_MONITOR = new AtomicIntegerMonitor(PENDING_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.LISTENER_PENDING"), valueOwner);
+    private static final AtomicIntegerMonitor DROPPED_MONITOR = new AtomicIntegerMonitor(DROPPED_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.LISTENER_DROPPED"), valueOwner);
+    //Queue depth by listener name, registered as monitors once they pass the threshold and removed with the last mailbox
+    private static final ConcurrentHashMap<String, ListenerDepth> LISTENER_DEPTHS = new ConcurrentHashMap<String, ListenerDepth>();
+
+    static {
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(PENDING_MONITOR);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(DROPPED_MONITOR);
+    }
+
+    private final String sourceXid;
+    private final DataPointListener listener;
+    private final String taskId;
+    private final ListenerDepth depth;
+    //Guarded by this
+    private final ArrayDeque<Notification> pending = new ArrayDeque<Notification>();
+    private int pendingUpdates;
+    private boolean scheduled;
+    private boolean closed;
+
+    private final TimeoutClient retryClient = new TimeoutClient() {
+        @Override
+        public void scheduleTimeout(long fireTime) {
+            try {
+                schedule();
+            }
+            catch (RejectedExecutionException e) {
+                LOG.error("Unable to deliver notifications from " + sourceXid + " to " + listener.getListenerName(), e);
+            }
+        }
+
+        @Override
+        public void rejected(RejectedTaskReason reason) {
+            super.rejected(reason);
+            //Try again with the next notification
+            synchronized (DataPointListenerMailbox.this) {
+                scheduled = false;
+            }
+        }
+
+        @Override
+        public String getThreadName() {
+            return "Point event retry for: " + sourceXid + ", telling: " + listener.getListenerName();
+        }
+    };
+
+    DataPointListenerMailbox(String sourceXid, DataPointListener listener) {
+        this.sourceXid = sourceXid;
+        this.listener = listener;
+        this.taskId = "EN-" + sourceXid + "-" + listener.hashCode();
+        this.depth = ListenerDepth.acquire(listener.getListenerName());
+    }
+
+    DataPointListener getListener() {
+        return listener;
+    }
+
+    /**
+     * The listener has been removed or the point stopped, notifications already queued are still delivered
+     */
+    void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        ListenerDepth.release(depth);
+    }
+
+    /**
+     * Queue a notification and make sure it will be delivered
+     */
+    void offer(PointValueTime oldValue, PointValueTime newValue, boolean set, boolean backdate, boolean logged, boolean updated) {
+        Notification n = new Notification(oldValue, newValue, set, backdate, logged, updated);
+        synchronized (this) {
+            if (n.isCoalescable()) {
+                if (OVERFLOW_POLICY == OverflowPolicy.DROP_OLDEST && pendingUpdates > 0 && pending.size() >= MAILBOX_SIZE)
+                    dropOldestUpdate(n);
+                pendingUpdates++;
+            }
+            pending.add(n);
+            depth.change(1);
+            PENDING_MONITOR.increment();
+
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Remove the oldest update, the next update takes its old value and its logged values.  Called while holding the lock.
+     * @param incoming the update about to be queued
+     */
+    private void dropOldestUpdate(Notification incoming) {
+        Iterator<Notification> it = pending.iterator();
+        while (it.hasNext()) {
+            Notification n = it.next();
+            if (n.isCoalescable()) {
+                it.remove();
+                pendingUpdates--;
+                depth.change(-1);
+                PENDING_MONITOR.decrement();
+                DROPPED_MONITOR.increment();
+                while (it.hasNext()) {
+                    Notification next = it.next();
+                    if (next.updated) {
+                        next.takeOver(n);
+                        return;
+                    }
+                }
+                incoming.takeOver(n);
+                return;
+            }
+        }
+    }
+
+    private void schedule() {
+        try {
+            Common.backgroundProcessing.addWorkItem(this);
+        }
+        catch (RejectedExecutionException e) {
+            synchronized (this) {
+                scheduled = false;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void execute() {
+        Notification[] batch = new Notification[BATCH_SIZE];
+        int count = 0;
+        boolean more;
+        synchronized (this) {
+            Notification n;
+            while (count < BATCH_SIZE && (n = pending.poll()) != null) {
+                if (n.isCoalescable())
+                    pendingUpdates--;
+                batch[count++] = n;
+            }
+            depth.change(-count);
+            PENDING_MONITOR.addValue(-count);
+            more = !pending.isEmpty();
+            if (!more)
+                scheduled = false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            try {
+                batch[i].deliver(listener);
+            }
+            catch (Exception e) {
+                LOG.error("Error notifying " + listener.getListenerName() + " of a value from " + sourceXid, e);
+            }
+        }
+
+        //Let other work run before the next batch
+        if (more)
+            schedule();
+    }
+
+    @Override
+    public int getPriority() {
+        return WorkItem.PRIORITY_MEDIUM;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Point event for: " + sourceXid + ", telling: " + listener.getListenerName();
+    }
+
+    @Override
+    public String getTaskId() {
+        //So there is one task for each listener
+        return taskId;
+    }
+
+    @Override
+    public int getQueueSize() {
+        //Only ever one queued at a time
+        return Task.UNLIMITED_QUEUE_SIZE;
+    }
+
+    @Override
+    public void rejected(RejectedTaskReason reason) {
+        //Stay scheduled and try again after a while, tracking/logging is handled by the WorkItemRunnable
+        try {
+            new TimeoutTask(RETRY_DELAY, retryClient);
+        }
+        catch (RuntimeException e) {
+            //Try again with the next notification
+            synchronized (this) {
+                scheduled = false;
+            }
+            throw e;
+        }
+    }
+
+    static class Notification {
+        private PointValueTime oldValue;
+        private final PointValueTime newValue;
+        private final boolean set;
+        private final boolean backdate;
+        private final boolean logged;
+        private final boolean updated;
+        //Values of dropped updates that were logged, delivered to pointLogged first
+        private List<PointValueTime> loggedBefore;
+
+        Notification(PointValueTime oldValue, PointValueTime newValue, boolean set, boolean backdate, boolean logged,
+                boolean updated) {
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+            this.set = set;
+            this.backdate = backdate;
+            this.logged = logged;
+            this.updated = updated;
+        }
+
+        /**
+         * Only pointUpdated, possibly pointChanged and pointLogged, so can be coalesced with a later update
+         */
+        boolean isCoalescable() {
+            return updated && !set && !backdate;
+        }
+
+        /**
+         * Stand in for an earlier update that is dropped, keeping its old value and what it logged
+         * @param dropped
+         */
+        void takeOver(Notification dropped) {
+            oldValue = dropped.oldValue;
+            if (dropped.loggedBefore == null && !dropped.logged)
+                return;
+            List<PointValueTime> values = new ArrayList<PointValueTime>();
+            if (dropped.loggedBefore != null)
+                values.addAll(dropped.loggedBefore);
+            if (dropped.logged)
+                values.add(dropped.newValue);
+            if (loggedBefore != null)
+                values.addAll(loggedBefore);
+            loggedBefore = values;
+        }
+
+        void deliver(DataPointListener listener) {
+            if (loggedBefore != null)
+                for (PointValueTime value : loggedBefore)
+                    listener.pointLogged(value);
+
+            if (backdate)
+                listener.pointBackdated(newValue);
+            else if (updated) {
+                // Updated
+                listener.pointUpdated(newValue);
+
+                // Fire if the point has changed.
+                if (!PointValueTime.equalValues(oldValue, newValue))
+                    listener.pointChanged(oldValue, newValue);
+
+                // Fire if the point was set.
+                if (set)
+                    listener.pointSet(oldValue, newValue);
+            }
+
+            //Was this value actually logged
+            if (logged)
+                listener.pointLogged(newValue);
+        }
+    }
+
+    /**
+     * Notifications waiting for all listeners with the same name
+     */
+    private static class ListenerDepth {
+        private final String listenerName;
+        private final AtomicIntegerMonitor monitor;
+        private volatile boolean registered;
+        //Open mailboxes sharing this depth, guarded by LISTENER_DEPTHS
+        private int mailboxes;
+        private boolean removed;
+
+        ListenerDepth(String listenerName) {
+            this.listenerName = listenerName;
+            monitor = new AtomicIntegerMonitor(LISTENER_MONITOR_ID_PREFIX + listenerName,
+                    new TranslatableMessage("internal.monitor.LISTENER_QUEUE_DEPTH", listenerName), valueOwner);
+        }
+
+        static ListenerDepth acquire(String listenerName) {
+            return LISTENER_DEPTHS.compute(listenerName, (name, d) -> {
+                if (d == null)
+                    d = new ListenerDepth(name);
+                d.mailboxes++;
+                return d;
+            });
+        }
+
+        static void release(ListenerDepth depth) {
+            LISTENER_DEPTHS.computeIfPresent(depth.listenerName, (name, d) -> {
+                if (d != depth || --d.mailboxes > 0)
+                    return d;
+                synchronized (d) {
+                    d.removed = true;
+                    if (d.registered)
+                        Common.MONITORED_VALUES.removeStatMonitor(d.monitor.getId());
+                }
+                return null;
+            });
+        }
+
+        void change(int delta) {
+            monitor.addValue(delta);
+            if (!registered && delta > 0 && monitor.intValue() >= MONITOR_THRESHOLD) {
+                synchronized (this) {
+                    //Not after the last mailbox was closed, it would never be removed
+                    if (!registered && !removed) {
+                        registered = true;
+                        Common.MONITORED_VALUES.addIfMissingStatMonitor(monitor);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -27,7 +27,6 @@ import com.serotonin.m2m2.rt.dataImage.types.MultistateValue;
 import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
 import com.serotonin.m2m2.rt.dataSource.PointLocatorRT;
 import com.serotonin.m2m2.rt.event.detectors.PointEventDetectorRT;
-import com.serotonin.m2m2.rt.maint.work.WorkItem;
 import com.serotonin.m2m2.rt.script.AbstractPointWrapper;
 import com.serotonin.m2m2.rt.script.DataPointWrapper;
 import com.serotonin.m2m2.util.timeout.TimeoutClient;
@@ -41,8 +40,6 @@ import com.serotonin.m2m2.vo.dataSource.DataSourceVO;
 import com.serotonin.m2m2.vo.event.detector.AbstractPointEventDetectorVO;
 import com.serotonin.timer.AbstractTimer;
 import com.serotonin.timer.FixedRateTrigger;
-import com.serotonin.timer.RejectedTaskReason;
-import com.serotonin.timer.Task;
 import com.serotonin.timer.TimerTask;
 import com.serotonin.util.ILifecycle;
 
@@ -60,6 +57,8 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
     // Runtime data.
     private volatile PointValueTime pointValue;
     private final PointValueCache valueCache;
+    //Values of the latest statistics period asked for by scripts, null if the cached values are not all logged
+    private final PointValueWindow window;
     private List<PointEventDetectorRT<?>> detectors;
     private final Map<String, Object> attributes = new HashMap<String, Object>();
 
@@ -79,6 +78,10 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
      */
     private double toleranceOrigin;
 
+    //Listener mailboxes, replaced when the listeners change
+    private volatile ListenerMailboxes mailboxes;
+    private final Object mailboxLock = new Object();
+
     public DataPointRT(DataPointVO vo, PointLocatorRT<?> pointLocator, DataSourceVO<?> dsVo, List<PointValueTime> initialCache) {
         this.vo = vo;
         this.dsVo = dsVo;
@@ -90,6 +93,12 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
         }
         if(vo.getIntervalLoggingType() == DataPointVO.IntervalLoggingTypes.AVERAGE)
         	averagingValues = new ArrayList<IValueTime>();
+        int loggingType = vo.getLoggingType();
+        if (PointValueWindow.ENABLED && (loggingType == DataPointVO.LoggingTypes.ALL
+                || loggingType == DataPointVO.LoggingTypes.ON_CHANGE || loggingType == DataPointVO.LoggingTypes.ON_TS_CHANGE))
+            window = new PointValueWindow(this);
+        else
+            window = null;
     }
 
     /**
@@ -138,20 +147,18 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
     //
     @Override
     public PointValueTime getPointValueBefore(long time) {
-        for (PointValueTime pvt : valueCache.getCacheContents()) {
-            if (pvt.getTime() < time)
-                return pvt;
-        }
+        PointValueTime pvt = valueCache.getPointValueBefore(time);
+        if (pvt != null)
+            return pvt;
 
         return Common.databaseProxy.newPointValueDao().getPointValueBefore(vo.getId(), time);
     }
 
     @Override
     public PointValueTime getPointValueAt(long time) {
-        for (PointValueTime pvt : valueCache.getCacheContents()) {
-            if (pvt.getTime() == time)
-                return pvt;
-        }
+        PointValueTime pvt = valueCache.getPointValueAt(time);
+        if (pvt != null)
+            return pvt;
 
         return Common.databaseProxy.newPointValueDao().getPointValueAt(vo.getId(), time);
     }
@@ -163,22 +170,15 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
     	PointValueTime after = Common.databaseProxy.newPointValueDao().getPointValueAfter(vo.getId(), time);
         
     	//Check it with the cache
+    	PointValueTime pvt;
     	if(after != null){
-    		List<PointValueTime> pvts = valueCache.getCacheContents();
     		//Check to see if we have a value closer in cache
-	        for (int i = pvts.size() - 1; i >= 0; i--) {
-	            PointValueTime pvt = pvts.get(i);
-	            if (pvt.getTime() < after.getTime())
-	                return pvt;
-	        }
+    		pvt = valueCache.getOldestPointValueBetween(Long.MIN_VALUE, after.getTime());
     	}else{
-    		List<PointValueTime> pvts = valueCache.getCacheContents();
-	        for (int i = pvts.size() - 1; i >= 0; i--) {
-	            PointValueTime pvt = pvts.get(i);
-	            if (pvt.getTime() >= time)
-	                return pvt;
-	        }
+    		pvt = valueCache.getOldestPointValueBetween(time, Long.MAX_VALUE);
     	}
+    	if(pvt != null)
+    		return pvt;
     	
         return after;
     }
@@ -191,17 +191,23 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
     public List<PointValueTime> getLatestPointValues(int limit) {
         return valueCache.getLatestPointValues(limit);
     }
+
+    /**
+     * @param index 0 for the latest value
+     * @return the value or null if there are not that many values
+     */
+    public PointValueTime getLatestPointValue(int index) {
+        return valueCache.getLatestPointValue(index);
+    }
     
     @Override
     public List<PointValueTime> getPointValues(long since) {
         List<PointValueTime> result = Common.databaseProxy.newPointValueDao().getPointValues(vo.getId(), since);
 
-        for (PointValueTime pvt : valueCache.getCacheContents()) {
-            if (pvt.getTime() >= since) {
-                int index = Collections.binarySearch(result, pvt, pvtTimeComparator);
-                if (index < 0)
-                    result.add(-index - 1, pvt);
-            }
+        for (PointValueTime pvt : valueCache.getPointValuesBetween(since, Long.MAX_VALUE)) {
+            int index = Collections.binarySearch(result, pvt, pvtTimeComparator);
+            if (index < 0)
+                result.add(-index - 1, pvt);
         }
 
         return result;
@@ -211,17 +217,30 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
     public List<PointValueTime> getPointValuesBetween(long from, long to) {
         List<PointValueTime> result = Common.databaseProxy.newPointValueDao().getPointValuesBetween(vo.getId(), from, to);
 
-        for (PointValueTime pvt : valueCache.getCacheContents()) {
-            if (pvt.getTime() >= from && pvt.getTime() < to) {
-                int index = Collections.binarySearch(result, pvt, pvtTimeComparator);
-                if (index < 0)
-                    result.add(-index - 1, pvt);
-            }
+        //Only the cached values in the range are materialized
+        for (PointValueTime pvt : valueCache.getPointValuesBetween(from, to)) {
+            int index = Collections.binarySearch(result, pvt, pvtTimeComparator);
+            if (index < 0)
+                result.add(-index - 1, pvt);
         }
 
         return result;
     }
 
+    /**
+     * Get the statistics of a period from the values of the latest period asked for
+     * 
+     * @param from
+     * @param to
+     * @param factory
+     * @return the statistics or null if they could not be made from the window, then read the values
+     */
+    public <T> T getWindowStatistics(long from, long to, PointValueWindow.StatisticsFactory<T> factory) {
+        if (window == null)
+            return null;
+        return window.getStatistics(from, to, factory);
+    }
+
     /**
      * This method should only be called by the data source. Other types of point setting should include a set point
      * source object so that the annotation can be logged.
@@ -254,10 +273,7 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
      */
     @Override
     public void setPointValue(PointValueTime newValue, SetPointSource source) {
-        if (source == null)
-            savePointValue(newValue, source, true, true);
-        else
-            savePointValue(newValue, source, false, true);
+        savePointValue(newValue, source, true, true);
     }
 
     private void savePointValue(PointValueTime newValue, SetPointSource source, boolean async, boolean saveToDatabase) {
@@ -353,8 +369,11 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
         if(!saveToDatabase)
         	logValue = false;
         
-        if (saveValue)
+        if (saveValue) {
             valueCache.savePointValue(newValue, source, logValue, async);
+            if (window != null)
+                window.added(newValue, logValue);
+        }
 
         // add annotation to newValue before firing events so event detectors can
         // fetch the annotation
@@ -387,6 +406,8 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
     public void savePointValueDirectToCache(PointValueTime newValue, SetPointSource source, boolean logValue,
             boolean async) {
     	 valueCache.savePointValue(newValue, source, logValue, async);
+    	 if (window != null)
+    	     window.added(newValue, logValue);
     }
 
     //
@@ -568,6 +589,8 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
     //
     public void resetValues() {
         valueCache.reset();
+        if (window != null)
+            window.invalidate();
         if (vo.getLoggingType() != DataPointVO.LoggingTypes.NONE)
             pointValue = valueCache.getLatestPointValue();
     }
@@ -658,93 +681,79 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
     //
     private void fireEvents(PointValueTime oldValue, PointValueTime newValue, boolean set, boolean backdate, boolean logged, boolean updated) {
         DataPointListener l = Common.runtimeManager.getDataPointListeners(vo.getId());
-        if (l != null)
-            Common.backgroundProcessing.addWorkItem(new EventNotifyWorkItem(vo.getXid(), l, oldValue, newValue, set, backdate, logged, updated));
-    }
-
-    class EventNotifyWorkItem implements WorkItem {
-    	private final String prefix = "EN-";
-    	private final String sourceXid;
-        private final DataPointListener listener;
-        private final PointValueTime oldValue;
-        private final PointValueTime newValue;
-        private final boolean set;
-        private final boolean backdate;
-        private final boolean logged;
-        private final boolean updated;
-
-        EventNotifyWorkItem(String xid, DataPointListener listener, PointValueTime oldValue, PointValueTime newValue, boolean set,
-                boolean backdate, boolean logged, boolean updated) {
-        	this.sourceXid = xid;
-            this.listener = listener;
-            this.oldValue = oldValue;
-            this.newValue = newValue;
-            this.set = set;
-            this.backdate = backdate;
-            this.logged = logged;
-            this.updated = updated;
+        if (l != null) {
+            for (DataPointListenerMailbox mailbox : getMailboxes(l))
+                mailbox.offer(oldValue, newValue, set, backdate, logged, updated);
+        }
+    }
+
+    /**
+     * Get a mailbox for each of the listeners, rebuilt only when the listeners change
+     * @param l
+     * @return
+     */
+    private DataPointListenerMailbox[] getMailboxes(DataPointListener l) {
+        ListenerMailboxes current = mailboxes;
+        if (current != null && current.listeners == l)
+            return current.mailboxes;
+
+        synchronized (mailboxLock) {
+            current = mailboxes;
+            if (current != null && current.listeners == l)
+                return current.mailboxes;
+
+            DataPointListener[] listeners = DataPointEventMulticaster.getListeners(l);
+            DataPointListenerMailbox[] boxes = new DataPointListenerMailbox[listeners.length];
+            for (int i = 0; i < listeners.length; i++) {
+                //Keep the mailboxes of listeners we already had so their notifications stay in order
+                if (current != null)
+                    for (DataPointListenerMailbox mailbox : current.mailboxes)
+                        if (mailbox.getListener() == listeners[i])
+                            boxes[i] = mailbox;
+                if (boxes[i] == null)
+                    boxes[i] = new DataPointListenerMailbox(vo.getXid(), listeners[i]);
+            }
+            if (current != null)
+                closeRemoved(current.mailboxes, boxes);
+            mailboxes = new ListenerMailboxes(l, boxes);
+            return boxes;
         }
+    }
 
-        @Override
-        public void execute() {
-            if (backdate)
-                listener.pointBackdated(newValue);
-            else if(updated) {
-                // Updated
-        		listener.pointUpdated(newValue);
-
-                // Fire if the point has changed.
-                if (!PointValueTime.equalValues(oldValue, newValue))
-                    listener.pointChanged(oldValue, newValue);
-
-                // Fire if the point was set.
-                if (set)
-                    listener.pointSet(oldValue, newValue);
+    /**
+     * Close the mailboxes of listeners that have gone away
+     */
+    private static void closeRemoved(DataPointListenerMailbox[] old, DataPointListenerMailbox[] kept) {
+        for (DataPointListenerMailbox mailbox : old) {
+            boolean found = false;
+            for (DataPointListenerMailbox k : kept) {
+                if (k == mailbox) {
+                    found = true;
+                    break;
+                }
             }
-            
-            //Was this value actually logged
-            if(logged)
-            	listener.pointLogged(newValue);
+            if (!found)
+                mailbox.close();
         }
+    }
 
-        @Override
-        public int getPriority() {
-            return WorkItem.PRIORITY_MEDIUM;
+    private void closeMailboxes() {
+        synchronized (mailboxLock) {
+            ListenerMailboxes current = mailboxes;
+            mailboxes = null;
+            if (current != null)
+                closeRemoved(current.mailboxes, new DataPointListenerMailbox[0]);
         }
+    }
 
-		/* (non-Javadoc)
-		 * @see com.serotonin.m2m2.rt.maint.work.WorkItem#getDescription()
-		 */
-		@Override
-		public String getDescription() {
-			return "Point event for: " + sourceXid + ", telling: " + listener.getListenerName();
-		}
-
-		/* (non-Javadoc)
-		 * @see com.serotonin.m2m2.rt.maint.work.WorkItem#getTaskId()
-		 */
-		@Override
-		public String getTaskId() {
-			//So there is one task for each listener
-			return prefix + sourceXid + "-" + listener.hashCode();
-		}
-		
-		/* (non-Javadoc)
-		 * @see com.serotonin.m2m2.util.timeout.TimeoutClient#getQueueSize()
-		 */
-		@Override
-		public int getQueueSize() {
-			return Task.UNLIMITED_QUEUE_SIZE;
-		}
-
-		/* (non-Javadoc)
-		 * @see com.serotonin.m2m2.rt.maint.work.WorkItem#rejected(com.serotonin.timer.RejectedTaskReason)
-		 */
-		@Override
-		public void rejected(RejectedTaskReason reason) {
-			//No special handling, tracking/logging is handled by the WorkItemRunnable
-		}
+    private static class ListenerMailboxes {
+        final DataPointListener listeners;
+        final DataPointListenerMailbox[] mailboxes;
 
+        ListenerMailboxes(DataPointListener listeners, DataPointListenerMailbox[] mailboxes) {
+            this.listeners = listeners;
+            this.mailboxes = mailboxes;
+        }
     }
 
     //
@@ -795,6 +804,7 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
             }
         }
         Common.eventManager.cancelEventsForDataPoint(vo.getId());
+        closeMailboxes();
     }
 
     @Override
@@ -825,6 +835,8 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
      */
 	public void updatePointValueInCache(PointValueTime newValue, SetPointSource source, boolean logValue, boolean async) {
         valueCache.updatePointValue(newValue, source, logValue, async);
+        if (window != null)
+            window.invalidate();
 	}
 	
 	/**
@@ -832,10 +844,16 @@ public final class DataPointRT implements IDataPointValueSource, ILifecycle {
 	 * @return
 	 */
 	public List<PointValueTime> getCacheCopy(){
-		List<PointValueTime> copy = new ArrayList<PointValueTime>(this.valueCache.getCacheContents().size());
-		for(PointValueTime pvt : this.valueCache.getCacheContents())
-			copy.add(pvt);
-		return copy;
+		return this.valueCache.getCacheContents();
+	}
+
+	/**
+	 * Read the cached values without copying them
+	 * @param reader
+	 * @return
+	 */
+	public <T> T readCache(PointValueRingBuffer.Reader<T> reader){
+		return this.valueCache.read(reader);
 	}
 
 	@Override
@@ -4,12 +4,12 @@
  */
 package com.serotonin.m2m2.rt.dataImage;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.ListIterator;
 
 import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.db.dao.PointValueDao;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
 
 /**
  * This class maintains an ordered list of the most recent values for a data point. It will mirror values in the
@@ -23,7 +23,6 @@ import com.serotonin.m2m2.db.dao.PointValueDao;
 public class PointValueCache {
     private final int dataPointId;
     private final int defaultSize;
-    private int maxSize = 0;
     
     //This would not be the advised thing to do if we were to be deleting any data through here
     // as some properties of the delete are system settings that can be changed
@@ -31,29 +30,23 @@ public class PointValueCache {
     protected static final PointValueDao dao = Common.databaseProxy.newPointValueDao();
 
     /**
-     * IMPORTANT: The list object should never be written to! The implementation here is for performance. Never call
-     * methods like add() or remove() on the cache object. Further, since the cache object can be replaced from time to
-     * time, always use a local copy of the variable for read purposes.
+     * Newest values first, the maximum size is the number of values the cache currently mirrors
      */
-    private List<PointValueTime> cache;
+    private final PointValueRingBuffer cache;
 
     public PointValueCache(int dataPointId, int defaultSize, List<PointValueTime> cache) {
         this.dataPointId = dataPointId;
         this.defaultSize = defaultSize;
         
         if (cache == null) {
-            this.cache = new ArrayList<>();
+            this.cache = new PointValueRingBuffer(0);
             if (defaultSize > 0) {
                 refreshCache(defaultSize);
             }
         } else {
-            if (cache.size() > defaultSize) {
-                // dont keep excess point values hanging around
-                this.cache = new ArrayList<>(cache.subList(0, defaultSize));
-            } else {
-                this.cache = cache;
-            }
-            this.maxSize = defaultSize;
+            // dont keep excess point values hanging around
+            this.cache = new PointValueRingBuffer(defaultSize);
+            this.cache.reload(cache, defaultSize);
         }
     }
     
@@ -91,60 +84,27 @@ public class PointValueCache {
                 pvt = updatePointValueSync(pvt, source);
         }
     	
-        
         //Update our point in the cache if it exists
-        List<PointValueTime> c = cache;
-        List<PointValueTime> newCache = new ArrayList<PointValueTime>(c.size() + 1);
-        newCache.addAll(c);
-
-        // Insert the value in the cache.
-        if (newCache.size() == 0)
-            return; //Empty anyway
-        else {
-            ListIterator<PointValueTime> it = newCache.listIterator();
-            while (it.hasNext()) {
-                PointValueTime cachedValue = it.next();
-                if(cachedValue.getTime() == pvt.getTime()){
-                    it.set(pvt); //Replace it and break out
-                    break;
-                }
-            }
-        }
-
-        cache = newCache;
-    	return;
+        cache.replace(pvt);
     }
     
     public void savePointValue(PointValueTime pvt, SetPointSource source, boolean logValue, boolean async) {
         if (logValue) {
-            if (async)
+            if (async) {
                 savePointValueAsync(pvt, source);
+                // Cache what the synchronous save would have read back
+                if (source != null && !(pvt instanceof AnnotatedPointValueTime)) {
+                    TranslatableMessage sourceMessage = source.getSetPointSourceMessage();
+                    if (sourceMessage != null)
+                        pvt = new AnnotatedPointValueTime(pvt.getValue(), pvt.getTime(), sourceMessage);
+                }
+            }
             else
                 pvt = savePointValueSync(pvt, source);
         }
 
-        List<PointValueTime> c = cache;
-        List<PointValueTime> newCache = new ArrayList<PointValueTime>(c.size() + 1);
-        newCache.addAll(c);
-
-        // Insert the value in the cache.
-        int pos = 0;
-        if (newCache.size() == 0)
-            newCache.add(pvt);
-        else {
-            while (pos < newCache.size() && newCache.get(pos).getTime() > pvt.getTime())
-                pos++;
-            if (pos < maxSize)
-                newCache.add(pos, pvt);
-        }
-
-        // Check if we need to clean up the list
-        while (newCache.size() > maxSize)
-            newCache.remove(newCache.size() - 1);
-        // if (newCache.size() > maxSize - 1)
-        // newCache = new ArrayList<PointValueTime>(newCache.subList(0, maxSize));
-
-        cache = newCache;
+        // Insert the value in the cache, the oldest falls off the end
+        cache.add(pvt);
     }
 
     /**
@@ -156,64 +116,92 @@ public class PointValueCache {
     }
 
     public PointValueTime getLatestPointValue() {
-        if (maxSize == 0)
-            refreshCache(1);
+        return getLatestPointValue(0);
+    }
 
-        List<PointValueTime> c = cache;
-        if (c.size() > 0)
-            return c.get(0);
+    /**
+     * @param index 0 for the latest value
+     * @return the value or null if there is none
+     */
+    public PointValueTime getLatestPointValue(int index) {
+        if (cache.getMaxSize() <= index)
+            refreshCache(index + 1);
 
-        return null;
+        return cache.getLatestPointValue(index);
     }
 
     public List<PointValueTime> getLatestPointValues(int limit) {
-        if (maxSize < limit)
+        if (cache.getMaxSize() < limit)
             refreshCache(limit);
 
-        List<PointValueTime> c = cache;
-        if (limit == c.size())
-            return new ArrayList<PointValueTime>(c);
-
-        if (limit > c.size())
-            limit = c.size();
-        return new ArrayList<PointValueTime>(c.subList(0, limit));
+        return cache.getLatestPointValues(limit);
     }
 
     private void refreshCache(int size) {
-        if (size > maxSize) {
-            maxSize = size;
+        if (size > cache.getMaxSize()) {
             if (size == 1) {
                 // Performance thingy
                 PointValueTime pvt = dao.getLatestPointValue(dataPointId);
-                if (pvt != null) {
-                    List<PointValueTime> c = new ArrayList<PointValueTime>();
-                    c.add(pvt);
-                    cache = c;
-                }
+                if (pvt != null)
+                    cache.reload(Collections.singletonList(pvt), size);
+                else
+                    cache.resize(size);
             }
             else
-                cache = dao.getLatestPointValues(dataPointId, size);
+                cache.reload(dao.getLatestPointValues(dataPointId, size), size);
         }
     }
 
     /**
-     * Never manipulate the contents of this list!
+     * The newest cached value before the time
+     * @param time
+     * @return null if no value before the time is in the cache
      */
-    public List<PointValueTime> getCacheContents() {
-        return cache;
+    public PointValueTime getPointValueBefore(long time) {
+        return cache.getPointValueBefore(time);
     }
 
-    public void reset() {
-        List<PointValueTime> c = cache;
+    /**
+     * @param time
+     * @return null if no value at the time is in the cache
+     */
+    public PointValueTime getPointValueAt(long time) {
+        return cache.getPointValueAt(time);
+    }
 
-        int size = defaultSize;
-        if (c.size() < size)
-            size = c.size();
+    /**
+     * @param from inclusive
+     * @param to exclusive
+     * @return the oldest cached value in the range, or null
+     */
+    public PointValueTime getOldestPointValueBetween(long from, long to) {
+        return cache.getOldestPointValueBetween(from, to);
+    }
 
-        List<PointValueTime> nc = new ArrayList<PointValueTime>(size);
-        nc.addAll(c.subList(0, size));
+    /**
+     * @param from inclusive
+     * @param to exclusive
+     * @return a new list of the cached values in the range, newest first
+     */
+    public List<PointValueTime> getPointValuesBetween(long from, long to) {
+        return cache.getPointValuesBetween(from, to);
+    }
 
-        maxSize = size;
-        cache = nc;
+    /**
+     * Read the cache without copying it, see PointValueRingBuffer.read(Reader)
+     */
+    public <T> T read(PointValueRingBuffer.Reader<T> reader) {
+        return cache.read(reader);
+    }
+
+    /**
+     * A copy of the cached values, newest first
+     */
+    public List<PointValueTime> getCacheContents() {
+        return cache.getLatestPointValues(Integer.MAX_VALUE);
+    }
+
+    public void reset() {
+        cache.resize(Math.min(defaultSize, cache.size()));
     }
 }
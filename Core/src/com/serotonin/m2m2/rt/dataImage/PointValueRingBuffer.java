@@ -0,0 +1,475 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.rt.dataImage.types.BinaryValue;
+import com.serotonin.m2m2.rt.dataImage.types.DataValue;
+import com.serotonin.m2m2.rt.dataImage.types.MultistateValue;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
+
+/**
+ * The most recent values of a data point, newest first, held in parallel primitive arrays used
+ * as a ring buffer.  Adding a value in time order is constant time and does not allocate.
+ *
+ * Plain binary, multistate and numeric values are stored only as a time and a double, anything
+ * else (alphanumeric, image and annotated values) is kept as the original object in a side array.
+ *
+ * Writers are serialized by a StampedLock, readers do not lock.  They read optimistically and
+ * validate the lock's sequence afterwards, retrying if a write happened during the read.
+ *
+ * @author Terry Packer
+ */
+public class PointValueRingBuffer {
+
+    //Type stored for values kept in the side array
+    private static final byte OBJECT = 0;
+    //Optimistic reads to try before falling back to the read lock
+    private static final int OPTIMISTIC_ATTEMPTS = 3;
+
+    private final StampedLock lock = new StampedLock();
+    //Only replaced or modified while holding the write lock
+    private Buffer buffer;
+    private int maxSize;
+
+    public PointValueRingBuffer(int maxSize) {
+        this.maxSize = maxSize;
+        this.buffer = new Buffer(maxSize);
+    }
+
+    //
+    // Writes
+    //
+
+    /**
+     * Insert a value in time order, values older than all of the maxSize newest values are ignored.
+     * @param pvt
+     */
+    public void add(PointValueTime pvt) {
+        long stamp = lock.writeLock();
+        try {
+            if (maxSize == 0)
+                return;
+            Buffer b = buffer;
+            //Newer values come first, insert ahead of any values at the same time
+            int pos = b.indexOfFirstAtOrBefore(pvt.getTime());
+            if (pos >= maxSize)
+                return;
+
+            //Drop the oldest, its slot is the one we are about to open up at the head
+            if (b.size == maxSize)
+                b.size--;
+            b.head = b.head == 0 ? b.capacity() - 1 : b.head - 1;
+            for (int i = 0; i < pos; i++)
+                b.move(b.slot(i + 1), b.slot(i));
+            b.set(b.slot(pos), pvt);
+            b.size++;
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replace the first value with the same time
+     * @param pvt
+     * @return true if a value was replaced
+     */
+    public boolean replace(PointValueTime pvt) {
+        long stamp = lock.writeLock();
+        try {
+            Buffer b = buffer;
+            for (int i = 0; i < b.size; i++) {
+                int slot = b.slot(i);
+                if (b.times[slot] == pvt.getTime()) {
+                    b.set(slot, pvt);
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replace the contents
+     * @param values newest first
+     * @param maxSize
+     */
+    public void reload(List<PointValueTime> values, int maxSize) {
+        Buffer b = new Buffer(maxSize);
+        int count = Math.min(values.size(), maxSize);
+        for (int i = 0; i < count; i++)
+            b.set(i, values.get(i));
+        b.size = count;
+
+        long stamp = lock.writeLock();
+        try {
+            this.buffer = b;
+            this.maxSize = maxSize;
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Change the maximum size keeping as many of the newest values as will fit
+     * @param maxSize
+     */
+    public void resize(int maxSize) {
+        long stamp = lock.writeLock();
+        try {
+            Buffer old = buffer;
+            Buffer b = new Buffer(maxSize);
+            int count = Math.min(old.size, maxSize);
+            for (int i = 0; i < count; i++)
+                b.copy(old, old.slot(i), i);
+            b.size = count;
+            this.buffer = b;
+            this.maxSize = maxSize;
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    //
+    // Reads
+    //
+
+    /**
+     * Run a reader against the current contents without copying them.  The reader may be run more than once
+     * if the buffer is written to while it runs so it must not have side effects, only its last result is returned.
+     *
+     * @param reader
+     * @return
+     */
+    public <T> T read(Reader<T> reader) {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0)
+                continue;
+            try {
+                T result = reader.read(new View(buffer));
+                if (lock.validate(stamp))
+                    return result;
+            }
+            catch (RuntimeException e) {
+                //A torn read can fail in any way, only report failures that happened on a consistent view
+                if (lock.validate(stamp))
+                    throw e;
+            }
+        }
+
+        long stamp = lock.readLock();
+        try {
+            return reader.read(new View(buffer));
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        return read(SIZE);
+    }
+
+    /**
+     * @param index 0 is the newest value
+     * @return the value or null if there are not that many values
+     */
+    public PointValueTime getLatestPointValue(final int index) {
+        return read(new Reader<PointValueTime>() {
+            @Override
+            public PointValueTime read(View view) {
+                return index < view.size() ? view.getPointValueTime(index) : null;
+            }
+        });
+    }
+
+    /**
+     * @param limit
+     * @return a new list of up to limit of the newest values, newest first
+     */
+    public List<PointValueTime> getLatestPointValues(final int limit) {
+        return read(new Reader<List<PointValueTime>>() {
+            @Override
+            public List<PointValueTime> read(View view) {
+                int count = Math.min(limit, view.size());
+                List<PointValueTime> result = new ArrayList<PointValueTime>(count);
+                for (int i = 0; i < count; i++)
+                    result.add(view.getPointValueTime(i));
+                return result;
+            }
+        });
+    }
+
+    /**
+     * @param time
+     * @return the newest value before the time or null if there is none in the buffer
+     */
+    public PointValueTime getPointValueBefore(final long time) {
+        return read(new Reader<PointValueTime>() {
+            @Override
+            public PointValueTime read(View view) {
+                int index = view.indexOfFirstBefore(time);
+                return index < view.size() ? view.getPointValueTime(index) : null;
+            }
+        });
+    }
+
+    /**
+     * @param time
+     * @return the newest value at the time or null if there is none in the buffer
+     */
+    public PointValueTime getPointValueAt(final long time) {
+        return read(new Reader<PointValueTime>() {
+            @Override
+            public PointValueTime read(View view) {
+                int index = view.indexOfFirstBefore(time + 1);
+                if (index < view.size() && view.getTime(index) == time)
+                    return view.getPointValueTime(index);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param from inclusive
+     * @param to exclusive
+     * @return the oldest value in the range or null if there is none in the buffer
+     */
+    public PointValueTime getOldestPointValueBetween(final long from, final long to) {
+        return read(new Reader<PointValueTime>() {
+            @Override
+            public PointValueTime read(View view) {
+                int start = view.indexOfFirstBefore(to);
+                int end = view.indexOfFirstBefore(from);
+                return end > start ? view.getPointValueTime(end - 1) : null;
+            }
+        });
+    }
+
+    /**
+     * @param from inclusive
+     * @param to exclusive
+     * @return a new list of the values in the range, newest first
+     */
+    public List<PointValueTime> getPointValuesBetween(final long from, final long to) {
+        return read(new Reader<List<PointValueTime>>() {
+            @Override
+            public List<PointValueTime> read(View view) {
+                int start = view.indexOfFirstBefore(to);
+                int end = view.indexOfFirstBefore(from);
+                List<PointValueTime> result = new ArrayList<PointValueTime>(Math.max(0, end - start));
+                for (int i = start; i < end; i++)
+                    result.add(view.getPointValueTime(i));
+                return result;
+            }
+        });
+    }
+
+    private static final Reader<Integer> SIZE = new Reader<Integer>() {
+        @Override
+        public Integer read(View view) {
+            return view.size();
+        }
+    };
+
+    /**
+     * Reads the contents of the buffer through a View, see read(Reader)
+     */
+    public interface Reader<T> {
+        T read(View view);
+    }
+
+    /**
+     * The contents of the buffer, newest first, as they were when the view was created.  Only
+     * consistent for the duration of PointValueRingBuffer.read(Reader).
+     */
+    public static final class View {
+        private final Buffer buffer;
+        private final int head;
+        private final int size;
+
+        private View(Buffer buffer) {
+            this.buffer = buffer;
+            this.head = buffer.head;
+            this.size = Math.min(buffer.size, buffer.capacity());
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getTime(int index) {
+            return buffer.times[slot(index)];
+        }
+
+        /**
+         * @param index
+         * @return the value as a double, NaN if it has no double representation
+         */
+        public double getDoubleValue(int index) {
+            int slot = slot(index);
+            if (buffer.types[slot] != OBJECT)
+                return buffer.values[slot];
+            DataValue value = buffer.others[slot].getValue();
+            return value.hasDoubleRepresentation() ? value.getDoubleValue() : Double.NaN;
+        }
+
+        public int getDataType(int index) {
+            int slot = slot(index);
+            if (buffer.types[slot] != OBJECT)
+                return buffer.types[slot];
+            return DataTypes.getDataType(buffer.others[slot].getValue());
+        }
+
+        /**
+         * Numeric, binary and multistate values are created on each call, use the primitive
+         * getters when iterating over many values.
+         */
+        public PointValueTime getPointValueTime(int index) {
+            return buffer.get(slot(index));
+        }
+
+        /**
+         * @param time
+         * @return index of the newest value before the time, size() if there is none
+         */
+        public int indexOfFirstBefore(long time) {
+            return time == Long.MIN_VALUE ? size : indexOfFirstAtOrBefore(time - 1);
+        }
+
+        private int indexOfFirstAtOrBefore(long time) {
+            //Times are in descending order
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (getTime(mid) > time)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        private int slot(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            int slot = head + index;
+            int capacity = buffer.capacity();
+            return slot >= capacity ? slot - capacity : slot;
+        }
+    }
+
+    private static final class Buffer {
+        final long[] times;
+        final double[] values;
+        final byte[] types;
+        final PointValueTime[] others;
+        int head;
+        int size;
+
+        Buffer(int maxSize) {
+            int capacity = Math.max(1, maxSize);
+            times = new long[capacity];
+            values = new double[capacity];
+            types = new byte[capacity];
+            others = new PointValueTime[capacity];
+        }
+
+        int capacity() {
+            return times.length;
+        }
+
+        int slot(int index) {
+            int slot = head + index;
+            return slot >= times.length ? slot - times.length : slot;
+        }
+
+        int indexOfFirstAtOrBefore(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[slot(mid)] > time)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        void set(int slot, PointValueTime pvt) {
+            times[slot] = pvt.getTime();
+            DataValue value = pvt.getValue();
+            //Subclasses carry more than a value and time so keep the object
+            if (pvt.getClass() == PointValueTime.class && value != null) {
+                Class<?> type = value.getClass();
+                if (type == NumericValue.class) {
+                    store(slot, DataTypes.NUMERIC, value.getDoubleValue());
+                    return;
+                }
+                else if (type == BinaryValue.class) {
+                    store(slot, DataTypes.BINARY, value.getDoubleValue());
+                    return;
+                }
+                else if (type == MultistateValue.class) {
+                    store(slot, DataTypes.MULTISTATE, value.getDoubleValue());
+                    return;
+                }
+            }
+            types[slot] = OBJECT;
+            values[slot] = 0;
+            others[slot] = pvt;
+        }
+
+        private void store(int slot, int type, double value) {
+            types[slot] = (byte) type;
+            values[slot] = value;
+            others[slot] = null;
+        }
+
+        PointValueTime get(int slot) {
+            switch (types[slot]) {
+                case DataTypes.NUMERIC:
+                    return new PointValueTime(new NumericValue(values[slot]), times[slot]);
+                case DataTypes.BINARY:
+                    return new PointValueTime(values[slot] != 0 ? BinaryValue.ONE : BinaryValue.ZERO, times[slot]);
+                case DataTypes.MULTISTATE:
+                    return new PointValueTime(new MultistateValue((int) values[slot]), times[slot]);
+                default:
+                    return others[slot];
+            }
+        }
+
+        void move(int from, int to) {
+            times[to] = times[from];
+            values[to] = values[from];
+            types[to] = types[from];
+            others[to] = others[from];
+        }
+
+        void copy(Buffer from, int fromSlot, int to) {
+            times[to] = from.times[fromSlot];
+            values[to] = from.values[fromSlot];
+            types[to] = from.types[fromSlot];
+            others[to] = from.others[fromSlot];
+        }
+    }
+}
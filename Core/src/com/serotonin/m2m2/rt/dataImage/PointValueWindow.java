@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.dataImage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.serotonin.m2m2.Common;
+
+/**
+ * The values of a data point over the most recent statistics period asked of it, so that scripts working out
+ * the statistics of the same sliding period on every run, like p.past(HOUR), do not read the period from the
+ * database each time.
+ *
+ * The window is read from the point on the first request, then kept up to date with the values the point logs
+ * and trimmed to the longest period asked for. A request is served from the window when its period starts in
+ * the window, otherwise it is a miss and the caller reads the values as before. A request for a period ending
+ * not much before the latest value (re)starts the window, those well in the past, like history generation, don't.
+ *
+ * Values that are cached without being logged, values changed in the cache and purges make the window invalid
+ * until it is read again, so it always holds what getPointValuesBetween would return.
+ *
+ * @author Terry Packer
+ */
+public class PointValueWindow {
+
+    public static final boolean ENABLED = Common.envProps.getBoolean("runtime.statisticsWindow.enabled", true);
+    private static final int MAX_SAMPLES = Common.envProps.getInt("runtime.statisticsWindow.maxSamples", 10000);
+
+    /**
+     * Makes the statistics of a period from its values
+     */
+    public interface StatisticsFactory<T> {
+        T create(long from, long to, PointValueTime start, List<PointValueTime> values);
+    }
+
+    private final IDataPointValueSource point;
+
+    // Values from windowStart on in time order, and the last before it
+    private final ArrayDeque<PointValueTime> samples = new ArrayDeque<PointValueTime>();
+    private PointValueTime before;
+    private long windowStart;
+    private boolean valid;
+    // Longest period asked for, and the shortest that had too many values to keep
+    private long period;
+    private long tooLongPeriod = Long.MAX_VALUE;
+
+    // Values added while the window is read, null when not reading
+    private List<PointValueTime> pending;
+    private boolean pendingInvalid;
+
+    // The statistics of the last request, until the window changes
+    private int modifications;
+    private long lastFrom;
+    private long lastTo;
+    private int lastModifications;
+    private StatisticsFactory<?> lastFactory;
+    private Object lastStatistics;
+
+    public PointValueWindow(IDataPointValueSource point) {
+        this.point = point;
+    }
+
+    /**
+     * A value was saved by the point
+     * @param pvt
+     * @param logged if it went to the database, otherwise it is only in the point value cache
+     */
+    public synchronized void added(PointValueTime pvt, boolean logged) {
+        if (!logged) {
+            invalidate();
+            return;
+        }
+        if (pending != null)
+            pending.add(pvt);
+        if (!valid)
+            return;
+        if (!samples.isEmpty() && pvt.getTime() < samples.peekLast().getTime()) {
+            // Backdated, rather than insert the window is read again
+            invalidate();
+            return;
+        }
+        samples.add(pvt);
+        modifications++;
+        // Keep up to twice the period when nothing asks for it
+        evict(pvt.getTime() - 2 * period);
+        if (samples.size() > MAX_SAMPLES)
+            evict(samples.peekFirst().getTime() + 1);
+    }
+
+    /**
+     * The values are no longer what the window holds
+     */
+    public synchronized void invalidate() {
+        if (pending != null)
+            pendingInvalid = true;
+        valid = false;
+        samples.clear();
+        before = null;
+        modifications++;
+        lastStatistics = null;
+        lastFactory = null;
+    }
+
+    /**
+     * Get the statistics of the period from the window, reading it if needed
+     *
+     * @param from
+     * @param to
+     * @param factory
+     * @return the statistics or null if the period could not be served from the window
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getStatistics(long from, long to, StatisticsFactory<T> factory) {
+        if (to <= from)
+            return null;
+        long length = to - from;
+
+        PointValueTime start;
+        List<PointValueTime> values;
+        synchronized (this) {
+            if (length >= tooLongPeriod)
+                return null;
+            if (!valid || from < windowStart) {
+                if (pending != null || !shouldRead(from, to))
+                    return null;
+                pending = new ArrayList<PointValueTime>();
+                pendingInvalid = false;
+                start = null;
+                values = null;
+            }
+            else {
+                if (lastStatistics != null && lastFactory == factory && lastFrom == from && lastTo == to
+                        && lastModifications == modifications)
+                    return (T) lastStatistics;
+                if (length > period)
+                    period = length;
+                // Older values are not asked for by the periods moving forward
+                evict(to - period);
+
+                start = before;
+                values = new ArrayList<PointValueTime>();
+                for (PointValueTime pvt : samples) {
+                    if (pvt.getTime() >= to)
+                        break;
+                    if (pvt.getTime() < from)
+                        start = pvt;
+                    else
+                        values.add(pvt);
+                }
+            }
+        }
+
+        if (values == null)
+            return read(from, to, factory);
+
+        T statistics = factory.create(from, to, start, values);
+        synchronized (this) {
+            lastFrom = from;
+            lastTo = to;
+            lastFactory = factory;
+            lastModifications = modifications;
+            lastStatistics = statistics;
+        }
+        return statistics;
+    }
+
+    /**
+     * Only periods ending not long before the latest value start a window, the window is read up to now
+     * and reading far more than the period is not worth it
+     */
+    private boolean shouldRead(long from, long to) {
+        PointValueTime latest = point.getPointValue();
+        return latest == null || latest.getTime() - to <= to - from;
+    }
+
+    /**
+     * Read the window from the point and make the statistics from it
+     */
+    private <T> T read(long from, long to, StatisticsFactory<T> factory) {
+        PointValueTime start;
+        List<PointValueTime> read;
+        try {
+            start = point.getPointValueBefore(from);
+            read = point.getPointValuesBetween(from, Long.MAX_VALUE);
+        }
+        catch (RuntimeException e) {
+            synchronized (this) {
+                pending = null;
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            List<PointValueTime> added = pending;
+            pending = null;
+            if (read.size() > MAX_SAMPLES) {
+                tooLongPeriod = Math.min(tooLongPeriod, to - from);
+            }
+            else if (!pendingInvalid && merge(read, added)) {
+                samples.clear();
+                samples.addAll(read);
+                before = start;
+                windowStart = from;
+                period = Math.max(period, to - from);
+                valid = true;
+                modifications++;
+            }
+        }
+
+        List<PointValueTime> values = new ArrayList<PointValueTime>();
+        for (PointValueTime pvt : read) {
+            if (pvt.getTime() >= to)
+                break;
+            values.add(pvt);
+        }
+        return factory.create(from, to, start, values);
+    }
+
+    /**
+     * Add the values saved while the window was read that the read did not see
+     * @return false if one was backdated
+     */
+    private static boolean merge(List<PointValueTime> read, List<PointValueTime> added) {
+        for (PointValueTime pvt : added) {
+            if (contains(read, pvt))
+                continue;
+            if (!read.isEmpty() && pvt.getTime() < read.get(read.size() - 1).getTime())
+                return false;
+            read.add(pvt);
+        }
+        return true;
+    }
+
+    private static boolean contains(List<PointValueTime> read, PointValueTime pvt) {
+        for (int i = read.size() - 1; i >= 0; i--) {
+            PointValueTime candidate = read.get(i);
+            if (candidate.getTime() < pvt.getTime())
+                return false;
+            if (candidate.getTime() == pvt.getTime() && candidate.getValue().equals(pvt.getValue()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drop the values before the time, keeping the last of them as the start of the window
+     */
+    private void evict(long time) {
+        if (!valid || time <= windowStart)
+            return;
+        Iterator<PointValueTime> it = samples.iterator();
+        while (it.hasNext()) {
+            PointValueTime pvt = it.next();
+            if (pvt.getTime() >= time)
+                break;
+            before = pvt;
+            it.remove();
+        }
+        windowStart = time;
+    }
+}
@@ -20,6 +20,7 @@ import com.serotonin.m2m2.util.UnitUtil;
 import com.serotonin.m2m2.view.text.TextRenderer;
 import com.serotonin.m2m2.vo.DataPointSummary;
 import com.serotonin.m2m2.vo.DataPointVO;
+import com.serotonin.m2m2.vo.permission.PermissionSet;
 
 /**
  * @author Terry Packer
@@ -57,18 +58,23 @@ public class RealTimeDataPointValue implements JsonSerializable, DataPointListen
 	private String xid;
 	private String readPermission;
 	private String setPermission;
+	private PermissionSet readPermissionSet;
+	private PermissionSet setPermissionSet;
 	private int dataTypeId;
 	
 	
 	public RealTimeDataPointValue(DataPointSummary summary, List<String> paths){
+		this(DataPointDao.instance.getDataPoint(summary.getId(), false), paths);
+	}
+
+	public RealTimeDataPointValue(DataPointVO vo, List<String> paths){
 		
-		this.dataPointId = summary.getId();
+		this.dataPointId = vo.getId();
 		Common.runtimeManager.addDataPointListener(dataPointId, this);
-		this.rt = Common.runtimeManager.getDataPoint(summary.getId());
-		this.deviceName = summary.getDeviceName();
-		this.pointName = summary.getName();
+		this.rt = Common.runtimeManager.getDataPoint(vo.getId());
+		this.deviceName = vo.getDeviceName();
+		this.pointName = vo.getName();
 		
-		DataPointVO vo = DataPointDao.instance.getDataPoint(summary.getId(), false);
 		//Get Unit
         if (vo.getPointLocator().getDataTypeId() == DataTypes.BINARY)
             this.unit = ""; //"boolean";
@@ -81,16 +87,15 @@ public class RealTimeDataPointValue implements JsonSerializable, DataPointListen
 
 		
 		//Set the path to the point
-        this.path = "/";
-		for(String part : paths){
-			this.path = this.path + part + "/";
-		}
+		setPath(paths);
 		
 		this.dataTypeId = vo.getPointLocator().getDataTypeId();
 		this.pointType = vo.getPointLocator().getDataTypeMessage().translate(Common.getTranslations());
 		this.xid = vo.getXid();
 		this.readPermission = vo.getReadPermission();
 		this.setPermission = vo.getSetPermission();
+		this.readPermissionSet = vo.getReadPermissionSet();
+		this.setPermissionSet = vo.getSetPermissionSet();
 	}
 
 	public String getDeviceName(){
@@ -152,6 +157,20 @@ public class RealTimeDataPointValue implements JsonSerializable, DataPointListen
 	public String getPath(){
 		return path;
 	}
+	/**
+	 * Set when the point is moved in the hierarchy
+	 * @param paths the names of the folders of the point
+	 */
+	void setPath(List<String> paths){
+        String path = "/";
+		for(String part : paths){
+			path = path + part + "/";
+		}
+		this.path = path;
+	}
+	void setPath(String path){
+		this.path = path;
+	}
 	public String getXid(){
 		return xid;
 	}
@@ -174,6 +193,12 @@ public class RealTimeDataPointValue implements JsonSerializable, DataPointListen
 	public String getSetPermission(){
 		return setPermission;
 	}
+	public PermissionSet getReadPermissionSet(){
+		return readPermissionSet;
+	}
+	public PermissionSet getSetPermissionSet(){
+		return setPermissionSet;
+	}
 	
 	/* (non-Javadoc)
 	 * @see com.serotonin.json.spi.JsonSerializable#jsonRead(com.serotonin.json.JsonReader, com.serotonin.json.type.JsonObject)
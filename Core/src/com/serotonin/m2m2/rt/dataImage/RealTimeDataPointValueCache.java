@@ -7,17 +7,23 @@ package com.serotonin.m2m2.rt.dataImage;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
 
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.infiniteautomation.mango.db.query.SortOption;
+import com.infiniteautomation.mango.monitor.IntegerMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitorOwner;
 import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.db.dao.DataPointDao;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
 import com.serotonin.m2m2.i18n.Translations;
 import com.serotonin.m2m2.vo.DataPointExtendedNameComparator;
 import com.serotonin.m2m2.vo.DataPointSummary;
@@ -27,6 +33,7 @@ import com.serotonin.m2m2.vo.hierarchy.PointFolder;
 import com.serotonin.m2m2.vo.hierarchy.PointHierarchy;
 import com.serotonin.m2m2.vo.hierarchy.PointHierarchyEventDispatcher;
 import com.serotonin.m2m2.vo.hierarchy.PointHierarchyListener;
+import com.serotonin.m2m2.vo.permission.PermissionSet;
 import com.serotonin.m2m2.vo.permission.Permissions;
 
 /**
@@ -37,7 +44,10 @@ import com.serotonin.m2m2.vo.permission.Permissions;
  *
  * Available properties defined in RealTimeDataPointValue
  * 
- * Changes to data point configurations are only picked up when the point hierarchy is saved.
+ * The points are indexed by the permission groups that can read or set them so that a user's view
+ * is the union of the points of their groups, kept for each set of groups until the points change.
+ * Saved and deleted points are updated in the index as they happen and saving the hierarchy only
+ * moves the points, the cache is only loaded again when the hierarchy is cleared for other reasons.
  * 
  * @author Terry Packer
  *
@@ -45,10 +55,36 @@ import com.serotonin.m2m2.vo.permission.Permissions;
 public class RealTimeDataPointValueCache {
     private static final Log LOG = LogFactory.getLog(DataPointRT.class);
 
-    private final List<RealTimeDataPointValue> realTimeData =
-            new CopyOnWriteArrayList<RealTimeDataPointValue>();
+    // User views kept before starting again
+    private static final int MAX_VIEWS = 1000;
+
+    public static final String POINTS_MONITOR_ID = "com.serotonin.m2m2.rt.dataImage.RealTimeDataPointValueCache.POINTS_MONITOR";
+    public static final String LOAD_TIME_MONITOR_ID = "com.serotonin.m2m2.rt.dataImage.RealTimeDataPointValueCache.LOAD_TIME_MONITOR";
+
+    // Guarded by this, the points in hierarchy order with null for removed ones
+    private final List<RealTimeDataPointValue> slots = new ArrayList<RealTimeDataPointValue>();
+    private final Map<Integer, Integer> slotsById = new HashMap<Integer, Integer>();
+    private final Map<Integer, BitSet> groupSlots = new HashMap<Integer, BitSet>();
+    private final BitSet allSlots = new BitSet();
+    private final Map<Integer, List<String>> folderPaths = new HashMap<Integer, List<String>>();
+    private final Map<PermissionSet, RealTimeDataPointValue[]> views = new HashMap<PermissionSet, RealTimeDataPointValue[]>();
     private boolean cleared;
 
+    private final ValueMonitorOwner owner = new ValueMonitorOwner() {
+        @Override
+        public void reset(String id) {
+            if (POINTS_MONITOR_ID.equals(id)) {
+                synchronized (RealTimeDataPointValueCache.this) {
+                    pointsMonitor.setValue(allSlots.cardinality());
+                }
+            }
+        }
+    };
+    private final IntegerMonitor pointsMonitor = new IntegerMonitor(POINTS_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.REAL_TIME_DATA_POINTS"), owner);
+    private final IntegerMonitor loadTimeMonitor = new IntegerMonitor(LOAD_TIME_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.REAL_TIME_DATA_LOAD_TIME"), owner);
+
     // Singleton Instance
     public static final RealTimeDataPointValueCache instance = new RealTimeDataPointValueCache();
 
@@ -57,28 +93,39 @@ public class RealTimeDataPointValueCache {
      * Singleton Constructor to create cache and register with the P.H. to capture any changes
      */
     private RealTimeDataPointValueCache() {
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(pointsMonitor);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(loadTimeMonitor);
 
         // Initially load in the PH.
-        PointHierarchy ph = createPointHierarchy(Common.getTranslations());
-        PointFolder root = ph.getRoot();
-        // Fill the cache now
-        fillCache(root, realTimeData);
-        cleared = false;
+        load();
 
         // Register so we know when it changes
         PointHierarchyEventDispatcher.addListener(new PointHierarchyListener() {
             @Override
             public void pointHierarchyCleared() {
-                realTimeData.clear();
-                cleared = true;
+                synchronized (RealTimeDataPointValueCache.this) {
+                    clear();
+                    cleared = true;
+                }
             }
 
             @Override
             public void pointHierarchySaved(PointFolder root) {
-                realTimeData.clear();
-                // Fill the cache now
-                fillCache(root, realTimeData);
+                moved(root);
+            }
 
+            @Override
+            public void dataPointSaved(DataPointVO vo) {
+                saved(vo.getId());
+            }
+
+            @Override
+            public void dataPointsDeleted(List<Integer> dataPointIds) {
+                synchronized (RealTimeDataPointValueCache.this) {
+                    for (Integer id : dataPointIds)
+                        remove(id);
+                    changed();
+                }
             }
         });
     }
@@ -89,28 +136,194 @@ public class RealTimeDataPointValueCache {
      * @return
      */
     public List<RealTimeDataPointValue> getUserView(User user) {
-        if (cleared) {
-            // Reload
-            PointHierarchy ph = createPointHierarchy(Common.getTranslations());
-            PointFolder root = ph.getRoot();
-            // Fill the cache now
-            fillCache(root, realTimeData);
-            cleared = false;
+        final boolean admin = Permissions.hasAdmin(user);
+        final PermissionSet permissions = user.getPermissionSet();
+
+        RealTimeDataPointValue[] view;
+        synchronized (this) {
+            if (cleared)
+                load();
+
+            // Admins see all the points, keep their view apart from the groups' views
+            PermissionSet key = admin ? null : permissions;
+            view = views.get(key);
+            if (view == null) {
+                BitSet visible;
+                if (admin)
+                    visible = allSlots;
+                else {
+                    visible = new BitSet();
+                    for (int groupId : permissions.getGroupIds()) {
+                        BitSet group = groupSlots.get(groupId);
+                        if (group != null)
+                            visible.or(group);
+                    }
+                }
+
+                view = new RealTimeDataPointValue[visible.cardinality()];
+                int i = 0;
+                for (int slot = visible.nextSetBit(0); slot >= 0; slot = visible.nextSetBit(slot + 1))
+                    view[i++] = slots.get(slot);
+
+                if (views.size() >= MAX_VIEWS)
+                    views.clear();
+                views.put(key, view);
+            }
         }
-        List<RealTimeDataPointValue> results = new ArrayList<RealTimeDataPointValue>();
 
-        final boolean admin = Permissions.hasAdmin(user);
-        final String permissions = user.getPermissions();
-        
-        for (RealTimeDataPointValue rtdpv : this.realTimeData) {
-
-            // Do we have set or read permissions for this point?
-            if (admin || Permissions.hasPermission(rtdpv.getSetPermission(), permissions)
-                    || Permissions.hasPermission(rtdpv.getReadPermission(), permissions))
-                results.add(rtdpv);
+        return new ArrayList<RealTimeDataPointValue>(Arrays.asList(view));
+    }
+
+    /**
+     * Load all the points from a new point hierarchy
+     */
+    private synchronized void load() {
+        long start = System.currentTimeMillis();
+        clear();
+        PointHierarchy ph = createPointHierarchy(Common.getTranslations());
+        PointFolder root = ph.getRoot();
+        // Fill the cache now
+        fillCache(root, root);
+        cleared = false;
+        changed();
+        loadTimeMonitor.setValue((int) (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * The hierarchy was saved, move the points to its folders and order
+     */
+    private synchronized void moved(PointFolder root) {
+        folderPaths.clear();
+        fillFolderPaths(root, new ArrayList<String>());
+
+        Map<Integer, RealTimeDataPointValue> existing = new HashMap<Integer, RealTimeDataPointValue>();
+        for (RealTimeDataPointValue rtdpv : slots) {
+            if (rtdpv != null)
+                existing.put(rtdpv.getDataPointId(), rtdpv);
         }
+        slots.clear();
+        slotsById.clear();
+        groupSlots.clear();
+        allSlots.clear();
 
-        return results;
+        List<DataPointSummary> points = new ArrayList<DataPointSummary>();
+        recursivelyCollectPoints(root, points);
+        for (DataPointSummary summary : points) {
+            RealTimeDataPointValue rtdpv = existing.remove(summary.getId());
+            List<String> path = PointHierarchy.getPath(summary.getId(), root);
+            if (rtdpv != null) {
+                rtdpv.setPath(path);
+                add(rtdpv);
+            }
+            else {
+                DataPointVO vo = DataPointDao.instance.getDataPoint(summary.getId(), false);
+                if (vo != null)
+                    add(new RealTimeDataPointValue(vo, path));
+            }
+        }
+
+        // Points no longer in the hierarchy
+        for (RealTimeDataPointValue rtdpv : existing.values())
+            Common.runtimeManager.removeDataPointListener(rtdpv.getDataPointId(), rtdpv);
+        changed();
+    }
+
+    /**
+     * A point was saved, load it again as it may have been deleted since
+     */
+    private synchronized void saved(int dataPointId) {
+        if (cleared)
+            return;
+        DataPointVO vo = DataPointDao.instance.getDataPoint(dataPointId, false);
+        if (vo == null) {
+            remove(dataPointId);
+        }
+        else {
+            Integer slot = slotsById.get(dataPointId);
+            RealTimeDataPointValue rtdpv;
+            if (slot == null) {
+                List<String> path = folderPaths.get(vo.getPointFolderId());
+                rtdpv = new RealTimeDataPointValue(vo, path == null ? new ArrayList<String>() : path);
+                add(rtdpv);
+            }
+            else {
+                RealTimeDataPointValue old = slots.get(slot);
+                unindex(old, slot);
+                Common.runtimeManager.removeDataPointListener(dataPointId, old);
+                // The hierarchy decides the folder of the point
+                rtdpv = new RealTimeDataPointValue(vo, new ArrayList<String>());
+                rtdpv.setPath(old.getPath());
+                slots.set(slot, rtdpv);
+                index(rtdpv, slot);
+            }
+        }
+        changed();
+    }
+
+    private void add(RealTimeDataPointValue rtdpv) {
+        int slot = slots.size();
+        slots.add(rtdpv);
+        slotsById.put(rtdpv.getDataPointId(), slot);
+        index(rtdpv, slot);
+    }
+
+    private void remove(int dataPointId) {
+        Integer slot = slotsById.remove(dataPointId);
+        if (slot == null)
+            return;
+        RealTimeDataPointValue rtdpv = slots.set(slot, null);
+        unindex(rtdpv, slot);
+        Common.runtimeManager.removeDataPointListener(dataPointId, rtdpv);
+    }
+
+    private void clear() {
+        for (RealTimeDataPointValue rtdpv : slots) {
+            if (rtdpv != null)
+                Common.runtimeManager.removeDataPointListener(rtdpv.getDataPointId(), rtdpv);
+        }
+        slots.clear();
+        slotsById.clear();
+        groupSlots.clear();
+        allSlots.clear();
+        folderPaths.clear();
+        changed();
+    }
+
+    private void index(RealTimeDataPointValue rtdpv, int slot) {
+        allSlots.set(slot);
+        for (int groupId : groupIds(rtdpv)) {
+            BitSet group = groupSlots.get(groupId);
+            if (group == null) {
+                group = new BitSet();
+                groupSlots.put(groupId, group);
+            }
+            group.set(slot);
+        }
+    }
+
+    private void unindex(RealTimeDataPointValue rtdpv, int slot) {
+        allSlots.clear(slot);
+        for (int groupId : groupIds(rtdpv)) {
+            BitSet group = groupSlots.get(groupId);
+            if (group != null)
+                group.clear(slot);
+        }
+    }
+
+    private static int[] groupIds(RealTimeDataPointValue rtdpv) {
+        int[] read = rtdpv.getReadPermissionSet().getGroupIds();
+        int[] set = rtdpv.getSetPermissionSet().getGroupIds();
+        int[] ids = Arrays.copyOf(read, read.length + set.length);
+        System.arraycopy(set, 0, ids, read.length, set.length);
+        return ids;
+    }
+
+    /**
+     * The points changed, the views are made again
+     */
+    private void changed() {
+        views.clear();
+        pointsMonitor.setValue(allSlots.cardinality());
     }
 
     /**
@@ -120,10 +333,12 @@ public class RealTimeDataPointValueCache {
      * @param user
      * @return
      */
-    private static PointHierarchy createPointHierarchy(Translations translations) {
+    private PointHierarchy createPointHierarchy(Translations translations) {
 
         // Create a point hierarchy for the user.
         PointHierarchy ph = DataPointDao.instance.getPointHierarchy(true).copyFoldersOnly();
+        // Including the empty folders points may be saved into
+        fillFolderPaths(ph.getRoot(), new ArrayList<String>());
         List<DataPointVO> points = DataPointDao.instance
                 .getDataPoints(DataPointExtendedNameComparator.instance, false);
         for (DataPointVO point : points) {
@@ -134,25 +349,37 @@ public class RealTimeDataPointValueCache {
         return ph;
     }
 
-    private static void fillCache(PointFolder root, List<RealTimeDataPointValue> cache) {
-        recursivelyFillCache(root, root, cache);
+    private void fillCache(PointFolder root, PointFolder folder) {
+        List<DataPointSummary> points = new ArrayList<DataPointSummary>();
+        recursivelyCollectPoints(folder, points);
+        for (DataPointSummary summary : points) {
+            // Here we can add all points or just running ones
+            add(new RealTimeDataPointValue(summary, PointHierarchy.getPath(summary.getId(), root)));
+        }
     }
 
     /**
-     * Fill the real time cache from the point hierarchy
+     * Collect the points of the hierarchy in the order they are shown
      * 
-     * @param hierarchy
      * @param folder
+     * @param points
      */
-    private static void recursivelyFillCache(PointFolder root, PointFolder folder,
-            List<RealTimeDataPointValue> cache) {
-        for (DataPointSummary summary : folder.getPoints()) {
-            // Here we can add all points or just running ones
-            cache.add(new RealTimeDataPointValue(summary,
-                    PointHierarchy.getPath(summary.getId(), root)));
+    private static void recursivelyCollectPoints(PointFolder folder, List<DataPointSummary> points) {
+        points.addAll(folder.getPoints());
+        for (PointFolder subFolder : folder.getSubfolders()) {
+            recursivelyCollectPoints(subFolder, points);
         }
+    }
+
+    /**
+     * The names of the folders of each folder, for points saved into them
+     */
+    private void fillFolderPaths(PointFolder folder, List<String> path) {
+        folderPaths.put(folder.getId(), path);
         for (PointFolder subFolder : folder.getSubfolders()) {
-            recursivelyFillCache(root, subFolder, cache);
+            List<String> subPath = new ArrayList<String>(path);
+            subPath.add(subFolder.getName());
+            fillFolderPaths(subFolder, subPath);
         }
     }
 
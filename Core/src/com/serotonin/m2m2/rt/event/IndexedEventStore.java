@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.rt.event.type.EventType;
+
+/**
+ * Event instances indexed by their event type, by id and by the data point, data source and publisher
+ * they belong to, so looking up or cancelling events does not scan every event held.
+ *
+ * The type index is keyed by the event types themselves so it matches exactly the types their own
+ * equals does, e.g. audit events ignore the audit event id and data point events only compare the
+ * detector. Events are kept in the order they were added, lookups by type return the first added
+ * event whose type equals the one given.
+ *
+ * Not thread safe, the owner must guard access.
+ *
+ * @author Terry Packer
+ */
+public class IndexedEventStore {
+
+    //All events in the order added, each with the keys it was indexed under
+    private final LinkedHashMap<EventInstance, Indexed> events = new LinkedHashMap<EventInstance, Indexed>();
+    private final Map<EventType, List<EventInstance>> byType = new HashMap<EventType, List<EventInstance>>();
+    private final Map<Integer, EventInstance> byId = new HashMap<Integer, EventInstance>();
+    private final Map<Integer, List<EventInstance>> byDataPoint = new HashMap<Integer, List<EventInstance>>();
+    private final Map<Integer, List<EventInstance>> byDataSource = new HashMap<Integer, List<EventInstance>>();
+    private final Map<Integer, List<EventInstance>> byPublisher = new HashMap<Integer, List<EventInstance>>();
+    //Alarm level to number of events at that level
+    private final TreeMap<Integer, Integer> alarmLevels = new TreeMap<Integer, Integer>();
+
+    public void add(EventInstance evt) {
+        if (events.containsKey(evt))
+            return;
+        EventType type = evt.getEventType();
+        Indexed indexed = new Indexed(type, type.getDataPointId(), type.getDataSourceId(),
+                type.getPublisherId());
+        events.put(evt, indexed);
+
+        addTo(byType, indexed.key, evt);
+        //Saved events have unique ids, unsaved (do not log) events are not looked up by id
+        if (evt.getId() != Common.NEW_ID)
+            byId.put(evt.getId(), evt);
+        if (indexed.dataPointId != -1)
+            addTo(byDataPoint, indexed.dataPointId, evt);
+        if (indexed.dataSourceId != -1)
+            addTo(byDataSource, indexed.dataSourceId, evt);
+        if (indexed.publisherId != -1)
+            addTo(byPublisher, indexed.publisherId, evt);
+
+        Integer count = alarmLevels.get(evt.getAlarmLevel());
+        alarmLevels.put(evt.getAlarmLevel(), count == null ? 1 : count + 1);
+    }
+
+    public void addAll(List<EventInstance> evts) {
+        for (EventInstance evt : evts)
+            add(evt);
+    }
+
+    /**
+     * @return the first event whose type equals the one given, or null if there is none
+     */
+    public EventInstance get(EventType type) {
+        List<EventInstance> list = byType.get(type);
+        return list == null ? null : list.get(0);
+    }
+
+    /**
+     * @return all events whose type equals the one given
+     */
+    public List<EventInstance> getAll(EventType type) {
+        List<EventInstance> list = byType.get(type);
+        if (list == null)
+            return Collections.emptyList();
+        return new ArrayList<EventInstance>(list);
+    }
+
+    public EventInstance getById(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * @return all events in the order they were added
+     */
+    public List<EventInstance> getAll() {
+        return new ArrayList<EventInstance>(events.keySet());
+    }
+
+    /**
+     * Remove the first event whose type equals the one given
+     * @return the event removed or null if there is none
+     */
+    public EventInstance remove(EventType type) {
+        EventInstance e = get(type);
+        if (e != null)
+            remove(e);
+        return e;
+    }
+
+    /**
+     * Remove all events for a data point
+     * @return the events removed in the order they were added
+     */
+    public List<EventInstance> removeForDataPoint(int dataPointId) {
+        return removeAll(byDataPoint.get(dataPointId));
+    }
+
+    /**
+     * Remove all events for a data source
+     * @return the events removed in the order they were added
+     */
+    public List<EventInstance> removeForDataSource(int dataSourceId) {
+        return removeAll(byDataSource.get(dataSourceId));
+    }
+
+    /**
+     * Remove all events for a publisher
+     * @return the events removed in the order they were added
+     */
+    public List<EventInstance> removeForPublisher(int publisherId) {
+        return removeAll(byPublisher.get(publisherId));
+    }
+
+    /**
+     * Remove every event matching the filter, this scans all events
+     * @return the events removed in the order they were added
+     */
+    public List<EventInstance> removeIf(Predicate<EventInstance> filter) {
+        List<EventInstance> removed = new ArrayList<EventInstance>();
+        Iterator<Entry<EventInstance, Indexed>> it = events.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<EventInstance, Indexed> entry = it.next();
+            if (filter.test(entry.getKey())) {
+                it.remove();
+                unindex(entry.getKey(), entry.getValue());
+                removed.add(entry.getKey());
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove an event
+     * @return true if the event was held
+     */
+    public boolean remove(EventInstance evt) {
+        Indexed indexed = events.remove(evt);
+        if (indexed == null)
+            return false;
+        unindex(evt, indexed);
+        return true;
+    }
+
+    public void clear() {
+        events.clear();
+        byType.clear();
+        byId.clear();
+        byDataPoint.clear();
+        byDataSource.clear();
+        byPublisher.clear();
+        alarmLevels.clear();
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    /**
+     * @return the highest alarm level of any event held, or AlarmLevels.NONE if there are none above it
+     */
+    public int getHighestAlarmLevel() {
+        if (alarmLevels.isEmpty())
+            return AlarmLevels.NONE;
+        return Math.max(AlarmLevels.NONE, alarmLevels.lastKey());
+    }
+
+    private List<EventInstance> removeAll(List<EventInstance> indexed) {
+        if (indexed == null)
+            return new ArrayList<EventInstance>();
+        //Copy as removing unindexes from the list we were given
+        List<EventInstance> removed = new ArrayList<EventInstance>(indexed);
+        for (EventInstance e : removed)
+            remove(e);
+        return removed;
+    }
+
+    private void unindex(EventInstance evt, Indexed indexed) {
+        removeFrom(byType, indexed.key, evt);
+        if (byId.get(evt.getId()) == evt)
+            byId.remove(evt.getId());
+        if (indexed.dataPointId != -1)
+            removeFrom(byDataPoint, indexed.dataPointId, evt);
+        if (indexed.dataSourceId != -1)
+            removeFrom(byDataSource, indexed.dataSourceId, evt);
+        if (indexed.publisherId != -1)
+            removeFrom(byPublisher, indexed.publisherId, evt);
+
+        int count = alarmLevels.get(evt.getAlarmLevel());
+        if (count == 1)
+            alarmLevels.remove(evt.getAlarmLevel());
+        else
+            alarmLevels.put(evt.getAlarmLevel(), count - 1);
+    }
+
+    private static <K> void addTo(Map<K, List<EventInstance>> index, K key, EventInstance evt) {
+        List<EventInstance> list = index.get(key);
+        if (list == null) {
+            list = new ArrayList<EventInstance>(2);
+            index.put(key, list);
+        }
+        list.add(evt);
+    }
+
+    private static <K> void removeFrom(Map<K, List<EventInstance>> index, K key, EventInstance evt) {
+        List<EventInstance> list = index.get(key);
+        if (list == null)
+            return;
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == evt) {
+                list.remove(i);
+                break;
+            }
+        }
+        if (list.isEmpty())
+            index.remove(key);
+    }
+
+    /**
+     * Keys an event was indexed under, kept so it can be removed from the same
+     * entries even if its type would now answer differently. Event types are not
+     * changed once raised so the type keeps its hash code.
+     */
+    private static class Indexed {
+        final EventType key;
+        final int dataPointId;
+        final int dataSourceId;
+        final int publisherId;
+
+        Indexed(EventType key, int dataPointId, int dataSourceId, int publisherId) {
+            this.key = key;
+            this.dataPointId = dataPointId;
+            this.dataSourceId = dataSourceId;
+            this.publisherId = publisherId;
+        }
+    }
+}
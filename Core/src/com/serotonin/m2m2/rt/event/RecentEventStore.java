@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.event;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.event.type.EventType;
+
+/**
+ * Recently raised events that do not return to normal, used to rate limit them.  An event is
+ * recent until period ms after its active time.
+ *
+ * Events are held in an IndexedEventStore and also in buckets of their active time, so expired
+ * events are evicted a bucket at a time instead of checking every event.
+ *
+ * Not thread safe, the owner must guard access.
+ *
+ * @author Terry Packer
+ */
+public class RecentEventStore {
+
+    private final long period;
+    private final long bucketSize;
+    private final IndexedEventStore events = new IndexedEventStore();
+    //Bucket number (active time / bucketSize) to the events active in it
+    private final TreeMap<Long, Set<EventInstance>> buckets = new TreeMap<Long, Set<EventInstance>>();
+
+    /**
+     * @param period ms an event remains recent
+     * @param bucketCount number of buckets the period is split into
+     */
+    public RecentEventStore(long period, int bucketCount) {
+        this.period = period;
+        this.bucketSize = Math.max(1, period / bucketCount);
+    }
+
+    public void add(EventInstance evt) {
+        events.add(evt);
+        Long bucket = bucketOf(evt);
+        Set<EventInstance> set = buckets.get(bucket);
+        if (set == null) {
+            set = new LinkedHashSet<EventInstance>();
+            buckets.put(bucket, set);
+        }
+        set.add(evt);
+    }
+
+    /**
+     * Evict expired events then check for a recent event of the type with the message
+     * @param now
+     * @return true if there is one
+     */
+    public boolean isRecent(EventType type, TranslatableMessage message, long now) {
+        long cutoff = now - period;
+        evict(cutoff);
+        //The oldest bucket can still hold expired events
+        for (EventInstance e : events.getAll(type)) {
+            if (e.getActiveTimestamp() >= cutoff && e.getMessage().equals(message))
+                return true;
+        }
+        return false;
+    }
+
+    public List<EventInstance> removeForDataPoint(int dataPointId) {
+        return unbucket(events.removeForDataPoint(dataPointId));
+    }
+
+    public List<EventInstance> removeForDataSource(int dataSourceId) {
+        return unbucket(events.removeForDataSource(dataSourceId));
+    }
+
+    public List<EventInstance> removeForPublisher(int publisherId) {
+        return unbucket(events.removeForPublisher(publisherId));
+    }
+
+    public List<EventInstance> removeIf(Predicate<EventInstance> filter) {
+        return unbucket(events.removeIf(filter));
+    }
+
+    public void clear() {
+        events.clear();
+        buckets.clear();
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    /**
+     * Remove every bucket that only holds events active before the cutoff
+     * @param cutoff
+     */
+    private void evict(long cutoff) {
+        SortedMap<Long, Set<EventInstance>> expired = buckets.headMap(Math.floorDiv(cutoff, bucketSize));
+        for (Set<EventInstance> set : expired.values())
+            for (EventInstance e : set)
+                events.remove(e);
+        expired.clear();
+    }
+
+    private List<EventInstance> unbucket(List<EventInstance> removed) {
+        if (removed.isEmpty())
+            return Collections.emptyList();
+        for (EventInstance e : removed) {
+            Long bucket = bucketOf(e);
+            Set<EventInstance> set = buckets.get(bucket);
+            if (set != null) {
+                set.remove(e);
+                if (set.isEmpty())
+                    buckets.remove(bucket);
+            }
+        }
+        return removed;
+    }
+
+    private Long bucketOf(EventInstance evt) {
+        return Math.floorDiv(evt.getActiveTimestamp(), bucketSize);
+    }
+}
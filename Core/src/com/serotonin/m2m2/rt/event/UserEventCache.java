@@ -109,6 +109,19 @@ public class UserEventCache extends TimeoutClient{
         });
         return c.getEvents();
     }
+
+    /**
+     * Get the counts of the events by alarm level, if no events exist in cache then an entry is created.
+     * @param userId
+     * @return
+     */
+    public UserEventSummary getSummary(Integer userId) {
+        UserEventCacheEntry c = cacheMap.computeIfAbsent(userId, (k) -> {
+        	List<EventInstance> userEvents = dao.getAllUnsilencedEvents(userId);
+        	return new UserEventCacheEntry(userEvents);
+        });
+        return c.getSummary();
+    }
     
     /**
      * 
@@ -250,11 +263,23 @@ public class UserEventCache extends TimeoutClient{
         private volatile long lastAccessed = Common.timer.currentTimeMillis();
         private List<EventInstance> events;
         private ReadWriteLock lock;
+        //Changed along with the events while holding the write lock
+        private final UserEventSummary summary;
         
         protected UserEventCacheEntry(List<EventInstance> events) {
         	//Make a local copy, we don't know what will go on with the list outside our little world.
             this.events = new ArrayList<>(events);
             this.lock = new ReentrantReadWriteLock();
+            this.summary = new UserEventSummary(this.events);
+        }
+
+        /**
+         * Read without locking
+         * @return
+         */
+        public UserEventSummary getSummary() {
+        	this.lastAccessed = Common.timer.currentTimeMillis();
+        	return summary;
         }
         
         /**
@@ -275,6 +300,7 @@ public class UserEventCache extends TimeoutClient{
         	this.lock.writeLock().lock();
         	try{
         		this.events.add(event);
+        		this.summary.added(event);
         	}finally{
         		this.lock.writeLock().unlock();
         		this.lastAccessed = Common.timer.currentTimeMillis();
@@ -292,6 +318,7 @@ public class UserEventCache extends TimeoutClient{
 	        		EventInstance ue  = it.next();
 	        		if(ue.getId() == evt.getId()){
 	        			it.set(evt);
+	        			this.summary.replaced(evt);
 	        			break;
 	        		}
 	        	}
@@ -313,6 +340,7 @@ public class UserEventCache extends TimeoutClient{
 	        		EventInstance ue  = it.next();
 	        		if(ue.getId() == evt.getId()){
 	        			it.remove();
+	        			this.summary.removed(ue, this.events);
 	        			break;
 	        		}
 	        	}
@@ -332,6 +360,7 @@ public class UserEventCache extends TimeoutClient{
 	        			it.remove();
 	        		}
 	        	}
+	        	this.summary.reset(this.events);
 			}finally{
 				this.lock.writeLock().unlock();
 				this.lastAccessed = Common.timer.currentTimeMillis();
@@ -348,6 +377,7 @@ public class UserEventCache extends TimeoutClient{
 	        			it.remove();
 	        		}
 	        	}
+	        	this.summary.reset(this.events);
 			}finally{
         		this.lock.writeLock().unlock();
         		this.lastAccessed = Common.timer.currentTimeMillis();
@@ -364,6 +394,7 @@ public class UserEventCache extends TimeoutClient{
 	        			it.remove();
 	        		}
 	        	}
+	        	this.summary.reset(this.events);
 			}finally{
         		this.lock.writeLock().unlock();
         		this.lastAccessed = Common.timer.currentTimeMillis();
@@ -376,6 +407,7 @@ public class UserEventCache extends TimeoutClient{
 			this.lock.writeLock().lock();
 			try{
 				this.events.clear();
+				this.summary.reset(this.events);
 			}finally{
         		this.lock.writeLock().unlock();
         		this.lastAccessed = Common.timer.currentTimeMillis();
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.event;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts of the unsilenced events of a user by alarm level along with the most recent event of each level.
+ *
+ * Kept up to date by the UserEventCache as it changes the user's events, so that reading it takes the same
+ * time however many events there are.  Writes are made while holding the cache entry's write lock, reads do
+ * not lock and so may see a change to one level before a change to another.
+ *
+ * @author Terry Packer
+ */
+public class UserEventSummary {
+
+    // DO_NOT_LOG is kept after LIFE_SAFETY
+    private static final int LEVELS = AlarmLevels.LIFE_SAFETY + 2;
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(LEVELS);
+    private final AtomicReferenceArray<EventInstance> latest = new AtomicReferenceArray<EventInstance>(LEVELS);
+
+    UserEventSummary(List<EventInstance> events) {
+        reset(events);
+    }
+
+    /**
+     * @param alarmLevel
+     * @return the count of the events of the level
+     */
+    public int getCount(int alarmLevel) {
+        int index = index(alarmLevel);
+        return index == -1 ? 0 : counts.get(index);
+    }
+
+    /**
+     * @param alarmLevel
+     * @return the most recently raised event of the level or null if there are none
+     */
+    public EventInstance getLatest(int alarmLevel) {
+        int index = index(alarmLevel);
+        return index == -1 ? null : latest.get(index);
+    }
+
+    /**
+     * @return the count of all the events
+     */
+    public int getTotal() {
+        int total = 0;
+        for (int i = 0; i < LEVELS; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * @return the highest alarm level of the events, DO_NOT_LOG if there are none
+     */
+    public int getHighestAlarmLevel() {
+        for (int level = AlarmLevels.LIFE_SAFETY; level >= AlarmLevels.NONE; level--) {
+            if (counts.get(level) > 0)
+                return level;
+        }
+        return AlarmLevels.DO_NOT_LOG;
+    }
+
+    //
+    // Updates, made by the UserEventCache holding the write lock of the events
+    //
+    void added(EventInstance evt) {
+        int index = index(evt.getAlarmLevel());
+        if (index == -1)
+            return;
+        counts.incrementAndGet(index);
+        EventInstance current = latest.get(index);
+        if (current == null || evt.getActiveTimestamp() >= current.getActiveTimestamp())
+            latest.set(index, evt);
+    }
+
+    void replaced(EventInstance evt) {
+        int index = index(evt.getAlarmLevel());
+        if (index == -1)
+            return;
+        EventInstance current = latest.get(index);
+        if (current != null && current.getId() == evt.getId())
+            latest.set(index, evt);
+    }
+
+    /**
+     * @param evt
+     * @param events the events without the removed one
+     */
+    void removed(EventInstance evt, List<EventInstance> events) {
+        int index = index(evt.getAlarmLevel());
+        if (index == -1)
+            return;
+        counts.decrementAndGet(index);
+        EventInstance current = latest.get(index);
+        if (current != null && current.getId() == evt.getId())
+            latest.set(index, findLatest(evt.getAlarmLevel(), events));
+    }
+
+    /**
+     * Count the events again, after removing many of them
+     * @param events
+     */
+    void reset(List<EventInstance> events) {
+        int[] newCounts = new int[LEVELS];
+        EventInstance[] newLatest = new EventInstance[LEVELS];
+        for (EventInstance evt : events) {
+            int index = index(evt.getAlarmLevel());
+            if (index == -1)
+                continue;
+            newCounts[index]++;
+            if (newLatest[index] == null || evt.getActiveTimestamp() >= newLatest[index].getActiveTimestamp())
+                newLatest[index] = evt;
+        }
+        for (int i = 0; i < LEVELS; i++) {
+            counts.set(i, newCounts[i]);
+            latest.set(i, newLatest[i]);
+        }
+    }
+
+    private static EventInstance findLatest(int alarmLevel, List<EventInstance> events) {
+        EventInstance found = null;
+        for (EventInstance evt : events) {
+            if (evt.getAlarmLevel() == alarmLevel
+                    && (found == null || evt.getActiveTimestamp() >= found.getActiveTimestamp()))
+                found = evt;
+        }
+        return found;
+    }
+
+    private static int index(int alarmLevel) {
+        if (alarmLevel == AlarmLevels.DO_NOT_LOG)
+            return LEVELS - 1;
+        if (alarmLevel < AlarmLevels.NONE || alarmLevel > AlarmLevels.LIFE_SAFETY)
+            return -1;
+        return alarmLevel;
+    }
+}
@@ -8,7 +8,9 @@ import java.io.File;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,11 +22,13 @@ import com.serotonin.m2m2.DataTypes;
 import com.serotonin.m2m2.db.dao.DataPointDao;
 import com.serotonin.m2m2.db.dao.DataSourceDao;
 import com.serotonin.m2m2.db.dao.PointValueDao;
+import com.serotonin.m2m2.db.dao.PointValuePartitions;
 import com.serotonin.m2m2.db.dao.SystemSettingsDao;
 import com.serotonin.m2m2.module.FiledataDefinition;
 import com.serotonin.m2m2.module.ModuleRegistry;
 import com.serotonin.m2m2.module.PurgeDefinition;
 import com.serotonin.m2m2.rt.RuntimeManager;
+import com.serotonin.m2m2.rt.dataImage.DataPointRT;
 import com.serotonin.m2m2.rt.dataImage.types.ImageValue;
 import com.serotonin.m2m2.rt.event.AlarmLevels;
 import com.serotonin.m2m2.rt.event.type.EventType;
@@ -32,6 +36,7 @@ import com.serotonin.m2m2.util.DateUtils;
 import com.serotonin.m2m2.vo.DataPointVO;
 import com.serotonin.m2m2.vo.dataSource.DataSourceVO;
 import com.serotonin.timer.CronTimerTrigger;
+import com.serotonin.timer.OneTimeTrigger;
 import com.serotonin.timer.TimerTask;
 
 public class DataPurge {
@@ -47,10 +52,16 @@ public class DataPurge {
     private long deletedFiles;
     private long deletedEvents;
     private final List<Long> fileIds = new ArrayList<Long>();
+    private final Map<Integer, DataSourceVO<?>> dataSources = new HashMap<Integer, DataSourceVO<?>>();
 
     public static void schedule() {
         try {
             Common.backgroundProcessing.schedule(new DataPurgeTask());
+
+            // Finish a purge that was stopped by a shutdown
+            Long unfinished = PointValuePurge.getUnfinishedRuntime();
+            if (unfinished != null)
+                Common.backgroundProcessing.schedule(new ResumeDataPurgeTask(unfinished));
         }
         catch (ParseException e) {
             throw new ShouldNeverHappenException(e);
@@ -62,6 +73,30 @@ public class DataPurge {
         executeImpl();
     }
 
+    /**
+     * Carry on with the point value purge that a shutdown stopped, from the first slice it had not
+     * completed and with the cutoffs of its runtime.  The rest of that purge had not started or has
+     * already run, so only the point values are purged.
+     * @param runtime of the unfinished purge
+     */
+    synchronized public void resume(long runtime) {
+        this.runtime = runtime;
+        Long unfinished = PointValuePurge.getUnfinishedRuntime();
+        if (unfinished == null || unfinished != runtime) {
+            log.info("Point value purge to resume has been replaced by a later purge, skipping.");
+            return;
+        }
+        if (!SystemSettingsDao.getBooleanValue(ENABLE_POINT_DATA_PURGE)
+                || Common.databaseProxy.getNoSQLProxy() != null
+                || Common.runtimeManager.getState() != RuntimeManager.RUNNING)
+            return;
+
+        log.info("Resuming point value purge");
+        boolean countPointValues = SystemSettingsDao.getBooleanValue(SystemSettingsDao.POINT_DATA_PURGE_COUNT);
+        purgeValues(dataPointDao.getDataPoints(null, false), countPointValues);
+        log.info("Point value purge resume ended, " + deletedSamples + " point samples deleted");
+    }
+
     private void executeImpl() {
         log.info("Data purge started");
 
@@ -71,8 +106,14 @@ public class DataPurge {
         if(purgePoints){
 	        // Get the data point information.
 	        List<DataPointVO> dataPoints = dataPointDao.getDataPoints(null, false);
-	        for (DataPointVO dataPoint : dataPoints)
-	            purgePoint(dataPoint, countPointValues);
+	        PointValuePartitions partitions = PointValuePartitions.get();
+	        if(partitions != null && Common.runtimeManager.getState() == RuntimeManager.RUNNING)
+	            dropPartitions(partitions, dataPoints, countPointValues);
+	        if(Common.databaseProxy.getNoSQLProxy() == null && Common.runtimeManager.getState() == RuntimeManager.RUNNING)
+	            purgePoints(dataPoints, countPointValues);
+	        else
+	            for (DataPointVO dataPoint : dataPoints)
+	                purgePoint(dataPoint, countPointValues);
 	        
 	        if(countPointValues)
 	        	deletedSamples += pointValueDao.deleteOrphanedPointValues();
@@ -99,6 +140,40 @@ public class DataPurge {
             def.execute(runtime);
     }
 
+    /**
+     * Purge the SQL point values of all the points together with the PointValuePurge
+     */
+    private void purgePoints(List<DataPointVO> dataPoints, boolean countPointValues) {
+        purgeValues(dataPoints, countPointValues);
+
+        // Get the point value ids of the remaining images
+        for (DataPointVO dataPoint : dataPoints) {
+            if (dataPoint.getLoggingType() != DataPointVO.LoggingTypes.NONE
+                    && dataPoint.getPointLocator().getDataTypeId() == DataTypes.IMAGE)
+                fileIds.addAll(pointValueDao.getFiledataIds(dataPoint.getId()));
+        }
+    }
+
+    private void purgeValues(List<DataPointVO> dataPoints, boolean countPointValues) {
+        Map<Integer, Long> cutoffs = new HashMap<Integer, Long>(dataPoints.size());
+        for (DataPointVO dataPoint : dataPoints) {
+            if (dataPoint.getLoggingType() == DataPointVO.LoggingTypes.NONE) {
+                // If there is no logging, then there should be no data, unless logging was just changed to none. In either
+                // case, it's ok to delete everything.
+                log.info("Purging all data for data point with id " + dataPoint.getId() + " because it is set to logging type NONE.");
+                cutoffs.put(dataPoint.getId(), Long.MAX_VALUE);
+            }
+            else
+                cutoffs.put(dataPoint.getId(), getCutoff(dataPoint));
+        }
+
+        long count = new PointValuePurge(runtime, cutoffs).execute();
+        if (countPointValues)
+            deletedSamples += count;
+        else if (count > 0)
+            anyDeletedSamples = true;
+    }
+
     private void purgePoint(DataPointVO dataPoint, boolean countPointValues) {
         if (dataPoint.getLoggingType() == DataPointVO.LoggingTypes.NONE){
             // If there is no logging, then there should be no data, unless logging was just changed to none. In either
@@ -114,39 +189,12 @@ public class DataPurge {
         	}
         }
         else {
-            // Determine the purging properties to use.
-            int purgeType;
-            int purgePeriod;
-
-            if (dataPoint.isPurgeOverride()) {
-                purgeType = dataPoint.getPurgeType();
-                purgePeriod = dataPoint.getPurgePeriod();
-            }
-            else {
-                // Check the data source level.
-                DataSourceVO<?> ds = DataSourceDao.instance.getDataSource(dataPoint.getDataSourceId());
-                if (ds.isPurgeOverride()) {
-                    purgeType = ds.getPurgeType();
-                    purgePeriod = ds.getPurgePeriod();
-                }
-                else {
-                    // Use the system settings.
-                    purgeType = SystemSettingsDao.getIntValue(SystemSettingsDao.POINT_DATA_PURGE_PERIOD_TYPE);
-                    purgePeriod = SystemSettingsDao.getIntValue(SystemSettingsDao.POINT_DATA_PURGE_PERIODS);
-                }
-            }
-
-            // No matter when this purge actually runs, we want it to act like it's midnight.
-            DateTime cutoff = new DateTime(runtime);
-            cutoff = DateUtils.truncateDateTime(cutoff, Common.TimePeriods.DAYS);
-            cutoff = DateUtils.minus(cutoff, purgeType, purgePeriod);
+            long cutoff = getCutoff(dataPoint);
             if (Common.runtimeManager.getState() == RuntimeManager.RUNNING) {
                 if (countPointValues)
-                    deletedSamples += Common.runtimeManager.purgeDataPointValues(dataPoint.getId(),
-                            cutoff.getMillis());
+                    deletedSamples += Common.runtimeManager.purgeDataPointValues(dataPoint.getId(), cutoff);
                 else {
-                    if (Common.runtimeManager.purgeDataPointValuesWithoutCount(dataPoint.getId(),
-                            cutoff.getMillis()))
+                    if (Common.runtimeManager.purgeDataPointValuesWithoutCount(dataPoint.getId(), cutoff))
                         anyDeletedSamples = true;
                 }
             }
@@ -157,6 +205,85 @@ public class DataPurge {
         }
     }
 
+    /**
+     * Drop the point value partitions older than the longest retention of any point, the
+     * per point purges then only delete from the partitions that remain before their cutoff
+     */
+    private void dropPartitions(PointValuePartitions partitions, List<DataPointVO> dataPoints, boolean countPointValues) {
+        try {
+            partitions.ensurePartitions(runtime);
+
+            long cutoff = Long.MAX_VALUE;
+            for (DataPointVO dataPoint : dataPoints) {
+                // Points that do not log purge all of their values
+                if (dataPoint.getLoggingType() != DataPointVO.LoggingTypes.NONE)
+                    cutoff = Math.min(cutoff, getCutoff(dataPoint));
+            }
+            if (cutoff == Long.MAX_VALUE)
+                cutoff = getCutoff(SystemSettingsDao.getIntValue(SystemSettingsDao.POINT_DATA_PURGE_PERIOD_TYPE),
+                        SystemSettingsDao.getIntValue(SystemSettingsDao.POINT_DATA_PURGE_PERIODS));
+
+            long dropped = partitions.dropPartitionsBefore(cutoff, countPointValues);
+            if (countPointValues)
+                deletedSamples += dropped;
+            else if (dropped > 0)
+                anyDeletedSamples = true;
+
+            // The partitions held values of every point, reset the caches of the enabled points
+            if (dropped > 0 && Common.runtimeManager.getState() == RuntimeManager.RUNNING) {
+                for (DataPointVO dataPoint : dataPoints) {
+                    DataPointRT rt = Common.runtimeManager.getDataPoint(dataPoint.getId());
+                    if (rt != null)
+                        rt.resetValues();
+                }
+            }
+        }
+        catch (Exception e) {
+            log.error("Failed to drop point value partitions, values will be purged row by row", e);
+        }
+    }
+
+    /**
+     * @return the time before which the values of the point are purged
+     */
+    private long getCutoff(DataPointVO dataPoint) {
+        // Determine the purging properties to use.
+        int purgeType;
+        int purgePeriod;
+
+        if (dataPoint.isPurgeOverride()) {
+            purgeType = dataPoint.getPurgeType();
+            purgePeriod = dataPoint.getPurgePeriod();
+        }
+        else {
+            // Check the data source level.
+            DataSourceVO<?> ds = dataSources.get(dataPoint.getDataSourceId());
+            if (ds == null) {
+                ds = DataSourceDao.instance.getDataSource(dataPoint.getDataSourceId());
+                dataSources.put(dataPoint.getDataSourceId(), ds);
+            }
+            if (ds.isPurgeOverride()) {
+                purgeType = ds.getPurgeType();
+                purgePeriod = ds.getPurgePeriod();
+            }
+            else {
+                // Use the system settings.
+                purgeType = SystemSettingsDao.getIntValue(SystemSettingsDao.POINT_DATA_PURGE_PERIOD_TYPE);
+                purgePeriod = SystemSettingsDao.getIntValue(SystemSettingsDao.POINT_DATA_PURGE_PERIODS);
+            }
+        }
+
+        return getCutoff(purgeType, purgePeriod);
+    }
+
+    private long getCutoff(int purgeType, int purgePeriod) {
+        // No matter when this purge actually runs, we want it to act like it's midnight.
+        DateTime cutoff = new DateTime(runtime);
+        cutoff = DateUtils.truncateDateTime(cutoff, Common.TimePeriods.DAYS);
+        cutoff = DateUtils.minus(cutoff, purgeType, purgePeriod);
+        return cutoff.getMillis();
+    }
+
     private void filedataPurge() {
         // The file ids for points will have been filled in by the purge point method calls. Now get the ids from 
         // elsewhere.
@@ -312,4 +439,22 @@ public class DataPurge {
             new DataPurge().execute(runtime);
         }
     }
+
+    /**
+     * Resumes the point value purge of a purge that did not finish
+     */
+    static class ResumeDataPurgeTask extends TimerTask {
+        private final long purgeRuntime;
+
+        ResumeDataPurgeTask(long purgeRuntime) {
+            // Give the runtime time to start, points are only purged while it is running
+            super(new OneTimeTrigger(60000), "Resume data purge task", "DataPurgeResume", 0);
+            this.purgeRuntime = purgeRuntime;
+        }
+
+        @Override
+        public void run(long runtime) {
+            new DataPurge().resume(purgeRuntime);
+        }
+    }
 }
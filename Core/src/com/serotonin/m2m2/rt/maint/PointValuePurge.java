@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.maint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.infiniteautomation.mango.monitor.IntegerMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitorOwner;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.dao.PointValueDaoSQL;
+import com.serotonin.m2m2.db.dao.SystemSettingsDao;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.RuntimeManager;
+import com.serotonin.m2m2.rt.dataImage.DataPointRT;
+
+/**
+ * Purges the SQL point values of many points at once for the DataPurge.
+ *
+ * Points are taken in id order in slices, the points of a slice that share a cutoff are purged
+ * with one ranged delete that is run in chunks.  Slices run on a small pool of workers and the
+ * chunks are throttled to a budget of rows per second, workers also wait while the point value
+ * write behind has too many values waiting.
+ *
+ * The id of the last point of the completed slices is saved as a system setting with the runtime of
+ * the purge, a purge stopped by a shutdown carries on from there with the same runtime on the next start.
+ *
+ * @author Terry Packer
+ */
+class PointValuePurge {
+
+    private static final Log LOG = LogFactory.getLog(PointValuePurge.class);
+
+    //System setting of the purge to resume, runtime:point id
+    static final String RESUME_SETTING = "dataPurgeResume";
+
+    private static final int THREADS = Math.max(1, Common.envProps.getInt("purge.threads", 2));
+    private static final int SLICE_SIZE = Math.max(1, Common.envProps.getInt("purge.pointsPerDelete", 500));
+    private static final int CHUNK_SIZE = Math.max(1, Common.envProps.getInt("purge.chunkSize", 10000));
+    private static final int MAX_ROWS_PER_SECOND = Common.envProps.getInt("purge.maxRowsPerSecond", 0);
+    private static final int BACKOFF_ENTRIES = Common.envProps.getInt("purge.backoffEntries", 100000);
+    private static final int BACKOFF_MS = Common.envProps.getInt("purge.backoffMs", 1000);
+
+    public static final String ROWS_PER_SECOND_MONITOR_ID = "com.serotonin.m2m2.rt.maint.DataPurge.ROWS_PER_SECOND_MONITOR";
+    public static final String POINTS_REMAINING_MONITOR_ID = "com.serotonin.m2m2.rt.maint.DataPurge.POINTS_REMAINING_MONITOR";
+    public static final String ETA_MONITOR_ID = "com.serotonin.m2m2.rt.maint.DataPurge.ETA_MONITOR";
+
+    private static final ValueMonitorOwner valueOwner = new ValueMonitorOwner() {
+        @Override
+        public void reset(String id) {
+            //Only known to a running purge, which updates them as it goes
+        }
+    };
+    private static final IntegerMonitor ROWS_PER_SECOND_MONITOR = new IntegerMonitor(ROWS_PER_SECOND_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.PURGE_ROWS_PER_SECOND"), valueOwner);
+    private static final IntegerMonitor POINTS_REMAINING_MONITOR = new IntegerMonitor(POINTS_REMAINING_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.PURGE_POINTS_REMAINING"), valueOwner);
+    private static final IntegerMonitor ETA_MONITOR = new IntegerMonitor(ETA_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.PURGE_ETA"), valueOwner);
+
+    static {
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(ROWS_PER_SECOND_MONITOR);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(POINTS_REMAINING_MONITOR);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(ETA_MONITOR);
+    }
+
+    private final PointValueDaoSQL dao = new PointValueDaoSQL();
+    private final long runtime;
+    private final List<Slice> slices = new ArrayList<Slice>();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicInteger pointsDone = new AtomicInteger();
+    private int totalPoints;
+    private long started;
+    //Index of the first slice not yet completed, guarded by this
+    private int nextIncomplete;
+    private volatile boolean stopped;
+
+    /**
+     * @param runtime of the purge
+     * @param cutoffs point id to the time its values are purged before
+     */
+    PointValuePurge(long runtime, Map<Integer, Long> cutoffs) {
+        this.runtime = runtime;
+
+        int resumeAfter = getResumePoint(runtime);
+        TreeMap<Integer, Long> ordered = new TreeMap<Integer, Long>(cutoffs).tailMap(resumeAfter, false);
+        if (resumeAfter > 0)
+            LOG.info("Resuming point value purge after point id " + resumeAfter);
+
+        Slice slice = null;
+        for (Map.Entry<Integer, Long> entry : ordered.entrySet()) {
+            if (slice == null || slice.size == SLICE_SIZE) {
+                slice = new Slice();
+                slices.add(slice);
+            }
+            slice.add(entry.getKey(), entry.getValue());
+            totalPoints++;
+        }
+    }
+
+    /**
+     * The id of the last point purged by an unfinished purge with the runtime
+     * @param runtime
+     * @return the id or 0 to purge every point
+     */
+    static int getResumePoint(long runtime) {
+        String value = SystemSettingsDao.getValue(RESUME_SETTING, null);
+        if (value == null)
+            return 0;
+        String[] parts = value.split(":");
+        try {
+            if (parts.length == 2 && Long.parseLong(parts[0]) == runtime)
+                return Integer.parseInt(parts[1]);
+        }
+        catch (NumberFormatException e) {
+            LOG.warn("Ignoring invalid point value purge resume setting " + value);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the runtime of a purge that did not finish or null
+     */
+    static Long getUnfinishedRuntime() {
+        String value = SystemSettingsDao.getValue(RESUME_SETTING, null);
+        if (value == null)
+            return null;
+        try {
+            return Long.parseLong(value.split(":")[0]);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Purge the values, only one purge runs at a time
+     * @return number of values deleted
+     */
+    long execute() {
+        synchronized (PointValuePurge.class) {
+            if (slices.isEmpty()) {
+                finish();
+                return 0;
+            }
+            saveResumePoint(getResumePoint(runtime));
+
+            started = Common.timer.currentTimeMillis();
+            POINTS_REMAINING_MONITOR.setValue(totalPoints);
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(THREADS, slices.size()),
+                    new MangoThreadFactory("purge", Thread.NORM_PRIORITY));
+            try {
+                List<Future<?>> futures = new ArrayList<Future<?>>(slices.size());
+                for (final Slice slice : slices) {
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            purge(slice);
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    }
+                    catch (ExecutionException e) {
+                        LOG.error("Point value purge failed", e.getCause());
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                stopped = true;
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                executor.shutdownNow();
+                ROWS_PER_SECOND_MONITOR.setValue(0);
+                POINTS_REMAINING_MONITOR.setValue(0);
+                ETA_MONITOR.setValue(0);
+            }
+
+            long elapsed = Common.timer.currentTimeMillis() - started;
+            if (nextIncomplete == slices.size())
+                finish();
+            else
+                LOG.info("Point value purge stopped after " + pointsDone.get() + " of " + totalPoints
+                        + " points, it will resume on the next start");
+            LOG.info("Point value purge deleted " + deleted.get() + " values from " + pointsDone.get()
+                    + " points in " + elapsed + "ms");
+            return deleted.get();
+        }
+    }
+
+    private void purge(Slice slice) {
+        try {
+            for (Map.Entry<Long, List<Integer>> group : slice.groups.entrySet()) {
+                long count = 0;
+                try {
+                    while (true) {
+                        if (stopped || Common.runtimeManager.getState() != RuntimeManager.RUNNING) {
+                            stopped = true;
+                            return;
+                        }
+                        long chunk = dao.deletePointValuesBefore(group.getValue(), group.getKey(), CHUNK_SIZE);
+                        count += chunk;
+                        deleted.addAndGet(chunk);
+                        throttle();
+                        if (chunk < CHUNK_SIZE)
+                            break;
+                    }
+                }
+                finally {
+                    if (count > 0)
+                        dao.pointValuesDeletedBefore(group.getValue(), group.getKey());
+                }
+
+                if (count > 0) {
+                    // Reset the caches of the enabled points
+                    for (Integer id : group.getValue()) {
+                        DataPointRT rt = Common.runtimeManager.getDataPoint(id);
+                        if (rt != null)
+                            rt.resetValues();
+                    }
+                }
+                pointsDone.addAndGet(group.getValue().size());
+                updateMonitors();
+            }
+            complete(slice);
+        }
+        catch (InterruptedException e) {
+            stopped = true;
+        }
+    }
+
+    /**
+     * Wait while the write behind is backed up and to keep to the rows per second budget
+     * @throws InterruptedException
+     */
+    private void throttle() throws InterruptedException {
+        ValueMonitor<?> entries = Common.MONITORED_VALUES.getValueMonitor(PointValueDaoSQL.ENTRIES_MONITOR_ID);
+        while (BACKOFF_ENTRIES > 0 && entries != null && entries.intValue() > BACKOFF_ENTRIES && !stopped)
+            Thread.sleep(BACKOFF_MS);
+
+        if (MAX_ROWS_PER_SECOND > 0) {
+            long wait = started + deleted.get() * 1000 / MAX_ROWS_PER_SECOND - Common.timer.currentTimeMillis();
+            if (wait > 0)
+                Thread.sleep(wait);
+        }
+    }
+
+    private void updateMonitors() {
+        long elapsed = Math.max(1, Common.timer.currentTimeMillis() - started);
+        int done = pointsDone.get();
+        int remaining = totalPoints - done;
+        ROWS_PER_SECOND_MONITOR.setValue((int) (deleted.get() * 1000 / elapsed));
+        POINTS_REMAINING_MONITOR.setValue(remaining);
+        ETA_MONITOR.setValue(done == 0 ? 0 : (int) (elapsed * remaining / done / 1000));
+    }
+
+    /**
+     * Mark the slice completed and save the last point of the completed slices before any that are not
+     */
+    private synchronized void complete(Slice slice) {
+        slice.completed = true;
+        int first = nextIncomplete;
+        while (nextIncomplete < slices.size() && slices.get(nextIncomplete).completed)
+            nextIncomplete++;
+        if (nextIncomplete > first && nextIncomplete < slices.size())
+            saveResumePoint(slices.get(nextIncomplete - 1).lastId);
+    }
+
+    private void saveResumePoint(int id) {
+        SystemSettingsDao.instance.setValue(RESUME_SETTING, runtime + ":" + id);
+    }
+
+    private void finish() {
+        if (SystemSettingsDao.getValue(RESUME_SETTING, null) != null)
+            SystemSettingsDao.instance.setValue(RESUME_SETTING, null);
+    }
+
+    /**
+     * Points with consecutive ids grouped by their cutoff
+     */
+    private static class Slice {
+        final Map<Long, List<Integer>> groups = new TreeMap<Long, List<Integer>>();
+        int size;
+        int lastId;
+        volatile boolean completed;
+
+        void add(int id, long cutoff) {
+            List<Integer> ids = groups.get(cutoff);
+            if (ids == null) {
+                ids = new ArrayList<Integer>();
+                groups.put(cutoff, ids);
+            }
+            ids.add(id);
+            size++;
+            lastId = id;
+        }
+    }
+}
@@ -4,105 +4,356 @@
  */
 package com.serotonin.m2m2.rt.publish;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.infiniteautomation.mango.monitor.AtomicIntegerMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitorOwner;
 import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.i18n.TranslatableMessageParseException;
+import com.serotonin.m2m2.rt.dataImage.AnnotatedPointValueTime;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.types.AlphanumericValue;
+import com.serotonin.m2m2.rt.dataImage.types.BinaryValue;
+import com.serotonin.m2m2.rt.dataImage.types.DataValue;
+import com.serotonin.m2m2.rt.dataImage.types.ImageValue;
+import com.serotonin.m2m2.rt.dataImage.types.MultistateValue;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
 import com.serotonin.m2m2.vo.publish.PublishedPointVO;
+import com.serotonin.util.queue.FileBackedQueue;
+import com.serotonin.util.queue.ObjectQueue;
 
 /**
+ * Entries waiting to be sent by a publisher, held in a ring buffer so the size, taking a batch and
+ * removing a sent batch do not walk the queue.
+ *
+ * Once the queue holds more than the discard size the oldest tenth of it is dropped in one go. With
+ * overflow enabled in env.properties, entries past the overflow threshold are written to disk in blocks
+ * instead of held in memory and read back in order as the memory queue is sent.
+ *
+ * Publishers that only send the latest value of a point add to a slot per point instead, the slots are
+ * moved into the queue when the send thread takes the next entries.
+ *
  * @author Matthew Lohbihler
  */
 public class PublishQueue<T extends PublishedPointVO> {
     private static final Log LOG = LogFactory.getLog(PublishQueue.class);
     private static final long SIZE_CHECK_DELAY = 5000;
 
-    protected final ConcurrentLinkedQueue<PublishQueueEntry<T>> queue = new ConcurrentLinkedQueue<PublishQueueEntry<T>>();
+    private static final boolean OVERFLOW = Common.envProps.getBoolean("publisher.queue.overflow", false);
+    private static final int OVERFLOW_THRESHOLD = Common.envProps.getInt("publisher.queue.overflowThreshold", 100000);
+    private static final int OVERFLOW_BLOCK_SIZE = Common.envProps.getInt("publisher.queue.overflowBlockSize", 10000);
+
+    //Guarded by this
+    private final ObjectQueue<PublishQueueEntry<T>> queue = new ObjectQueue<PublishQueueEntry<T>>();
     private final PublisherRT<T> owner;
     private final int warningSize;
     private final int dewarningSize;
     private final int discardSize;
+    private final int discardTo;
     private boolean warningActive = false;
     private long lastSizeCheck;
 
+    //Entries written to disk after those in memory, null unless overflow is enabled
+    private final FileBackedQueue<OverflowEntry> overflow;
+    private final int overflowThreshold;
+    private final Map<Integer, T> overflowPoints;
+    private int overflowSize;
+
+    //Latest value of each point not yet moved into the queue, guarded by itself
+    private final LinkedHashMap<T, PointValueTime> latest = new LinkedHashMap<T, PointValueTime>();
+
+    private final String coalescedMonitorId;
+    private final String queuedMonitorId;
+    private final String sentMonitorId;
+    private final ValueMonitorOwner monitorOwner = new ValueMonitorOwner() {
+        @Override
+        public void reset(String id) {
+            if (coalescedMonitorId.equals(id))
+                coalescedMonitor.setValue(0);
+            else if (queuedMonitorId.equals(id))
+                queuedMonitor.setValue(0);
+            else if (sentMonitorId.equals(id))
+                sentMonitor.setValue(0);
+        }
+    };
+    private final AtomicIntegerMonitor coalescedMonitor;
+    private final AtomicIntegerMonitor queuedMonitor;
+    private final AtomicIntegerMonitor sentMonitor;
+
     public PublishQueue(PublisherRT<T> owner, int warningSize, int discardSize) {
+        this(owner, warningSize, discardSize, OVERFLOW ? new File(Common.envProps.getString("publisher.queue.overflowDirectory",
+                Common.MA_HOME + "/databases/publisherQueue"), Integer.toString(owner.getId())) : null,
+                OVERFLOW_THRESHOLD, OVERFLOW_BLOCK_SIZE);
+    }
+
+    /**
+     * @param overflowDirectory where entries past the overflow threshold are written or null to keep them all in memory
+     */
+    PublishQueue(PublisherRT<T> owner, int warningSize, int discardSize, File overflowDirectory, int overflowThreshold,
+            int overflowBlockSize) {
         this.owner = owner;
         this.warningSize = warningSize;
         this.dewarningSize = (int) (warningSize * 0.9); // Deactivate the size warning at 90% of the warning size.
         this.discardSize = discardSize;
+        this.discardTo = discardSize - Math.max(1, discardSize / 10);
+
+        this.overflowThreshold = overflowThreshold;
+        if (overflowDirectory != null) {
+            overflow = new FileBackedQueue<OverflowEntry>(overflowBlockSize, overflowDirectory);
+            overflowPoints = new HashMap<Integer, T>();
+            for (T vo : owner.getVo().getPoints())
+                overflowPoints.put(vo.getDataPointId(), vo);
+            // Entries left by the last run, counted as they are read back
+            overflowSize = overflow.size();
+        }
+        else {
+            overflow = null;
+            overflowPoints = null;
+        }
+
+        String monitorIdPrefix = "com.serotonin.m2m2.rt.publish.PublishQueue." + owner.getId() + ".";
+        coalescedMonitorId = monitorIdPrefix + "COALESCED";
+        queuedMonitorId = monitorIdPrefix + "QUEUED";
+        sentMonitorId = monitorIdPrefix + "SENT";
+        String name = owner.getVo().getName();
+        coalescedMonitor = new AtomicIntegerMonitor(coalescedMonitorId,
+                new TranslatableMessage("internal.monitor.PUBLISHER_COALESCED", name), monitorOwner);
+        queuedMonitor = new AtomicIntegerMonitor(queuedMonitorId,
+                new TranslatableMessage("internal.monitor.PUBLISHER_QUEUED", name), monitorOwner);
+        sentMonitor = new AtomicIntegerMonitor(sentMonitorId,
+                new TranslatableMessage("internal.monitor.PUBLISHER_SENT", name), monitorOwner);
+    }
+
+    /**
+     * Publish the counters of the queue, replacing those of an earlier run of the publisher
+     */
+    public void initialize() {
+        for (AtomicIntegerMonitor monitor : new AtomicIntegerMonitor[] { coalescedMonitor, queuedMonitor, sentMonitor }) {
+            Common.MONITORED_VALUES.removeStatMonitor(monitor.getId());
+            Common.MONITORED_VALUES.addIfMissingStatMonitor(monitor);
+        }
     }
 
     public void add(T vo, PointValueTime pvt) {
-        queue.add(new PublishQueueEntry<T>(vo, pvt));
+        synchronized (this) {
+            addImpl(new PublishQueueEntry<T>(vo, pvt));
+        }
         sizeCheck();
     }
 
     public void add(T vo, List<PointValueTime> pvts) {
-        for (PointValueTime pvt : pvts)
-            queue.add(new PublishQueueEntry<T>(vo, pvt));
+        synchronized (this) {
+            for (PointValueTime pvt : pvts)
+                addImpl(new PublishQueueEntry<T>(vo, pvt));
+        }
         sizeCheck();
     }
 
-    public PublishQueueEntry<T> next() {
-        return queue.peek();
+    /**
+     * Replace the value of the point waiting to be queued, if any
+     * @param vo
+     * @param pvt
+     */
+    public void addLatest(T vo, PointValueTime pvt) {
+        synchronized (latest) {
+            // A point waiting keeps its place
+            if (latest.put(vo, pvt) != null)
+                coalescedMonitor.increment();
+        }
+        sizeCheck();
+    }
+
+    private void addImpl(PublishQueueEntry<T> e) {
+        queuedMonitor.increment();
+        if (overflow != null && (overflowSize > 0 || queue.size() >= overflowThreshold)) {
+            // Keep the order, everything goes to disk until the memory queue has read it all back
+            overflow.offer(new OverflowEntry(e.getVo().getDataPointId(), e.getPvt()));
+            overflowSize++;
+        }
+        else
+            queue.push(e);
+
+        int size = queue.size() + overflowSize;
+        if (size > discardSize)
+            discard(size - discardTo);
+    }
+
+    /**
+     * Drop the oldest entries
+     * @param count
+     */
+    private void discard(int count) {
+        int discarded = queue.pop(Math.min(count, queue.size()));
+        while (discarded < count && overflowSize > 0) {
+            if (overflow.poll() == null)
+                overflowSize = 0;
+            else {
+                overflowSize--;
+                discarded++;
+            }
+        }
+        LOG.warn("Publisher queue " + owner.getVo().getName() + " discarded " + discarded + " entries");
+    }
+
+    /**
+     * Read entries back from disk until the memory queue has the number wanted or the disk is empty
+     * @param wanted
+     */
+    private void fill(int wanted) {
+        synchronized (latest) {
+            Iterator<Map.Entry<T, PointValueTime>> it = latest.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<T, PointValueTime> e = it.next();
+                addImpl(new PublishQueueEntry<T>(e.getKey(), e.getValue()));
+                it.remove();
+            }
+        }
+
+        while (queue.size() < wanted && overflowSize > 0) {
+            OverflowEntry e = overflow.poll();
+            if (e == null) {
+                overflowSize = 0;
+                break;
+            }
+            overflowSize--;
+            T vo = overflowPoints.get(e.dataPointId);
+            // The point is no longer published
+            if (vo != null)
+                queue.push(new PublishQueueEntry<T>(vo, e.pvt));
+        }
     }
 
-    public List<PublishQueueEntry<T>> get(int max) {
-        if (queue.isEmpty())
+    public synchronized PublishQueueEntry<T> next() {
+        fill(1);
+        if (queue.size() == 0)
             return null;
+        return queue.peek(0);
+    }
 
-        Iterator<PublishQueueEntry<T>> iter = queue.iterator();
-        List<PublishQueueEntry<T>> result = new ArrayList<PublishQueueEntry<T>>(max);
-        while (iter.hasNext() && result.size() < max)
-            result.add(iter.next());
+    /**
+     * Get the oldest entries without removing them, remove them once sent with removeAll(list)
+     * @param max
+     * @return the entries in order or null if the queue is empty
+     */
+    public synchronized List<PublishQueueEntry<T>> get(int max) {
+        fill(max);
+        if (queue.size() == 0)
+            return null;
 
+        int count = Math.min(max, queue.size());
+        List<PublishQueueEntry<T>> result = new ArrayList<PublishQueueEntry<T>>(count);
+        for (int i = 0; i < count; i++)
+            result.add(queue.peek(i));
         return result;
     }
 
     public void remove(PublishQueueEntry<T> e) {
-        queue.remove(e);
+        synchronized (this) {
+            if (queue.size() > 0 && queue.peek(0) == e) {
+                queue.pop();
+                sentMonitor.increment();
+            }
+            else if (queue.indexOf(e) != -1)
+                removeWithin(Collections.singleton(e));
+        }
         sizeCheck();
     }
 
+    /**
+     * Remove sent entries that were taken with get(max). Entries that are no longer in the queue were discarded
+     * while they were being sent.
+     * @param list
+     */
     public void removeAll(List<PublishQueueEntry<T>> list) {
-        queue.removeAll(list);
+        synchronized (this) {
+            Set<PublishQueueEntry<T>> within = null;
+            for (PublishQueueEntry<T> e : list) {
+                if (queue.size() > 0 && queue.peek(0) == e) {
+                    queue.pop();
+                    sentMonitor.increment();
+                }
+                else if (queue.indexOf(e) != -1) {
+                    if (within == null)
+                        within = Collections.newSetFromMap(new IdentityHashMap<PublishQueueEntry<T>, Boolean>());
+                    within.add(e);
+                }
+            }
+            if (within != null)
+                removeWithin(within);
+        }
         sizeCheck();
     }
-    
-    public void removeAll() {
-    	queue.clear();
+
+    /**
+     * Entries that are not the oldest, rebuild the queue without them
+     * @param entries
+     */
+    private void removeWithin(Set<PublishQueueEntry<T>> entries) {
+        ObjectQueue<PublishQueueEntry<T>> kept = new ObjectQueue<PublishQueueEntry<T>>(queue.size());
+        for (int i = 0; i < queue.size(); i++) {
+            PublishQueueEntry<T> e = queue.peek(i);
+            if (entries.contains(e))
+                sentMonitor.increment();
+            else
+                kept.push(e);
+        }
+        queue.clear();
+        queue.push(kept);
+    }
+
+    public synchronized void removeAll() {
+        synchronized (latest) {
+            latest.clear();
+        }
+        queue.clear();
+        if (overflow != null) {
+            overflow.clear();
+            overflowSize = 0;
+        }
+    }
+
+    public synchronized int getSize() {
+        synchronized (latest) {
+            return queue.size() + overflowSize + latest.size();
+        }
     }
 
-    public int getSize() {
-        return queue.size();
+    /**
+     * Save the entries of the overflow still in memory so they are sent after a restart and remove the counters
+     */
+    public synchronized void terminate() {
+        if (overflow != null)
+            overflow.save();
+        Common.MONITORED_VALUES.removeStatMonitor(coalescedMonitorId);
+        Common.MONITORED_VALUES.removeStatMonitor(queuedMonitorId);
+        Common.MONITORED_VALUES.removeStatMonitor(sentMonitorId);
     }
 
     private void sizeCheck() {
         long now = Common.timer.currentTimeMillis();
         if (lastSizeCheck + SIZE_CHECK_DELAY < now) {
             lastSizeCheck = now;
-            int size = queue.size();
+            int size = getSize();
 
             synchronized (owner) {
-                if (size > discardSize) {
-                	try {
-                		for (int i = discardSize; i < size; i++)
-                			queue.remove();
-                	} catch(NoSuchElementException e) {
-                		//Queue is emptied, nothing to do
-                	}
-                	
-                    LOG.warn("Publisher queue " + owner.getVo().getName() + " discarded " + (size - discardSize)
-                            + " entries");
-                }
-
                 if (warningActive) {
                     if (size <= dewarningSize) {
                         owner.deactivateQueueSizeWarningEvent();
@@ -118,4 +369,93 @@ public class PublishQueue<T extends PublishedPointVO> {
             }
         }
     }
+
+    /**
+     * An entry on disk, the published point is found again by its data point id. Data values are not
+     * Serializable so the id, data type, value, time and annotation are written out explicitly.
+     */
+    static class OverflowEntry implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        transient int dataPointId;
+        transient PointValueTime pvt;
+
+        OverflowEntry(int dataPointId, PointValueTime pvt) {
+            this.dataPointId = dataPointId;
+            this.pvt = pvt;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            DataValue value = pvt.getValue();
+            out.writeInt(dataPointId);
+            out.writeInt(value.getDataType());
+            switch (value.getDataType()) {
+                case DataTypes.BINARY:
+                    out.writeBoolean(value.getBooleanValue());
+                    break;
+                case DataTypes.MULTISTATE:
+                    out.writeInt(value.getIntegerValue());
+                    break;
+                case DataTypes.NUMERIC:
+                    out.writeDouble(value.getDoubleValue());
+                    break;
+                case DataTypes.ALPHANUMERIC:
+                    out.writeObject(value.getStringValue());
+                    break;
+                case DataTypes.IMAGE:
+                    ImageValue image = (ImageValue) value;
+                    out.writeLong(image.getId());
+                    out.writeInt(image.getType());
+                    out.writeObject(image.getData());
+                    break;
+                default:
+                    throw new IOException("Unknown data type " + value.getDataType());
+            }
+            out.writeLong(pvt.getTime());
+            TranslatableMessage sourceMessage = pvt.isAnnotated() ? ((AnnotatedPointValueTime) pvt).getSourceMessage() : null;
+            out.writeObject(sourceMessage == null ? null : sourceMessage.serialize());
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            dataPointId = in.readInt();
+            int dataType = in.readInt();
+            DataValue value;
+            switch (dataType) {
+                case DataTypes.BINARY:
+                    value = new BinaryValue(in.readBoolean());
+                    break;
+                case DataTypes.MULTISTATE:
+                    value = new MultistateValue(in.readInt());
+                    break;
+                case DataTypes.NUMERIC:
+                    value = new NumericValue(in.readDouble());
+                    break;
+                case DataTypes.ALPHANUMERIC:
+                    value = new AlphanumericValue((String) in.readObject());
+                    break;
+                case DataTypes.IMAGE:
+                    long id = in.readLong();
+                    ImageValue image = new ImageValue(id, in.readInt());
+                    image.setData((byte[]) in.readObject());
+                    value = image;
+                    break;
+                default:
+                    throw new IOException("Unknown data type " + dataType);
+            }
+            long time = in.readLong();
+            String sourceMessage = (String) in.readObject();
+            if (sourceMessage == null)
+                pvt = new PointValueTime(value, time);
+            else {
+                TranslatableMessage message;
+                try {
+                    message = TranslatableMessage.deserialize(sourceMessage);
+                }
+                catch (TranslatableMessageParseException e) {
+                    message = new TranslatableMessage("common.default", sourceMessage);
+                }
+                pvt = new AnnotatedPointValueTime(value, time, message);
+            }
+        }
+    }
 }
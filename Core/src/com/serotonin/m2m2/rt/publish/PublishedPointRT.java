@@ -39,7 +39,8 @@ public class PublishedPointRT<T extends PublishedPointVO> implements DataPointLi
     }
 
     public void pointUpdated(PointValueTime newValue) {
-        if (parent.getVo().getPublishType() == PublishType.ALL)
+        int publishType = parent.getVo().getPublishType();
+        if (publishType == PublishType.ALL || publishType == PublishType.LATEST)
             parent.publish(vo, newValue);
     }
 
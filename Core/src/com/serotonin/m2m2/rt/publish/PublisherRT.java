@@ -8,6 +8,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.serotonin.ShouldNeverHappenException;
 import com.serotonin.m2m2.Common;
@@ -24,7 +26,9 @@ import com.serotonin.m2m2.util.timeout.TimeoutTask;
 import com.serotonin.m2m2.vo.DataPointVO;
 import com.serotonin.m2m2.vo.publish.PublishedPointVO;
 import com.serotonin.m2m2.vo.publish.PublisherVO;
+import com.serotonin.m2m2.vo.publish.PublisherVO.PublishType;
 import com.serotonin.timer.FixedRateTrigger;
+import com.serotonin.timer.RejectedTaskReason;
 import com.serotonin.timer.TimerTask;
 
 /**
@@ -34,6 +38,10 @@ abstract public class PublisherRT<T extends PublishedPointVO> extends TimeoutCli
     public static final int POINT_DISABLED_EVENT = 1;
     public static final int QUEUE_SIZE_WARNING_EVENT = 2;
 
+    //The send thread is woken once this many values were published or the first of them has waited this long (ms)
+    private static final int HANDOFF_BATCH_SIZE = Common.envProps.getInt("publisher.handoff.batchSize", 1000);
+    private static final long HANDOFF_MAX_LATENCY = Common.envProps.getLong("publisher.handoff.maxLatency", 100);
+
     private final Object persistentDataLock = new Object();
 
     private final EventType pointDisabledEventType;
@@ -46,6 +54,29 @@ abstract public class PublisherRT<T extends PublishedPointVO> extends TimeoutCli
     private volatile Thread jobThread;
     private SendThread sendThread;
     private TimerTask snapshotTask;
+    //Values published since the send thread was last woken
+    private final AtomicInteger unsent = new AtomicInteger();
+    private final AtomicBoolean handoffScheduled = new AtomicBoolean();
+    private final TimeoutClient handoffClient = new TimeoutClient() {
+        @Override
+        public void scheduleTimeout(long fireTime) {
+            handoffScheduled.set(false);
+            wakeSendThread();
+        }
+
+        @Override
+        public void rejected(RejectedTaskReason reason) {
+            super.rejected(reason);
+            //Hand off now rather than leave the values until the next publish schedules another
+            handoffScheduled.set(false);
+            wakeSendThread();
+        }
+
+        @Override
+        public String getThreadName() {
+            return "Publisher hand off: " + vo.getXid();
+        }
+    };
 
     public PublisherRT(PublisherVO<T> vo) {
         this.vo = vo;
@@ -99,16 +130,36 @@ abstract public class PublisherRT<T extends PublishedPointVO> extends TimeoutCli
     }
 
     void publish(T vo, PointValueTime newValue) {
-        queue.add(vo, newValue);
-
-        synchronized (sendThread) {
-            sendThread.notify();
-        }
+        if (this.vo.getPublishType() == PublishType.LATEST)
+            queue.addLatest(vo, newValue);
+        else
+            queue.add(vo, newValue);
+        handOff(1);
     }
 
     public void publish(T vo, List<PointValueTime> newValues) {
-        queue.add(vo, newValues);
+        if (newValues.isEmpty())
+            return;
+        if (this.vo.getPublishType() == PublishType.LATEST)
+            queue.addLatest(vo, newValues.get(newValues.size() - 1));
+        else
+            queue.add(vo, newValues);
+        handOff(newValues.size());
+    }
+
+    /**
+     * Wake the send thread once a batch of values is waiting or after the max latency, rather than for every value
+     * @param count values just published
+     */
+    private void handOff(int count) {
+        if (HANDOFF_MAX_LATENCY <= 0 || unsent.addAndGet(count) >= HANDOFF_BATCH_SIZE)
+            wakeSendThread();
+        else if (handoffScheduled.compareAndSet(false, true))
+            new TimeoutTask(HANDOFF_MAX_LATENCY, handoffClient);
+    }
 
+    private void wakeSendThread() {
+        unsent.set(0);
         synchronized (sendThread) {
             sendThread.notify();
         }
@@ -179,6 +230,7 @@ abstract public class PublisherRT<T extends PublishedPointVO> extends TimeoutCli
 
     protected void initialize(SendThread sendThread) {
         this.sendThread = sendThread;
+        queue.initialize();
         sendThread.initialize(false);
 
         for (T p : vo.getPoints())
@@ -207,6 +259,9 @@ abstract public class PublisherRT<T extends PublishedPointVO> extends TimeoutCli
         for (PublishedPointRT<T> rt : pointRTs)
             rt.terminate();
 
+        // Keep what is waiting on disk for the next start
+        queue.terminate();
+
         // Remove any outstanding events.
         Common.eventManager.cancelEventsForPublisher(getId());
     }
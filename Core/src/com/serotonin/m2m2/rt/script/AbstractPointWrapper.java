@@ -11,6 +11,7 @@ import java.util.List;
 import javax.script.ScriptEngine;
 
 import com.serotonin.ShouldNeverHappenException;
+import com.serotonin.m2m2.rt.dataImage.DataPointRT;
 import com.serotonin.m2m2.rt.dataImage.IDataPointValueSource;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
 import com.serotonin.m2m2.rt.dataImage.types.DataValue;
@@ -93,6 +94,8 @@ abstract public class AbstractPointWrapper {
     }
 
     public PointValueTime lastValue(int index) {
+        if (point instanceof DataPointRT)
+            return ((DataPointRT) point).getLatestPointValue(index);
         List<PointValueTime> list = point.getLatestPointValues(index + 1);
         if (list.size() <= index)
             return null;
@@ -23,7 +23,7 @@ import com.serotonin.m2m2.rt.dataImage.types.DataValue;
  * @author Matthew Lohbihler
  */
 public class CompiledScriptExecutor extends ScriptExecutor{
-    private static final String SCRIPT_PREFIX = "function __scriptExecutor__() {";
+    static final String SCRIPT_PREFIX = "function __scriptExecutor__() {";
     private static final String SCRIPT_SUFFIX = "\r\n}\r\n";
     private static final String SCRIPT_POSTFIX = "\r\n__scriptExecutor__();";
     private static ScriptEngine ENGINE;
@@ -32,25 +32,14 @@ public class CompiledScriptExecutor extends ScriptExecutor{
     public static final String UNCHANGED_KEY = "UNCHANGED";
 
     /**
-     * Compile a script for the common Engine
+     * Compile a script with its own pool of engines
      * @param script
      * @return
      * @throws ScriptException
      */
     public static CompiledScript compile(String script) throws ScriptException {
-//    	StopWatch stopWatch = new Log4JStopWatch();
-//		stopWatch.start();
     	script = SCRIPT_PREFIX + script + SCRIPT_SUFFIX + ScriptUtils.getGlobalFunctions() + SCRIPT_POSTFIX;
-        //TODO Review change 
-//        ensureInit();
-//        CompiledScript compiledScript = ((Compilable) ENGINE).compile(script);
-        
-    	ScriptEngine engine = ScriptUtils.newEngine();
-    	ScriptUtils.prepareEngine(engine);
-    	CompiledScript compiledScript = ((Compilable)engine).compile(script);
-        
-//        stopWatch.stop("compile(script)");
-        return compiledScript;
+        return ScriptEnginePool.get(script);
     }
 
     /**
@@ -72,8 +61,10 @@ public class CompiledScriptExecutor extends ScriptExecutor{
            ScriptPermissions permissions, PrintWriter scriptWriter, ScriptLog log, ScriptPointValueSetter setter,
            List<JsonImportExclusion> importExclusions, boolean testRun) throws ScriptException, ResultTypeException {
        
-//    	StopWatch stopWatch = new Log4JStopWatch();
-//		stopWatch.start();
+    	if (script instanceof ScriptEnginePool.PooledScript)
+    	    return execute((ScriptEnginePool.PooledScript) script, context, additionalContext, runtime, dataTypeId,
+    	            timestamp, permissions, scriptWriter, log, setter, importExclusions, testRun);
+
     	ensureInit();
 
         // Create the wrapper object context.
@@ -92,9 +83,36 @@ public class CompiledScriptExecutor extends ScriptExecutor{
             throw prettyScriptMessage(e);
         }
 
-        PointValueTime value = getResult(engine, result, dataTypeId, timestamp);
-    	//stopWatch.stop("execute()");
-        return value;
+        return getResult(engine, result, dataTypeId, timestamp);
+    }
+
+    /**
+     * Execute the script on an idle engine of its pool
+     */
+    private static PointValueTime execute(ScriptEnginePool.PooledScript script, Map<String, IDataPointValueSource> context,
+            Map<String, Object> additionalContext, long runtime, int dataTypeId, long timestamp,
+            ScriptPermissions permissions, PrintWriter scriptWriter, ScriptLog log, ScriptPointValueSetter setter,
+            List<JsonImportExclusion> importExclusions, boolean testRun) throws ScriptException, ResultTypeException {
+        ScriptEnginePool.PooledEngine engine = script.borrow();
+        long start = System.nanoTime();
+        try {
+            Bindings engineScope = engine.prepare(context, additionalContext, runtime, timestamp, permissions,
+                    scriptWriter, log, setter, importExclusions, testRun, script.getOwnerScope());
+
+            Object result;
+            try {
+                result = engine.compiled.eval(engineScope);
+            }
+            catch (ScriptException e) {
+                throw prettyScriptMessage(e);
+            }
+
+            return getResult(engine.engine, result, dataTypeId, timestamp);
+        }
+        finally {
+            script.executed(System.nanoTime() - start);
+            script.release(engine);
+        }
     }
     
     
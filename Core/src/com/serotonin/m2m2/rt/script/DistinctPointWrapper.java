@@ -9,8 +9,10 @@ import java.util.List;
 import javax.script.ScriptEngine;
 
 import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.rt.dataImage.DataPointRT;
 import com.serotonin.m2m2.rt.dataImage.IDataPointValueSource;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.PointValueWindow;
 import com.serotonin.m2m2.util.DateUtils;
 import com.serotonin.m2m2.view.stats.StartsAndRuntimeList;
 
@@ -18,6 +20,13 @@ import com.serotonin.m2m2.view.stats.StartsAndRuntimeList;
  * @author Matthew Lohbihler
  */
 abstract public class DistinctPointWrapper extends AbstractPointWrapper {
+    private static final PointValueWindow.StatisticsFactory<StartsAndRuntimeList> STATISTICS = new PointValueWindow.StatisticsFactory<StartsAndRuntimeList>() {
+        @Override
+        public StartsAndRuntimeList create(long from, long to, PointValueTime start, List<PointValueTime> values) {
+            return new StartsAndRuntimeList(from, to, start, values);
+        }
+    };
+
     public DistinctPointWrapper(IDataPointValueSource point, ScriptEngine engine, ScriptPointValueSetter setter) {
         super(point, engine, setter);
     }
@@ -51,9 +60,14 @@ abstract public class DistinctPointWrapper extends AbstractPointWrapper {
     }
 
     public StartsAndRuntimeListWrapper getStats(long from, long to) {
-        PointValueTime start = point.getPointValueBefore(from);
-        List<PointValueTime> values = point.getPointValuesBetween(from, to);
-        StartsAndRuntimeList stats = new StartsAndRuntimeList(from, to, start, values);
+        StartsAndRuntimeList stats = null;
+        if (point instanceof DataPointRT)
+            stats = ((DataPointRT) point).getWindowStatistics(from, to, STATISTICS);
+        if (stats == null) {
+            PointValueTime start = point.getPointValueBefore(from);
+            List<PointValueTime> values = point.getPointValuesBetween(from, to);
+            stats = new StartsAndRuntimeList(from, to, start, values);
+        }
         if(point.getDataTypeId() == DataTypes.BINARY)
         	return  new BinaryStartsAndRuntimeListWrapper(stats);
         else
@@ -8,8 +8,11 @@ import java.util.List;
 
 import javax.script.ScriptEngine;
 
+import com.serotonin.m2m2.db.dao.PointValueRollupDao;
+import com.serotonin.m2m2.rt.dataImage.DataPointRT;
 import com.serotonin.m2m2.rt.dataImage.IDataPointValueSource;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.rt.dataImage.PointValueWindow;
 import com.serotonin.m2m2.rt.dataImage.types.DataValue;
 import com.serotonin.m2m2.util.DateUtils;
 import com.serotonin.m2m2.view.stats.AnalogStatistics;
@@ -18,6 +21,13 @@ import com.serotonin.m2m2.view.stats.AnalogStatistics;
  * @author Matthew Lohbihler
  */
 public class NumericPointWrapper extends AbstractPointWrapper {
+    private static final PointValueWindow.StatisticsFactory<AnalogStatistics> STATISTICS = new PointValueWindow.StatisticsFactory<AnalogStatistics>() {
+        @Override
+        public AnalogStatistics create(long from, long to, PointValueTime start, List<PointValueTime> values) {
+            return new AnalogStatistics(from, to, start, values);
+        }
+    };
+
     public NumericPointWrapper(IDataPointValueSource point, ScriptEngine engine, ScriptPointValueSetter setter) {
         super(point, engine, setter);
     }
@@ -70,9 +80,29 @@ public class NumericPointWrapper extends AbstractPointWrapper {
     }
 
     public AnalogStatisticsWrapper getStats(long from, long to) {
+        if (point instanceof DataPointRT) {
+            AnalogStatistics stats = ((DataPointRT) point).getWindowStatistics(from, to, STATISTICS);
+            if (stats != null)
+                return new AnalogStatisticsWrapper(stats);
+        }
+
         PointValueTime start = point.getPointValueBefore(from);
-        List<PointValueTime> values = point.getPointValuesBetween(from, to);
-        AnalogStatistics stats = new AnalogStatistics(from, to, start, values);
+        AnalogStatistics stats;
+        PointValueRollupDao rollups = PointValueRollupDao.get();
+        if (rollups != null && point instanceof DataPointRT) {
+            // Whole minutes, hours and days come from the rollups
+            stats = rollups.getStatistics(((DataPointRT) point).getId(), from, to,
+                    start == null ? null : start.getDoubleValue(), new PointValueRollupDao.ValueSource() {
+                        @Override
+                        public List<PointValueTime> getPointValuesBetween(long from, long to) {
+                            return point.getPointValuesBetween(from, to);
+                        }
+                    });
+        }
+        else {
+            List<PointValueTime> values = point.getPointValuesBetween(from, to);
+            stats = new AnalogStatistics(from, to, start, values);
+        }
         AnalogStatisticsWrapper wrapper = new AnalogStatisticsWrapper(stats);
         return wrapper;
     }
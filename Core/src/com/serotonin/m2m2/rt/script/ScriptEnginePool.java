@@ -0,0 +1,396 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.rt.script;
+
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import com.infiniteautomation.mango.monitor.AtomicIntegerMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitorOwner;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.rt.dataImage.IDataPointValueSource;
+
+/**
+ * The compiled scripts of the CompiledScriptExecutor, with a pool of engines for each source to run them on.
+ *
+ * A compiled script belongs to the engine it was compiled on and a run changes the engine scope, so an engine
+ * can only run one script at a time. The pools are cached by source, up to runtime.javascript.cachedScripts
+ * of them, least recently compiled out first. Each engine of a pool has the source compiled on it and its global
+ * bindings made once. Before each run everything the last run or the script itself put in the engine scope is
+ * removed, only the point wrappers are kept for reuse, so the owners of scripts with the same source never see
+ * each other's state. A run takes an idle engine or makes a new one when all are busy and up to
+ * runtime.javascript.enginesPerScript are kept after the run.
+ *
+ * What the owner of a compiled script puts in the engine returned by getEngine is bound into each of its runs.
+ * That engine only holds bindings, it can not evaluate anything.
+ *
+ * @author Terry Packer
+ */
+class ScriptEnginePool {
+
+    private static final int MAX_POOLS = Common.envProps.getInt("runtime.javascript.cachedScripts", 1000);
+    private static final int MAX_IDLE_ENGINES = Math.max(1,
+            Common.envProps.getInt("runtime.javascript.enginesPerScript", 2));
+    private static final boolean HISTOGRAMS = Common.envProps.getBoolean("runtime.javascript.metrics", false);
+
+    // Upper bounds (ms) of the buckets of the execution time histograms, the last bucket has none
+    private static final long[] HISTOGRAM_BOUNDS = { 1, 10, 100, 1000 };
+
+    public static final String ENGINES_MONITOR_ID = "com.serotonin.m2m2.rt.script.ScriptEnginePool.ENGINES_MONITOR";
+    public static final String HISTOGRAM_MONITOR_ID_PREFIX = "com.serotonin.m2m2.rt.script.ScriptEnginePool.HISTOGRAM_";
+
+    private static final ValueMonitorOwner valueOwner = new ValueMonitorOwner() {
+        @Override
+        public void reset(String id) {
+        }
+    };
+    private static final AtomicIntegerMonitor ENGINES_MONITOR = new AtomicIntegerMonitor(ENGINES_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.SCRIPT_ENGINES"), valueOwner);
+
+    static {
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(ENGINES_MONITOR);
+    }
+
+    // Engine pools by source, the least recently compiled are dropped first
+    private static final Map<String, EnginePool> POOLS = new LinkedHashMap<String, EnginePool>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, EnginePool> eldest) {
+            if (size() > MAX_POOLS) {
+                HistogramMonitor histogram = eldest.getValue().histogram;
+                if (histogram != null)
+                    Common.MONITORED_VALUES.removeStatMonitor(histogram.getId());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static final AtomicInteger NEXT_HISTOGRAM_ID = new AtomicInteger();
+    // Factory of the engines, for the owner engines
+    private static volatile ScriptEngineFactory factory;
+
+    /**
+     * Get a script for the source that runs on the engines of its pool
+     *
+     * @param script
+     * @return
+     * @throws ScriptException if the source does not compile
+     */
+    static PooledScript get(String script) throws ScriptException {
+        EnginePool pool;
+        synchronized (POOLS) {
+            pool = POOLS.get(script);
+        }
+        if (pool == null) {
+            // Compile outside the lock, the first engine checks the source
+            PooledEngine engine = new PooledEngine(script);
+            synchronized (POOLS) {
+                pool = POOLS.get(script);
+                if (pool == null) {
+                    pool = new EnginePool(script, HISTOGRAMS ? histogram(script) : null);
+                    POOLS.put(script, pool);
+                }
+            }
+            pool.release(engine);
+        }
+        return new PooledScript(pool);
+    }
+
+    private static HistogramMonitor histogram(String script) {
+        HistogramMonitor monitor = new HistogramMonitor(script, NEXT_HISTOGRAM_ID.incrementAndGet());
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(monitor);
+        return monitor;
+    }
+
+    /**
+     * The idle engines that have a source compiled on them
+     */
+    private static class EnginePool {
+        private final String script;
+        private final HistogramMonitor histogram;
+        private final ConcurrentLinkedQueue<PooledEngine> idle = new ConcurrentLinkedQueue<PooledEngine>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        EnginePool(String script, HistogramMonitor histogram) {
+            this.script = script;
+            this.histogram = histogram;
+        }
+
+        PooledEngine borrow() throws ScriptException {
+            PooledEngine engine = idle.poll();
+            if (engine == null)
+                return new PooledEngine(script);
+            idleCount.decrementAndGet();
+            return engine;
+        }
+
+        void release(PooledEngine engine) {
+            if (idleCount.incrementAndGet() <= MAX_IDLE_ENGINES)
+                idle.offer(engine);
+            else
+                idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * A compiled script that runs on an engine of the pool for its source
+     */
+    static class PooledScript extends CompiledScript {
+        private final EnginePool pool;
+        private volatile ScriptEngine ownerEngine;
+
+        PooledScript(EnginePool pool) {
+            this.pool = pool;
+        }
+
+        PooledEngine borrow() throws ScriptException {
+            return pool.borrow();
+        }
+
+        void release(PooledEngine engine) {
+            pool.release(engine);
+        }
+
+        /**
+         * Count a run in the execution time histogram
+         * @param nanos
+         */
+        void executed(long nanos) {
+            if (pool.histogram != null)
+                pool.histogram.executed(nanos);
+        }
+
+        @Override
+        public Object eval(ScriptContext context) throws ScriptException {
+            PooledEngine engine = borrow();
+            long start = System.nanoTime();
+            try {
+                return engine.compiled.eval(context);
+            }
+            finally {
+                executed(System.nanoTime() - start);
+                release(engine);
+            }
+        }
+
+        /**
+         * The engine of the owner of the script, what is put in its engine scope is bound into every run
+         */
+        @Override
+        public ScriptEngine getEngine() {
+            ScriptEngine engine = ownerEngine;
+            if (engine == null) {
+                synchronized (this) {
+                    engine = ownerEngine;
+                    if (engine == null) {
+                        engine = new OwnerEngine();
+                        ScriptUtils.prepareEngine(engine);
+                        ownerEngine = engine;
+                    }
+                }
+            }
+            return engine;
+        }
+
+        /**
+         * The engine scope of the owner or null if the owner never asked for its engine
+         */
+        Bindings getOwnerScope() {
+            ScriptEngine engine = ownerEngine;
+            return engine == null ? null : engine.getBindings(ScriptContext.ENGINE_SCOPE);
+        }
+    }
+
+    /**
+     * An engine that only holds the bindings of the owner of a script, the script runs on the engines of its pool
+     */
+    private static class OwnerEngine extends AbstractScriptEngine {
+        @Override
+        public Object eval(String script, ScriptContext context) throws ScriptException {
+            throw new ScriptException("Only the compiled script can be run");
+        }
+
+        @Override
+        public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+            throw new ScriptException("Only the compiled script can be run");
+        }
+
+        @Override
+        public Bindings createBindings() {
+            return new SimpleBindings();
+        }
+
+        @Override
+        public ScriptEngineFactory getFactory() {
+            return factory;
+        }
+    }
+
+    /**
+     * An engine with the script compiled on it and the state of its last run
+     */
+    static class PooledEngine {
+        final ScriptEngine engine;
+        final CompiledScript compiled;
+        final Bindings engineScope;
+        private final Writer defaultWriter;
+        private final List<String> points;
+        private final Map<String, AbstractPointWrapper> wrappers = new HashMap<String, AbstractPointWrapper>();
+        // Keys in the engine scope before the first run
+        private final Set<String> initialKeys;
+
+        @SuppressWarnings("unchecked")
+        PooledEngine(String script) throws ScriptException {
+            engine = ScriptUtils.newEngine();
+            ScriptUtils.prepareEngine(engine);
+            compiled = ((Compilable) engine).compile(script);
+            engineScope = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+            initialKeys = new HashSet<String>(engineScope.keySet());
+            defaultWriter = engine.getContext().getWriter();
+            points = (List<String>) engine.getBindings(ScriptContext.GLOBAL_SCOPE).get(ScriptUtils.POINTS_CONTEXT_KEY);
+            factory = engine.getFactory();
+            ENGINES_MONITOR.increment();
+        }
+
+        /**
+         * Bind the context of a run into the engine scope like ScriptExecutor.prepareEngine, after removing what
+         * the last run and the script put there. Only the point wrappers are reused.
+         */
+        Bindings prepare(Map<String, IDataPointValueSource> context, Map<String, Object> additionalContext,
+                long runtime, long timestamp, ScriptPermissions permissions, PrintWriter scriptWriter,
+                ScriptLog log, ScriptPointValueSetter setter, List<JsonImportExclusion> importExclusions,
+                boolean testRun, Bindings ownerScope) {
+            List<String> added = new ArrayList<String>();
+            for (String key : engineScope.keySet())
+                if (!initialKeys.contains(key))
+                    added.add(key);
+            for (String key : added)
+                engineScope.remove(key);
+            // The globals were made with the engine, only the state a run can change is reset
+            engineScope.put(ScriptUtils.TIMESTAMP_CONTEXT_KEY, null);
+            if (points != null)
+                points.clear();
+            ScriptUtils.wrapperContext(engine, new WrapperContext(runtime, timestamp));
+
+            if (permissions != null)
+                ScriptUtils.prepareUtilities(permissions, engine, engineScope, setter, importExclusions, testRun);
+
+            if (ownerScope != null) {
+                for (Entry<String, Object> entry : ownerScope.entrySet()) {
+                    String key = entry.getKey();
+                    if (ScriptUtils.TIMESTAMP_CONTEXT_KEY.equals(key) || ScriptUtils.WRAPPER_CONTEXT_KEY.equals(key))
+                        continue;
+                    // Wrappers made on the owner engine would read its wrapper context
+                    Object value = entry.getValue();
+                    if (value instanceof AbstractPointWrapper) {
+                        AbstractPointWrapper wrapper = (AbstractPointWrapper) value;
+                        value = wrap(key, wrapper.point, wrapper.setter);
+                    }
+                    engineScope.put(key, value);
+                }
+            }
+
+            if (additionalContext != null)
+                engineScope.putAll(additionalContext);
+
+            // The wrappers read the runtime and timestamp from the wrapper context, so they only change with the point
+            for (Entry<String, IDataPointValueSource> entry : context.entrySet())
+                engineScope.put(entry.getKey(), wrap(entry.getKey(), entry.getValue(), setter));
+
+            if (scriptWriter != null) {
+                engine.getContext().setWriter(scriptWriter);
+                engineScope.put(ScriptLog.CONTEXT_KEY, log);
+            }
+            else
+                engine.getContext().setWriter(defaultWriter);
+            return engineScope;
+        }
+
+        private AbstractPointWrapper wrap(String key, IDataPointValueSource point, ScriptPointValueSetter setter) {
+            AbstractPointWrapper wrapper = wrappers.get(key);
+            if (wrapper == null || wrapper.point != point || wrapper.setter != setter) {
+                wrapper = ScriptUtils.wrapPoint(engine, point, setter);
+                wrappers.put(key, wrapper);
+            }
+            return wrapper;
+        }
+    }
+
+    /**
+     * Run counts of the scripts with a source by execution time
+     */
+    private static class HistogramMonitor extends ValueMonitor<String> {
+        private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BOUNDS.length + 1);
+
+        HistogramMonitor(String script, int id) {
+            super(HISTOGRAM_MONITOR_ID_PREFIX + id, new TranslatableMessage("internal.monitor.SCRIPT_EXECUTION_TIMES",
+                    id, abbreviate(script)), valueOwner);
+        }
+
+        void executed(long nanos) {
+            long ms = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < HISTOGRAM_BOUNDS.length && ms >= HISTOGRAM_BOUNDS[bucket])
+                bucket++;
+            histogram.incrementAndGet(bucket);
+        }
+
+        @Override
+        public String getValue() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i <= HISTOGRAM_BOUNDS.length; i++) {
+                if (i > 0)
+                    sb.append(", ");
+                if (i < HISTOGRAM_BOUNDS.length)
+                    sb.append("<").append(HISTOGRAM_BOUNDS[i]).append("ms: ");
+                else
+                    sb.append(">=").append(HISTOGRAM_BOUNDS[i - 1]).append("ms: ");
+                sb.append(histogram.get(i));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String stringValue() {
+            return getValue();
+        }
+    }
+
+    /**
+     * The start of the body of the script for the name of its histogram
+     */
+    private static String abbreviate(String script) {
+        if (script.startsWith(CompiledScriptExecutor.SCRIPT_PREFIX))
+            script = script.substring(CompiledScriptExecutor.SCRIPT_PREFIX.length());
+        script = script.trim().replaceAll("\\s+", " ");
+        return script.length() > 40 ? script.substring(0, 40) + "..." : script;
+    }
+}
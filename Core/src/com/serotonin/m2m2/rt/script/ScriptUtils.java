@@ -31,6 +31,10 @@ public class ScriptUtils {
     public static final String WRAPPER_CONTEXT_KEY = "CONTEXT";
     public static final String POINTS_CONTEXT_KEY = "POINTS";
     public static final String TIMESTAMP_CONTEXT_KEY = "TIMESTAMP";
+
+    // Utilities without state, shared by every engine
+    private static final DateTimeUtility DATE_TIME_UTILITY = new DateTimeUtility();
+    private static final UnitUtility UNIT_UTILITY = new UnitUtility();
     
     public static ScriptEngine newEngine() {
         ScriptEngineManager manager = new ScriptEngineManager();
@@ -111,8 +115,8 @@ public class ScriptUtils {
         globalBindings.put(POINTS_CONTEXT_KEY, new ArrayList<String>());
         
         //Add in Additional Utilities with Global Scope
-        globalBindings.put(DateTimeUtility.CONTEXT_KEY, new DateTimeUtility());
-        globalBindings.put(UnitUtility.CONTEXT_KEY, new UnitUtility());
+        globalBindings.put(DateTimeUtility.CONTEXT_KEY, DATE_TIME_UTILITY);
+        globalBindings.put(UnitUtility.CONTEXT_KEY, UNIT_UTILITY);
         
         //Holder for modifying timestamps of meta points, in Engine Scope so it can be modified by all
         engine.getBindings(ScriptContext.ENGINE_SCOPE).put(TIMESTAMP_CONTEXT_KEY, null);
@@ -11,7 +11,10 @@ import java.util.List;
 import java.util.Map;
 
 import com.serotonin.json.spi.JsonProperty;
+import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.db.dao.PointValueDao;
+import com.serotonin.m2m2.db.dao.PointValueRollupDao;
 import com.serotonin.m2m2.rt.dataImage.PointValueFacade;
 import com.serotonin.m2m2.rt.dataImage.PointValueTime;
 import com.serotonin.m2m2.view.ImplDefinition;
@@ -64,7 +67,38 @@ public class StatisticsChartRenderer extends TimePeriodChartRenderer {
         long startTime = getStartTime();
         long endTime = startTime + getDuration();
 
-        PointValueFacade pointValueFacade = new PointValueFacade(point.getId());
+        final PointValueFacade pointValueFacade = new PointValueFacade(point.getId());
+        int dataTypeId = point.getPointLocator().getDataTypeId();
+
+        PointValueRollupDao rollups = PointValueRollupDao.get();
+        if (dataTypeId == DataTypes.NUMERIC && rollups != null) {
+            // Whole minutes, hours and days come from the rollups
+            PointValueTime startVT = pointValueFacade.getPointValueBefore(startTime);
+            AnalogStatistics stats = rollups.getStatistics(point.getId(), startTime, endTime,
+                    startVT == null ? null : startVT.getDoubleValue(), new PointValueRollupDao.ValueSource() {
+                        @Override
+                        public List<PointValueTime> getPointValuesBetween(long from, long to) {
+                            return pointValueFacade.getPointValuesBetween(from, to);
+                        }
+                    });
+            if (stats.getCount() > 0)
+                putAnalogStatistics(model, stats, startVT);
+            model.put("logEntries", stats.getCount());
+            return;
+        }
+
+        PointValueDao dao = Common.databaseProxy.newPointValueDao();
+        if (dataTypeId == DataTypes.NUMERIC && Common.runtimeManager.getDataPoint(point.getId()) == null) {
+            // Nothing cached for a stopped point, stream the values from the database
+            PointValueTime startVT = dao.getPointValueBefore(point.getId(), startTime);
+            AnalogStatistics stats = dao.getAnalogStatistics(point.getId(), startTime, endTime,
+                    startVT == null ? null : startVT.getDoubleValue());
+            if (stats.getCount() > 0)
+                putAnalogStatistics(model, stats, startVT);
+            model.put("logEntries", stats.getCount());
+            return;
+        }
+
         List<PointValueTime> values = pointValueFacade.getPointValuesBetween(startTime, endTime);
 
         PointValueTime startVT = null;
@@ -73,7 +107,6 @@ public class StatisticsChartRenderer extends TimePeriodChartRenderer {
         }
 
         // Generate statistics on the values.
-        int dataTypeId = point.getPointLocator().getDataTypeId();
 
         if (values.size() > 0) {
             if (dataTypeId == DataTypes.BINARY || dataTypeId == DataTypes.MULTISTATE) {
@@ -85,18 +118,7 @@ public class StatisticsChartRenderer extends TimePeriodChartRenderer {
             }
             else if (dataTypeId == DataTypes.NUMERIC) {
                 AnalogStatistics stats = new AnalogStatistics(startTime, endTime, startVT, values);
-                model.put("start", startVT != null ? startTime : stats.getFirstTime());
-                model.put("end", endTime);
-                model.put("minimum", stats.getMinimumValue());
-                model.put("minTime", stats.getMinimumTime());
-                model.put("maximum", stats.getMaximumValue());
-                model.put("maxTime", stats.getMaximumTime());
-                model.put("average", stats.getAverage());
-                if (includeSum)
-                    model.put("sum", stats.getSum());
-                model.put("count", stats.getCount());
-                model.put("noData", stats.getAverage() == null);
-                model.put("integral", stats.getIntegral());
+                putAnalogStatistics(model, stats, startVT);
             }
             else if (dataTypeId == DataTypes.ALPHANUMERIC) {
                 ValueChangeCounter stats = new ValueChangeCounter(startTime, endTime, startVT, values);
@@ -107,6 +129,21 @@ public class StatisticsChartRenderer extends TimePeriodChartRenderer {
         model.put("logEntries", values.size());
     }
 
+    private void putAnalogStatistics(Map<String, Object> model, AnalogStatistics stats, PointValueTime startVT) {
+        model.put("start", startVT != null ? stats.getPeriodStartTime() : stats.getFirstTime());
+        model.put("end", stats.getPeriodEndTime());
+        model.put("minimum", stats.getMinimumValue());
+        model.put("minTime", stats.getMinimumTime());
+        model.put("maximum", stats.getMaximumValue());
+        model.put("maxTime", stats.getMaximumTime());
+        model.put("average", stats.getAverage());
+        if (includeSum)
+            model.put("sum", stats.getSum());
+        model.put("count", stats.getCount());
+        model.put("noData", stats.getAverage() == null);
+        model.put("integral", stats.getIntegral());
+    }
+
     @Override
     public String getChartSnippetFilename() {
         return "statsChart.jsp";
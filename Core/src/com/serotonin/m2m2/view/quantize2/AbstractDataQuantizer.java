@@ -8,7 +8,10 @@ import java.util.List;
 
 import org.joda.time.DateTime;
 
+import com.serotonin.m2m2.DataTypes;
 import com.serotonin.m2m2.rt.dataImage.types.DataValue;
+import com.serotonin.m2m2.rt.dataImage.types.MultistateValue;
+import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
 import com.serotonin.m2m2.view.stats.IValueTime;
 
 abstract public class AbstractDataQuantizer {
@@ -18,6 +21,10 @@ abstract public class AbstractDataQuantizer {
     private DateTime periodFrom;
     private DateTime periodTo;
     private DataValue lastValue;
+    // The last primitive value, only made into a DataValue when a period opens with it
+    private int lastDataType;
+    private double lastDouble;
+    private int lastState;
 
     public AbstractDataQuantizer(BucketCalculator bucketCalculator, DataValue startValue) {
         periodFrom = bucketCalculator.getStartTime();
@@ -41,11 +48,7 @@ abstract public class AbstractDataQuantizer {
     }
 
     public void data(DataValue value, long time) {
-        if (time < startTime)
-            throw new IllegalArgumentException("Data is before start time");
-
-        if (time >= bucketCalculator.getEndTime().getMillis())
-            throw new IllegalArgumentException("Data is after end time");
+        checkTime(time);
 
         while (time >= periodTo.getMillis())
             nextPeriod(value, time);
@@ -53,6 +56,63 @@ abstract public class AbstractDataQuantizer {
         dataInPeriod(value, time);
 
         lastValue = value;
+        lastDataType = DataTypes.UNKNOWN;
+    }
+
+    /**
+     * Add a numeric value without boxing it
+     * 
+     * @param value
+     * @param time
+     */
+    public void data(double value, long time) {
+        checkTime(time);
+
+        while (time >= periodTo.getMillis())
+            nextPeriod(periodTo.getMillis() == time ? new NumericValue(value) : null, time);
+
+        dataInPeriod(value, time);
+
+        lastValue = null;
+        lastDataType = DataTypes.NUMERIC;
+        lastDouble = value;
+    }
+
+    /**
+     * Add a multistate value without boxing it
+     * 
+     * @param state
+     * @param time
+     */
+    public void data(int state, long time) {
+        checkTime(time);
+
+        while (time >= periodTo.getMillis())
+            nextPeriod(periodTo.getMillis() == time ? new MultistateValue(state) : null, time);
+
+        dataInPeriod(state, time);
+
+        lastValue = null;
+        lastDataType = DataTypes.MULTISTATE;
+        lastState = state;
+    }
+
+    private void checkTime(long time) {
+        if (time < startTime)
+            throw new IllegalArgumentException("Data is before start time");
+
+        if (time >= bucketCalculator.getEndTime().getMillis())
+            throw new IllegalArgumentException("Data is after end time");
+    }
+
+    private DataValue getLastValue() {
+        if (lastValue == null) {
+            if (lastDataType == DataTypes.NUMERIC)
+                lastValue = new NumericValue(lastDouble);
+            else if (lastDataType == DataTypes.MULTISTATE)
+                lastValue = new MultistateValue(lastState);
+        }
+        return lastValue;
     }
 
     /**
@@ -60,7 +120,7 @@ abstract public class AbstractDataQuantizer {
      */
     public void done() {
         while (periodTo.isBefore(bucketCalculator.getEndTime()))
-            nextPeriod(lastValue, periodTo.getMillis());
+            nextPeriod(getLastValue(), periodTo.getMillis());
         closePeriod();
     }
 
@@ -74,7 +134,7 @@ abstract public class AbstractDataQuantizer {
         closePeriod();
         periodFrom = periodTo;
         periodTo = bucketCalculator.getNextPeriodTo();
-        openPeriod(periodFrom, periodTo, periodFrom.getMillis() == time ? endValue : lastValue);
+        openPeriod(periodFrom, periodTo, periodFrom.getMillis() == time ? endValue : getLastValue());
     }
 
     /**
@@ -99,6 +159,26 @@ abstract public class AbstractDataQuantizer {
      */
     abstract protected void dataInPeriod(DataValue value, long time);
 
+    /**
+     * A numeric value that occurred in the period. Override to take the value without boxing it.
+     * 
+     * @param value
+     * @param time
+     */
+    protected void dataInPeriod(double value, long time) {
+        dataInPeriod(new NumericValue(value), time);
+    }
+
+    /**
+     * A multistate value that occurred in the period. Override to take the value without boxing it.
+     * 
+     * @param state
+     * @param time
+     */
+    protected void dataInPeriod(int state, long time) {
+        dataInPeriod(new MultistateValue(state), time);
+    }
+
     /**
      * Tells the quantizer that there is no more data for the period.
      * 
@@ -39,6 +39,16 @@ public class AnalogStatisticsQuantizer extends AbstractDataQuantizer {
         analogStatistics.addValueTime(value, time);
     }
 
+    @Override
+    protected void dataInPeriod(double value, long time) {
+        analogStatistics.addValueTime(value, time);
+    }
+
+    @Override
+    protected void dataInPeriod(int state, long time) {
+        analogStatistics.addValueTime(state, time);
+    }
+
     @Override
     protected void closePeriod() {
         if (analogStatistics != null) {
@@ -16,25 +16,29 @@ public class AnalogStatistics implements StatisticsGenerator {
     private final long periodStart;
     private final long periodEnd;
 
-    // Calculated values.
-    private Double minimumValue;
-    private Long minimumTime;
-    private Double maximumValue;
-    private Long maximumTime;
+    // Calculated values, kept as primitives so that adding a value does not allocate.
+    private boolean hasMinMax;
+    private double minimumValue;
+    private long minimumTime;
+    private double maximumValue;
+    private long maximumTime;
     private Double average;
     private Double integral;
     private double sum;
-    private Double firstValue;
-    private Long firstTime;
-    private Double lastValue;
-    private Long lastTime;
+    private double firstValue;
+    private long firstTime;
+    private double lastValue;
+    private long lastTime;
     private Double startValue = null;
     private int count;
     private double delta;
 
     // State values used for calculating weighted average.
-    private Double latestValue;
+    private boolean hasLatest;
+    private double latestValue;
     private long latestTime;
+    private boolean weighted;
+    private double weightedSum;
     private long totalDuration;
 
     public AnalogStatistics(long periodStart, long periodEnd, IValueTime startVT, List<? extends IValueTime> values) {
@@ -52,11 +56,85 @@ public class AnalogStatistics implements StatisticsGenerator {
         this.periodStart = periodStart;
         this.periodEnd = periodEnd;
         if (startValue != null) {
-            delta = minimumValue = maximumValue = latestValue = this.startValue = startValue;
+            delta = minimumValue = maximumValue = latestValue = startValue;
+            this.startValue = startValue;
             minimumTime = maximumTime = latestTime = periodStart;
+            hasMinMax = hasLatest = true;
         }
     }
-   
+
+    /**
+     * Restore the statistics of a period without a start value, as saved in a point value rollup
+     */
+    public AnalogStatistics(long periodStart, long periodEnd, int count, double sum, Double minimumValue,
+            Long minimumTime, Double maximumValue, Long maximumTime, Double integral, Double firstValue,
+            Long firstTime, Double lastValue, Long lastTime) {
+        this.periodStart = periodStart;
+        this.periodEnd = periodEnd;
+        this.sum = sum;
+        this.integral = integral;
+        if (firstValue != null) {
+            this.count = count;
+            this.hasMinMax = true;
+            this.minimumValue = minimumValue;
+            this.minimumTime = minimumTime;
+            this.maximumValue = maximumValue;
+            this.maximumTime = maximumTime;
+            this.firstValue = firstValue;
+            this.firstTime = firstTime;
+            this.lastValue = lastValue;
+            this.lastTime = lastTime;
+            // The first value is in force until the next, the last until the end of the period
+            totalDuration = periodEnd - firstTime;
+            average = integral * 1000D / totalDuration;
+            delta = lastValue - firstValue;
+        }
+        else
+            this.integral = 0D;
+    }
+
+    /**
+     * Add the statistics of a later period that had no start value as if its values were added one by one,
+     * the period must be done and not start before the latest value added.
+     *
+     * @param period
+     */
+    public void addStatistics(AnalogStatistics period) {
+        if (period.count == 0)
+            return;
+
+        if (count == 0) {
+            firstValue = period.firstValue;
+            firstTime = period.firstTime;
+            if (startValue == null)
+                delta = firstValue;
+        }
+        count += period.count;
+
+        if (!hasMinMax || minimumValue > period.minimumValue) {
+            minimumValue = period.minimumValue;
+            minimumTime = period.minimumTime;
+        }
+
+        if (!hasMinMax || maximumValue < period.maximumValue) {
+            maximumValue = period.maximumValue;
+            maximumTime = period.maximumTime;
+        }
+        hasMinMax = true;
+
+        // Weight the latest value until the first of the period, then take the weighted values of the period
+        updateAverage(period.firstValue, period.firstTime);
+        weighted = true;
+        weightedSum += period.integral * 1000D;
+        totalDuration += period.totalDuration;
+        latestValue = period.lastValue;
+        latestTime = period.periodEnd;
+
+        sum += period.sum;
+
+        lastValue = period.lastValue;
+        lastTime = period.lastTime;
+    }
 
     @Override
     public void addValueTime(IValueTime vt) {
@@ -66,75 +144,82 @@ public class AnalogStatistics implements StatisticsGenerator {
     public void addValueTime(DataValue value, long time) {
         if (value == null)
             return;
+        addValueTime(value.getDoubleValue(), time);
+    }
 
-        double doubleValue = value.getDoubleValue();
-
-        count++;
-
-        if (firstValue == null) {
-            firstValue = doubleValue;
+    /**
+     * Add a value without boxing it, for values streamed from a query
+     *
+     * @param value
+     * @param time
+     */
+    public void addValueTime(double value, long time) {
+        if (count == 0) {
+            firstValue = value;
             firstTime = time;
             if(startValue == null)
             	delta = firstValue;
         }
+        count++;
 
-        if (minimumValue == null || minimumValue > doubleValue) {
-            minimumValue = doubleValue;
+        if (!hasMinMax || minimumValue > value) {
+            minimumValue = value;
             minimumTime = time;
         }
 
-        if (maximumValue == null || maximumValue < doubleValue) {
-            maximumValue = doubleValue;
+        if (!hasMinMax || maximumValue < value) {
+            maximumValue = value;
             maximumTime = time;
         }
-        
-        updateAverage(doubleValue, time);
+        hasMinMax = true;
+
+        updateAverage(value, time);
 
-        sum += value.getDoubleValue();
+        sum += value;
 
-        lastValue = value.getDoubleValue();
+        lastValue = value;
         lastTime = time;
     }
 
     @Override
     public void done() {
         updateAverage(Double.NaN, periodEnd);
-        //Average will not be null when we have at least one value in period AND an end value
+        //The weighted sum is only set when we have at least one value in period AND an end value
         // OR more than 1 value in the period
-        if (average != null) {
-            integral = average / 1000D; // integrate over seconds not msecs
-            average /= totalDuration;
+        if (weighted) {
+            integral = weightedSum / 1000D; // integrate over seconds not msecs
+            average = weightedSum / totalDuration;
         }
         else {
             // Special case: if there was no start value and no end value, and only one value in the data set, we will
             // have a latest value, and a duration of zero. For this value we set the average equal to that value.
-            average = lastValue;
+            average = getLastValue();
             //Nothing to integrate
            integral = 0D;
         }
         
-        if(firstValue != null)
+        if(count > 0)
         	delta = lastValue - delta;
         else
         	delta = 0;
     }
 
     private void updateAverage(double value, long time) {
-        if (latestValue != null) {
+        if (hasLatest) {
             // The duration for which the last value was in force.
             long duration = time - latestTime;
 
             if (duration > 0) {
-                // Determine the weighted average of the latest value. The average value at this point still needs to
-                // be divided by the total duration of the period.
-                if (average == null)
-                    average = 0D;
-                average += latestValue * duration;
+                // Determine the weighted average of the latest value. The weighted sum still needs to be divided by
+                // the total duration of the period.
+                weighted = true;
+                weightedSum += latestValue * duration;
                 totalDuration += duration;
             }
         }
 
         // Reset the latest value.
+        hasLatest = true;
         latestValue = value;
         latestTime = time;
     }
@@ -150,19 +235,19 @@ public class AnalogStatistics implements StatisticsGenerator {
     }
 
     public Double getMinimumValue() {
-        return minimumValue;
+        return hasMinMax ? Double.valueOf(minimumValue) : null;
     }
 
     public Long getMinimumTime() {
-        return minimumTime;
+        return hasMinMax ? Long.valueOf(minimumTime) : null;
     }
 
     public Double getMaximumValue() {
-        return maximumValue;
+        return hasMinMax ? Double.valueOf(maximumValue) : null;
     }
 
     public Long getMaximumTime() {
-        return maximumTime;
+        return hasMinMax ? Long.valueOf(maximumTime) : null;
     }
 
     public Double getAverage() {
@@ -182,19 +267,19 @@ public class AnalogStatistics implements StatisticsGenerator {
     }
 
     public Double getFirstValue() {
-        return firstValue;
+        return count > 0 ? Double.valueOf(firstValue) : null;
     }
 
     public Long getFirstTime() {
-        return firstTime;
+        return count > 0 ? Long.valueOf(firstTime) : null;
     }
 
     public Double getLastValue() {
-        return lastValue;
+        return count > 0 ? Double.valueOf(lastValue) : null;
     }
 
     public Long getLastTime() {
-        return lastTime;
+        return count > 0 ? Long.valueOf(lastTime) : null;
     }
 
     public int getCount() {
@@ -211,20 +296,20 @@ public class AnalogStatistics implements StatisticsGenerator {
 
     @Override
     public String toString() {
-        return "{minimumValue: " + minimumValue
-        		+ ", minimumTime: " + minimumTime 
-        		+ ", maximumValue: " + maximumValue
-                + ", maximumTime: " + maximumTime
+        return "{minimumValue: " + getMinimumValue()
+        		+ ", minimumTime: " + getMinimumTime() 
+        		+ ", maximumValue: " + getMaximumValue()
+                + ", maximumTime: " + getMaximumTime()
                 + ", average: " + average
                 + ", sum: " + sum
                 + ", count: " + count
                 + ", delta: " + delta
                 + ", integral: " + integral
                 + ", startValue: " + startValue
-                + ", firstValue: " + firstValue
-                + ", firstTime: " + firstTime
-                + ", lastValue: " + lastValue
-                + ", lastTime: " + lastTime 
+                + ", firstValue: " + getFirstValue()
+                + ", firstTime: " + getFirstTime()
+                + ", lastValue: " + getLastValue()
+                + ", lastTime: " + getLastTime() 
                 + ", periodStartTime: " + periodStart
                 + ", periodEndTime: " + periodEnd + "}";
     }
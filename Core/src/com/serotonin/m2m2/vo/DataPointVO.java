@@ -19,6 +19,7 @@ import javax.measure.unit.Unit;
 
 import org.apache.commons.lang3.StringUtils;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.serotonin.InvalidArgumentException;
 import com.serotonin.ShouldNeverHappenException;
 import com.serotonin.json.JsonException;
@@ -57,6 +58,7 @@ import com.serotonin.m2m2.vo.dataSource.PointLocatorVO;
 import com.serotonin.m2m2.vo.event.detector.AbstractEventDetectorVO;
 import com.serotonin.m2m2.vo.event.detector.AbstractPointEventDetectorVO;
 import com.serotonin.m2m2.vo.hierarchy.PointHierarchy;
+import com.serotonin.m2m2.vo.permission.PermissionSet;
 import com.serotonin.m2m2.vo.template.DataPointPropertiesTemplateVO;
 import com.serotonin.util.SerializationHelper;
 import com.serotonin.validation.StringValidation;
@@ -216,6 +218,9 @@ public class DataPointVO extends AbstractActionVO<DataPointVO> implements IDataP
     private String readPermission;
     @JsonProperty
     private String setPermission;
+    // Compiled from the permissions when first checked
+    private transient PermissionSet readPermissionSet;
+    private transient PermissionSet setPermissionSet;
     
     //Template for properties
     private Integer templateId;
@@ -685,6 +690,14 @@ public class DataPointVO extends AbstractActionVO<DataPointVO> implements IDataP
 
     public void setReadPermission(String readPermission) {
         this.readPermission = readPermission;
+        this.readPermissionSet = null;
+    }
+
+    @JsonIgnore
+    public PermissionSet getReadPermissionSet() {
+        if (readPermissionSet == null)
+            readPermissionSet = PermissionSet.compile(readPermission);
+        return readPermissionSet;
     }
 
     public String getSetPermission() {
@@ -693,6 +706,14 @@ public class DataPointVO extends AbstractActionVO<DataPointVO> implements IDataP
 
     public void setSetPermission(String setPermission) {
         this.setPermission = setPermission;
+        this.setPermissionSet = null;
+    }
+
+    @JsonIgnore
+    public PermissionSet getSetPermissionSet() {
+        if (setPermissionSet == null)
+            setPermissionSet = PermissionSet.compile(setPermission);
+        return setPermissionSet;
     }
     
     public Integer getTemplateId(){
@@ -41,6 +41,7 @@ import com.serotonin.m2m2.rt.dataImage.SetPointSource;
 import com.serotonin.m2m2.rt.event.AlarmLevels;
 import com.serotonin.m2m2.rt.event.type.SystemEventType;
 import com.serotonin.m2m2.vo.dataSource.DataSourceVO;
+import com.serotonin.m2m2.vo.permission.PermissionSet;
 import com.serotonin.m2m2.vo.permission.Permissions;
 import com.serotonin.m2m2.vo.publish.PublishedPointVO;
 import com.serotonin.m2m2.vo.publish.PublisherVO;
@@ -92,6 +93,7 @@ public class User extends AbstractVO<User> implements SetPointSource, HttpSessio
     private transient TimeZone _tz;
     private transient DateTimeZone _dtz;
     private transient String remoteAddr; //remote address we are logged in from
+    private transient PermissionSet _permissionSet;
     private boolean admin;
     //
     //Spring Security
@@ -280,10 +282,21 @@ public class User extends AbstractVO<User> implements SetPointSource, HttpSessio
 
     public void setPermissions(String permissions) {
         this.permissions = permissions;
+        _permissionSet = null;
         //Set the admin flag if necessary
         this.admin = Permissions.permissionContains(SuperadminPermissionDefinition.GROUP_NAME, permissions);
     }
 
+    /**
+     * @return the groups of the user's permissions compiled for checking them
+     */
+    @JsonIgnore
+    public PermissionSet getPermissionSet() {
+        if (_permissionSet == null)
+            _permissionSet = PermissionSet.compile(permissions);
+        return _permissionSet;
+    }
+
     public DataSourceVO<?> getEditDataSource() {
         return editDataSource;
     }
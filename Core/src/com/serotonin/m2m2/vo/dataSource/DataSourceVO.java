@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.serotonin.ShouldNeverHappenException;
 import com.serotonin.json.JsonException;
 import com.serotonin.json.JsonReader;
@@ -34,6 +35,7 @@ import com.serotonin.m2m2.util.ExportCodes;
 import com.serotonin.m2m2.vo.AbstractActionVO;
 import com.serotonin.m2m2.vo.DataPointVO.PurgeTypes;
 import com.serotonin.m2m2.vo.event.EventTypeVO;
+import com.serotonin.m2m2.vo.permission.PermissionSet;
 import com.serotonin.m2m2.web.mvc.rest.v1.model.dataSource.AbstractDataSourceModel;
 
 abstract public class DataSourceVO<T extends DataSourceVO<T>> extends AbstractActionVO<T> {
@@ -77,6 +79,8 @@ abstract public class DataSourceVO<T extends DataSourceVO<T>> extends AbstractAc
     private int purgePeriod = 1;
     @JsonProperty
     private String editPermission;
+    // Compiled from the permission when first checked
+    private transient PermissionSet editPermissionSet;
 
     public final DataSourceDefinition getDefinition() {
         return definition;
@@ -137,6 +141,14 @@ abstract public class DataSourceVO<T extends DataSourceVO<T>> extends AbstractAc
 
     public void setEditPermission(String editPermission) {
         this.editPermission = editPermission;
+        this.editPermissionSet = null;
+    }
+
+    @JsonIgnore
+    public PermissionSet getEditPermissionSet() {
+        if (editPermissionSet == null)
+            editPermissionSet = PermissionSet.compile(editPermission);
+        return editPermissionSet;
     }
 
     public EventTypeVO getEventType(int eventId) {
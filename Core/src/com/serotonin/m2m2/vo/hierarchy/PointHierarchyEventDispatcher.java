@@ -9,6 +9,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.util.timeout.HighPriorityTask;
+import com.serotonin.m2m2.vo.DataPointVO;
 
 public class PointHierarchyEventDispatcher {
     private final static List<PointHierarchyListener> LISTENERS = new CopyOnWriteArrayList<PointHierarchyListener>();
@@ -31,6 +32,26 @@ public class PointHierarchyEventDispatcher {
             Common.backgroundProcessing.execute(new DispatcherExecution(l, null));
     }
 
+    public static void fireDataPointSaved(final DataPointVO vo) {
+        for (final PointHierarchyListener l : LISTENERS)
+            Common.backgroundProcessing.execute(new HighPriorityTask("Point hierarchy event dispatcher") {
+                @Override
+                public void run(long runtime) {
+                    l.dataPointSaved(vo);
+                }
+            });
+    }
+
+    public static void fireDataPointsDeleted(final List<Integer> dataPointIds) {
+        for (final PointHierarchyListener l : LISTENERS)
+            Common.backgroundProcessing.execute(new HighPriorityTask("Point hierarchy event dispatcher") {
+                @Override
+                public void run(long runtime) {
+                    l.dataPointsDeleted(dataPointIds);
+                }
+            });
+    }
+
     static class DispatcherExecution extends HighPriorityTask {
         private final PointHierarchyListener l;
         private final PointFolder root;
@@ -4,6 +4,10 @@
  */
 package com.serotonin.m2m2.vo.hierarchy;
 
+import java.util.List;
+
+import com.serotonin.m2m2.vo.DataPointVO;
+
 abstract public class PointHierarchyListener {
     /**
      * The point hierarchy is cleared whenever a point is saved. Note that this may not mean the hierarchy has actually
@@ -20,4 +24,22 @@ abstract public class PointHierarchyListener {
     public void pointHierarchySaved(PointFolder root) {
         // Override as required
     }
+
+    /**
+     * A data point was added or changed, by default the hierarchy is cleared
+     * 
+     * @param vo
+     */
+    public void dataPointSaved(DataPointVO vo) {
+        pointHierarchyCleared();
+    }
+
+    /**
+     * Data points were deleted, by default the hierarchy is cleared
+     * 
+     * @param dataPointIds
+     */
+    public void dataPointsDeleted(List<Integer> dataPointIds) {
+        pointHierarchyCleared();
+    }
 }
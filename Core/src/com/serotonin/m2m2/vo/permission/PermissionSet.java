@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.vo.permission;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The groups of a comma separated permission string compiled into a bit set, so that checking whether two
+ * permissions share a group does not split and trim the strings every time.
+ *
+ * Each group name is given an id the first time it is seen, the ids are only known to this instance of Mango
+ * so sets are not persisted. Sets are immutable and the sets of the same string are shared.
+ *
+ * @author Terry Packer
+ */
+public final class PermissionSet {
+
+    // Strings compiled before starting again
+    private static final int MAX_COMPILED = 10000;
+
+    private static final ConcurrentHashMap<String, Integer> GROUP_IDS = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_GROUP_ID = new AtomicInteger();
+    private static final ConcurrentHashMap<String, PermissionSet> COMPILED = new ConcurrentHashMap<>();
+
+    private static final long[] NO_WORDS = new long[0];
+    public static final PermissionSet EMPTY = new PermissionSet(NO_WORDS);
+
+    private final long[] words;
+
+    private PermissionSet(long[] words) {
+        this.words = words;
+    }
+
+    /**
+     * Get the set of the groups of a permission
+     * @param permissions comma separated group names, may be null
+     * @return the set, empty if there are no groups
+     */
+    public static PermissionSet compile(String permissions) {
+        if (StringUtils.isEmpty(permissions))
+            return EMPTY;
+        PermissionSet set = COMPILED.get(permissions);
+        if (set == null) {
+            set = create(permissions);
+            // Strings are rarely made up on the fly, start again rather than track their use
+            if (COMPILED.size() >= MAX_COMPILED)
+                COMPILED.clear();
+            COMPILED.put(permissions, set);
+        }
+        return set;
+    }
+
+    private static PermissionSet create(String permissions) {
+        long[] words = NO_WORDS;
+        for (String group : permissions.split(",")) {
+            group = group.trim();
+            if (group.isEmpty())
+                continue;
+            int id = groupId(group);
+            int word = id >>> 6;
+            if (word >= words.length)
+                words = Arrays.copyOf(words, word + 1);
+            words[word] |= 1L << id;
+        }
+        return words.length == 0 ? EMPTY : new PermissionSet(words);
+    }
+
+    private static int groupId(String group) {
+        Integer id = GROUP_IDS.get(group);
+        if (id == null)
+            id = GROUP_IDS.computeIfAbsent(group, k -> NEXT_GROUP_ID.getAndIncrement());
+        return id;
+    }
+
+    /**
+     * @param other
+     * @return true if the sets share any group
+     */
+    public boolean intersects(PermissionSet other) {
+        int length = Math.min(words.length, other.words.length);
+        for (int i = 0; i < length; i++) {
+            if ((words[i] & other.words[i]) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param group name
+     * @return true if the set has the group
+     */
+    public boolean contains(String group) {
+        Integer id = GROUP_IDS.get(group.trim());
+        if (id == null)
+            return false;
+        int word = id >>> 6;
+        return word < words.length && (words[word] & (1L << id)) != 0;
+    }
+
+    /**
+     * @return the ids of the groups in the set, in order
+     */
+    public int[] getGroupIds() {
+        int count = 0;
+        for (long word : words)
+            count += Long.bitCount(word);
+        int[] ids = new int[count];
+        int i = 0;
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            while (word != 0) {
+                ids[i++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return ids;
+    }
+
+    public boolean isEmpty() {
+        return words.length == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof PermissionSet))
+            return false;
+        return Arrays.equals(words, ((PermissionSet) obj).words);
+    }
+}
@@ -4,7 +4,9 @@
  */
 package com.serotonin.m2m2.vo.permission;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
@@ -104,7 +106,7 @@ public class Permissions {
     public static boolean hasDataSourcePermission(User user, DataSourceVO<?> ds) throws PermissionException {
         if (hasAdmin(user))
             return true;
-        return permissionContains(ds.getEditPermission(), user.getPermissions());
+        return ds.getEditPermissionSet().intersects(user.getPermissionSet());
     }
 
     public static void ensureDataSourcePermission(User user) throws PermissionException {
@@ -119,12 +121,10 @@ public class Permissions {
     }
 
     public static boolean hasDataSourcePermission(String userPermissions, DataSourceVO<?> ds){
-    	if (permissionContains(SuperadminPermissionDefinition.GROUP_NAME, userPermissions))
+        PermissionSet userSet = PermissionSet.compile(userPermissions);
+    	if (userSet.contains(SuperadminPermissionDefinition.GROUP_NAME))
             return true;
-        if(permissionContains(ds.getEditPermission(), userPermissions))
-        	return true;
-        else
-        	return false;
+        return ds.getEditPermissionSet().intersects(userSet);
     }
     
     
@@ -140,19 +140,16 @@ public class Permissions {
     public static boolean hasDataPointReadPermission(User user, IDataPoint point) throws PermissionException {
     	if (hasAdmin(user))
             return true;
-        if (hasPermission(user, point.getReadPermission()))
+        if (readPermissionSet(point).intersects(user.getPermissionSet()))
             return true;
         return hasDataPointSetPermission(user, point);
     }
 
     public static boolean hasDataPointReadPermission(String userPermissions, IDataPoint point){
-    	if(hasPermission(point.getReadPermission(), userPermissions))
+        PermissionSet userSet = PermissionSet.compile(userPermissions);
+    	if(hasPermission(readPermissionSet(point), userSet))
     		return true;
-    	String dsPermission = DataSourceDao.instance.getEditPermission(point.getDataSourceId());
-    	if (permissionContains(dsPermission, userPermissions))
-            return true;
-        else
-        	return false;
+    	return dataSourcePermissionSet(point).intersects(userSet);
     }
     
     public static void ensureDataPointSetPermission(User user, DataPointVO point) throws PermissionException {
@@ -165,10 +162,10 @@ public class Permissions {
     public static boolean hasDataPointSetPermission(User user, IDataPoint point) throws PermissionException {
     	if (hasAdmin(user))
             return true;
-        if (hasPermission(user, point.getSetPermission()))
+        PermissionSet userSet = user.getPermissionSet();
+        if (setPermissionSet(point).intersects(userSet))
             return true;
-        String dsPermission = DataSourceDao.instance.getEditPermission(point.getDataSourceId());
-        return hasPermission(user, dsPermission);
+        return dataSourcePermissionSet(point).intersects(userSet);
     }
 
     /**
@@ -178,13 +175,10 @@ public class Permissions {
      * @return
      */
     public static boolean hasDataPointSetPermission(String userPermissions, IDataPoint point){
-        if(hasPermission(point.getSetPermission(), userPermissions))
+        PermissionSet userSet = PermissionSet.compile(userPermissions);
+        if(hasPermission(setPermissionSet(point), userSet))
         	return true;
-    	String dsPermission = DataSourceDao.instance.getEditPermission(point.getDataSourceId());
-    	if (permissionContains(dsPermission, userPermissions))
-            return true;
-        else
-        	return false;
+    	return dataSourcePermissionSet(point).intersects(userSet);
     }
     
     public static int getDataPointAccessType(User user, IDataPoint point) {
@@ -193,13 +187,13 @@ public class Permissions {
         if (user.isAdmin())
             return DataPointAccessTypes.ADMIN;
 
-        String dsPermission = DataSourceDao.instance.getEditPermission(point.getDataSourceId());
-        if (hasPermission(user, dsPermission))
+        PermissionSet userSet = user.getPermissionSet();
+        if (dataSourcePermissionSet(point).intersects(userSet))
             return DataPointAccessTypes.DATA_SOURCE;
 
-        if (hasPermission(user, point.getSetPermission()))
+        if (setPermissionSet(point).intersects(userSet))
             return DataPointAccessTypes.SET;
-        if (hasPermission(user, point.getReadPermission()))
+        if (readPermissionSet(point).intersects(userSet))
             return DataPointAccessTypes.READ;
         return DataPointAccessTypes.NONE;
     }
@@ -227,6 +221,61 @@ public class Permissions {
         return false;
     }
 
+    /**
+     * The users with permission for an event type, the same as checking hasEventTypePermission for
+     * each user but the data point or data source of the type is only loaded once.
+     * 
+     * @param users
+     * @param eventType
+     * @return the users with permission in the order given
+     */
+    public static List<User> getUsersWithEventTypePermission(List<User> users, EventType eventType) {
+        List<User> permitted = new ArrayList<User>(users.size());
+        if (eventType.getEventType().equals(EventType.EventTypeNames.DATA_POINT)){
+            DataPointVO point = null;
+            PermissionSet dsPermission = null;
+            boolean loaded = false;
+            for (User user : users) {
+                if (hasAdmin(user)) {
+                    permitted.add(user);
+                    continue;
+                }
+                if (!loaded) {
+                    point = DataPointDao.instance.get(eventType.getDataPointId());
+                    if (point != null)
+                        dsPermission = dataSourcePermissionSet(point);
+                    loaded = true;
+                }
+                if (point == null)
+                    continue;
+                PermissionSet userSet = user.getPermissionSet();
+                if (point.getReadPermissionSet().intersects(userSet) || point.getSetPermissionSet().intersects(userSet)
+                        || dsPermission.intersects(userSet))
+                    permitted.add(user);
+            }
+        }else if (eventType.getEventType().equals(EventType.EventTypeNames.DATA_SOURCE)){
+            DataSourceVO<?> ds = null;
+            boolean loaded = false;
+            for (User user : users) {
+                if (hasAdmin(user)) {
+                    permitted.add(user);
+                    continue;
+                }
+                if (!loaded) {
+                    ds = DataSourceDao.instance.get(eventType.getDataSourceId());
+                    loaded = true;
+                }
+                if (ds != null && hasDataSourcePermission(user, ds))
+                    permitted.add(user);
+            }
+        }else {
+            for (User user : users)
+                if (hasAdmin(user))
+                    permitted.add(user);
+        }
+        return permitted;
+    }
+
     public static void ensureEventTypePermission(User user, EventType eventType) throws PermissionException {
         if (!hasEventTypePermission(user, eventType))
             throw new PermissionException(new TranslatableMessage("permission.exception.event", user.getUsername()), user);
@@ -240,9 +289,13 @@ public class Permissions {
     // Utility
     //
     public static boolean hasPermission(User user, String query) {
+        return hasPermission(user, PermissionSet.compile(query));
+    }
+
+    public static boolean hasPermission(User user, PermissionSet query) {
         if (hasAdmin(user))
             return true;
-        return permissionContains(query, user.getPermissions());
+        return query.intersects(user.getPermissionSet());
     }
     
     /**
@@ -253,9 +306,13 @@ public class Permissions {
      * @return
      */
     public static boolean hasPermission(String query, String userPermissions){
-    	if (permissionContains(SuperadminPermissionDefinition.GROUP_NAME, userPermissions))
+        return hasPermission(PermissionSet.compile(query), PermissionSet.compile(userPermissions));
+    }
+
+    public static boolean hasPermission(PermissionSet query, PermissionSet userPermissions){
+    	if (userPermissions.contains(SuperadminPermissionDefinition.GROUP_NAME))
             return true;
-        return permissionContains(query, userPermissions);
+        return query.intersects(userPermissions);
     }
 
     /**
@@ -272,19 +329,26 @@ public class Permissions {
     public static boolean permissionContains(String query, String groups) {
         if (StringUtils.isEmpty(query) || StringUtils.isEmpty(groups))
             return false;
+        return PermissionSet.compile(query).intersects(PermissionSet.compile(groups));
+    }
 
-        String[] queryParts = query.split(",");
-        String[] groupParts = groups.split(",");
-        for (String queryPart : queryParts) {
-            if (StringUtils.isEmpty(queryPart))
-                continue;
-            for (String groupPart : groupParts) {
-                if (StringUtils.equals(queryPart.trim(), groupPart.trim()))
-                    return true;
-            }
-        }
+    //
+    // The compiled permissions of the point, those of a full data point are kept on it
+    //
+    private static PermissionSet readPermissionSet(IDataPoint point) {
+        if (point instanceof DataPointVO)
+            return ((DataPointVO) point).getReadPermissionSet();
+        return PermissionSet.compile(point.getReadPermission());
+    }
 
-        return false;
+    private static PermissionSet setPermissionSet(IDataPoint point) {
+        if (point instanceof DataPointVO)
+            return ((DataPointVO) point).getSetPermissionSet();
+        return PermissionSet.compile(point.getSetPermission());
+    }
+
+    private static PermissionSet dataSourcePermissionSet(IDataPoint point) {
+        return PermissionSet.compile(DataSourceDao.instance.getEditPermission(point.getDataSourceId()));
     }
 
     /**
@@ -20,6 +20,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.directwebremoting.WebContextFactory;
@@ -49,6 +50,7 @@ import com.serotonin.m2m2.rt.dataImage.types.ImageValue;
 import com.serotonin.m2m2.rt.dataImage.types.NumericValue;
 import com.serotonin.m2m2.rt.event.AlarmLevels;
 import com.serotonin.m2m2.rt.event.EventInstance;
+import com.serotonin.m2m2.rt.event.UserEventSummary;
 import com.serotonin.m2m2.util.DateUtils;
 import com.serotonin.m2m2.view.chart.ChartRenderer;
 import com.serotonin.m2m2.view.text.ConvertingRenderer;
@@ -64,6 +66,7 @@ import com.serotonin.m2m2.web.dwr.beans.DataPointBean;
 import com.serotonin.m2m2.web.dwr.beans.PointDetailsState;
 import com.serotonin.m2m2.web.dwr.longPoll.LongPollData;
 import com.serotonin.m2m2.web.dwr.longPoll.LongPollHandler;
+import com.serotonin.m2m2.web.dwr.longPoll.LongPollNotifier;
 import com.serotonin.m2m2.web.dwr.longPoll.LongPollRequest;
 import com.serotonin.m2m2.web.dwr.longPoll.LongPollState;
 import com.serotonin.m2m2.web.dwr.util.DwrPermission;
@@ -438,208 +441,155 @@ abstract public class BaseDwr {
 		// gets reset with at least each new poll. For now this beats writing
 		// user-specific event change tracking code.
 		state.setLastAlarmLevelChange(0);
-		while (!pollRequest.isTerminated()
-				&& Common.timer.currentTimeMillis() < expireTime) {
-			if (Providers.get(IMangoLifecycle.class).isTerminated()) {
-				pollRequest.setTerminated(true);
-				break;
-			}
 
-			if (pollRequest.isMaxAlarm() && user != null) {
-
-				// Track the last alarm count to see if we need to update the
-				// alarm toaster
-				Integer lastUnsilencedAlarmCount = (Integer) data.getState()
-						.getAttribute("lastUnsilencedAlarmCount");
-				// Ensure we have one, as we won't on first run
-				if (lastUnsilencedAlarmCount == null)
-					lastUnsilencedAlarmCount = 0;
-
-				// Sort into lists for the different types
-
-				List<EventInstance> events = Common.eventManager.getAllActiveUserEvents(user.getId());
-				int currentUnsilencedAlarmCount = events.size();
-				int lifeSafetyTotal = 0;
-				EventInstance lifeSafetyEvent = null;
-				int criticalTotal = 0;
-				EventInstance criticalEvent = null;
-				int urgentTotal = 0;
-				EventInstance urgentEvent = null;
-				int warningTotal = 0;
-				EventInstance warningEvent = null;
-				int importantTotal = 0;
-				EventInstance importantEvent = null;
-				int informationTotal = 0;
-				EventInstance informationEvent = null;
-				int noneTotal = 0;
-				EventInstance noneEvent = null;
-				int doNotLogTotal = 0;
-				EventInstance doNotLogEvent = null;
-
-				for (EventInstance event : events) {
-					switch (event.getAlarmLevel()) {
-					case AlarmLevels.LIFE_SAFETY:
-						lifeSafetyTotal++;
-						lifeSafetyEvent = event;
-						break;
-					case AlarmLevels.CRITICAL:
-						criticalTotal++;
-						criticalEvent = event;
-						break;
-					case AlarmLevels.URGENT:
-						urgentTotal++;
-						urgentEvent = event;
-						break;
-					case AlarmLevels.WARNING:
-						warningTotal++;
-						warningEvent = event;
-						break;
-					case AlarmLevels.IMPORTANT:
-						importantTotal++;
-						importantEvent = event;
-						break;
-					case AlarmLevels.INFORMATION:
-						informationTotal++;
-						informationEvent = event;
-						break;
-					case AlarmLevels.NONE:
-						noneTotal++;
-						noneEvent = event;
-						break;
-					case AlarmLevels.DO_NOT_LOG:
-						doNotLogTotal++;
-						doNotLogEvent = event;
-						break;
-					}
+		// Wait to be told of changes to the user's events and the point shown, only the module handlers
+		// have to be polled
+		LongPollNotifier notifier = LongPollNotifier.instance;
+		int userId = user == null ? -1 : user.getId();
+		int pointId = -1;
+		if (pollRequest.isPointDetails() && user != null && user.getEditPoint() != null)
+			pointId = user.getEditPoint().getId();
+		boolean polled = !ArrayUtils.isEmpty(pollRequest.getHandlers());
+		notifier.register(pollRequest, userId, pointId);
+		try {
+			while (!pollRequest.isTerminated()
+					&& Common.timer.currentTimeMillis() < expireTime) {
+				if (Providers.get(IMangoLifecycle.class).isTerminated()) {
+					pollRequest.setTerminated(true);
+					break;
 				}
+				pollRequest.clearChanged();
+
+				// Only tally the events again when they changed
+				Long lastUserEventsVersion = (Long) state.getAttribute("lastUserEventsVersion");
+				long userEventsVersion = notifier.getUserEventsVersion(userId);
+				if (pollRequest.isMaxAlarm() && user != null
+						&& (lastUserEventsVersion == null || lastUserEventsVersion != userEventsVersion)) {
+					state.setAttribute("lastUserEventsVersion", userEventsVersion);
+
+					// Track the last alarm count to see if we need to update the
+					// alarm toaster
+					Integer lastUnsilencedAlarmCount = (Integer) data.getState()
+							.getAttribute("lastUnsilencedAlarmCount");
+					// Ensure we have one, as we won't on first run
+					if (lastUnsilencedAlarmCount == null)
+						lastUnsilencedAlarmCount = 0;
+
+					// Counted by alarm level as the events change
+					UserEventSummary summary = Common.eventManager.getUserEventSummary(user.getId());
+					int currentUnsilencedAlarmCount = summary.getTotal();
+
+					// If we have some new information we should show it
+					if (lastUnsilencedAlarmCount != currentUnsilencedAlarmCount) {
+						data.getState().setAttribute("lastUnsilencedAlarmCount",
+								currentUnsilencedAlarmCount); // Update the value
+						response.put("alarmsUpdated", true); // Indicate to UI that
+																// there is a new
+																// alarm
+
+						response.put("alarmsDoNotLog", summary.getCount(AlarmLevels.DO_NOT_LOG));
+						if (summary.getCount(AlarmLevels.DO_NOT_LOG) == 1)
+							response.put("doNotLogEvent", summary.getLatest(AlarmLevels.DO_NOT_LOG));
+						response.put("alarmsNone", summary.getCount(AlarmLevels.NONE));
+						if (summary.getCount(AlarmLevels.NONE) == 1)
+							response.put("noneEvent", summary.getLatest(AlarmLevels.NONE));
+						response.put("alarmsInformation", summary.getCount(AlarmLevels.INFORMATION));
+						if (summary.getCount(AlarmLevels.INFORMATION) == 1)
+							response.put("informationEvent", summary.getLatest(AlarmLevels.INFORMATION));
+						response.put("alarmsImportant", summary.getCount(AlarmLevels.IMPORTANT));
+						if (summary.getCount(AlarmLevels.IMPORTANT) == 1)
+							response.put("importantEvent", summary.getLatest(AlarmLevels.IMPORTANT));
+						response.put("alarmsWarning", summary.getCount(AlarmLevels.WARNING));
+						if (summary.getCount(AlarmLevels.WARNING) == 1)
+							response.put("warningEvent", summary.getLatest(AlarmLevels.WARNING));
+						response.put("alarmsUrgent", summary.getCount(AlarmLevels.URGENT));
+						if (summary.getCount(AlarmLevels.URGENT) == 1)
+							response.put("urgentEvent", summary.getLatest(AlarmLevels.URGENT));
+						response.put("alarmsCritical", summary.getCount(AlarmLevels.CRITICAL));
+						if (summary.getCount(AlarmLevels.CRITICAL) == 1)
+							response.put("criticalEvent", summary.getLatest(AlarmLevels.CRITICAL));
+						response.put("alarmsLifeSafety", summary.getCount(AlarmLevels.LIFE_SAFETY));
+						if (summary.getCount(AlarmLevels.LIFE_SAFETY) == 1)
+							response.put("lifeSafetyEvent", summary.getLatest(AlarmLevels.LIFE_SAFETY));
+					} else {// end if new alarm toaster info
+							// response.put("alarmsUpdated",false);
+					}
+					// The events have changed. See if the user's particular max
+					// alarm level has changed.
+					int maxAlarmLevel = summary.getHighestAlarmLevel();
 
-				// If we have some new information we should show it
-				if (lastUnsilencedAlarmCount != currentUnsilencedAlarmCount) {
-					data.getState().setAttribute("lastUnsilencedAlarmCount",
-							currentUnsilencedAlarmCount); // Update the value
-					response.put("alarmsUpdated", true); // Indicate to UI that
-															// there is a new
-															// alarm
-
-					response.put("alarmsDoNotLog", doNotLogTotal);
-					if (doNotLogTotal == 1)
-						response.put("doNotLogEvent", doNotLogEvent);
-					response.put("alarmsNone", noneTotal);
-					if (noneTotal == 1)
-						response.put("noneEvent", noneEvent);
-					response.put("alarmsInformation", informationTotal);
-					if (informationTotal == 1)
-						response.put("informationEvent", informationEvent);
-					response.put("alarmsImportant", importantTotal);
-					if (importantTotal == 1)
-						response.put("importantEvent", importantEvent);
-					response.put("alarmsWarning", warningTotal);
-					if (warningTotal == 1)
-						response.put("warningEvent", warningEvent);
-					response.put("alarmsUrgent", urgentTotal);
-					if (urgentTotal == 1)
-						response.put("urgentEvent", urgentEvent);
-					response.put("alarmsCritical", criticalTotal);
-					if (criticalTotal == 1)
-						response.put("criticalEvent", criticalEvent);
-					response.put("alarmsLifeSafety", lifeSafetyTotal);
-					if (lifeSafetyTotal == 1)
-						response.put("lifeSafetyEvent", lifeSafetyEvent);
-				} else {// end if new alarm toaster info
-						// response.put("alarmsUpdated",false);
-				}
-				// The events have changed. See if the user's particular max
-				// alarm level has changed.
-				int maxAlarmLevel = AlarmLevels.DO_NOT_LOG;
-				if (lifeSafetyTotal > 0)
-					maxAlarmLevel = AlarmLevels.LIFE_SAFETY;
-				else if (criticalTotal > 0)
-					maxAlarmLevel = AlarmLevels.CRITICAL;
-				else if (urgentTotal > 0)
-					maxAlarmLevel = AlarmLevels.URGENT;
-				else if (warningTotal > 0)
-					maxAlarmLevel = AlarmLevels.WARNING;
-				else if (importantTotal > 0)
-					maxAlarmLevel = AlarmLevels.IMPORTANT;
-				else if (informationTotal > 0)
-					maxAlarmLevel = AlarmLevels.INFORMATION;
-				else if (noneTotal > 0)
-					maxAlarmLevel = AlarmLevels.NONE;
-
-				if (maxAlarmLevel != state.getMaxAlarmLevel()) {
-					response.put("highestUnsilencedAlarmLevel", maxAlarmLevel);
-					state.setMaxAlarmLevel(maxAlarmLevel);
-				}
+					if (maxAlarmLevel != state.getMaxAlarmLevel()) {
+						response.put("highestUnsilencedAlarmLevel", maxAlarmLevel);
+						state.setMaxAlarmLevel(maxAlarmLevel);
+					}
 
-				// Check the max alarm. First check if the events have changed
-				// since the last time this request checked.
-				long lastEMUpdate = Common.eventManager.getLastAlarmTimestamp();
-				// If there is a new alarm then do stuff
-				if (state.getLastAlarmLevelChange() < lastEMUpdate) {
-					state.setLastAlarmLevelChange(lastEMUpdate);
-				} else {// end no new alarms
-						// Don't add data for nothing, this will cause tons of
-						// polls. response.put("alarmsUpdated",false);
-				}
+					// Check the max alarm. First check if the events have changed
+					// since the last time this request checked.
+					long lastEMUpdate = Common.eventManager.getLastAlarmTimestamp();
+					// If there is a new alarm then do stuff
+					if (state.getLastAlarmLevelChange() < lastEMUpdate) {
+						state.setLastAlarmLevelChange(lastEMUpdate);
+					} else {// end no new alarms
+							// Don't add data for nothing, this will cause tons of
+							// polls. response.put("alarmsUpdated",false);
+					}
 
-			}// end for max alarms
+				}// end for max alarms
 
-			if (pollRequest.isPointDetails() && user != null) {
-				PointDetailsState newState = DataPointDetailsDwr.getPointData();
-				PointDetailsState responseState;
-				PointDetailsState oldState = state.getPointDetailsState();
+				if (pollRequest.isPointDetails() && user != null) {
+					PointDetailsState newState = DataPointDetailsDwr.getPointData();
+					PointDetailsState responseState;
+					PointDetailsState oldState = state.getPointDetailsState();
 
-				if (oldState == null)
-					responseState = newState;
-				else {
-					responseState = newState.clone();
-					responseState.removeEqualValue(oldState);
-				}
+					if (oldState == null)
+						responseState = newState;
+					else {
+						responseState = newState.clone();
+						responseState.removeEqualValue(oldState);
+					}
 
-				if (!responseState.isEmpty()) {
-					response.put("pointDetailsState", responseState);
-					state.setPointDetailsState(newState);
+					if (!responseState.isEmpty()) {
+						response.put("pointDetailsState", responseState);
+						state.setPointDetailsState(newState);
+					}
 				}
-			}
 
-			// TODO This code is used on the legacy alarms page
-			if (pollRequest.isPendingAlarms() && user != null) {
-				// Create the list of most current pending alarm content.
-				Map<String, Object> model = new HashMap<>();
-				model.put(MODEL_ATTR_EVENTS, eventDao.getPendingEvents(user.getId()));
-				model.put("pendingEvents", true);
-				model.put("noContentWhenEmpty", true);
-				String currentContent = generateContent(httpRequest,
-						"eventList.jsp", model);
-				currentContent = com.serotonin.util.StringUtils
-						.trimWhitespace(currentContent);
-
-				if (!StringUtils.equals(currentContent,
-						state.getPendingAlarmsContent())) {
-					response.put("newAlarms", true);
-					response.put("pendingAlarmsContent", currentContent);
-					state.setPendingAlarmsContent(currentContent);
-				} else {
-					response.put("newAlarms", false);
+				// TODO This code is used on the legacy alarms page
+				if (pollRequest.isPendingAlarms() && user != null) {
+					// Create the list of most current pending alarm content.
+					Map<String, Object> model = new HashMap<>();
+					model.put(MODEL_ATTR_EVENTS, eventDao.getPendingEvents(user.getId()));
+					model.put("pendingEvents", true);
+					model.put("noContentWhenEmpty", true);
+					String currentContent = generateContent(httpRequest,
+							"eventList.jsp", model);
+					currentContent = com.serotonin.util.StringUtils
+							.trimWhitespace(currentContent);
+
+					if (!StringUtils.equals(currentContent,
+							state.getPendingAlarmsContent())) {
+						response.put("newAlarms", true);
+						response.put("pendingAlarmsContent", currentContent);
+						state.setPendingAlarmsContent(currentContent);
+					} else {
+						response.put("newAlarms", false);
+					}
 				}
-			}
 
-			// Module handlers
-			for (int i = 0; i < longPollHandlers.size(); i++) {
-				LongPollHandler handler = longPollHandlers.get(i);
-				handler.handleLongPoll(data, response, user);
-			}
+				// Module handlers
+				for (int i = 0; i < longPollHandlers.size(); i++) {
+					LongPollHandler handler = longPollHandlers.get(i);
+					handler.handleLongPoll(data, response, user);
+				}
 
-			if (!response.isEmpty())
-				break;
+				if (!response.isEmpty())
+					break;
 
-			synchronized (pollRequest) {
-				try {
-					pollRequest.wait(waitTime);
-				} catch (InterruptedException e) {
-					// no op
-				}
+				long timeout = expireTime - Common.timer.currentTimeMillis();
+				notifier.await(pollRequest, polled ? Math.min(waitTime, timeout) : timeout);
 			}
+		} finally {
+			notifier.unregister(pollRequest, userId, pointId);
 		}
 
 		if (pollRequest.isTerminated())
@@ -747,6 +697,11 @@ abstract public class BaseDwr {
 	}
 
 	protected void resetLastAlarmLevelChange() {
+		// Silencing changes the user's events without the event manager
+		User user = Common.getHttpUser();
+		if (user != null)
+			LongPollNotifier.instance.userEventsChanged(user.getId());
+
 		List<LongPollData> data = getLongPollData();
 
 		synchronized (data) {
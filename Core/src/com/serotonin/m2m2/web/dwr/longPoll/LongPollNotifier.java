@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.web.dwr.longPoll;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.rt.dataImage.DataPointListener;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.util.timeout.TimeoutClient;
+import com.serotonin.m2m2.util.timeout.TimeoutTask;
+import com.serotonin.timer.RejectedTaskReason;
+
+/**
+ * Wakes the long poll requests waiting for a change, so that they don't have to check everything they show
+ * over and over again to find out whether something changed.
+ *
+ * The event manager tells of changes to the events of a user and a listener on each point shown by a point
+ * details page tells of its values. A request registers for the user and point it shows before it looks at
+ * them and waits until it is told of a change, so a change while it looks makes it look again at once.
+ *
+ * @author Terry Packer
+ */
+public class LongPollNotifier {
+
+    public static final LongPollNotifier instance = new LongPollNotifier();
+
+    // Point listeners without requests are kept for a while as the next poll of the page registers again,
+    // then removed by a timeout of their own
+    private static final long IDLE_POINT_TIMEOUT = 60000;
+
+    private final AtomicLong allUsersVersion = new AtomicLong();
+    private final ConcurrentHashMap<Integer, AtomicLong> userVersions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<LongPollRequest>> userRequests = new ConcurrentHashMap<>();
+    // Guarded by itself
+    private final Map<Integer, PointWatch> pointWatches = new HashMap<>();
+
+    private LongPollNotifier() {
+    }
+
+    //
+    // Changes
+    //
+    /**
+     * The events of the user were raised, returned to normal, deactivated or acknowledged
+     * @param userId
+     */
+    public void userEventsChanged(int userId) {
+        userVersions.computeIfAbsent(userId, k -> new AtomicLong()).incrementAndGet();
+        Set<LongPollRequest> requests = userRequests.get(userId);
+        if (requests != null) {
+            for (LongPollRequest request : requests)
+                request.changed();
+        }
+    }
+
+    /**
+     * The events of any user may have changed, like when they are purged
+     */
+    public void allUserEventsChanged() {
+        allUsersVersion.incrementAndGet();
+        for (Set<LongPollRequest> requests : userRequests.values()) {
+            for (LongPollRequest request : requests)
+                request.changed();
+        }
+    }
+
+    /**
+     * The version of the events of the user, which is greater after any change to them
+     * @param userId
+     * @return
+     */
+    public long getUserEventsVersion(int userId) {
+        AtomicLong version = userVersions.get(userId);
+        return allUsersVersion.get() + (version == null ? 0 : version.get());
+    }
+
+    //
+    // Requests
+    //
+    /**
+     * Be told of the changes to the events of the user and the values of the point
+     * @param request
+     * @param userId or -1 for none
+     * @param dataPointId or -1 for none
+     */
+    public void register(LongPollRequest request, int userId, int dataPointId) {
+        if (userId != -1)
+            userRequests.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(request);
+        if (dataPointId != -1) {
+            synchronized (pointWatches) {
+                PointWatch watch = pointWatches.get(dataPointId);
+                if (watch == null) {
+                    watch = new PointWatch(dataPointId);
+                    pointWatches.put(dataPointId, watch);
+                    Common.runtimeManager.addDataPointListener(dataPointId, watch);
+                }
+                watch.requests.add(request);
+            }
+        }
+    }
+
+    /**
+     * No longer be told of the changes registered for
+     */
+    public void unregister(LongPollRequest request, int userId, int dataPointId) {
+        if (userId != -1) {
+            Set<LongPollRequest> requests = userRequests.get(userId);
+            if (requests != null)
+                requests.remove(request);
+        }
+        if (dataPointId != -1) {
+            synchronized (pointWatches) {
+                long now = Common.timer.currentTimeMillis();
+                PointWatch watch = pointWatches.get(dataPointId);
+                if (watch != null && watch.requests.remove(request) && watch.requests.isEmpty()) {
+                    watch.idleSince = now;
+                    if (!watch.timeoutScheduled) {
+                        watch.timeoutScheduled = true;
+                        new TimeoutTask(IDLE_POINT_TIMEOUT, watch.idleClient);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the listener of the point if it has had no requests for the idle timeout, otherwise check again
+     * when it would be up
+     * @param watch
+     * @param expire remove it when idle even if the timeout is not up
+     */
+    private void idleTimeout(PointWatch watch, boolean expire) {
+        synchronized (pointWatches) {
+            watch.timeoutScheduled = false;
+            if (pointWatches.get(watch.dataPointId) != watch || !watch.requests.isEmpty())
+                return;
+            long remaining = watch.idleSince + IDLE_POINT_TIMEOUT - Common.timer.currentTimeMillis();
+            if (remaining > 0 && !expire) {
+                // Used again since it was scheduled
+                watch.timeoutScheduled = true;
+                new TimeoutTask(remaining, watch.idleClient);
+                return;
+            }
+            pointWatches.remove(watch.dataPointId);
+            Common.runtimeManager.removeDataPointListener(watch.dataPointId, watch);
+        }
+    }
+
+    /**
+     * Wait until the request is told of a change, terminated or the time is up
+     * @param request
+     * @param timeout ms
+     */
+    public void await(LongPollRequest request, long timeout) {
+        if (timeout <= 0)
+            return;
+        synchronized (request) {
+            if (request.isChanged() || request.isTerminated())
+                return;
+            try {
+                request.wait(timeout);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Tells the requests showing the point of its values
+     */
+    private class PointWatch implements DataPointListener {
+        final int dataPointId;
+        final Set<LongPollRequest> requests = ConcurrentHashMap.newKeySet();
+        // Guarded by pointWatches
+        long idleSince;
+        boolean timeoutScheduled;
+
+        final TimeoutClient idleClient = new TimeoutClient() {
+            @Override
+            public void scheduleTimeout(long fireTime) {
+                idleTimeout(PointWatch.this, false);
+            }
+
+            @Override
+            public void rejected(RejectedTaskReason reason) {
+                // Don't keep an idle listener nothing will remove
+                idleTimeout(PointWatch.this, true);
+            }
+
+            @Override
+            public String getThreadName() {
+                return "Long poll idle point " + dataPointId;
+            }
+        };
+
+        PointWatch(int dataPointId) {
+            this.dataPointId = dataPointId;
+        }
+
+        private void changed() {
+            for (LongPollRequest request : requests)
+                request.changed();
+        }
+
+        @Override
+        public String getListenerName() {
+            return "Long poll point " + dataPointId;
+        }
+
+        @Override
+        public void pointInitialized() {
+            changed();
+        }
+
+        @Override
+        public void pointUpdated(PointValueTime newValue) {
+            changed();
+        }
+
+        @Override
+        public void pointChanged(PointValueTime oldValue, PointValueTime newValue) {
+            // Already told by the update
+        }
+
+        @Override
+        public void pointSet(PointValueTime oldValue, PointValueTime newValue) {
+            // Already told by the update
+        }
+
+        @Override
+        public void pointBackdated(PointValueTime value) {
+            changed();
+        }
+
+        @Override
+        public void pointTerminated() {
+            changed();
+        }
+
+        @Override
+        public void pointLogged(PointValueTime value) {
+            // no op
+        }
+    }
+}
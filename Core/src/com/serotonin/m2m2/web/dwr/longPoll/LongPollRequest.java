@@ -23,6 +23,9 @@ public class LongPollRequest implements Serializable {
     private String[] handlers;
     private int refId;
 
+    // Set by the LongPollNotifier, guarded by this
+    private transient boolean changed;
+
     public boolean hasHandler(String handler) {
         return ArrayUtils.contains(handlers, handler);
     }
@@ -74,4 +77,23 @@ public class LongPollRequest implements Serializable {
     public void setRefId(int refId) {
         this.refId = refId;
     }
+
+    /**
+     * Something the request shows changed, wake it
+     */
+    synchronized void changed() {
+        changed = true;
+        notifyAll();
+    }
+
+    synchronized boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Forget the changes before looking at what they changed
+     */
+    public synchronized void clearChanged() {
+        changed = false;
+    }
 }
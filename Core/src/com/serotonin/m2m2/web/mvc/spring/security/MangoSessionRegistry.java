@@ -4,15 +4,28 @@
  */
 package com.serotonin.m2m2.web.mvc.spring.security;
 
+import org.springframework.security.core.session.SessionInformation;
 import org.springframework.security.core.session.SessionRegistryImpl;
 
+import com.serotonin.m2m2.vo.User;
+import com.serotonin.m2m2.web.mvc.spring.security.authentication.AuthenticationCache;
+
 /**
- * 
- * Customize Session Registration Actions (TBD with User Cache Later)
- * 
+ *
+ * Customize Session Registration Actions, the user cached for authentication is dropped when their last session ends
+ *
  * @author Terry Packer
  */
 public class MangoSessionRegistry extends SessionRegistryImpl {
 
-
+    @Override
+    public void removeSessionInformation(String sessionId) {
+        SessionInformation info = getSessionInformation(sessionId);
+        super.removeSessionInformation(sessionId);
+        if (info != null && info.getPrincipal() instanceof User) {
+            User user = (User) info.getPrincipal();
+            if (getAllSessions(user, true).isEmpty())
+                AuthenticationCache.instance.loggedOut(user.getUsername());
+        }
+    }
 }
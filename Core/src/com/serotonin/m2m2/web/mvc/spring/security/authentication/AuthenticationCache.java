@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.web.mvc.spring.security.authentication;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import com.infiniteautomation.mango.monitor.IntegerMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitorOwner;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.db.dao.UserDao;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.vo.User;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+
+/**
+ * Users with their authorities and verified tokens kept between requests so that authenticating a request
+ * does not read the user and check the token signature every time.
+ *
+ * Users are kept by their lower case username and dropped when the user is changed through the UserDao or
+ * their last session ends. Each caller gets its own copy of the user as sessions keep state in it. Tokens
+ * are kept by their signature until they expire. Both are dropped least recently used first when full and
+ * after the expiry so changes made around the DAO are picked up.
+ *
+ * @author Terry Packer
+ */
+public class AuthenticationCache {
+
+    private static final int MAX_USERS = Common.envProps.getInt("web.authentication.cachedUsers", 1000);
+    private static final int MAX_TOKENS = Common.envProps.getInt("web.authentication.cachedTokens", 1000);
+    private static final long EXPIRY = Common.envProps.getLong("web.authentication.cacheExpiry", 60000);
+
+    public static final String USER_HIT_RATIO_MONITOR_ID = "com.serotonin.m2m2.web.mvc.spring.security.authentication.AuthenticationCache.USER_HIT_RATIO_MONITOR";
+    public static final String TOKEN_HIT_RATIO_MONITOR_ID = "com.serotonin.m2m2.web.mvc.spring.security.authentication.AuthenticationCache.TOKEN_HIT_RATIO_MONITOR";
+
+    public static final AuthenticationCache instance = new AuthenticationCache();
+
+    private final BoundedMap<User> users = new BoundedMap<User>(MAX_USERS);
+    private final BoundedMap<Jws<Claims>> tokens = new BoundedMap<Jws<Claims>>(MAX_TOKENS);
+    //Incremented on every user change so a load that raced with a change is not cached
+    private int userVersion;
+
+    private final AtomicLong userHits = new AtomicLong();
+    private final AtomicLong userLookups = new AtomicLong();
+    private final AtomicLong tokenHits = new AtomicLong();
+    private final AtomicLong tokenLookups = new AtomicLong();
+
+    private final ValueMonitorOwner owner = new ValueMonitorOwner() {
+        @Override
+        public void reset(String id) {
+            if (USER_HIT_RATIO_MONITOR_ID.equals(id)) {
+                userHits.set(0);
+                userLookups.set(0);
+                userHitRatioMonitor.setValue(0);
+            }
+            else if (TOKEN_HIT_RATIO_MONITOR_ID.equals(id)) {
+                tokenHits.set(0);
+                tokenLookups.set(0);
+                tokenHitRatioMonitor.setValue(0);
+            }
+        }
+    };
+    private final IntegerMonitor userHitRatioMonitor = new IntegerMonitor(USER_HIT_RATIO_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.AUTHENTICATION_USER_HIT_RATIO"), owner);
+    private final IntegerMonitor tokenHitRatioMonitor = new IntegerMonitor(TOKEN_HIT_RATIO_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.AUTHENTICATION_TOKEN_HIT_RATIO"), owner);
+
+    private AuthenticationCache() {
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(userHitRatioMonitor);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(tokenHitRatioMonitor);
+    }
+
+    /**
+     * Get a user with its authorities, reading it if it is not cached
+     * @param username
+     * @return a copy of the user for the caller or null if there is no such user
+     */
+    public User getUser(String username) {
+        String key = username.toLowerCase(Locale.ROOT);
+        long now = Common.timer.currentTimeMillis();
+        User user;
+        int version;
+        synchronized (users) {
+            user = users.getValue(key, now);
+            version = userVersion;
+        }
+        updateRatio(user != null, userHits, userLookups, userHitRatioMonitor);
+        if (user == null) {
+            user = UserDao.instance.getUserWithAuthorities(username);
+            if (user == null)
+                return null;
+            synchronized (users) {
+                if (version == userVersion)
+                    users.put(key, new Entry<User>(user, now + EXPIRY));
+            }
+        }
+        return copy(user);
+    }
+
+    /**
+     * Get the claims of a verified token, parsing and verifying it if it is not cached
+     * @param token compact signed JWT
+     * @param parser parses and verifies the token, its exceptions are thrown as is and nothing is cached
+     * @return the claims
+     */
+    public Jws<Claims> getClaims(String token, Function<String, Jws<Claims>> parser) {
+        String key = token.substring(token.lastIndexOf('.') + 1);
+        long now = Common.timer.currentTimeMillis();
+        Jws<Claims> claims;
+        synchronized (tokens) {
+            Entry<Jws<Claims>> entry = tokens.getEntry(key, now);
+            // The signature is only valid with the header and body it was made for
+            claims = entry != null && token.equals(entry.token) ? entry.value : null;
+        }
+        updateRatio(claims != null, tokenHits, tokenLookups, tokenHitRatioMonitor);
+        if (claims == null) {
+            claims = parser.apply(token);
+            long expires = now + EXPIRY;
+            Date expiration = claims.getBody().getExpiration();
+            if (expiration != null)
+                expires = Math.min(expires, expiration.getTime());
+            Entry<Jws<Claims>> entry = new Entry<Jws<Claims>>(claims, expires);
+            entry.token = token;
+            synchronized (tokens) {
+                tokens.put(key, entry);
+            }
+        }
+        return claims;
+    }
+
+    /**
+     * Drop a user that was saved, deleted or logged in
+     * @param userId
+     */
+    public void userChanged(int userId) {
+        synchronized (users) {
+            userVersion++;
+            // Renamed users are still kept by their old name
+            users.values().removeIf(entry -> entry.value.getId() == userId);
+        }
+    }
+
+    /**
+     * Drop a user and their tokens when their last session ends
+     * @param username
+     */
+    public void loggedOut(String username) {
+        synchronized (users) {
+            users.remove(username.toLowerCase(Locale.ROOT));
+        }
+        synchronized (tokens) {
+            Iterator<Entry<Jws<Claims>>> it = tokens.values().iterator();
+            while (it.hasNext()) {
+                if (username.equalsIgnoreCase(it.next().value.getBody().getSubject()))
+                    it.remove();
+            }
+        }
+    }
+
+    private static void updateRatio(boolean hit, AtomicLong hits, AtomicLong lookups, IntegerMonitor monitor) {
+        long hitCount = hit ? hits.incrementAndGet() : hits.get();
+        long lookupCount = lookups.incrementAndGet();
+        monitor.setValue((int) (hitCount * 100 / lookupCount));
+    }
+
+    private static User copy(User cached) {
+        User user = new User(new HashSet<GrantedAuthority>(cached.getAuthorities()));
+        user.setId(cached.getId());
+        user.setUsername(cached.getUsername());
+        user.setPassword(cached.getPassword());
+        user.setEmail(cached.getEmail());
+        user.setPhone(cached.getPhone());
+        user.setDisabled(cached.isDisabled());
+        user.setHomeUrl(cached.getHomeUrl());
+        user.setLastLogin(cached.getLastLogin());
+        user.setReceiveAlarmEmails(cached.getReceiveAlarmEmails());
+        user.setReceiveOwnAuditEvents(cached.isReceiveOwnAuditEvents());
+        user.setTimezone(cached.getTimezone());
+        user.setMuted(cached.isMuted());
+        user.setPermissions(cached.getPermissions());
+        user.setName(cached.getName());
+        user.setLocale(cached.getLocale());
+        return user;
+    }
+
+    static class Entry<V> {
+        final V value;
+        final long expires;
+        String token;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Least recently used map of entries, synchronize on it to use it
+     */
+    static class BoundedMap<V> extends LinkedHashMap<String, Entry<V>> {
+        private static final long serialVersionUID = 1L;
+        private final int max;
+
+        BoundedMap(int max) {
+            super(16, 0.75f, true);
+            this.max = max;
+        }
+
+        Entry<V> getEntry(String key, long now) {
+            Entry<V> entry = get(key);
+            if (entry != null && entry.expires <= now) {
+                remove(key);
+                return null;
+            }
+            return entry;
+        }
+
+        V getValue(String key, long now) {
+            Entry<V> entry = getEntry(key, now);
+            return entry == null ? null : entry.value;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+            return size() > max;
+        }
+    }
+}
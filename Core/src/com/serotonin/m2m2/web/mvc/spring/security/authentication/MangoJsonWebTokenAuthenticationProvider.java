@@ -15,7 +15,6 @@ import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.web.authentication.preauth.PreAuthenticatedAuthenticationToken;
 
 import com.serotonin.m2m2.Common;
-import com.serotonin.m2m2.db.dao.UserDao;
 import com.serotonin.m2m2.vo.User;
 import com.serotonin.m2m2.web.mvc.spring.components.JwtService;
 
@@ -56,7 +55,7 @@ public class MangoJsonWebTokenAuthenticationProvider implements AuthenticationPr
         Jws<Claims> claims;
         // decode
         try {
-            claims = jwtService.parseToken(bearerToken);
+            claims = AuthenticationCache.instance.getClaims(bearerToken, jwtService::parseToken);
         } catch (ExpiredJwtException e) {
             throw new CredentialsExpiredException(e.getMessage(), e);
         } catch (UnsupportedJwtException | MalformedJwtException | IllegalArgumentException e) {
@@ -69,7 +68,7 @@ public class MangoJsonWebTokenAuthenticationProvider implements AuthenticationPr
         }
         
         String username = claims.getBody().getSubject();
-        User user = UserDao.instance.getUser(username);
+        User user = AuthenticationCache.instance.getUser(username);
         if (user == null)
             throw new UsernameNotFoundException(Common.translate("login.validation.invalidLogin"));
 
@@ -5,7 +5,9 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServlet;
@@ -16,10 +18,11 @@ import com.serotonin.db.MappedRowCallback;
 import com.serotonin.m2m2.Common;
 import com.serotonin.m2m2.db.dao.DataPointDao;
 import com.serotonin.m2m2.db.dao.PointValueDao;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
 import com.serotonin.m2m2.i18n.Translations;
-import com.serotonin.m2m2.rt.dataImage.AnnotatedPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.AnnotatedIdPointValueTime;
+import com.serotonin.m2m2.rt.dataImage.IdPointValueTime;
 import com.serotonin.m2m2.rt.dataImage.PointValueEmporter;
-import com.serotonin.m2m2.rt.dataImage.PointValueTime;
 import com.serotonin.m2m2.vo.DataPointVO;
 import com.serotonin.m2m2.vo.User;
 import com.serotonin.m2m2.vo.emport.SpreadsheetEmporter;
@@ -90,7 +93,6 @@ public class ChartExportServlet extends HttpServlet {
      */
     private void exportCsv(HttpServletRequest request, HttpServletResponse response,long from, long to, DataExportDefinition def, User user) throws IOException{
         
-        DataPointDao dataPointDao = DataPointDao.instance;
         PointValueDao pointValueDao = Common.databaseProxy.newPointValueDao();
 
     	// Stream the content.
@@ -99,35 +101,27 @@ public class ChartExportServlet extends HttpServlet {
         final Translations translations = Common.getTranslations();
         final ExportCsvStreamer exportCreator = new ExportCsvStreamer(request.getServerName(), request.getLocalPort(), response.getWriter(), translations);
 
+        final Map<Integer, ExportPointInfo> pointInfos = getPointInfos(def, user);
         final ExportDataValue edv = new ExportDataValue();
-        MappedRowCallback<PointValueTime> callback = new MappedRowCallback<PointValueTime>() {
+        MappedRowCallback<IdPointValueTime> callback = new MappedRowCallback<IdPointValueTime>() {
+            private int currentPointId = Common.NEW_ID;
+
             @Override
-            public void row(PointValueTime pvt, int rowIndex) {
+            public void row(IdPointValueTime pvt, int rowIndex) {
+                if (pvt.getId() != currentPointId) {
+                    currentPointId = pvt.getId();
+                    exportCreator.startPoint(pointInfos.get(currentPointId));
+                }
                 edv.setValue(pvt.getValue());
                 edv.setTime(pvt.getTime());
-                if (pvt instanceof AnnotatedPointValueTime)
-                    edv.setAnnotation(((AnnotatedPointValueTime) pvt).getSourceMessage());
-                else
-                    edv.setAnnotation(null);
+                edv.setAnnotation(getAnnotation(pvt));
                 exportCreator.pointData(edv);
             }
         };
 
-        for (int pointId : def.getPointIds()) {
-            DataPointVO dp = dataPointDao.getDataPoint(pointId, false);
-            if (Permissions.hasDataPointReadPermission(user, dp)) {
-                ExportPointInfo pointInfo = new ExportPointInfo();
-                pointInfo.setXid(dp.getXid());
-                pointInfo.setPointName(dp.getName());
-                pointInfo.setDeviceName(dp.getDeviceName());
-                pointInfo.setTextRenderer(dp.getTextRenderer());
-                pointInfo.setDataPointId(pointId);
-                exportCreator.startPoint(pointInfo);
-
-                pointValueDao.getPointValuesBetween(pointId, from, to, callback);
-            }
-        }
-        
+        // The values of every point in time order, read point by point and merged
+        if (!pointInfos.isEmpty())
+            pointValueDao.getPointValuesBetween(new ArrayList<Integer>(pointInfos.keySet()), from, to, callback);
 
         exportCreator.done();
     }
@@ -143,7 +137,6 @@ public class ChartExportServlet extends HttpServlet {
      */
     private void exportExcel(HttpServletResponse response,long from, long to, DataExportDefinition def, User user) throws IOException{
         
-        DataPointDao dataPointDao = DataPointDao.instance;
         PointValueDao pointValueDao = Common.databaseProxy.newPointValueDao();
 
     	// Stream the content.
@@ -158,16 +151,15 @@ public class ChartExportServlet extends HttpServlet {
         emporter.prepareExport(bos);
         emporter.prepareSheetExport(sheetEmporters.get(0));
         
+        final Map<Integer, ExportPointInfo> pointInfos = getPointInfos(def, user);
         final ExportDataValue edv = new ExportDataValue();
-        MappedRowCallback<PointValueTime> callback = new MappedRowCallback<PointValueTime>() {
+        MappedRowCallback<IdPointValueTime> callback = new MappedRowCallback<IdPointValueTime>() {
             @Override
-            public void row(PointValueTime pvt, int rowIndex) {
+            public void row(IdPointValueTime pvt, int rowIndex) {
                 edv.setValue(pvt.getValue());
                 edv.setTime(pvt.getTime());
-                if (pvt instanceof AnnotatedPointValueTime)
-                    edv.setAnnotation(((AnnotatedPointValueTime) pvt).getSourceMessage());
-                else
-                    edv.setAnnotation(null);
+                edv.setAnnotation(getAnnotation(pvt));
+                sheetEmporters.get(sheetIndex.get()).setPointInfo(pointInfos.get(pvt.getId()));
                 sheetEmporters.get(sheetIndex.get()).exportRow(edv);
                 
                 if(sheetEmporters.get(sheetIndex.get()).getRowsAdded() >= emporter.getMaxRowsPerSheet()){
@@ -183,26 +175,36 @@ public class ChartExportServlet extends HttpServlet {
             }
         };
 
+        // The values of every point in time order, read point by point and merged
+        if (!pointInfos.isEmpty())
+            pointValueDao.getPointValuesBetween(new ArrayList<Integer>(pointInfos.keySet()), from, to, callback);
+       emporter.finishExport();
+    }
+
+    /**
+     * The export info of the points of the definition the user can read, in the order of the definition
+     */
+    private Map<Integer, ExportPointInfo> getPointInfos(DataExportDefinition def, User user) {
+        Map<Integer, ExportPointInfo> pointInfos = new LinkedHashMap<Integer, ExportPointInfo>();
         for (int pointId : def.getPointIds()) {
-            DataPointVO dp = dataPointDao.getDataPoint(pointId, false);
-            if (Permissions.hasDataPointReadPermission(user, dp)) {
+            DataPointVO dp = DataPointDao.instance.getDataPoint(pointId, false);
+            if (dp != null && Permissions.hasDataPointReadPermission(user, dp)) {
                 ExportPointInfo pointInfo = new ExportPointInfo();
                 pointInfo.setXid(dp.getXid());
                 pointInfo.setPointName(dp.getName());
                 pointInfo.setDeviceName(dp.getDeviceName());
                 pointInfo.setTextRenderer(dp.getTextRenderer());
-                sheetEmporters.get(sheetIndex.get()).setPointInfo(pointInfo);
-
-                pointValueDao.getPointValuesBetween(pointId, from, to, callback);
+                pointInfo.setDataPointId(pointId);
+                pointInfos.put(pointId, pointInfo);
             }
         }
-       emporter.finishExport();
+        return pointInfos;
+    }
+
+    private TranslatableMessage getAnnotation(IdPointValueTime pvt) {
+        if (pvt instanceof AnnotatedIdPointValueTime)
+            return ((AnnotatedIdPointValueTime) pvt).getSourceMessage();
+        return null;
     }
 
 }
-    
-    
-    
-    
-    
-    
@@ -0,0 +1,580 @@
+/**
+ * Copyright (C) 2017 Infinite Automation Software. All rights reserved.
+ *
+ */
+package com.serotonin.m2m2.web.servlet;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Stroke;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+import javax.measure.converter.UnitConverter;
+import javax.measure.unit.Unit;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.jfree.chart.plot.ValueMarker;
+import org.jfree.data.time.TimeSeries;
+
+import com.infiniteautomation.mango.monitor.AtomicIntegerMonitor;
+import com.infiniteautomation.mango.monitor.IntegerMonitor;
+import com.infiniteautomation.mango.monitor.ValueMonitorOwner;
+import com.serotonin.InvalidArgumentException;
+import com.serotonin.ShouldNeverHappenException;
+import com.serotonin.m2m2.Common;
+import com.serotonin.m2m2.DataTypes;
+import com.serotonin.m2m2.db.dao.DataPointDao;
+import com.serotonin.m2m2.i18n.TranslatableMessage;
+import com.serotonin.m2m2.module.definitions.event.detectors.AnalogHighLimitEventDetectorDefinition;
+import com.serotonin.m2m2.module.definitions.event.detectors.AnalogLowLimitEventDetectorDefinition;
+import com.serotonin.m2m2.rt.dataImage.PointValueFacade;
+import com.serotonin.m2m2.rt.dataImage.PointValueTime;
+import com.serotonin.m2m2.util.ColorUtils;
+import com.serotonin.m2m2.util.chart.DiscreteTimeSeries;
+import com.serotonin.m2m2.util.chart.ImageChartUtils;
+import com.serotonin.m2m2.util.chart.NumericTimeSeries;
+import com.serotonin.m2m2.util.chart.PointTimeSeriesCollection;
+import com.serotonin.m2m2.vo.DataPointVO;
+import com.serotonin.m2m2.vo.event.detector.AbstractPointEventDetectorVO;
+import com.serotonin.m2m2.vo.event.detector.AnalogHighLimitDetectorVO;
+import com.serotonin.m2m2.vo.event.detector.AnalogLowLimitDetectorVO;
+
+/**
+ * The rendered images of the image chart servlets, shared by all users so that a chart shown to many of them
+ * is rendered once.
+ *
+ * Images are kept by the points, range, size, colours and time zone of the chart, with the points in id order.
+ * Charts of the last period, which the browsers ask for again as the period moves, are rendered for the period
+ * up to the start of the range bucket of the request so the requests within a bucket share the image. From-to
+ * charts are also kept by the last timestamp of their values and by the range bucket while their range reaches now. The
+ * values of the points are kept apart from the images so a chart shown in different sizes reads them once.
+ *
+ * Requests for an image being rendered wait for it rather than render it again. Both caches drop the least
+ * recently used entries when full and entries older than the expiry are rendered again. The images are
+ * limited by their number and the values by how many of them are kept, so a few charts of long ranges can't
+ * take up the memory of many small ones.
+ *
+ * @author Terry Packer
+ */
+class ImageChartCache {
+
+    private static final int MAX_IMAGES = Common.envProps.getInt("web.imageChart.cachedImages", 500);
+    private static final int MAX_SERIES_VALUES = Common.envProps.getInt("web.imageChart.cachedValues", 500000);
+    private static final long RANGE_BUCKET = Math.max(1, Common.envProps.getLong("web.imageChart.rangeBucket", 10000));
+    private static final long EXPIRY = Common.envProps.getLong("web.imageChart.cacheExpiry", 600000);
+
+    public static final String HITS_MONITOR_ID = "com.serotonin.m2m2.web.servlet.ImageChartCache.HITS_MONITOR";
+    public static final String MISSES_MONITOR_ID = "com.serotonin.m2m2.web.servlet.ImageChartCache.MISSES_MONITOR";
+    public static final String RENDER_TIME_MONITOR_ID = "com.serotonin.m2m2.web.servlet.ImageChartCache.RENDER_TIME_MONITOR";
+
+    static final ImageChartCache instance = new ImageChartCache();
+
+    private static final Stroke limitStroke = new BasicStroke(1f, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_BEVEL, 0,
+            new float[] { 2, 4 }, 0);
+    private static final Paint lowLimitPaint = new Color(0, 0, 0.7f);
+    private static final Paint highLimitPaint = new Color(0.7f, 0, 0);
+
+    private final BoundedCache<ChartKey, byte[]> images = new BoundedCache<ChartKey, byte[]>(MAX_IMAGES, EXPIRY);
+    private final BoundedCache<SeriesKey, ChartSeries> series = new BoundedCache<SeriesKey, ChartSeries>(
+            MAX_SERIES_VALUES, EXPIRY, values -> values.valueCount);
+
+    private final AtomicLong renders = new AtomicLong();
+    private final AtomicLong renderTime = new AtomicLong();
+
+    private final ValueMonitorOwner owner = new ValueMonitorOwner() {
+        @Override
+        public void reset(String id) {
+            if (HITS_MONITOR_ID.equals(id))
+                hitsMonitor.setValue(0);
+            else if (MISSES_MONITOR_ID.equals(id))
+                missesMonitor.setValue(0);
+            else if (RENDER_TIME_MONITOR_ID.equals(id)) {
+                renders.set(0);
+                renderTime.set(0);
+                renderTimeMonitor.setValue(0);
+            }
+        }
+    };
+    private final AtomicIntegerMonitor hitsMonitor = new AtomicIntegerMonitor(HITS_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.IMAGE_CHART_HITS"), owner);
+    private final AtomicIntegerMonitor missesMonitor = new AtomicIntegerMonitor(MISSES_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.IMAGE_CHART_MISSES"), owner);
+    private final IntegerMonitor renderTimeMonitor = new IntegerMonitor(RENDER_TIME_MONITOR_ID,
+            new TranslatableMessage("internal.monitor.IMAGE_CHART_RENDER_TIME"), owner);
+
+    private ImageChartCache() {
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(hitsMonitor);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(missesMonitor);
+        Common.MONITORED_VALUES.addIfMissingStatMonitor(renderTimeMonitor);
+    }
+
+    /**
+     * Get the image of the chart named by the image info, rendering it if it is not cached
+     *
+     * @param imageInfo the path info of the request, see ChartKey.parse
+     * @param width unless the image info has one
+     * @param height unless the image info has one
+     * @param timeZone of the user
+     * @return the png or null if the image info names no chart
+     * @throws IOException if a colour is invalid
+     */
+    byte[] getImageData(String imageInfo, int width, int height, TimeZone timeZone) throws IOException {
+        ChartKey key = ChartKey.parse(imageInfo, width, height, timeZone, Common.timer.currentTimeMillis());
+        if (key == null)
+            return null;
+
+        boolean[] rendered = new boolean[1];
+        byte[] data = images.get(key, () -> {
+            rendered[0] = true;
+            long start = System.currentTimeMillis();
+            try {
+                return render(key);
+            }
+            finally {
+                long count = renders.incrementAndGet();
+                long total = renderTime.addAndGet(System.currentTimeMillis() - start);
+                renderTimeMonitor.setValue((int) (total / count));
+            }
+        });
+
+        if (rendered[0])
+            missesMonitor.increment();
+        else
+            hitsMonitor.increment();
+        return data;
+    }
+
+    private byte[] render(ChartKey key) {
+        ChartSeries values = series.get(key.series, () -> load(key.series));
+        if (values.pointCount == 0)
+            return null;
+
+        PointTimeSeriesCollection ptsc = new PointTimeSeriesCollection(key.timeZone);
+        DataPointVO markerPoint = null;
+        for (int i = 0; i < values.points.length; i++) {
+            DataPointVO dp = values.points[i];
+            if (dp == null)
+                continue;
+            markerPoint = dp;
+
+            //Get the Color if there wasn't one provided
+            Color colour = key.colours[i];
+            if (colour == null) {
+                try {
+                    if (dp.getChartColour() != null)
+                        colour = ColorUtils.toColor(dp.getChartColour());
+                }
+                catch (InvalidArgumentException e) {
+                    //Munch it
+                }
+            }
+
+            // The time series are made again for each image as the chart listens to them
+            List<PointValueTime> data = values.values[i];
+            if (dp.getPointLocator().getDataTypeId() == DataTypes.NUMERIC) {
+                //This works because we enforce that all Units default to the ONE Unit if not used
+                UnitConverter converter = null;
+                if (dp.isUseRenderedUnit() && dp.getRenderedUnit() != dp.getUnit())
+                    converter = dp.getUnit().getConverterTo(dp.getRenderedUnit());
+                TimeSeries ts = new TimeSeries(dp.getExtendedName(), null, dp.getTextRenderer().getMetaText());
+                for (PointValueTime pv : data) {
+                    if (converter != null)
+                        ImageChartUtils.addMillisecond(ts, pv.getTime(), converter.convert(pv.getDoubleValue()));
+                    else
+                        ImageChartUtils.addMillisecond(ts, pv.getTime(), pv.getValue().numberValue());
+                }
+                ptsc.addNumericTimeSeries(new NumericTimeSeries(dp.getPlotType(), ts, colour, null));
+            }
+            else {
+                DiscreteTimeSeries ts = new DiscreteTimeSeries(dp.getExtendedName(), dp.getTextRenderer(), colour, null);
+                for (PointValueTime pv : data)
+                    ts.addValueTime(pv);
+                ptsc.addDiscreteTimeSeries(ts);
+            }
+        }
+
+        if (values.pointCount == 1) {
+            // Only one point. Check for limits to draw as markers.
+            UnitConverter uc;
+            if (markerPoint.getUnit() != null && markerPoint.getRenderedUnit() != null)
+                uc = markerPoint.getUnit().getConverterTo(markerPoint.getRenderedUnit());
+            else
+                uc = Unit.ONE.getConverterTo(Unit.ONE);
+            for (AbstractPointEventDetectorVO<?> ped : markerPoint.getEventDetectors()) {
+                if (ped.getDefinition().getEventDetectorTypeName().equals(AnalogLowLimitEventDetectorDefinition.TYPE_NAME))
+                    ptsc.addRangeMarker(new ValueMarker(uc.convert(((AnalogLowLimitDetectorVO) ped).getLimit()),
+                            lowLimitPaint, limitStroke));
+                else if (ped.getDefinition().getEventDetectorTypeName().equals(AnalogHighLimitEventDetectorDefinition.TYPE_NAME))
+                    ptsc.addRangeMarker(new ValueMarker(uc.convert(((AnalogHighLimitDetectorVO) ped).getLimit()),
+                            highLimitPaint, limitStroke));
+            }
+        }
+
+        return ImageChartUtils.getChartData(ptsc, key.width, key.height, key.series.from, key.series.to);
+    }
+
+    /**
+     * Read the points and their values over the range
+     */
+    private ChartSeries load(SeriesKey key) {
+        ChartSeries values = new ChartSeries(key.pointIds.length);
+        for (int i = 0; i < key.pointIds.length; i++) {
+            int dataPointId = key.pointIds[i];
+            DataPointVO dp = DataPointDao.instance.getDataPoint(dataPointId);
+            if (dp == null || dp.getName() == null)
+                continue;
+
+            PointValueFacade pointValueFacade = new PointValueFacade(dataPointId);
+            List<PointValueTime> data;
+            if (key.from == -1 && key.to == -1)
+                data = pointValueFacade.getPointValues(0);
+            else if (key.from == -1)
+                data = pointValueFacade.getPointValuesBetween(0, key.to);
+            else if (key.to == -1)
+                data = pointValueFacade.getPointValues(key.from);
+            else
+                data = pointValueFacade.getPointValuesBetween(key.from, key.to);
+
+            values.points[i] = dp;
+            values.values[i] = data;
+            values.pointCount++;
+            values.valueCount += data.size();
+        }
+        return values;
+    }
+
+    /**
+     * The points of a chart and their values, in the order of the ids of the key. Not changed once loaded.
+     */
+    private static class ChartSeries {
+        final DataPointVO[] points;
+        final List<PointValueTime>[] values;
+        int pointCount;
+        int valueCount;
+
+        @SuppressWarnings("unchecked")
+        ChartSeries(int size) {
+            points = new DataPointVO[size];
+            values = new List[size];
+        }
+    }
+
+    /**
+     * The points and range of the values of a chart
+     */
+    static class SeriesKey {
+        final int[] pointIds;
+        final long from;
+        final long to;
+        // The range bucket of charts running up to now, 0 otherwise
+        final long bucket;
+        // The last timestamp of the values of from-to charts, which changes with their values, null otherwise
+        final String lastTimestamp;
+
+        SeriesKey(int[] pointIds, long from, long to, long bucket, String lastTimestamp) {
+            this.pointIds = pointIds;
+            this.from = from;
+            this.to = to;
+            this.bucket = bucket;
+            this.lastTimestamp = lastTimestamp;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Arrays.hashCode(pointIds);
+            result = 31 * result + (int) (from ^ (from >>> 32));
+            result = 31 * result + (int) (to ^ (to >>> 32));
+            result = 31 * result + (int) (bucket ^ (bucket >>> 32));
+            result = 31 * result + (lastTimestamp == null ? 0 : lastTimestamp.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof SeriesKey))
+                return false;
+            SeriesKey other = (SeriesKey) obj;
+            return from == other.from && to == other.to && bucket == other.bucket
+                    && Objects.equals(lastTimestamp, other.lastTimestamp) && Arrays.equals(pointIds, other.pointIds);
+        }
+    }
+
+    /**
+     * An image of a chart
+     */
+    static class ChartKey {
+        final SeriesKey series;
+        // The colour asked for each point or null
+        final Color[] colours;
+        final int width;
+        final int height;
+        final TimeZone timeZone;
+
+        ChartKey(SeriesKey series, Color[] colours, int width, int height, TimeZone timeZone) {
+            this.series = series;
+            this.colours = colours;
+            this.width = width;
+            this.height = height;
+            this.timeZone = timeZone;
+        }
+
+        /**
+         * The imageInfo contains the timestamp of the last point value, the data point id, and the duration of
+         * the chart. The intention is to create a name for the virtual image such that the browser will cache
+         * the data and only come here when the data has change. The format of the name is:
+         * /{last timestamp}_{duration}_{data point id[|colour]}[_{data point id[|colour]} ...].png
+         *
+         * From-to charts can also be requested. They are distinguishable by their starting "ft_". Complete
+         * format is:
+         * /ft_{last timestamp}_{from millis}_{to millis}_{data point id[|colour]}[_{data point id[|colour]} ...].png
+         *
+         * Width and height can also be added to the image name in case they change dynamically. Add them to the
+         * data point id list but prepend them with w and h: "_w500_h250.png"
+         *
+         * Hex colour definitions need to be prefixed with '0x' instead of '#'.
+         *
+         * @return the key or null if the image info is not valid or names no points
+         * @throws IOException if a colour is invalid
+         */
+        static ChartKey parse(String imageInfo, int width, int height, TimeZone timeZone, long now)
+                throws IOException {
+            try {
+                // Remove the / and the .png
+                imageInfo = imageInfo.substring(1, imageInfo.length() - 4);
+
+                // Split by underscore.
+                String[] imageBits = imageInfo.split("_");
+
+                // Get the range, those running up to now move with the range bucket
+                long bucket = now - now % RANGE_BUCKET;
+                long from, to;
+                String lastTimestamp = null;
+                int pointIdStart;
+                if (imageBits[0].equals("ft")) {
+                    // The values of a past range change when values are backdated into it
+                    lastTimestamp = imageBits[1];
+                    from = Long.parseLong(imageBits[2]);
+                    to = Long.parseLong(imageBits[3]);
+                    pointIdStart = 4;
+                }
+                else {
+                    from = bucket - Long.parseLong(imageBits[1]);
+                    to = -1;
+                    pointIdStart = 2;
+                }
+                if (to != -1 && to < now)
+                    bucket = 0;
+
+                // The points in id order, the first colour given for a point is used
+                Map<Integer, Color> points = new LinkedHashMap<Integer, Color>();
+                for (int i = pointIdStart; i < imageBits.length; i++) {
+                    if (imageBits[i].startsWith("w"))
+                        width = NumberUtils.toInt(imageBits[i].substring(1), width);
+                    else if (imageBits[i].startsWith("h"))
+                        height = NumberUtils.toInt(imageBits[i].substring(1), height);
+                    else {
+                        String dataPointStr = imageBits[i];
+                        Color colour = null;
+                        int dataPointId;
+
+                        int pipe = dataPointStr.indexOf('|');
+                        if (pipe == -1)
+                            dataPointId = Integer.parseInt(dataPointStr);
+                        else {
+                            try {
+                                String colourStr = dataPointStr.substring(pipe + 1);
+                                if (colourStr.startsWith("0x"))
+                                    colourStr = "#" + colourStr.substring(2);
+                                colour = ColorUtils.toColor(colourStr);
+                            }
+                            catch (InvalidArgumentException e) {
+                                throw new IOException(e);
+                            }
+                            dataPointId = Integer.parseInt(dataPointStr.substring(0, pipe));
+                        }
+
+                        if (!points.containsKey(dataPointId))
+                            points.put(dataPointId, colour);
+                    }
+                }
+
+                if (points.isEmpty())
+                    return null;
+
+                int[] pointIds = new int[points.size()];
+                int i = 0;
+                for (Integer id : points.keySet())
+                    pointIds[i++] = id;
+                Arrays.sort(pointIds);
+                Color[] colours = new Color[pointIds.length];
+                for (i = 0; i < pointIds.length; i++)
+                    colours[i] = points.get(pointIds[i]);
+
+                return new ChartKey(new SeriesKey(pointIds, from, to, bucket, lastTimestamp), colours, width, height, timeZone);
+            }
+            catch (StringIndexOutOfBoundsException e) {
+                // no op
+            }
+            catch (NumberFormatException e) {
+                // no op
+            }
+            catch (ArrayIndexOutOfBoundsException e) {
+                // no op
+            }
+
+            return null;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = series.hashCode();
+            result = 31 * result + Arrays.hashCode(colours);
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + timeZone.getID().hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof ChartKey))
+                return false;
+            ChartKey other = (ChartKey) obj;
+            return width == other.width && height == other.height && series.equals(other.series)
+                    && Arrays.equals(colours, other.colours) && timeZone.getID().equals(other.timeZone.getID());
+        }
+    }
+
+    /**
+     * A least recently used cache whose values are made by the first request for them, the requests made while
+     * it is being made wait for it. A value that failed is made again by the next request.
+     *
+     * The cache is bounded by the total weight of its values, each value weighs 1 unless a weigher is given. A
+     * value heavier than the bound is returned without being kept.
+     */
+    static class BoundedCache<K, V> {
+        private final int maxWeight;
+        private final long expiry;
+        private final ToIntFunction<V> weigher;
+        // Least recently used first
+        private final Map<K, CacheEntry<V>> entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+        // Of the values made, guarded by entries
+        private long weight;
+
+        BoundedCache(int maxSize, long expiry) {
+            this(maxSize, expiry, value -> 1);
+        }
+
+        BoundedCache(int maxWeight, long expiry, ToIntFunction<V> weigher) {
+            this.maxWeight = maxWeight;
+            this.expiry = expiry;
+            this.weigher = weigher;
+        }
+
+        V get(K key, Callable<V> loader) {
+            CacheEntry<V> entry;
+            boolean load = false;
+            synchronized (entries) {
+                long now = Common.timer.currentTimeMillis();
+                entry = entries.get(key);
+                if (entry == null || now - entry.created > expiry) {
+                    if (entry != null)
+                        weight -= entry.weight;
+                    entry = new CacheEntry<V>(new FutureTask<V>(loader), now);
+                    entries.put(key, entry);
+                    load = true;
+                }
+            }
+            FutureTask<V> task = entry.task;
+
+            // Load without holding the lock
+            if (load)
+                task.run();
+
+            try {
+                V value = task.get();
+                if (load)
+                    made(key, entry, value);
+                return value;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            catch (ExecutionException e) {
+                synchronized (entries) {
+                    if (entries.get(key) == entry)
+                        entries.remove(key);
+                }
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new ShouldNeverHappenException(cause);
+            }
+        }
+
+        /**
+         * Count the weight of a value that was made and drop the least recently used values while the
+         * cache is too heavy
+         */
+        private void made(K key, CacheEntry<V> entry, V value) {
+            int valueWeight = value == null ? 0 : weigher.applyAsInt(value);
+            synchronized (entries) {
+                if (entries.get(key) != entry)
+                    return;
+                if (valueWeight > maxWeight) {
+                    entries.remove(key);
+                    return;
+                }
+                entry.weight = valueWeight;
+                weight += valueWeight;
+                Iterator<CacheEntry<V>> it = entries.values().iterator();
+                while (weight > maxWeight && it.hasNext()) {
+                    CacheEntry<V> eldest = it.next();
+                    if (eldest == entry)
+                        continue;
+                    weight -= eldest.weight;
+                    it.remove();
+                }
+            }
+        }
+
+        int size() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+    }
+
+    private static class CacheEntry<V> {
+        final FutureTask<V> task;
+        final long created;
+        // Counted once made, guarded by the entries of the cache
+        int weight;
+
+        CacheEntry(FutureTask<V> task, long created) {
+            this.task = task;
+            this.created = created;
+        }
+    }
+}
@@ -6,11 +6,11 @@ package com.serotonin.timer;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
@@ -35,12 +35,16 @@ import java.util.concurrent.TimeUnit;
 * 
 * Note that every queue will be removed once it is empty.  
 * 
+* The queues are kept in a ConcurrentHashMap and each queue is its own lock, so submissions for different 
+* task ids never wait on each other.  A queue that has been removed from the map is marked retired under its
+* lock and a submitter that finds a retired queue starts over with a new one.
+* 
 */
 public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements RejectedExecutionHandler{
 
 	
-	//Task to queue map
-	private final Map<String, LimitedTaskQueue> keyedTasks = new HashMap<String, LimitedTaskQueue>();
+	//Task to queue map, each queue guards its own state
+	private final ConcurrentHashMap<String, LimitedTaskQueue> keyedTasks = new ConcurrentHashMap<String, LimitedTaskQueue>();
 
 	private boolean flushFullQueue;
 	private RejectedExecutionHandler handler;
@@ -189,42 +193,67 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
 			return;
 		}
 		
-        boolean first;
-        OrderedTaskCollection wrappedTask;
-        LimitedTaskQueue dependencyQueue = null;
-        
-        synchronized (keyedTasks){
-        	dependencyQueue = keyedTasks.get(worker.task.id);
-            first = (dependencyQueue == null);
-            if (dependencyQueue == null){
-            	OrderedTaskInfo info = new OrderedTaskInfo(worker.task);
-            	if(flushFullQueue)
-            		dependencyQueue = new TimePriorityLimitedTaskQueue(info);
-            	else
-            		dependencyQueue = new LimitedTaskQueue(info);
-                keyedTasks.put(worker.task.id, dependencyQueue);
-            }
+        while(true){
+        	LimitedTaskQueue dependencyQueue = keyedTasks.get(worker.task.id);
+        	if(dependencyQueue == null){
+        		//Nothing running for this id, whoever gets their queue into the map runs first
+        		LimitedTaskQueue created = newQueue(worker.task);
+        		dependencyQueue = keyedTasks.putIfAbsent(worker.task.id, created);
+        		if(dependencyQueue == null){
+        			// execute can block, call it outside of any lock
+        			execute(wrap(worker, created));
+        			return;
+        		}
+        	}
 
-            wrappedTask = wrap(worker, dependencyQueue);
-            //Either add or reject 
-            if(!first)
-            	if(!dependencyQueue.add(wrappedTask, this))
-            		return; //Was rejected so nothing to do
-        }
-
-        // execute and reject methods can block, call them outside synchronize block
-        if (first){
-            execute(wrappedTask);
-	        // process rejected tasks if we are the first task as 
-        	// we have processed/rejected all dependent tasks 
-            OrderedTaskCollection t = dependencyQueue.getRejectedTasks().poll();
-	    	while(t != null){
-	    		t.rejected(this);
-	    		t = dependencyQueue.getRejectedTasks().poll();
-	    	}
+        	synchronized(dependencyQueue){
+        		//Emptied and removed while we were getting it, start over
+        		if(dependencyQueue.retired)
+        			continue;
+        		dependencyQueue.add(wrap(worker, dependencyQueue), this);
+        	}
+        	// rejected can block, call it outside the lock
+        	processRejected(dependencyQueue);
+        	return;
         }
     }
 
+	private LimitedTaskQueue newQueue(Task task){
+		OrderedTaskInfo info = new OrderedTaskInfo(task);
+		if(flushFullQueue)
+			return new TimePriorityLimitedTaskQueue(info);
+		else
+			return new LimitedTaskQueue(info);
+	}
+
+	/**
+	 * Tell the tasks that were rejected from a queue
+	 * @param dependencyQueue
+	 */
+	private void processRejected(LimitedTaskQueue dependencyQueue){
+		OrderedTaskCollection t = dependencyQueue.getRejectedTasks().poll();
+		while(t != null){
+			t.rejected(this);
+			t = dependencyQueue.getRejectedTasks().poll();
+		}
+	}
+
+	/**
+	 * Take the next task to run from the queue, if there is none remove the queue.
+	 * @param dependencyQueue
+	 * @return next task or null if the queue was removed
+	 */
+	private OrderedTaskCollection pollOrRemove(LimitedTaskQueue dependencyQueue){
+		synchronized(dependencyQueue){
+			OrderedTaskCollection next = dependencyQueue.poll();
+			if(next == null){
+				dependencyQueue.retired = true;
+				keyedTasks.remove(dependencyQueue.info.id, dependencyQueue);
+			}
+			return next;
+		}
+	}
+
 	/** 
 	 * We need to ensure we remove the keyed tasks if we get rejected
 	 * 
@@ -235,14 +264,11 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
 		
 		if(r instanceof OrderedTaskCollection){
 			OrderedTaskCollection t  = (OrderedTaskCollection)r;
-			synchronized (keyedTasks){
-				//Don't bother trying to run the queue we've got a problem
-				if (t.dependencyQueue.isEmpty()){
-                    keyedTasks.remove(t.wrapper.task.id);
-                }else{
-                	//Could be trouble, but let it fail if it must
-                    execute(t.dependencyQueue.poll());
-                }
+			//Don't bother trying to run the queue we've got a problem
+			OrderedTaskCollection next = pollOrRemove(t.dependencyQueue);
+			if(next != null){
+				//Could be trouble, but let it fail if it must
+				execute(next);
 			}
 			this.handler.rejectedExecution(t.wrapper, e);
 			
@@ -270,7 +296,9 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
 	public void updateDefaultQueueSize(int newSize, String taskId){
 		LimitedTaskQueue dependencyQueue = keyedTasks.get(taskId);
         if (dependencyQueue != null){
-        	dependencyQueue.setLimit(newSize);
+        	synchronized(dependencyQueue){
+        		dependencyQueue.setLimit(newSize);
+        	}
         }
 	}
 	
@@ -280,9 +308,7 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
 	 * @return
 	 */
 	public boolean queueExists(Object taskId){
-		synchronized (keyedTasks){
-			return keyedTasks.containsKey(taskId);
-		}
+		return keyedTasks.containsKey(taskId);
 	}
 	
     private OrderedTaskCollection wrap(TaskWrapper task, LimitedTaskQueue dependencyQueue) {
@@ -313,19 +339,14 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
             try{
             	this.wrapper.run();
             } finally {
-                Runnable nextTask = null;
-                if (this.dependencyQueue.isEmpty()){
-                	//Remove the Collection
-                	synchronized (keyedTasks){
-                    	keyedTasks.remove(wrapper.task.id);
-                    }
-            	}else{
-            		//Have something in our queue, process it now
-                    nextTask = this.dependencyQueue.poll();
+                Runnable nextTask;
+                synchronized (this.dependencyQueue){
+                	//Have something in our queue, process it now, otherwise remove the Collection
+                	nextTask = pollOrRemove(this.dependencyQueue);
+                	// Update our task info
+                	this.dependencyQueue.info.addExecutionTime(timer.currentTimeMillis() - start);
+                	this.dependencyQueue.info.updateCurrentQueueSize(this.dependencyQueue.size());
                 }
-                // Update our task info
-                this.dependencyQueue.info.addExecutionTime(timer.currentTimeMillis() - start);
-                this.dependencyQueue.info.updateCurrentQueueSize(this.dependencyQueue.size());
                 if (nextTask!=null){
                     execute(nextTask);
                 }
@@ -336,8 +357,11 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
         	this.rejectedReason = reason;
         }
         
+        /**
+         * Tell the task it was rejected, the rejection is counted by the queue
+         * @param e
+         */
         public void rejected(Executor e){
-        	this.dependencyQueue.info.rejections++;
         	this.wrapper.task.rejected(new RejectedTaskReason(this.rejectedReason, wrapper.executionTime, wrapper.task, e));
         }
         
@@ -355,6 +379,9 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
      * Class to hold a limited size queue and reject incoming tasks 
      * if the limit is reached false is returned from the add method.
      * 
+     * All access is synchronized on the queue, rejected tasks are collected
+     * so they can be told outside of the lock.
+     * 
      * This class ensures that all submitted tasks that are not rejected 
      * will run.  Which is different to TimePriorityLimitedTaskQueue where incoming tasks to a full queue
      * cause the queue to be cleared and the incoming task to take precedence.
@@ -366,14 +393,16 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
 
 		private static final long serialVersionUID = 1L;
 		protected int limit;
-		protected ArrayDeque<OrderedTaskCollection> rejectedTasks;
+		protected final Queue<OrderedTaskCollection> rejectedTasks;
 		protected final OrderedTaskInfo info;
+		//Set once the queue is empty and removed from the keyed tasks, guarded by this
+		boolean retired;
 		
 		public LimitedTaskQueue(OrderedTaskInfo info){
 			super();
 			this.limit = info.queueSizeLimit;
 			this.info = info;
-			this.rejectedTasks = new ArrayDeque<OrderedTaskCollection>(limit);
+			this.rejectedTasks = new ConcurrentLinkedQueue<OrderedTaskCollection>();
 		}
 		
 		/*
@@ -389,11 +418,10 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
 			}else{
 				if(this.size() == limit){
 					c.setRejectedReason(RejectedTaskReason.TASK_QUEUE_FULL);
-					c.rejected(ex);
 				}else{
 					c.setRejectedReason(RejectedTaskReason.CURRENTLY_RUNNING);
-					c.rejected(ex);
 				}
+				info.rejections++;
 				this.rejectedTasks.add(c);
 				return false;
 			}
@@ -444,11 +472,10 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
 					OrderedTaskCollection t = this.poll();
 					if(limit > 0){
 						t.setRejectedReason(RejectedTaskReason.TASK_QUEUE_FULL);
-						t.rejected(ex);
 					}else{
 						t.setRejectedReason(RejectedTaskReason.CURRENTLY_RUNNING);
-						t.rejected(ex);
 					}
+					info.rejections++;
 					this.rejectedTasks.add(t);
 				}
 				/* Now add the task */
@@ -470,10 +497,8 @@ public class OrderedThreadPoolExecutor extends ThreadPoolExecutor implements Rej
 	 */
 	public List<OrderedTaskInfo> getOrderedQueueInfo() {
 		List<OrderedTaskInfo> stats = new ArrayList<OrderedTaskInfo>(keyedTasks.size());
-		synchronized(keyedTasks){
-			for(LimitedTaskQueue queue : keyedTasks.values())
-				stats.add(queue.info);
-		}
+		for(LimitedTaskQueue queue : keyedTasks.values())
+			stats.add(queue.info);
 		return stats;
 	}
     
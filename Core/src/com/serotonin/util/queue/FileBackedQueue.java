@@ -18,6 +18,8 @@ public class FileBackedQueue<E extends Serializable> {
     private final ObjectQueue<E> tailQueue;
     private int fileHead;
     private int fileNext;
+    // Entries in the saved files
+    private int fileEntries;
     private boolean putHead;
 
     public FileBackedQueue(int blockSize, File baseDir) {
@@ -53,6 +55,7 @@ public class FileBackedQueue<E extends Serializable> {
                         if (fileNext < id)
                             fileNext = id;
                     }
+                    fileEntries += readCount(file);
                 }
             }
 
@@ -63,7 +66,7 @@ public class FileBackedQueue<E extends Serializable> {
     }
 
     public synchronized int size() {
-        return headQueue.size() + tailQueue.size() + (fileNext - fileHead) * blockSize;
+        return headQueue.size() + tailQueue.size() + fileEntries;
     }
 
     public synchronized boolean offer(E e) {
@@ -107,6 +110,7 @@ public class FileBackedQueue<E extends Serializable> {
         if (fileHead < fileNext) {
             // There is at least one saved file. Load it in.
             File file = createFile(fileHead++);
+            int before = headQueue.size();
             try {
                 ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
                 int count = ois.readInt();
@@ -121,10 +125,13 @@ public class FileBackedQueue<E extends Serializable> {
                 throw new RuntimeException("While reading " + file.getPath(), ex);
             }
             file.delete();
+            fileEntries -= headQueue.size() - before;
 
             // If there are no more save files, reset the indices.
-            if (fileHead == fileNext)
+            if (fileHead == fileNext) {
                 fileHead = fileNext = 0;
+                fileEntries = 0;
+            }
         }
         else {
             // No saved files. Move the tail into the head and resume putting into the head.
@@ -155,6 +162,19 @@ public class FileBackedQueue<E extends Serializable> {
         }
     }
 
+    /**
+     * Remove everything in the queue, deleting the saved files.
+     */
+    public synchronized void clear() {
+        while (fileHead < fileNext)
+            createFile(fileHead++).delete();
+        fileHead = fileNext = 0;
+        fileEntries = 0;
+        headQueue.clear();
+        tailQueue.clear();
+        putHead = true;
+    }
+
     private File createFile(int id) {
         return new File(baseDir, FILE_PREFIX + id + FILE_SUFFIX);
     }
@@ -166,9 +186,22 @@ public class FileBackedQueue<E extends Serializable> {
             for (E t : queue)
                 oos.writeObject(t);
             oos.close();
+            fileEntries += queue.size();
         }
         catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
+
+    /**
+     * The number of entries a saved file holds, without reading them
+     */
+    private static int readCount(File file) {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+            return ois.readInt();
+        }
+        catch (IOException ex) {
+            return 0;
+        }
+    }
 }